@@ -0,0 +1,83 @@
+package fr.uge.webmail;
+
+import fr.uge.webmail.service.AttachmentReport;
+import fr.uge.webmail.service.MailboxService;
+import fr.uge.webmail.util.AtomicFileWriter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Vérification hors ligne des références aux pièces jointes et aux contenus partagés.
+ *
+ * Relit tous les emails, recompte les références de chaque pièce jointe et de chaque contenu
+ * et les compare aux tables maintenues par l'application. À lancer application arrêtée :
+ * <pre>
+ * java -cp webmail-fat.jar fr.uge.webmail.AttachmentVerifier [--repair] [répertoire de données] [racines de stockage...]
+ * </pre>
+ * Avec {@code --repair}, la table est remplacée par les comptes exacts. Les racines de stockage
+ * sont celles de la configuration {@code storageRoots} (par défaut, le répertoire de données) :
+ * une racine oubliée ferait paraître ses références orphelines.
+ */
+public final class AttachmentVerifier {
+
+    private AttachmentVerifier() {
+        // Point d'entrée uniquement
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean repair = false;
+        Path dataPath = null;
+        List<Path> storageRoots = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--repair")) {
+                repair = true;
+            } else if (dataPath == null) {
+                dataPath = Path.of(arg);
+            } else {
+                storageRoots.add(Path.of(arg));
+            }
+        }
+        if (dataPath == null) {
+            dataPath = Path.of("data");
+        }
+        if (storageRoots.isEmpty()) {
+            storageRoots.add(dataPath);
+        }
+
+        MailboxService mailboxService = new MailboxService(dataPath, storageRoots, 0,
+            new AtomicFileWriter(AtomicFileWriter.SyncPolicy.GROUP), MailboxService.DEFAULT_CACHE_SIZE_BYTES);
+        boolean consistent = print("Pièces jointes", mailboxService.verifyAttachments(repair));
+        consistent &= print("Contenus", mailboxService.verifyBodies(repair));
+        if (!consistent) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Affiche le rapport d'une table des références.
+     * @return false si des incohérences n'ont pas été corrigées
+     */
+    private static boolean print(String label, AttachmentReport report) {
+        System.out.println("== " + label + " ==");
+        System.out.println("Emails lus : " + report.emails());
+        System.out.println("Fichiers stockés : " + report.blobs());
+        System.out.println("Fichiers non référencés : " + report.unreferencedBlobs());
+        System.out.println("Compteurs incorrects : " + report.mismatchedCounts().size());
+        report.mismatchedCounts().forEach(sha256 -> System.out.println("  " + sha256));
+        System.out.println("Fichiers manquants : " + report.missingBlobs().size());
+        report.missingBlobs().forEach(sha256 -> System.out.println("  " + sha256));
+
+        if (report.isConsistent()) {
+            System.out.println("✅ Table des références cohérente");
+        } else if (report.repaired()) {
+            System.out.println("🔧 Table des références corrigée");
+        } else {
+            System.out.println("⚠️ Incohérences détectées (relancer avec --repair pour corriger)");
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,137 @@
+package fr.uge.webmail;
+
+import fr.uge.webmail.model.EmailHeader;
+import fr.uge.webmail.service.InboxEvents;
+import fr.uge.webmail.service.InboxEvents.InboxEvent;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Connexion Server-Sent Events d'une page ou d'un client : pousse les changements de la boîte
+ * de réception d'un utilisateur ({@link InboxEvents}) au lieu de recharger la page.
+ *
+ * Événements envoyés :
+ * <ul>
+ *   <li>{@code unread} : nombre de messages non lus, à l'ouverture et à chaque changement ;</li>
+ *   <li>{@code mail} : nouveau message, avec son en-tête et le nombre de non lus ;</li>
+ *   <li>{@code resync} : des événements ont été perdus, la liste est à recharger.</li>
+ * </ul>
+ *
+ * Chaque connexion a une file d'écriture bornée. Un client trop lent pour la vider ne reçoit
+ * plus d'événements, qui sont perdus au lieu de s'accumuler en mémoire ; dès que la file se
+ * vide, il reçoit un seul {@code resync} avec le nombre de non lus à jour. Un commentaire est
+ * envoyé périodiquement pour maintenir la connexion, et la connexion est fermée lorsque la
+ * session expire.
+ */
+final class InboxEventStream {
+
+    private final Vertx vertx;
+    private final HttpServerResponse response;
+    private final BooleanSupplier sessionValid;
+    private MessageConsumer<InboxEvent> consumer;
+    private long heartbeatTimerId = -1;
+
+    // Événements perdus depuis que la file d'écriture est pleine
+    private boolean missed;
+    private int lastUnread;
+
+    /**
+     * @param sessionValid Vérifie, à chaque maintien de la connexion, que la session est toujours valide
+     */
+    InboxEventStream(Vertx vertx, HttpServerResponse response, BooleanSupplier sessionValid) {
+        this.vertx = vertx;
+        this.response = response;
+        this.sessionValid = sessionValid;
+    }
+
+    /**
+     * Ouvre le flux : en-têtes, nombre de non lus initial, puis abonnement aux événements.
+     * @param writeQueueMaxBytes Taille de la file d'écriture au-delà de laquelle les événements sont perdus
+     * @param heartbeatMs Intervalle des commentaires de maintien de la connexion
+     */
+    void start(String username, int unread, int writeQueueMaxBytes, long heartbeatMs) {
+        lastUnread = unread;
+        response.setChunked(true)
+            .setWriteQueueMaxSize(writeQueueMaxBytes)
+            .putHeader(HttpHeaders.CONTENT_TYPE, "text/event-stream; charset=utf-8")
+            .putHeader(HttpHeaders.CACHE_CONTROL, "no-cache")
+            // Pas de mise en mémoire tampon par un proxy nginx
+            .putHeader("X-Accel-Buffering", "no");
+        send("unread", new JsonObject().put("unread", unread));
+
+        consumer = vertx.eventBus().localConsumer(InboxEvents.address(username), this::handle);
+        heartbeatTimerId = vertx.setPeriodic(heartbeatMs, id -> heartbeat());
+        response.drainHandler(v -> drained());
+        response.closeHandler(v -> stop());
+        response.exceptionHandler(err -> stop());
+    }
+
+    private void handle(Message<InboxEvent> message) {
+        InboxEvent event = message.body();
+        lastUnread = event.unread();
+        if (missed || response.writeQueueFull()) {
+            missed = true;
+            return;
+        }
+        if (event.header() != null) {
+            send("mail", new JsonObject()
+                .put("header", toJson(event.header()))
+                .put("unread", event.unread()));
+        } else {
+            send("unread", new JsonObject().put("unread", event.unread()));
+        }
+    }
+
+    private void drained() {
+        if (missed) {
+            missed = false;
+            send("resync", new JsonObject().put("unread", lastUnread));
+        }
+    }
+
+    private void heartbeat() {
+        if (!sessionValid.getAsBoolean()) {
+            stop();
+            response.end();
+            return;
+        }
+        if (!response.writeQueueFull()) {
+            response.write(": ping\n\n");
+        }
+    }
+
+    private void send(String event, JsonObject data) {
+        response.write("event: " + event + "\ndata: " + data.encode() + "\n\n");
+    }
+
+    private void stop() {
+        vertx.cancelTimer(heartbeatTimerId);
+        if (consumer != null) {
+            consumer.unregister();
+            consumer = null;
+        }
+    }
+
+    /**
+     * Champs de l'en-tête affichés dans la liste d'un dossier.
+     */
+    static JsonObject toJson(EmailHeader header) {
+        return new JsonObject()
+            .put("id", header.getId())
+            .put("from", header.getFrom())
+            .put("to", new JsonArray(header.getTo()))
+            .put("subject", header.getSubject())
+            .put("date", header.getDate() != null ? header.getDate().toString() : null)
+            .put("preview", header.getContentPreview())
+            .put("tags", new JsonArray(new ArrayList<>(header.getTags())))
+            .put("attachmentCount", header.getAttachmentCount());
+    }
+}
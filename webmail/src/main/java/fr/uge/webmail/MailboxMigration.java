@@ -0,0 +1,46 @@
+package fr.uge.webmail;
+
+import fr.uge.webmail.service.MailboxService;
+import fr.uge.webmail.util.AtomicFileWriter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Conversion hors ligne des boîtes mail vers le stockage séparé en-tête / contenu partagé.
+ *
+ * Chaque email d'un ancien format (un fichier JSON indenté contenant le contenu, ou un
+ * fichier {@code <id>.body} à côté de l'en-tête) est réécrit en un en-tête compact qui
+ * désigne son contenu, stocké sous son hash. La conversion peut être relancée
+ * sans risque : les emails déjà convertis sont ignorés. À lancer application arrêtée :
+ * <pre>
+ * java -cp webmail-fat.jar fr.uge.webmail.MailboxMigration [répertoire de données] [racines de stockage...]
+ * </pre>
+ * Les racines de stockage sont celles de la configuration {@code storageRoots} ; par défaut,
+ * le répertoire de données.
+ */
+public final class MailboxMigration {
+
+    private MailboxMigration() {
+        // Point d'entrée uniquement
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path dataPath = args.length > 0 ? Path.of(args[0]) : Path.of("data");
+        List<Path> storageRoots = args.length > 1
+            ? Arrays.stream(args, 1, args.length).map(Path::of).toList()
+            : List.of(dataPath);
+        MailboxService mailboxService = new MailboxService(dataPath, storageRoots, 0,
+            new AtomicFileWriter(AtomicFileWriter.SyncPolicy.GROUP), MailboxService.DEFAULT_CACHE_SIZE_BYTES);
+
+        int total = 0;
+        for (String username : mailboxService.listMailboxes()) {
+            int migrated = mailboxService.migrateStorage(username);
+            System.out.println(username + " : " + migrated + " email(s) converti(s)");
+            total += migrated;
+        }
+        System.out.println("✅ " + total + " email(s) converti(s)");
+    }
+}
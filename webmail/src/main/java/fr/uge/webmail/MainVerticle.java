@@ -2,31 +2,57 @@ package fr.uge.webmail;
 
 import fr.uge.webmail.model.Attachment;
 import fr.uge.webmail.model.Email;
+import fr.uge.webmail.model.EmailPage;
+import fr.uge.webmail.service.AsyncMailboxService;
+import fr.uge.webmail.service.AsyncUserService;
+import fr.uge.webmail.service.DeliveryService;
+import fr.uge.webmail.service.InboxEvents;
+import fr.uge.webmail.service.LocalSessionManager;
 import fr.uge.webmail.service.MailboxService;
+import fr.uge.webmail.service.MailboxStorageVerticle;
+import fr.uge.webmail.service.MaintenanceService;
+import fr.uge.webmail.service.SessionManager;
+import fr.uge.webmail.service.SignedSessionManager;
+import fr.uge.webmail.service.StorageStats;
 import fr.uge.webmail.service.UdpService;
 import fr.uge.webmail.service.UserService;
+import fr.uge.webmail.util.AtomicFileWriter;
+import fr.uge.webmail.util.ByteRange;
 import fr.uge.webmail.util.FileUtils;
+import fr.uge.webmail.util.HashingWriteStream;
+import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
 import io.vertx.core.VerticleBase;
+import io.vertx.core.WorkerExecutor;
 import io.vertx.core.http.Cookie;
-import io.vertx.ext.web.FileUpload;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerFileUpload;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.BodyHandler;
-import io.vertx.ext.web.handler.SessionHandler;
 import io.vertx.ext.web.handler.StaticHandler;
-import io.vertx.ext.web.sstore.LocalSessionStore;
 import io.vertx.ext.web.templ.pebble.PebbleTemplateEngine;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Verticle principal de l'application Webmail.
@@ -36,46 +62,188 @@ public class MainVerticle extends VerticleBase {
     private static final int HTTP_PORT = 8080;
     private static final int UDP_PORT = 9999;
     private static final String DATA_DIR = "data";
-    private static final String SESSION_COOKIE = "webmail_session";
-
-    private MailboxService mailboxService;
-    private UserService userService;
+    static final String SESSION_COOKIE = "webmail_session";
+    private static final int DEFAULT_STORAGE_WORKER_POOL_SIZE = 16;
+    private static final int DEFAULT_DELIVERY_WORKER_POOL_SIZE = 4;
+    private static final int DEFAULT_DELIVERY_MAX_ATTEMPTS = 5;
+    private static final long DEFAULT_DELIVERY_RETRY_DELAY_MS = 5_000;
+    private static final long DEFAULT_STORAGE_RECONCILE_INTERVAL_MINUTES = 24 * 60;
+    private static final long DEFAULT_MAINTENANCE_INTERVAL_MS = 60_000;
+    private static final int DEFAULT_MAINTENANCE_BATCH_SIZE = 100;
+    private static final long DEFAULT_ATTACHMENT_GRACE_PERIOD_HOURS = 24;
+    private static final int DEFAULT_FOLDER_PAGE_SIZE = 50;
+    private static final long DEFAULT_LAST_LOGIN_FLUSH_INTERVAL_MS = 30_000;
+    private static final int DEFAULT_HTTP_INSTANCES = Runtime.getRuntime().availableProcessors();
+    private static final long DEFAULT_STORAGE_STATS_INTERVAL_MS = 60_000;
+    private static final String STORAGE_WORKER_POOL = "webmail-storage";
+    private static final long DEFAULT_EVENT_STREAM_HEARTBEAT_MS = 25_000;
+    private static final int EVENT_STREAM_WRITE_QUEUE_MAX_BYTES = 64 * 1024;
+    private static final long FORM_BODY_LIMIT = 64 * 1024;
+    private static final long MAX_UPLOAD_SIZE = 50 * 1024 * 1024; // 50 MB max par message
+    private static final long ATTACHMENT_CACHE_MAX_AGE_SECONDS = 365L * 24 * 60 * 60;
+
+    // Services de la première instance, pour une instance supplémentaire du serveur HTTP
+    private final SharedServices shared;
+
+    private AsyncMailboxService mailboxService;
+    private AsyncUserService userService;
     private UdpService udpService;
+    private MaintenanceService maintenanceService;
+    private DeliveryService deliveryService;
+    private WorkerExecutor storageExecutor;
+    private WorkerExecutor deliveryExecutor;
     private PebbleTemplateEngine templateEngine;
+    private int folderPageSize;
+    private long eventStreamHeartbeatMs;
+
+    public MainVerticle() {
+        this(null);
+    }
+
+    private MainVerticle(SharedServices shared) {
+        this.shared = shared;
+    }
 
     @Override
     public Future<?> start() {
+        if (shared != null) {
+            // Instance supplémentaire : seul le serveur HTTP lui est propre
+            mailboxService = shared.mailboxService();
+            userService = shared.userService();
+            deliveryService = shared.deliveryService();
+            return startHttpServer();
+        }
+
         // Initialiser les services
-        Path dataPath = Path.of(DATA_DIR);
-        mailboxService = new MailboxService(dataPath);
-        userService = new UserService(dataPath, mailboxService);
+        String dataDir = config().getString("dataDir", DATA_DIR);
+        Path dataPath = Path.of(dataDir);
+        long storageQuota = config().getLong("storageQuotaBytes", 0L);
+        // Synchronisation des écritures : "group" (par défaut) regroupe les fsync des écritures concurrentes
+        AtomicFileWriter fileWriter = new AtomicFileWriter(
+            AtomicFileWriter.SyncPolicy.parse(config().getString("syncPolicy", "group")),
+            config().getLong("groupCommitWindowMicros", AtomicFileWriter.DEFAULT_GROUP_COMMIT_WINDOW_MICROS));
+        // Racines de stockage des boîtes mail (un disque par racine) : une racine ajoutée reçoit
+        // sa part des boîtes lors des passages de maintenance suivants
+        List<Path> storageRoots = new ArrayList<>();
+        config().getJsonArray("storageRoots", new JsonArray().add(dataDir))
+            .forEach(root -> storageRoots.add(Path.of((String) root)));
+        MailboxService syncMailboxService = new MailboxService(dataPath, storageRoots, storageQuota, fileWriter,
+            config().getLong("emailCacheSizeBytes", MailboxService.DEFAULT_CACHE_SIZE_BYTES));
+        UserService syncUserService = new UserService(syncMailboxService,
+            config().getInteger("maxPendingLastLogins", UserService.DEFAULT_MAX_PENDING_LAST_LOGINS),
+            createSessionManager());
+        // Utilisateurs et boîtes mail sont gardés en mémoire : les modifications faites
+        // directement dans les répertoires des boîtes sont prises en compte par surveillance de ces répertoires
+        try {
+            syncUserService.startWatching();
+        } catch (IOException e) {
+            System.err.println("Surveillance des boîtes mail indisponible : " + e.getMessage());
+        }
+
+        // Pool de workers dédié aux accès disque, hors de la boucle d'événements. Les boîtes mail
+        // sont servies par le bus d'événements (service de stockage sur ce même pool)
+        int poolSize = config().getInteger("storageWorkerPoolSize", DEFAULT_STORAGE_WORKER_POOL_SIZE);
+        storageExecutor = vertx.createSharedWorkerExecutor(STORAGE_WORKER_POOL, poolSize);
+        mailboxService = new AsyncMailboxService(syncMailboxService, vertx.eventBus(),
+            config().getLong("storageRequestTimeoutMs", AsyncMailboxService.DEFAULT_REQUEST_TIMEOUT_MS));
+        userService = new AsyncUserService(syncUserService, storageExecutor);
+
+        // Changements des boîtes de réception publiés sur le bus d'événements (flux /mail/events)
+        syncMailboxService.addListener(new InboxEvents(vertx.eventBus(), syncMailboxService));
+
+        // Distribution des envois aux destinataires, sur un pool séparé pour ne pas retarder les requêtes
+        int deliveryPoolSize = config().getInteger("deliveryWorkerPoolSize", DEFAULT_DELIVERY_WORKER_POOL_SIZE);
+        deliveryExecutor = vertx.createSharedWorkerExecutor("webmail-delivery", deliveryPoolSize);
+        deliveryService = new DeliveryService(vertx, mailboxService, deliveryExecutor,
+            config().getInteger("deliveryMaxAttempts", DEFAULT_DELIVERY_MAX_ATTEMPTS),
+            config().getLong("deliveryRetryDelayMs", DEFAULT_DELIVERY_RETRY_DELAY_MS));
+
+        // Service UDP, démarré avec le service de stockage dont il est client
+        udpService = new UdpService(vertx, mailboxService, deliveryService, config().getInteger("udpPort", UDP_PORT));
+
+        // Planifier le nettoyage périodique
+        vertx.setPeriodic(60000, id -> {
+            if (syncUserService.cleanupExpiredSessions() > 0) {
+                System.out.println("🔑 Sessions : " + syncUserService.getSessionStats());
+            }
+        });
+
+        // Les dernières connexions sont enregistrées par lots, pas à chaque connexion
+        vertx.setPeriodic(config().getLong("lastLoginFlushIntervalMs", DEFAULT_LAST_LOGIN_FLUSH_INTERVAL_MS),
+            id -> userService.flushLastLogins()
+                .onFailure(err -> System.err.println("Erreur lors de l'enregistrement des dernières connexions : " + err.getMessage())));
+
+        // Maintenance en tâche de fond : rétention par dossier et recalcul de l'espace disque
+        Map<String, Integer> retentionDays = new HashMap<>(MaintenanceService.DEFAULT_RETENTION_DAYS);
+        JsonObject retentionConfig = config().getJsonObject("retentionDays", new JsonObject());
+        retentionConfig.forEach(entry -> retentionDays.put(entry.getKey(), ((Number) entry.getValue()).intValue()));
+        retentionDays.values().removeIf(days -> days <= 0);
+        long reconcileMinutes = config().getLong("storageReconcileIntervalMinutes", DEFAULT_STORAGE_RECONCILE_INTERVAL_MINUTES);
+        maintenanceService = new MaintenanceService(vertx, syncMailboxService, storageExecutor, retentionDays,
+            config().getLong("maintenanceIntervalMs", DEFAULT_MAINTENANCE_INTERVAL_MS),
+            config().getInteger("maintenanceBatchSize", DEFAULT_MAINTENANCE_BATCH_SIZE),
+            reconcileMinutes * 60_000,
+            Duration.ofHours(config().getLong("attachmentGracePeriodHours", DEFAULT_ATTACHMENT_GRACE_PERIOD_HOURS)));
+        maintenanceService.start();
+
+        // Requêtes de stockage : file d'attente et temps de traitement
+        long[] lastRequests = {0};
+        vertx.setPeriodic(config().getLong("storageStatsIntervalMs", DEFAULT_STORAGE_STATS_INTERVAL_MS), id -> {
+            StorageStats.Snapshot stats = mailboxService.getStats();
+            if (stats.requests() != lastRequests[0]) {
+                lastRequests[0] = stats.requests();
+                System.out.println("📊 Stockage : " + stats);
+            }
+        });
+
+        // Instances supplémentaires du serveur HTTP, chacune sur sa boucle d'événements,
+        // partageant les services de celle-ci
+        int httpInstances = Math.max(1, config().getInteger("httpInstances", DEFAULT_HTTP_INSTANCES));
+        SharedServices services = new SharedServices(mailboxService, userService, deliveryService);
+
+        // Démarrer le service de stockage, puis ses clients : reprise des envois, UDP et serveur HTTP
+        return MailboxStorageVerticle.deploy(vertx, syncMailboxService, poolSize, STORAGE_WORKER_POOL)
+            .onSuccess(id -> {
+                deliveryService.start();
+                udpService.start();
+            })
+            .compose(id -> httpInstances == 1
+                ? Future.succeededFuture()
+                : vertx.deployVerticle(() -> new MainVerticle(services),
+                    new DeploymentOptions().setConfig(config()).setInstances(httpInstances - 1)))
+            .compose(id -> startHttpServer())
+            .onSuccess(server -> {
+                System.out.println("🌐 Serveur HTTP démarré sur http://localhost:" + server.actualPort()
+                    + " (" + httpInstances + " instance" + (httpInstances > 1 ? "s" : "") + ")");
+            });
+    }
 
-        // Démarrer le service UDP
-        udpService = new UdpService(vertx, mailboxService, UDP_PORT);
-        udpService.start();
+    /**
+     * Démarre le serveur HTTP de cette instance. Toutes les instances écoutent sur le même
+     * port : Vert.x répartit les connexions entre elles.
+     */
+    private Future<HttpServer> startHttpServer() {
+        folderPageSize = Math.max(1, config().getInteger("folderPageSize", DEFAULT_FOLDER_PAGE_SIZE));
+        eventStreamHeartbeatMs = config().getLong("eventStreamHeartbeatMs", DEFAULT_EVENT_STREAM_HEARTBEAT_MS);
 
         // Créer le moteur de templates Pebble
         templateEngine = PebbleTemplateEngine.create(vertx);
 
         // Créer le routeur
         Router router = Router.router(vertx);
+        RestApi restApi = new RestApi(vertx, mailboxService, userService, deliveryService, folderPageSize);
 
-        // Middleware pour le body et les fichiers uploadés
-        router.route().handler(BodyHandler.create()
-            .setUploadsDirectory("uploads")
-            .setBodyLimit(50 * 1024 * 1024)); // 50 MB max
-
-        // Session handler
-        router.route().handler(SessionHandler.create(LocalSessionStore.create(vertx)));
+        // Corps des formulaires simples, sans fichiers (la composition reçoit ses pièces jointes en flux)
+        BodyHandler formBodyHandler = BodyHandler.create(false).setBodyLimit(FORM_BODY_LIMIT);
 
         // Routes publiques (sans authentification)
         router.get("/").handler(this::handleIndex);
         router.get("/login").handler(this::handleLoginPage);
-        router.post("/login").handler(this::handleLogin);
+        router.post("/login").handler(formBodyHandler).handler(this::handleLogin);
         router.get("/register").handler(this::handleRegisterPage);
-        router.post("/register").handler(this::handleRegister);
+        router.post("/register").handler(formBodyHandler).handler(this::handleRegister);
         router.get("/recovery").handler(this::handleRecoveryPage);
-        router.post("/recovery").handler(this::handleRecovery);
+        router.post("/recovery").handler(formBodyHandler).handler(this::handleRecovery);
         router.get("/logout").handler(this::handleLogout);
 
         // Routes protégées (avec authentification)
@@ -84,47 +252,90 @@ public class MainVerticle extends VerticleBase {
         router.get("/mail/outbox").handler(ctx -> handleFolder(ctx, MailboxService.OUTBOX));
         router.get("/mail/drafts").handler(ctx -> handleFolder(ctx, MailboxService.DRAFT));
         router.get("/mail/trash").handler(ctx -> handleFolder(ctx, MailboxService.TRASH));
+        router.get("/mail/events").handler(this::handleInboxEvents);
+        router.get("/mail/changes").handler(restApi::handleChanges);
         router.get("/mail/compose").handler(this::handleComposePage);
         router.post("/mail/compose").handler(this::handleCompose);
         router.get("/mail/view/:folder/:id").handler(this::handleViewEmail);
-        router.post("/mail/delete/:folder/:id").handler(this::handleDeleteEmail);
-        router.post("/mail/tag/:folder/:id/:tag").handler(this::handleToggleTag);
+        router.post("/mail/delete/:folder/:id").handler(formBodyHandler).handler(this::handleDeleteEmail);
+        router.post("/mail/tag/:folder/:id/:tag").handler(formBodyHandler).handler(this::handleToggleTag);
         router.get("/mail/edit/:id").handler(this::handleEditDraft);
         router.get("/mail/attachment/:sha256/:filename").handler(this::handleDownloadAttachment);
         router.get("/mail/settings").handler(this::handleSettingsPage);
-        router.post("/mail/settings/password").handler(this::handleChangePassword);
+        router.post("/mail/settings/password").handler(formBodyHandler).handler(this::handleChangePassword);
+
+        // API JSON (authentification par token de session)
+        router.route(RestApi.PREFIX + "/*").subRouter(restApi.router());
 
         // Fichiers statiques
         router.route("/static/*").handler(StaticHandler.create("webroot"));
 
-        // Planifier le nettoyage périodique
-        vertx.setPeriodic(60000, id -> userService.cleanupExpiredSessions());
-
-        // Démarrer le serveur HTTP
         return vertx.createHttpServer()
             .requestHandler(router)
-            .listen(HTTP_PORT)
-            .onSuccess(server -> {
-                System.out.println("🌐 Serveur HTTP démarré sur http://localhost:" + HTTP_PORT);
-            });
+            .listen(config().getInteger("httpPort", HTTP_PORT));
     }
 
     @Override
     public Future<?> stop() {
+        if (shared != null) {
+            return Future.succeededFuture();
+        }
         udpService.stop();
-        return Future.succeededFuture();
+        maintenanceService.stop();
+        try {
+            userService.getDelegate().stopWatching();
+        } catch (IOException e) {
+            System.err.println("Erreur lors de l'arrêt de la surveillance des boîtes mail : " + e.getMessage());
+        }
+        // Enregistrer les dernières connexions en attente avant de fermer le pool de stockage
+        return userService.flushLastLogins()
+            .onFailure(err -> System.err.println("Erreur lors de l'enregistrement des dernières connexions : " + err.getMessage()))
+            .eventually(() -> Future.all(deliveryExecutor.close(), storageExecutor.close()));
+    }
+
+    /**
+     * Crée la gestion des sessions selon la configuration ("sessions") :
+     * <ul>
+     *   <li>"local" (par défaut) : sessions en mémoire, propres à l'instance ;</li>
+     *   <li>"signed" : tokens signés, acceptés par toute instance partageant les clés
+     *   ("sessionKeys" : identifiant -> clé en base64, "sessionKeyId" : clé courante).
+     *   Sans clé configurée, une clé aléatoire est générée.</li>
+     * </ul>
+     */
+    private SessionManager createSessionManager() {
+        String mode = config().getString("sessions", "local");
+        if ("local".equals(mode)) {
+            return new LocalSessionManager();
+        }
+        if (!"signed".equals(mode)) {
+            throw new IllegalArgumentException("Mode de sessions inconnu : " + mode);
+        }
+        JsonObject keysConfig = config().getJsonObject("sessionKeys", new JsonObject());
+        if (keysConfig.isEmpty()) {
+            System.out.println("⚠️  Aucune clé de session configurée : les sessions ne survivront pas au redémarrage");
+            return SignedSessionManager.withRandomKey();
+        }
+        Map<String, byte[]> keys = new HashMap<>();
+        keysConfig.forEach(entry -> keys.put(entry.getKey(), Base64.getDecoder().decode((String) entry.getValue())));
+        String currentKeyId = config().getString("sessionKeyId",
+            keys.size() == 1 ? keys.keySet().iterator().next() : null);
+        if (currentKeyId == null) {
+            throw new IllegalArgumentException("sessionKeyId doit désigner la clé courante parmi sessionKeys");
+        }
+        return new SignedSessionManager(keys, currentKeyId);
     }
 
     // ==================== Middleware ====================
 
     private void authMiddleware(RoutingContext ctx) {
-        Cookie sessionCookie = ctx.request().getCookie(SESSION_COOKIE);
-        if (sessionCookie == null) {
+        // Cookie des pages, ou token de l'API (téléchargement des pièces jointes)
+        Optional<String> token = RestApi.sessionToken(ctx.request());
+        if (token.isEmpty()) {
             ctx.redirect("/login");
             return;
         }
 
-        Optional<String> userOpt = userService.validateSession(sessionCookie.getValue());
+        Optional<String> userOpt = userService.validateSession(token.get());
         if (userOpt.isEmpty()) {
             ctx.response().removeCookie(SESSION_COOKIE);
             ctx.redirect("/login");
@@ -134,13 +345,6 @@ public class MainVerticle extends VerticleBase {
         // Stocker l'utilisateur dans le contexte
         ctx.put("username", userOpt.get());
 
-        // Purger automatiquement la corbeille
-        try {
-            mailboxService.purgeOldTrashEmails(userOpt.get());
-        } catch (IOException e) {
-            System.err.println("Erreur lors de la purge de la corbeille : " + e.getMessage());
-        }
-
         ctx.next();
     }
 
@@ -168,16 +372,18 @@ public class MainVerticle extends VerticleBase {
             ? UserService.EXTENDED_SESSION_DURATION_MINUTES
             : UserService.DEFAULT_SESSION_DURATION_MINUTES;
 
-        Optional<String> tokenOpt = userService.authenticate(username, password, sessionDuration);
-
-        if (tokenOpt.isPresent()) {
-            ctx.response().addCookie(Cookie.cookie(SESSION_COOKIE, tokenOpt.get())
-                .setPath("/")
-                .setMaxAge(sessionDuration * 60));
-            ctx.redirect("/mail/inbox");
-        } else {
-            render(ctx, "login.peb", Map.of("error", "Nom d'utilisateur ou mot de passe incorrect"));
-        }
+        userService.authenticate(username, password, sessionDuration)
+            .onSuccess(tokenOpt -> {
+                if (tokenOpt.isPresent()) {
+                    ctx.response().addCookie(Cookie.cookie(SESSION_COOKIE, tokenOpt.get())
+                        .setPath("/")
+                        .setMaxAge(sessionDuration * 60));
+                    ctx.redirect("/mail/inbox");
+                } else {
+                    render(ctx, "login.peb", Map.of("error", "Nom d'utilisateur ou mot de passe incorrect"));
+                }
+            })
+            .onFailure(err -> ctx.fail(500, err));
     }
 
     private void handleRegisterPage(RoutingContext ctx) {
@@ -194,17 +400,18 @@ public class MainVerticle extends VerticleBase {
             return;
         }
 
-        try {
-            String recoveryCode = userService.createUser(username, password);
-            render(ctx, "register_success.peb", Map.of(
+        userService.createUser(username, password)
+            .onSuccess(recoveryCode -> render(ctx, "register_success.peb", Map.of(
                 "username", username,
                 "recoveryCode", recoveryCode
-            ));
-        } catch (IllegalArgumentException e) {
-            render(ctx, "register.peb", Map.of("error", e.getMessage()));
-        } catch (IOException e) {
-            render(ctx, "register.peb", Map.of("error", "Erreur lors de la création du compte"));
-        }
+            )))
+            .onFailure(err -> {
+                if (err instanceof IllegalArgumentException) {
+                    render(ctx, "register.peb", Map.of("error", err.getMessage()));
+                } else {
+                    render(ctx, "register.peb", Map.of("error", "Erreur lors de la création du compte"));
+                }
+            });
     }
 
     private void handleRecoveryPage(RoutingContext ctx) {
@@ -222,14 +429,15 @@ public class MainVerticle extends VerticleBase {
             return;
         }
 
-        try {
-            userService.resetPasswordWithRecoveryCode(username, recoveryCode, newPassword);
-            render(ctx, "login.peb", Map.of("success", "Mot de passe réinitialisé avec succès. Connectez-vous avec votre nouveau mot de passe."));
-        } catch (IllegalArgumentException e) {
-            render(ctx, "recovery.peb", Map.of("error", e.getMessage()));
-        } catch (IOException e) {
-            render(ctx, "recovery.peb", Map.of("error", "Erreur lors de la réinitialisation"));
-        }
+        userService.resetPasswordWithRecoveryCode(username, recoveryCode, newPassword)
+            .onSuccess(v -> render(ctx, "login.peb", Map.of("success", "Mot de passe réinitialisé avec succès. Connectez-vous avec votre nouveau mot de passe.")))
+            .onFailure(err -> {
+                if (err instanceof IllegalArgumentException) {
+                    render(ctx, "recovery.peb", Map.of("error", err.getMessage()));
+                } else {
+                    render(ctx, "recovery.peb", Map.of("error", "Erreur lors de la réinitialisation"));
+                }
+            });
     }
 
     private void handleLogout(RoutingContext ctx) {
@@ -243,30 +451,67 @@ public class MainVerticle extends VerticleBase {
 
     // ==================== Pages protégées ====================
 
+    /**
+     * Flux des nouveaux messages et du nombre de non lus (Server-Sent Events), qui remplace
+     * le rechargement de la boîte de réception.
+     */
+    private void handleInboxEvents(RoutingContext ctx) {
+        String username = ctx.get("username");
+        // Cookie de la page ou token Bearer, déjà vérifié par authMiddleware
+        String token = RestApi.sessionToken(ctx.request()).orElseThrow();
+        mailboxService.countUnreadEmails(username, MailboxService.INBOX)
+            .onSuccess(unread -> {
+                if (ctx.response().closed()) {
+                    return;
+                }
+                new InboxEventStream(vertx, ctx.response(), () -> userService.validateSession(token).isPresent())
+                    .start(username, unread, EVENT_STREAM_WRITE_QUEUE_MAX_BYTES, eventStreamHeartbeatMs);
+            })
+            .onFailure(err -> ctx.fail(500, err));
+    }
+
     private void handleFolder(RoutingContext ctx, String folder) {
         String username = ctx.get("username");
         String filter = ctx.request().getParam("filter");
-
-        try {
-            List<Email> emails = (filter != null && !filter.isEmpty())
-                ? mailboxService.filterEmails(username, folder, filter)
-                : mailboxService.listEmails(username, folder);
-
-            int unreadInbox = mailboxService.countUnreadEmails(username, MailboxService.INBOX);
-            long storageUsed = mailboxService.calculateTotalUserStorage(username);
-
-            Map<String, Object> data = new HashMap<>();
-            data.put("username", username);
-            data.put("folder", folder);
-            data.put("emails", emails);
-            data.put("filter", filter != null ? filter : "");
-            data.put("unreadInbox", unreadInbox);
-            data.put("storageUsed", FileUtils.formatSize(storageUsed));
-
-            render(ctx, "folder.peb", data);
-        } catch (IOException e) {
-            ctx.fail(500, e);
-        }
+        String cursor = ctx.request().getParam("cursor");
+
+        // Une seule requête au stockage pour la page, le compteur et l'espace utilisé
+        AsyncMailboxService.Batch batch = mailboxService.batch();
+        Future<EmailPage> emailsFuture = batch.add(service -> (filter != null && !filter.isEmpty())
+            ? service.filterEmails(username, folder, filter, cursor, folderPageSize)
+            : service.listEmails(username, folder, cursor, folderPageSize));
+        Future<Integer> unreadFuture = batch.add(service -> service.countUnreadEmails(username, MailboxService.INBOX));
+        Future<Long> storageFuture = batch.add(service -> service.calculateTotalUserStorage(username));
+        batch.send();
+
+        Future.all(emailsFuture, unreadFuture, storageFuture)
+            .onSuccess(all -> {
+                Map<String, Object> data = new HashMap<>();
+                data.put("username", username);
+                data.put("folder", folder);
+                EmailPage page = emailsFuture.result();
+                data.put("emails", page.getEmails());
+                data.put("filter", filter != null ? filter : "");
+
+                // Navigation entre les pages (le filtre est conservé)
+                String basePath = ctx.request().path();
+                String filterParam = (filter != null && !filter.isEmpty())
+                    ? "filter=" + URLEncoder.encode(filter, StandardCharsets.UTF_8)
+                    : "";
+                data.put("firstPageUrl", (cursor != null && !cursor.isEmpty())
+                    ? basePath + (filterParam.isEmpty() ? "" : "?" + filterParam)
+                    : "");
+                data.put("nextPageUrl", page.getNextCursor()
+                    .map(next -> basePath + "?" + (filterParam.isEmpty() ? "" : filterParam + "&") + "cursor=" + next)
+                    .orElse(""));
+                data.put("unreadInbox", unreadFuture.result());
+                data.put("storageUsed", FileUtils.formatSize(storageFuture.result()));
+                long quota = mailboxService.getDelegate().getStorageQuotaBytes();
+                data.put("storageQuota", quota > 0 ? FileUtils.formatSize(quota) : "");
+
+                render(ctx, "folder.peb", data);
+            })
+            .onFailure(err -> ctx.fail(500, err));
     }
 
     private void handleComposePage(RoutingContext ctx) {
@@ -283,27 +528,75 @@ public class MainVerticle extends VerticleBase {
         data.put("draftId", "");
 
         // Si c'est une réponse, pré-remplir
-        if (replyTo != null && !replyTo.isEmpty()) {
-            String[] parts = replyTo.split("/", 2);
-            if (parts.length == 2) {
-                try {
-                    Optional<Email> emailOpt = mailboxService.loadEmail(username, parts[0], parts[1]);
-                    if (emailOpt.isPresent()) {
-                        Email original = emailOpt.get();
-                        data.put("to", original.getFrom());
-                        data.put("subject", "Re: " + original.getSubject());
-                        data.put("content", "\n\n--- Message original ---\n" + original.getContent());
-                    }
-                } catch (IOException e) {
-                    // Ignorer
-                }
-            }
+        String[] parts = replyTo != null ? replyTo.split("/", 2) : new String[0];
+        if (parts.length != 2) {
+            render(ctx, "compose.peb", data);
+            return;
         }
 
-        render(ctx, "compose.peb", data);
+        mailboxService.loadEmail(username, parts[0], parts[1])
+            .onComplete(ar -> {
+                // En cas d'erreur de lecture, on affiche simplement un formulaire vide
+                if (ar.succeeded() && ar.result().isPresent()) {
+                    Email original = ar.result().get();
+                    data.put("to", original.getFrom());
+                    data.put("subject", "Re: " + original.getSubject());
+                    data.put("content", "\n\n--- Message original ---\n" + original.getContent());
+                }
+                render(ctx, "compose.peb", data);
+            });
     }
 
+    /**
+     * Reçoit le formulaire de composition en flux : chaque pièce jointe est écrite dans un
+     * fichier temporaire et hachée au fil de l'eau, sans jamais être chargée en mémoire.
+     */
     private void handleCompose(RoutingContext ctx) {
+        HttpServerRequest request = ctx.request();
+        List<Future<Optional<Attachment>>> attachmentFutures = new ArrayList<>();
+        AtomicLong remaining = new AtomicLong(MAX_UPLOAD_SIZE);
+
+        request.setExpectMultipart(true);
+        request.uploadHandler(upload -> attachmentFutures.add(receiveAttachment(upload, remaining)));
+        request.exceptionHandler(err -> ctx.fail(400, err));
+        request.endHandler(v -> Future.all(attachmentFutures)
+            .onSuccess(all -> {
+                List<Attachment> attachments = new ArrayList<>();
+                attachmentFutures.forEach(future -> future.result().ifPresent(attachments::add));
+                composeEmail(ctx, attachments);
+            })
+            .onFailure(err -> ctx.fail(err instanceof IllegalArgumentException ? 413 : 500, err)));
+    }
+
+    /**
+     * Écrit une pièce jointe dans le répertoire des uploads en calculant son hash,
+     * puis l'enregistre dans le stockage. Un champ fichier vide est ignoré.
+     * @param remaining Nombre d'octets encore acceptés pour ce message (partagé entre les pièces jointes)
+     */
+    private Future<Optional<Attachment>> receiveAttachment(HttpServerFileUpload upload, AtomicLong remaining) {
+        // Ne rien perdre des données reçues avant l'ouverture du fichier
+        upload.pause();
+
+        Path tempFile = mailboxService.getDelegate().getAttachmentUploadDirectory().resolve(UUID.randomUUID().toString());
+        return vertx.fileSystem().open(tempFile.toString(), new OpenOptions().setWrite(true).setCreateNew(true))
+            .compose(file -> {
+                HashingWriteStream out = new HashingWriteStream(file, remaining);
+                return upload.pipeTo(out)
+                    .compose(v -> {
+                        if (out.size() == 0 || upload.filename() == null || upload.filename().isEmpty()) {
+                            return vertx.fileSystem().delete(tempFile.toString())
+                                .map(Optional.<Attachment>empty());
+                        }
+                        return mailboxService.saveAttachment(upload.filename(), upload.contentType(),
+                                tempFile, out.sha256(), out.size())
+                            .map(Optional::of);
+                    })
+                    .recover(err -> vertx.fileSystem().delete(tempFile.toString())
+                        .transform(ar -> Future.failedFuture(err)));
+            });
+    }
+
+    private void composeEmail(RoutingContext ctx, List<Attachment> attachments) {
         String username = ctx.get("username");
         String toStr = ctx.request().getFormAttribute("to");
         String subject = ctx.request().getFormAttribute("subject");
@@ -322,70 +615,67 @@ public class MainVerticle extends VerticleBase {
             }
         }
 
-        try {
-            // Créer l'email
-            Email email = new Email();
-            if (draftId != null && !draftId.isEmpty()) {
-                email.setId(draftId);
-            }
-            email.setFrom(username);
-            email.setTo(recipients);
-            email.setSubject(subject != null ? subject : "");
-            email.setContent(content != null ? content : "");
-            email.setDate(LocalDateTime.now());
-            email.removeTag("unread");
-
-            // Gérer les pièces jointes
-            for (FileUpload upload : ctx.fileUploads()) {
-                if (upload.size() > 0) {
-                    byte[] data = Files.readAllBytes(Path.of(upload.uploadedFileName()));
-                    Attachment attachment = mailboxService.saveAttachment(
-                        upload.fileName(),
-                        upload.contentType(),
-                        data
-                    );
-                    email.addAttachment(attachment);
-                    // Supprimer le fichier temporaire
-                    Files.deleteIfExists(Path.of(upload.uploadedFileName()));
-                }
-            }
-
-            if ("draft".equals(action)) {
-                // Sauvegarder comme brouillon
-                mailboxService.saveDraft(username, email);
-                ctx.redirect("/mail/drafts");
-            } else {
-                // Envoyer l'email
-                // Vérifier que tous les destinataires existent
-                List<String> invalidRecipients = new ArrayList<>();
-                for (String recipient : recipients) {
-                    if (!mailboxService.mailboxExists(recipient)) {
-                        invalidRecipients.add(recipient);
+        // Créer l'email
+        Email email = new Email();
+        if (draftId != null && !draftId.isEmpty()) {
+            email.setId(draftId);
+        }
+        email.setFrom(username);
+        email.setTo(recipients);
+        email.setSubject(subject != null ? subject : "");
+        email.setContent(content != null ? content : "");
+        email.setDate(LocalDateTime.now());
+        email.removeTag("unread");
+
+        attachments.forEach(email::addAttachment);
+
+        Future<Void> result;
+        if ("draft".equals(action)) {
+            // Sauvegarder comme brouillon
+            result = mailboxService.saveDraft(username, email)
+                .onSuccess(v -> ctx.redirect("/mail/drafts"));
+        } else {
+            // Envoyer l'email
+            // Vérifier que tous les destinataires existent
+            result = mailboxService.findUnknownRecipients(recipients)
+                .compose(invalidRecipients -> {
+                    if (!invalidRecipients.isEmpty()) {
+                        Map<String, Object> data = new HashMap<>();
+                        data.put("username", username);
+                        data.put("to", toStr);
+                        data.put("subject", subject);
+                        data.put("content", content);
+                        data.put("error", "Destinataires non trouvés : " + String.join(", ", invalidRecipients));
+                        render(ctx, "compose.peb", data);
+                        return Future.<Void>succeededFuture();
                     }
-                }
 
-                if (!invalidRecipients.isEmpty()) {
+                    // Supprimer le brouillon une fois l'envoi enregistré (quota respecté) ;
+                    // la distribution aux destinataires se poursuit en arrière-plan
+                    return deliveryService.submit(email)
+                        .compose(v -> (draftId != null && !draftId.isEmpty())
+                            ? mailboxService.deleteEmail(username, MailboxService.DRAFT, draftId)
+                            : Future.<Void>succeededFuture())
+                        .onSuccess(v -> ctx.redirect("/mail/outbox"));
+                });
+        }
+
+        result
+            .onFailure(err -> {
+                if (err instanceof IllegalArgumentException) {
+                    // Quota dépassé : on réaffiche le formulaire avec le message
                     Map<String, Object> data = new HashMap<>();
                     data.put("username", username);
                     data.put("to", toStr);
                     data.put("subject", subject);
                     data.put("content", content);
-                    data.put("error", "Destinataires non trouvés : " + String.join(", ", invalidRecipients));
+                    data.put("draftId", draftId != null ? draftId : "");
+                    data.put("error", err.getMessage());
                     render(ctx, "compose.peb", data);
-                    return;
-                }
-
-                // Supprimer le brouillon s'il existe
-                if (draftId != null && !draftId.isEmpty()) {
-                    mailboxService.deleteEmail(username, MailboxService.DRAFT, draftId);
+                } else {
+                    ctx.fail(500, err);
                 }
-
-                mailboxService.sendEmail(email);
-                ctx.redirect("/mail/outbox");
-            }
-        } catch (IOException e) {
-            ctx.fail(500, e);
-        }
+            });
     }
 
     private void handleViewEmail(RoutingContext ctx) {
@@ -393,30 +683,32 @@ public class MainVerticle extends VerticleBase {
         String folder = ctx.pathParam("folder");
         String emailId = ctx.pathParam("id");
 
-        try {
-            Optional<Email> emailOpt = mailboxService.loadEmail(username, folder, emailId);
-            if (emailOpt.isEmpty()) {
-                ctx.redirect("/mail/" + folder);
-                return;
-            }
+        mailboxService.loadEmail(username, folder, emailId)
+            .compose(emailOpt -> {
+                if (emailOpt.isEmpty()) {
+                    ctx.redirect("/mail/" + folder);
+                    return Future.succeededFuture();
+                }
 
-            Email email = emailOpt.get();
+                Email email = emailOpt.get();
 
-            // Marquer comme lu si c'est dans l'inbox
-            if (MailboxService.INBOX.equals(folder) && email.isUnread()) {
-                mailboxService.markAsRead(username, folder, emailId);
-                email.markAsRead();
-            }
+                // Marquer comme lu si c'est dans l'inbox
+                Future<Void> markAsRead = Future.succeededFuture();
+                if (MailboxService.INBOX.equals(folder) && email.isUnread()) {
+                    markAsRead = mailboxService.markAsRead(username, folder, emailId);
+                    email.markAsRead();
+                }
 
-            Map<String, Object> data = new HashMap<>();
-            data.put("username", username);
-            data.put("folder", folder);
-            data.put("email", email);
+                return markAsRead.onSuccess(v -> {
+                    Map<String, Object> data = new HashMap<>();
+                    data.put("username", username);
+                    data.put("folder", folder);
+                    data.put("email", email);
 
-            render(ctx, "view_email.peb", data);
-        } catch (IOException e) {
-            ctx.fail(500, e);
-        }
+                    render(ctx, "view_email.peb", data);
+                });
+            })
+            .onFailure(err -> ctx.fail(500, err));
     }
 
     private void handleDeleteEmail(RoutingContext ctx) {
@@ -424,12 +716,9 @@ public class MainVerticle extends VerticleBase {
         String folder = ctx.pathParam("folder");
         String emailId = ctx.pathParam("id");
 
-        try {
-            mailboxService.deleteEmail(username, folder, emailId);
-            ctx.redirect("/mail/" + folder);
-        } catch (IOException e) {
-            ctx.fail(500, e);
-        }
+        mailboxService.deleteEmail(username, folder, emailId)
+            .onSuccess(v -> ctx.redirect("/mail/" + folder))
+            .onFailure(err -> ctx.fail(500, err));
     }
 
     private void handleToggleTag(RoutingContext ctx) {
@@ -438,58 +727,133 @@ public class MainVerticle extends VerticleBase {
         String emailId = ctx.pathParam("id");
         String tag = ctx.pathParam("tag");
 
-        try {
-            mailboxService.toggleTag(username, folder, emailId, tag);
-            ctx.redirect("/mail/view/" + folder + "/" + emailId);
-        } catch (IOException e) {
-            ctx.fail(500, e);
-        }
+        mailboxService.toggleTag(username, folder, emailId, tag)
+            .onSuccess(v -> ctx.redirect("/mail/view/" + folder + "/" + emailId))
+            .onFailure(err -> ctx.fail(500, err));
     }
 
     private void handleEditDraft(RoutingContext ctx) {
         String username = ctx.get("username");
         String draftId = ctx.pathParam("id");
 
-        try {
-            Optional<Email> draftOpt = mailboxService.loadEmail(username, MailboxService.DRAFT, draftId);
-            if (draftOpt.isEmpty()) {
-                ctx.redirect("/mail/drafts");
-                return;
-            }
+        mailboxService.loadEmail(username, MailboxService.DRAFT, draftId)
+            .onSuccess(draftOpt -> {
+                if (draftOpt.isEmpty()) {
+                    ctx.redirect("/mail/drafts");
+                    return;
+                }
 
-            Email draft = draftOpt.get();
+                Email draft = draftOpt.get();
 
-            Map<String, Object> data = new HashMap<>();
-            data.put("username", username);
-            data.put("to", draft.getToAsString());
-            data.put("subject", draft.getSubject());
-            data.put("content", draft.getContent());
-            data.put("draftId", draft.getId());
+                Map<String, Object> data = new HashMap<>();
+                data.put("username", username);
+                data.put("to", draft.getToAsString());
+                data.put("subject", draft.getSubject());
+                data.put("content", draft.getContent());
+                data.put("draftId", draft.getId());
 
-            render(ctx, "compose.peb", data);
-        } catch (IOException e) {
-            ctx.fail(500, e);
-        }
+                render(ctx, "compose.peb", data);
+            })
+            .onFailure(err -> ctx.fail(500, err));
     }
 
+    /**
+     * Envoie une pièce jointe directement depuis le disque (sendFile), sans la charger en mémoire.
+     * Le contenu étant adressé par son hash, celui-ci sert d'ETag fort et la réponse peut être
+     * mise en cache indéfiniment. Les téléchargements partiels (en-tête Range) sont pris en charge.
+     */
     private void handleDownloadAttachment(RoutingContext ctx) {
         String sha256 = ctx.pathParam("sha256");
         String filename = ctx.pathParam("filename");
+        String etag = "\"" + sha256 + "\"";
 
-        try {
-            Optional<byte[]> dataOpt = mailboxService.getAttachment(sha256);
-            if (dataOpt.isEmpty()) {
-                ctx.response().setStatusCode(404).end("Pièce jointe non trouvée");
-                return;
-            }
+        mailboxService.getAttachmentFile(sha256)
+            .onSuccess(fileOpt -> {
+                if (fileOpt.isEmpty()) {
+                    ctx.response().setStatusCode(404).end("Pièce jointe non trouvée");
+                    return;
+                }
 
-            ctx.response()
-                .putHeader("Content-Type", "application/octet-stream")
-                .putHeader("Content-Disposition", "attachment; filename=\"" + filename + "\"")
-                .end(io.vertx.core.buffer.Buffer.buffer(dataOpt.get()));
-        } catch (IOException e) {
-            ctx.fail(500, e);
+                HttpServerResponse response = ctx.response()
+                    .putHeader(HttpHeaders.ETAG, etag)
+                    .putHeader(HttpHeaders.CACHE_CONTROL, "private, max-age=" + ATTACHMENT_CACHE_MAX_AGE_SECONDS + ", immutable")
+                    .putHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+                if (etagMatches(ctx.request().getHeader(HttpHeaders.IF_NONE_MATCH), etag)) {
+                    response.setStatusCode(304).end();
+                    return;
+                }
+
+                response
+                    .putHeader(HttpHeaders.CONTENT_TYPE, "application/octet-stream")
+                    .putHeader(HttpHeaders.CONTENT_DISPOSITION, contentDisposition(filename));
+
+                String file = fileOpt.get().toString();
+                vertx.fileSystem().props(file)
+                    .onSuccess(props -> {
+                        long size = props.size();
+
+                        // If-Range : la plage n'est honorée que si la version est la même
+                        String ifRange = ctx.request().getHeader("If-Range");
+                        String rangeHeader = (ifRange == null || ifRange.equals(etag))
+                            ? ctx.request().getHeader("Range")
+                            : null;
+
+                        Optional<ByteRange> range;
+                        try {
+                            range = ByteRange.parse(rangeHeader, size);
+                        } catch (IllegalArgumentException e) {
+                            response.setStatusCode(416)
+                                .putHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size)
+                                .end();
+                            return;
+                        }
+
+                        if (range.isPresent()) {
+                            response.setStatusCode(206)
+                                .putHeader(HttpHeaders.CONTENT_RANGE, range.get().contentRange(size));
+                            response.sendFile(file, range.get().start(), range.get().length());
+                        } else {
+                            response.sendFile(file);
+                        }
+                    })
+                    .onFailure(err -> ctx.fail(500, err));
+            })
+            .onFailure(err -> ctx.fail(500, err));
+    }
+
+    /**
+     * En-tête Content-Disposition d'un téléchargement : nom ASCII entre guillemets, échappé,
+     * pour les anciens clients, et nom exact encodé en UTF-8 (RFC 6266, {@code filename*}).
+     */
+    static String contentDisposition(String filename) {
+        String fallback = filename.replaceAll("[^\\x20-\\x7e]", "_")
+            .replace("\\", "\\\\")
+            .replace("\"", "\\\"");
+        // URLEncoder laisse "*" tel quel, interdit dans filename*
+        String encoded = URLEncoder.encode(filename, StandardCharsets.UTF_8)
+            .replace("+", "%20")
+            .replace("*", "%2A");
+        return "attachment; filename=\"" + fallback + "\"; filename*=UTF-8''" + encoded;
+    }
+
+    /**
+     * Vérifie si un en-tête If-None-Match (liste d'ETags ou "*") désigne l'ETag donné.
+     */
+    static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            if (value.equals("*") || value.equals(etag)) {
+                return true;
+            }
         }
+        return false;
     }
 
     private void handleSettingsPage(RoutingContext ctx) {
@@ -511,23 +875,17 @@ public class MainVerticle extends VerticleBase {
             return;
         }
 
-        try {
-            userService.changePassword(username, oldPassword, newPassword);
-            render(ctx, "settings.peb", Map.of(
+        userService.changePassword(username, oldPassword, newPassword)
+            .onSuccess(v -> render(ctx, "settings.peb", Map.of(
                 "username", username,
                 "success", "Mot de passe modifié avec succès"
-            ));
-        } catch (IllegalArgumentException e) {
-            render(ctx, "settings.peb", Map.of(
-                "username", username,
-                "error", e.getMessage()
-            ));
-        } catch (IOException e) {
-            render(ctx, "settings.peb", Map.of(
+            )))
+            .onFailure(err -> render(ctx, "settings.peb", Map.of(
                 "username", username,
-                "error", "Erreur lors du changement de mot de passe"
-            ));
-        }
+                "error", err instanceof IllegalArgumentException
+                    ? err.getMessage()
+                    : "Erreur lors du changement de mot de passe"
+            )));
     }
 
     // ==================== Utilitaires ====================
@@ -544,4 +902,12 @@ public class MainVerticle extends VerticleBase {
                 ctx.fail(500, err);
             });
     }
+
+    /**
+     * Services créés par la première instance et partagés par toutes les instances du serveur
+     * HTTP : stockage, utilisateurs et sessions, distribution.
+     */
+    private record SharedServices(AsyncMailboxService mailboxService, AsyncUserService userService,
+                                  DeliveryService deliveryService) {
+    }
 }
@@ -0,0 +1,434 @@
+package fr.uge.webmail;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import fr.uge.webmail.model.Attachment;
+import fr.uge.webmail.model.Email;
+import fr.uge.webmail.model.EmailHeader;
+import fr.uge.webmail.model.EmailPage;
+import fr.uge.webmail.service.AsyncMailboxService;
+import fr.uge.webmail.service.AsyncUserService;
+import fr.uge.webmail.service.DeliveryService;
+import fr.uge.webmail.service.MailboxService;
+import fr.uge.webmail.service.UserService;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.Cookie;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.handler.BodyHandler;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * API JSON ({@code /api/v1}) pour les clients programmatiques (application Android, scripts),
+ * sur les mêmes services que les pages : liste paginée, lecture, envoi, suppression, tags,
+ * métadonnées des pièces jointes et synchronisation incrémentale.
+ *
+ * L'authentification se fait par le token de session, dans l'en-tête
+ * {@code Authorization: Bearer <token>} (obtenu par {@code POST /api/v1/login}) ou dans le
+ * cookie de session des pages. Les réponses sont sérialisées par Jackson directement depuis
+ * les modèles, en JSON compact, sur le worker de stockage qui a lu les données : la boucle
+ * d'événements n'écrit que des octets.
+ *
+ * Les lectures portent un ETag : la version de la boîte mail, qui change à chaque modification
+ * d'un message. Une requête dont l'en-tête {@code If-None-Match} correspond reçoit une réponse
+ * 304, sans lecture ni sérialisation.
+ */
+final class RestApi {
+
+    static final String PREFIX = "/api/v1";
+
+    private static final int MAX_PAGE_SIZE = 200;
+    private static final int MAX_CHANGES_PAGE_SIZE = 500;
+    private static final long MAX_BODY_SIZE = 1024 * 1024;
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+
+    // JSON compact, sans les propriétés internes au stockage ni les valeurs calculées
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+        .registerModule(new JavaTimeModule())
+        .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+        .addMixIn(Email.class, EmailMixIn.class)
+        .addMixIn(EmailHeader.class, EmailHeaderMixIn.class)
+        .addMixIn(Attachment.class, AttachmentMixIn.class);
+
+    private final Vertx vertx;
+    private final AsyncMailboxService mailboxService;
+    private final AsyncUserService userService;
+    private final DeliveryService deliveryService;
+    private final int defaultPageSize;
+
+    /**
+     * @param defaultPageSize Nombre de messages par page si la requête n'en précise pas
+     */
+    RestApi(Vertx vertx, AsyncMailboxService mailboxService, AsyncUserService userService,
+            DeliveryService deliveryService, int defaultPageSize) {
+        this.vertx = vertx;
+        this.mailboxService = mailboxService;
+        this.userService = userService;
+        this.deliveryService = deliveryService;
+        this.defaultPageSize = defaultPageSize;
+    }
+
+    /**
+     * Crée le routeur de l'API, à monter sous {@link #PREFIX}.
+     */
+    Router router() {
+        Router router = Router.router(vertx);
+        BodyHandler bodyHandler = BodyHandler.create(false).setBodyLimit(MAX_BODY_SIZE);
+
+        router.post("/login").handler(bodyHandler).handler(this::handleLogin);
+        router.route().handler(this::authenticate);
+        router.post("/logout").handler(this::handleLogout);
+        router.get("/changes").handler(this::handleChanges);
+        router.post("/emails").handler(bodyHandler).handler(this::handleCompose);
+        router.route("/folders/:folder/*").handler(this::checkFolder);
+        router.get("/folders/:folder/emails").handler(this::handleList);
+        router.get("/folders/:folder/emails/:id").handler(this::handleView);
+        router.delete("/folders/:folder/emails/:id").handler(this::handleDelete);
+        router.get("/folders/:folder/emails/:id/attachments").handler(this::handleAttachments);
+        router.put("/folders/:folder/emails/:id/tags/:tag").handler(ctx -> handleTag(ctx, true));
+        router.delete("/folders/:folder/emails/:id/tags/:tag").handler(ctx -> handleTag(ctx, false));
+        router.route().failureHandler(this::handleFailure);
+        return router;
+    }
+
+    /**
+     * Retourne le token de session d'une requête : en-tête {@code Authorization: Bearer},
+     * ou à défaut cookie de session.
+     */
+    static Optional<String> sessionToken(HttpServerRequest request) {
+        String authorization = request.getHeader(HttpHeaders.AUTHORIZATION);
+        if (authorization != null && authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return Optional.of(authorization.substring(7).trim());
+        }
+        Cookie cookie = request.getCookie(MainVerticle.SESSION_COOKIE);
+        return cookie != null ? Optional.of(cookie.getValue()) : Optional.empty();
+    }
+
+    // ==================== Session ====================
+
+    private void authenticate(RoutingContext ctx) {
+        Optional<String> username = sessionToken(ctx.request()).flatMap(userService::validateSession);
+        if (username.isEmpty()) {
+            ctx.response().putHeader("WWW-Authenticate", "Bearer");
+            error(ctx, 401, "Session absente ou expirée");
+            return;
+        }
+        ctx.put("username", username.get());
+        ctx.next();
+    }
+
+    private void handleLogin(RoutingContext ctx) {
+        LoginRequest login;
+        try {
+            login = MAPPER.readValue(ctx.body().buffer().getBytes(), LoginRequest.class);
+        } catch (IOException | NullPointerException e) {
+            error(ctx, 400, "Requête JSON invalide");
+            return;
+        }
+        if (login.username() == null || login.password() == null) {
+            error(ctx, 400, "Nom d'utilisateur et mot de passe requis");
+            return;
+        }
+
+        int duration = UserService.DEFAULT_SESSION_DURATION_MINUTES;
+        userService.authenticate(login.username(), login.password(), duration)
+            .onSuccess(token -> {
+                if (token.isPresent()) {
+                    send(ctx, 200, new Session(token.get(), duration * 60L));
+                } else {
+                    error(ctx, 401, "Nom d'utilisateur ou mot de passe incorrect");
+                }
+            })
+            .onFailure(ctx::fail);
+    }
+
+    private void handleLogout(RoutingContext ctx) {
+        sessionToken(ctx.request()).ifPresent(userService::logout);
+        ctx.response().setStatusCode(204).end();
+    }
+
+    // ==================== Messages ====================
+
+    private void checkFolder(RoutingContext ctx) {
+        if (!MailboxService.FOLDERS.contains(ctx.pathParam("folder"))) {
+            error(ctx, 404, "Dossier inconnu : " + ctx.pathParam("folder"));
+            return;
+        }
+        ctx.next();
+    }
+
+    private void handleList(RoutingContext ctx) {
+        String username = ctx.get("username");
+        String folder = ctx.pathParam("folder");
+        String filter = ctx.request().getParam("filter");
+        String cursor = ctx.request().getParam("cursor");
+        int limit;
+        try {
+            limit = Integer.parseInt(ctx.request().getParam("limit", String.valueOf(defaultPageSize)));
+        } catch (NumberFormatException e) {
+            error(ctx, 400, "Paramètre limit invalide");
+            return;
+        }
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+
+        conditional(ctx, username, service -> {
+            EmailPage page = (filter != null && !filter.isEmpty())
+                ? service.filterEmails(username, folder, filter, cursor, pageSize)
+                : service.listEmails(username, folder, cursor, pageSize);
+            return Optional.of(new Page(page.getEmails(), page.getNextCursor().orElse(null)));
+        });
+    }
+
+    /**
+     * Lecture d'un message, avec son contenu. Contrairement à la page, la lecture ne marque
+     * pas le message comme lu : le client retire le tag "unread" lui-même.
+     */
+    private void handleView(RoutingContext ctx) {
+        String username = ctx.get("username");
+        String folder = ctx.pathParam("folder");
+        String emailId = ctx.pathParam("id");
+
+        conditional(ctx, username, service -> {
+            Optional<Email> email = service.loadEmail(username, folder, emailId);
+            email.ifPresent(Email::getContent);
+            return email;
+        });
+    }
+
+    private void handleAttachments(RoutingContext ctx) {
+        String username = ctx.get("username");
+        String folder = ctx.pathParam("folder");
+        String emailId = ctx.pathParam("id");
+
+        // Seul l'en-tête est lu : le contenu du message n'est pas nécessaire
+        conditional(ctx, username, service -> service.loadEmail(username, folder, emailId)
+            .map(email -> email.getAttachments().stream()
+                .map(attachment -> new AttachmentInfo(attachment.getFilename(), attachment.getContentType(),
+                    attachment.getSize(), attachment.getSha256(),
+                    "/mail/attachment/" + attachment.getSha256() + "/"
+                        + URLEncoder.encode(attachment.getFilename(), StandardCharsets.UTF_8).replace("+", "%20")))
+                .toList()));
+    }
+
+    private void handleDelete(RoutingContext ctx) {
+        String username = ctx.get("username");
+        mailboxService.deleteEmail(username, ctx.pathParam("folder"), ctx.pathParam("id"))
+            .onSuccess(v -> ctx.response().setStatusCode(204).end())
+            .onFailure(ctx::fail);
+    }
+
+    private void handleTag(RoutingContext ctx, boolean present) {
+        String username = ctx.get("username");
+        mailboxService.setTag(username, ctx.pathParam("folder"), ctx.pathParam("id"), ctx.pathParam("tag"), present)
+            .onSuccess(v -> ctx.response().setStatusCode(204).end())
+            .onFailure(ctx::fail);
+    }
+
+    /**
+     * Envoi (202 : la distribution se poursuit en arrière-plan) ou brouillon (201) d'un message
+     * sans pièce jointe ; les pièces jointes passent par le formulaire de composition.
+     */
+    private void handleCompose(RoutingContext ctx) {
+        String username = ctx.get("username");
+        ComposeRequest compose;
+        try {
+            compose = MAPPER.readValue(ctx.body().buffer().getBytes(), ComposeRequest.class);
+        } catch (IOException | NullPointerException e) {
+            error(ctx, 400, "Requête JSON invalide");
+            return;
+        }
+        List<String> recipients = compose.to() != null
+            ? compose.to().stream().map(String::trim).filter(recipient -> !recipient.isEmpty()).toList()
+            : List.of();
+
+        Email email = new Email();
+        email.setFrom(username);
+        email.setTo(recipients);
+        email.setSubject(compose.subject() != null ? compose.subject() : "");
+        email.setContent(compose.content() != null ? compose.content() : "");
+        email.setDate(LocalDateTime.now());
+        email.removeTag("unread");
+
+        if (compose.draft()) {
+            mailboxService.saveDraft(username, email)
+                .onSuccess(v -> send(ctx, 201, Map.of("id", email.getId())))
+                .onFailure(ctx::fail);
+            return;
+        }
+        if (recipients.isEmpty()) {
+            error(ctx, 400, "Aucun destinataire");
+            return;
+        }
+        mailboxService.findUnknownRecipients(recipients)
+            .compose(unknown -> {
+                if (!unknown.isEmpty()) {
+                    error(ctx, 400, "Destinataires non trouvés : " + String.join(", ", unknown));
+                    return Future.<Void>succeededFuture();
+                }
+                return deliveryService.submit(email)
+                    .onSuccess(v -> send(ctx, 202, Map.of("id", email.getId())));
+            })
+            .onFailure(ctx::fail);
+    }
+
+    /**
+     * Synchronisation incrémentale : changements depuis le modseq {@code since}. Le client
+     * renvoie ensuite {@code validity} et {@code modseq}, et recommence tant que {@code more}
+     * est vrai. Servie aussi sous {@code /mail/changes}.
+     */
+    void handleChanges(RoutingContext ctx) {
+        String username = ctx.get("username");
+        String folder = ctx.request().getParam("folder");
+        String validity = ctx.request().getParam("validity");
+        long since;
+        int limit;
+        try {
+            since = Long.parseLong(ctx.request().getParam("since", "0"));
+            limit = Integer.parseInt(ctx.request().getParam("limit", String.valueOf(MAX_CHANGES_PAGE_SIZE)));
+        } catch (NumberFormatException e) {
+            error(ctx, 400, "Paramètre since ou limit invalide");
+            return;
+        }
+        int pageSize = Math.max(1, Math.min(limit, MAX_CHANGES_PAGE_SIZE));
+
+        AsyncMailboxService.Batch batch = mailboxService.batch();
+        Future<byte[]> json = batch.add(service ->
+            MAPPER.writeValueAsBytes(service.getChanges(username, folder, validity, since, pageSize)));
+        batch.send();
+        // Erreurs traitées ici : la route est aussi montée hors de l'API, sans son failureHandler
+        json.onSuccess(bytes -> sendBytes(ctx, 200, bytes))
+            .onFailure(err -> {
+                if (err instanceof IllegalArgumentException) {
+                    error(ctx, 400, err.getMessage());
+                } else {
+                    ctx.fail(500, err);
+                }
+            });
+    }
+
+    // ==================== Réponses ====================
+
+    /**
+     * Lecture conditionnelle, en une seule requête au stockage : la version de la boîte est
+     * comparée à {@code If-None-Match} avant toute lecture, puis la ressource est lue et
+     * sérialisée sur le worker.
+     * @param loader Lit la ressource, ou retourne vide si elle n'existe pas (404)
+     */
+    private void conditional(RoutingContext ctx, String username, AsyncMailboxService.Operation<Optional<?>> loader) {
+        String ifNoneMatch = ctx.request().getHeader(HttpHeaders.IF_NONE_MATCH);
+        AsyncMailboxService.Batch batch = mailboxService.batch();
+        Future<Reply> reply = batch.add(service -> {
+            String etag = "\"" + service.getMailboxVersion(username) + "\"";
+            if (MainVerticle.etagMatches(ifNoneMatch, etag)) {
+                return new Reply(etag, 304, null);
+            }
+            Optional<?> resource = loader.run(service);
+            return resource.isPresent()
+                ? new Reply(etag, 200, MAPPER.writeValueAsBytes(resource.get()))
+                : new Reply(etag, 404, null);
+        });
+        batch.send();
+
+        reply.onSuccess(r -> {
+            if (r.status() == 404) {
+                error(ctx, 404, "Message non trouvé");
+                return;
+            }
+            // ETag faible : la version désigne le contenu, pas les octets exacts
+            ctx.response()
+                .putHeader(HttpHeaders.ETAG, "W/" + r.etag())
+                .putHeader(HttpHeaders.CACHE_CONTROL, "private, no-cache");
+            if (r.status() == 304) {
+                ctx.response().setStatusCode(304).end();
+            } else {
+                sendBytes(ctx, 200, r.json());
+            }
+        }).onFailure(ctx::fail);
+    }
+
+    private void handleFailure(RoutingContext ctx) {
+        Throwable failure = ctx.failure();
+        if (failure instanceof IllegalArgumentException) {
+            error(ctx, 400, failure.getMessage());
+        } else if (ctx.statusCode() > 0 && ctx.statusCode() < 500) {
+            error(ctx, ctx.statusCode(), "Requête refusée");
+        } else {
+            if (failure != null) {
+                System.err.println("Erreur de l'API : " + failure.getMessage());
+            }
+            error(ctx, 500, "Erreur interne");
+        }
+    }
+
+    private static void error(RoutingContext ctx, int status, String message) {
+        send(ctx, status, Map.of("error", message));
+    }
+
+    private static void send(RoutingContext ctx, int status, Object value) {
+        try {
+            sendBytes(ctx, status, MAPPER.writeValueAsBytes(value));
+        } catch (IOException e) {
+            ctx.fail(500, e);
+        }
+    }
+
+    private static void sendBytes(RoutingContext ctx, int status, byte[] json) {
+        if (ctx.response().ended()) {
+            return;
+        }
+        ctx.response()
+            .setStatusCode(status)
+            .putHeader(HttpHeaders.CONTENT_TYPE, JSON_CONTENT_TYPE)
+            .end(Buffer.buffer(json));
+    }
+
+    // ==================== Corps des requêtes et réponses ====================
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    private record LoginRequest(String username, String password) {
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    private record ComposeRequest(List<String> to, String subject, String content, boolean draft) {
+    }
+
+    private record Session(String token, long expiresInSeconds) {
+    }
+
+    private record Page(List<EmailHeader> emails, String nextCursor) {
+    }
+
+    private record AttachmentInfo(String filename, String contentType, long size, String sha256, String url) {
+    }
+
+    /**
+     * Résultat d'une lecture conditionnelle : statut, ETag et JSON (200 uniquement).
+     */
+    private record Reply(String etag, int status, byte[] json) {
+    }
+
+    @JsonIgnoreProperties(value = {"bodySha256", "unread", "important", "toAsString", "contentPreview"}, ignoreUnknown = true)
+    private abstract static class EmailMixIn {
+    }
+
+    @JsonIgnoreProperties(value = {"bodySha256", "attachmentHashes"}, ignoreUnknown = true)
+    private abstract static class EmailHeaderMixIn {
+    }
+
+    @JsonIgnoreProperties(value = {"formattedSize"}, ignoreUnknown = true)
+    private abstract static class AttachmentMixIn {
+    }
+}
@@ -0,0 +1,23 @@
+package fr.uge.webmail.model;
+
+/**
+ * État de la distribution d'un email envoyé, pour un destinataire.
+ */
+public enum DeliveryStatus {
+    PENDING("En attente"),
+    DELIVERED("Distribué"),
+    FAILED("Échec");
+
+    private final String label;
+
+    DeliveryStatus(String label) {
+        this.label = label;
+    }
+
+    /**
+     * Retourne le libellé affiché dans les messages envoyés.
+     */
+    public String getLabel() {
+        return label;
+    }
+}
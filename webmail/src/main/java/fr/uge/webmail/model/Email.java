@@ -1,19 +1,29 @@
 package fr.uge.webmail.model;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 
 /**
  * Représente un courrier électronique.
+ *
+ * Le contenu peut être stocké à part de l'en-tête : il est alors chargé à la première
+ * lecture de {@link #getContent()}, via le chargeur fourni par le stockage. Un contenu
+ * stocké est désigné par son hash SHA-256, partagé par toutes les copies du message.
  */
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class Email {
@@ -33,6 +43,11 @@ public class Email {
     @JsonProperty("content")
     private String content;
     
+    // Hash du contenu stocké (null tant qu'il n'est pas enregistré ou après une modification).
+    // Déclaré après le contenu, dont la lecture par Jackson le remet à null
+    @JsonProperty("bodySha256")
+    private String bodySha256;
+    
     @JsonProperty("date")
     @JsonFormat(pattern = "yyyy-MM-dd'T'HH:mm:ss")
     private LocalDateTime date;
@@ -46,6 +61,19 @@ public class Email {
     @JsonProperty("folder")
     private String folder;
     
+    // Distribution aux destinataires (copie de l'expéditeur d'un email envoyé uniquement)
+    @JsonProperty("delivery")
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    private Map<String, DeliveryStatus> delivery;
+    
+    // Chargeur du contenu stocké séparément (null si le contenu est déjà en mémoire)
+    @JsonIgnore
+    private ContentLoader contentLoader;
+    
+    // Aperçu enregistré avec l'en-tête, utilisé tant que le contenu n'est pas chargé
+    @JsonIgnore
+    private String storedPreview;
+    
     /**
      * Constructeur par défaut pour Jackson.
      */
@@ -55,6 +83,7 @@ public class Email {
         this.attachments = new ArrayList<>();
         this.tags = new HashSet<>();
         this.tags.add("unread"); // Par défaut, un mail est non lu
+        this.delivery = new LinkedHashMap<>();
     }
     
     /**
@@ -103,12 +132,49 @@ public class Email {
         this.subject = subject;
     }
     
+    /**
+     * Retourne le contenu, en le chargeant depuis le stockage s'il ne l'a pas encore été.
+     * @throws UncheckedIOException si le contenu ne peut pas être lu
+     */
     public String getContent() {
+        if (contentLoader != null) {
+            try {
+                content = contentLoader.load();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Impossible de lire le contenu de l'email " + id, e);
+            }
+            contentLoader = null;
+        }
         return content;
     }
     
     public void setContent(String content) {
         this.content = content;
+        this.contentLoader = null;
+        this.bodySha256 = null;
+    }
+    
+    public String getBodySha256() {
+        return bodySha256;
+    }
+    
+    public void setBodySha256(String bodySha256) {
+        this.bodySha256 = bodySha256;
+    }
+    
+    /**
+     * Indique que le contenu est stocké à part et sera chargé à la première lecture.
+     */
+    public void setContentLoader(ContentLoader contentLoader) {
+        this.contentLoader = contentLoader;
+    }
+    
+    /**
+     * Vérifie si le contenu est en mémoire (sans le charger).
+     */
+    @JsonIgnore
+    public boolean isContentLoaded() {
+        return contentLoader == null;
     }
     
     public LocalDateTime getDate() {
@@ -159,6 +225,17 @@ public class Email {
         this.folder = folder;
     }
     
+    /**
+     * Retourne l'état de la distribution à chaque destinataire (vide si l'email n'a pas été envoyé).
+     */
+    public Map<String, DeliveryStatus> getDelivery() {
+        return delivery;
+    }
+    
+    public void setDelivery(Map<String, DeliveryStatus> delivery) {
+        this.delivery = delivery;
+    }
+    
     /**
      * Marque le mail comme lu (supprime le tag "unread").
      */
@@ -184,12 +261,21 @@ public class Email {
      * Retourne un résumé du contenu (50 premiers caractères).
      */
     public String getContentPreview() {
+        if (!isContentLoaded() && storedPreview != null) {
+            return storedPreview;
+        }
+        String content = getContent();
         if (content == null || content.isEmpty()) {
             return "";
         }
         return content.length() > 50 ? content.substring(0, 50) + "..." : content;
     }
     
+    @JsonProperty("contentPreview")
+    public void setContentPreview(String contentPreview) {
+        this.storedPreview = contentPreview;
+    }
+    
     /**
      * Retourne la liste des destinataires sous forme de chaîne.
      */
@@ -197,6 +283,14 @@ public class Email {
         return String.join(", ", to);
     }
     
+    /**
+     * Lecture différée du contenu d'un email.
+     */
+    @FunctionalInterface
+    public interface ContentLoader {
+        String load() throws IOException;
+    }
+    
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,244 @@
+package fr.uge.webmail.model;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * En-tête d'un courrier électronique, tel que conservé dans l'index d'un dossier.
+ * Contient tout ce qui est nécessaire à l'affichage d'une liste de messages
+ * sans avoir à relire le contenu complet de l'email.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class EmailHeader {
+
+    @JsonProperty("id")
+    private String id;
+
+    @JsonProperty("from")
+    private String from;
+
+    @JsonProperty("to")
+    private List<String> to;
+
+    @JsonProperty("subject")
+    private String subject;
+
+    @JsonProperty("date")
+    @JsonFormat(pattern = "yyyy-MM-dd'T'HH:mm:ss")
+    private LocalDateTime date;
+
+    @JsonProperty("tags")
+    private Set<String> tags;
+
+    @JsonProperty("attachmentCount")
+    private int attachmentCount;
+
+    @JsonProperty("attachmentsSize")
+    private long attachmentsSize;
+
+    @JsonProperty("attachmentHashes")
+    private List<String> attachmentHashes;
+
+    @JsonProperty("preview")
+    private String preview;
+
+    @JsonProperty("bodySha256")
+    private String bodySha256;
+
+    @JsonProperty("delivery")
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    private Map<String, DeliveryStatus> delivery;
+
+    /**
+     * Constructeur par défaut pour Jackson.
+     */
+    public EmailHeader() {
+        this.to = new ArrayList<>();
+        this.tags = new HashSet<>();
+        this.attachmentHashes = new ArrayList<>();
+        this.delivery = new LinkedHashMap<>();
+    }
+
+    /**
+     * Construit l'en-tête d'un email complet.
+     */
+    public static EmailHeader of(Email email) {
+        EmailHeader header = new EmailHeader();
+        header.id = email.getId();
+        header.from = email.getFrom();
+        header.to = new ArrayList<>(email.getTo());
+        header.subject = email.getSubject();
+        header.date = email.getDate();
+        header.tags = new HashSet<>(email.getTags());
+        header.attachmentCount = email.getAttachments().size();
+        header.attachmentsSize = email.getAttachments().stream()
+                .mapToLong(Attachment::getSize)
+                .sum();
+        header.attachmentHashes = email.getAttachments().stream()
+                .map(Attachment::getSha256)
+                .toList();
+        header.preview = email.getContentPreview();
+        header.bodySha256 = email.getBodySha256();
+        header.delivery = new LinkedHashMap<>(email.getDelivery());
+        return header;
+    }
+
+    /**
+     * Retourne une copie de l'en-tête avec d'autres tags.
+     */
+    public EmailHeader withTags(Set<String> tags) {
+        EmailHeader header = new EmailHeader();
+        header.id = id;
+        header.from = from;
+        header.to = to;
+        header.subject = subject;
+        header.date = date;
+        header.tags = new HashSet<>(tags);
+        header.attachmentCount = attachmentCount;
+        header.attachmentsSize = attachmentsSize;
+        header.attachmentHashes = attachmentHashes;
+        header.preview = preview;
+        header.bodySha256 = bodySha256;
+        header.delivery = delivery;
+        return header;
+    }
+
+    // Getters
+
+    public String getId() {
+        return id;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public List<String> getTo() {
+        return to;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public LocalDateTime getDate() {
+        return date;
+    }
+
+    public Set<String> getTags() {
+        return tags;
+    }
+
+    public int getAttachmentCount() {
+        return attachmentCount;
+    }
+
+    public long getAttachmentsSize() {
+        return attachmentsSize;
+    }
+
+    public List<String> getAttachmentHashes() {
+        return attachmentHashes;
+    }
+
+    public String getPreview() {
+        return preview;
+    }
+
+    /**
+     * Retourne le hash du contenu partagé, ou null pour un email de l'ancien format.
+     */
+    public String getBodySha256() {
+        return bodySha256;
+    }
+
+    /**
+     * Retourne l'état de la distribution à chaque destinataire (vide si l'email n'a pas été envoyé).
+     */
+    public Map<String, DeliveryStatus> getDelivery() {
+        return delivery;
+    }
+
+    /**
+     * Vérifie si la distribution est encore en cours pour au moins un destinataire.
+     */
+    @JsonIgnore
+    public boolean isDeliveryPending() {
+        return delivery.containsValue(DeliveryStatus.PENDING);
+    }
+
+    /**
+     * Vérifie si la distribution a échoué pour au moins un destinataire.
+     */
+    @JsonIgnore
+    public boolean isDeliveryFailed() {
+        return delivery.containsValue(DeliveryStatus.FAILED);
+    }
+
+    /**
+     * Alias de {@link #getPreview()} pour rester compatible avec les templates.
+     */
+    @JsonIgnore
+    public String getContentPreview() {
+        return preview;
+    }
+
+    /**
+     * Vérifie si le mail est non lu.
+     */
+    @JsonIgnore
+    public boolean isUnread() {
+        return tags.contains("unread");
+    }
+
+    /**
+     * Vérifie si le mail est important.
+     */
+    @JsonIgnore
+    public boolean isImportant() {
+        return tags.contains("important");
+    }
+
+    /**
+     * Retourne la liste des destinataires sous forme de chaîne.
+     */
+    @JsonIgnore
+    public String getToAsString() {
+        return String.join(", ", to);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        EmailHeader that = (EmailHeader) o;
+        return Objects.equals(id, that.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id);
+    }
+
+    @Override
+    public String toString() {
+        return "EmailHeader{" +
+                "id='" + id + '\'' +
+                ", from='" + from + '\'' +
+                ", subject='" + subject + '\'' +
+                ", date=" + date +
+                '}';
+    }
+}
@@ -0,0 +1,36 @@
+package fr.uge.webmail.model;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Une page d'en-têtes d'emails d'un dossier, du plus récent au plus ancien.
+ */
+public class EmailPage {
+
+    private final List<EmailHeader> emails;
+    private final String nextCursor;
+
+    /**
+     * @param nextCursor Curseur opaque de la page suivante, ou null s'il s'agit de la dernière page
+     */
+    public EmailPage(List<EmailHeader> emails, String nextCursor) {
+        this.emails = List.copyOf(emails);
+        this.nextCursor = nextCursor;
+    }
+
+    public List<EmailHeader> getEmails() {
+        return emails;
+    }
+
+    /**
+     * Retourne le curseur à passer pour obtenir la page suivante.
+     */
+    public Optional<String> getNextCursor() {
+        return Optional.ofNullable(nextCursor);
+    }
+
+    public boolean hasNextPage() {
+        return nextCursor != null;
+    }
+}
@@ -0,0 +1,90 @@
+package fr.uge.webmail.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+
+import java.util.List;
+
+/**
+ * Changements d'une boîte mail depuis un numéro de modification (modseq) connu du client.
+ *
+ * Si {@link #isFull()} est vrai, le modseq du client n'était plus utilisable (première
+ * synchronisation, journal recréé, suppressions trop anciennes oubliées) : {@link #getAdded()}
+ * contient alors tous les messages, qui remplacent l'état local du client.
+ */
+public class MailboxChanges {
+
+    private final String validity;
+    private final long modseq;
+    private final boolean full;
+    private final boolean more;
+    private final List<Entry> added;
+    private final List<Entry> changed;
+    private final List<Removal> removed;
+
+    /**
+     * @param validity Identifiant du journal des modifications, à renvoyer avec le modseq
+     * @param modseq Modseq à renvoyer à la prochaine synchronisation
+     * @param more true s'il reste des changements à récupérer à partir de {@code modseq}
+     */
+    public MailboxChanges(String validity, long modseq, boolean full, boolean more,
+                          List<Entry> added, List<Entry> changed, List<Removal> removed) {
+        this.validity = validity;
+        this.modseq = modseq;
+        this.full = full;
+        this.more = more;
+        this.added = List.copyOf(added);
+        this.changed = List.copyOf(changed);
+        this.removed = List.copyOf(removed);
+    }
+
+    public String getValidity() {
+        return validity;
+    }
+
+    public long getModseq() {
+        return modseq;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    @JsonProperty("more")
+    public boolean hasMore() {
+        return more;
+    }
+
+    /**
+     * Retourne les messages arrivés dans un dossier.
+     */
+    public List<Entry> getAdded() {
+        return added;
+    }
+
+    /**
+     * Retourne les messages déjà connus du client dont l'en-tête ou les tags ont changé.
+     */
+    public List<Entry> getChanged() {
+        return changed;
+    }
+
+    /**
+     * Retourne les messages supprimés ou partis dans un autre dossier.
+     */
+    public List<Removal> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * En-tête d'un message et modseq de sa dernière modification (0 si elle précède le journal).
+     */
+    public record Entry(String folder, long modseq, @JsonUnwrapped EmailHeader header) {
+    }
+
+    /**
+     * Message retiré d'un dossier.
+     */
+    public record Removal(String folder, String id, long modseq) {
+    }
+}
@@ -22,6 +22,11 @@ public class User {
     @JsonProperty("recoveryCode")
     private String recoveryCode;
     
+    // Sel du mot de passe, enregistré avec le hash pour que les deux changent ensemble
+    // (absent des comptes créés avant : le sel est alors lu dans salt.txt)
+    @JsonProperty("salt")
+    private String salt;
+    
     @JsonProperty("createdAt")
     @JsonFormat(pattern = "yyyy-MM-dd'T'HH:mm:ss")
     private LocalDateTime createdAt;
@@ -72,6 +77,14 @@ public class User {
         this.recoveryCode = recoveryCode;
     }
     
+    public String getSalt() {
+        return salt;
+    }
+    
+    public void setSalt(String salt) {
+        this.salt = salt;
+    }
+    
     public LocalDateTime getCreatedAt() {
         return createdAt;
     }
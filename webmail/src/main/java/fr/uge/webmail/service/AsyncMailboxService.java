@@ -0,0 +1,279 @@
+package fr.uge.webmail.service;
+
+import fr.uge.webmail.model.Attachment;
+import fr.uge.webmail.model.Email;
+import fr.uge.webmail.model.EmailHeader;
+import fr.uge.webmail.model.EmailPage;
+import fr.uge.webmail.model.MailboxChanges;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.EventBus;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Façade asynchrone de {@link MailboxService}.
+ *
+ * Chaque opération est adressée par le bus d'événements au service de stockage
+ * ({@link MailboxStorageVerticle}), afin de ne jamais bloquer la boucle d'événements Vert.x
+ * avec des accès disque. Les requêtes sont transmises par référence, sans sérialisation, et
+ * la requête exécutée revient en réponse sur le contexte appelant. Si aucun service de stockage
+ * n'est à l'écoute (démarrage, arrêt) ou si la réponse dépasse le délai, les opérations échouent ;
+ * une requête pas encore prise par un worker n'est alors pas exécutée.
+ * Plusieurs opérations peuvent être regroupées en une seule requête ({@link #batch()}).
+ * L'existence des boîtes mail, connue en mémoire, est vérifiée directement.
+ */
+public class AsyncMailboxService {
+
+    /**
+     * Délai de réponse par défaut d'une requête de stockage, attente d'un worker comprise.
+     */
+    public static final long DEFAULT_REQUEST_TIMEOUT_MS = 60_000;
+
+    private final MailboxService mailboxService;
+    private final EventBus eventBus;
+    private final DeliveryOptions deliveryOptions;
+    private final StorageStats stats = new StorageStats();
+
+    public AsyncMailboxService(MailboxService mailboxService, EventBus eventBus) {
+        this(mailboxService, eventBus, DEFAULT_REQUEST_TIMEOUT_MS);
+    }
+
+    /**
+     * @param mailboxService Service de stockage, consulté directement pour l'existence des boîtes
+     * @param eventBus Bus d'événements sur lequel {@link MailboxStorageVerticle} est déployé
+     * @param requestTimeoutMs Délai au-delà duquel les opérations d'une requête sans réponse échouent
+     */
+    public AsyncMailboxService(MailboxService mailboxService, EventBus eventBus, long requestTimeoutMs) {
+        this.mailboxService = mailboxService;
+        this.eventBus = eventBus;
+        this.deliveryOptions = new DeliveryOptions().setSendTimeout(requestTimeoutMs);
+    }
+
+    /**
+     * Retourne le service synchrone sous-jacent.
+     */
+    public MailboxService getDelegate() {
+        return mailboxService;
+    }
+    
+    /**
+     * Retourne les compteurs des requêtes de stockage.
+     */
+    public StorageStats.Snapshot getStats() {
+        return stats.snapshot();
+    }
+    
+    /**
+     * Commence un regroupement d'opérations, envoyées ensemble par {@link Batch#send()}.
+     */
+    public Batch batch() {
+        return new Batch();
+    }
+
+    public Future<Boolean> mailboxExists(String username) {
+        return Future.succeededFuture(mailboxService.mailboxExists(username));
+    }
+
+    /**
+     * Retourne les destinataires dont la boîte mail n'existe pas.
+     */
+    public Future<List<String>> findUnknownRecipients(List<String> recipients) {
+        return Future.succeededFuture(recipients.stream()
+                .filter(recipient -> !mailboxService.mailboxExists(recipient))
+                .toList());
+    }
+
+    public Future<Void> saveEmail(String username, String folder, Email email) {
+        return execute(service -> {
+            service.saveEmail(username, folder, email);
+            return null;
+        });
+    }
+
+    /**
+     * Charge un email avec son contenu : le contenu est lu sur le pool de stockage pour
+     * ne jamais accéder au disque depuis la boucle d'événements.
+     */
+    public Future<Optional<Email>> loadEmail(String username, String folder, String emailId) {
+        return execute(service -> {
+            Optional<Email> email = service.loadEmail(username, folder, emailId);
+            email.ifPresent(Email::getContent);
+            return email;
+        });
+    }
+
+    public Future<List<EmailHeader>> listEmails(String username, String folder) {
+        return execute(service -> service.listEmails(username, folder));
+    }
+
+    public Future<List<EmailHeader>> filterEmails(String username, String folder, String filter) {
+        return execute(service -> service.filterEmails(username, folder, filter));
+    }
+
+    public Future<EmailPage> listEmails(String username, String folder, String cursor, int pageSize) {
+        return execute(service -> service.listEmails(username, folder, cursor, pageSize));
+    }
+
+    public Future<EmailPage> filterEmails(String username, String folder, String filter, String cursor, int pageSize) {
+        return execute(service -> service.filterEmails(username, folder, filter, cursor, pageSize));
+    }
+
+    public Future<MailboxChanges> getChanges(String username, String folder, String validity, long since, int limit) {
+        return execute(service -> service.getChanges(username, folder, validity, since, limit));
+    }
+
+    public Future<Void> deleteEmail(String username, String folder, String emailId) {
+        return execute(service -> {
+            service.deleteEmail(username, folder, emailId);
+            return null;
+        });
+    }
+
+    public Future<Void> sendEmail(Email email) {
+        return execute(service -> {
+            service.sendEmail(email);
+            return null;
+        });
+    }
+
+    /**
+     * Enregistre un email à envoyer (copie de l'expéditeur et entrée de la file de distribution).
+     * @return L'identifiant de l'envoi
+     */
+    public Future<String> queueEmail(Email email) {
+        return execute(service -> service.queueEmail(email));
+    }
+
+    public Future<List<String>> listQueuedEmails() {
+        return execute(MailboxService::listQueuedEmails);
+    }
+
+    public Future<Void> saveDraft(String username, Email email) {
+        return execute(service -> {
+            service.saveDraft(username, email);
+            return null;
+        });
+    }
+
+    /**
+     * Enregistre comme pièce jointe un fichier uploadé dont le hash a été calculé pendant la réception.
+     */
+    public Future<Attachment> saveAttachment(String filename, String contentType, Path uploadedFile, String sha256, long size) {
+        return execute(service -> service.saveAttachment(filename, contentType, uploadedFile, sha256, size));
+    }
+
+    public Future<Optional<Path>> getAttachmentFile(String sha256) {
+        return execute(service -> service.getAttachmentFile(sha256));
+    }
+
+    public Future<Long> calculateTotalUserStorage(String username) {
+        return execute(service -> service.calculateTotalUserStorage(username));
+    }
+
+    public Future<Integer> countUnreadEmails(String username, String folder) {
+        return execute(service -> service.countUnreadEmails(username, folder));
+    }
+
+    public Future<Void> markAsRead(String username, String folder, String emailId) {
+        return execute(service -> {
+            service.markAsRead(username, folder, emailId);
+            return null;
+        });
+    }
+
+    public Future<Void> setTag(String username, String folder, String emailId, String tag, boolean present) {
+        return execute(service -> {
+            service.setTag(username, folder, emailId, tag, present);
+            return null;
+        });
+    }
+
+    public Future<String> getMailboxVersion(String username) {
+        return execute(service -> service.getMailboxVersion(username));
+    }
+
+    public Future<Void> toggleTag(String username, String folder, String emailId, String tag) {
+        return execute(service -> {
+            service.toggleTag(username, folder, emailId, tag);
+            return null;
+        });
+    }
+
+    private <T> Future<T> execute(Operation<T> operation) {
+        Batch batch = new Batch();
+        Future<T> result = batch.add(operation);
+        batch.send();
+        return result;
+    }
+    
+    /**
+     * Opération exécutée par un worker du service de stockage.
+     */
+    @FunctionalInterface
+    public interface Operation<T> {
+        T run(MailboxService service) throws Exception;
+    }
+    
+    /**
+     * Opérations envoyées en une seule requête au service de stockage, et exécutées l'une
+     * après l'autre par le même worker. Chaque opération a son propre résultat : l'échec de
+     * l'une n'empêche pas les suivantes.
+     */
+    public final class Batch {
+        
+        private final List<Operation<?>> operations = new ArrayList<>();
+        private final List<Promise<Object>> promises = new ArrayList<>();
+        
+        private Batch() {
+        }
+        
+        @SuppressWarnings("unchecked")
+        public <T> Future<T> add(Operation<T> operation) {
+            Promise<Object> promise = Promise.promise();
+            operations.add(operation);
+            promises.add(promise);
+            return (Future<T>) promise.future();
+        }
+        
+        /**
+         * Envoie les opérations au service de stockage.
+         */
+        public void send() {
+            if (operations.isEmpty()) {
+                return;
+            }
+            StorageRequest request = new StorageRequest(operations, stats);
+            eventBus.<StorageRequest>request(MailboxStorageVerticle.ADDRESS, request, deliveryOptions)
+                .onSuccess(reply -> complete(reply.body()))
+                .onFailure(err -> fail(request, err));
+        }
+
+        private void complete(StorageRequest request) {
+            for (int i = 0; i < request.size(); i++) {
+                if (request.failure(i) != null) {
+                    promises.get(i).fail(request.failure(i));
+                } else {
+                    promises.get(i).complete(request.result(i));
+                }
+            }
+        }
+
+        /**
+         * Fait échouer toutes les opérations d'une requête restée sans réponse. Une requête déjà
+         * prise par un worker s'exécute quand même, mais son résultat est ignoré.
+         */
+        private void fail(StorageRequest request, Throwable err) {
+            request.abandon();
+            IOException failure = new IOException("Service de stockage indisponible : " + err.getMessage(), err);
+            for (Promise<Object> promise : promises) {
+                promise.fail(failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package fr.uge.webmail.service;
+
+import io.vertx.core.Future;
+import io.vertx.core.WorkerExecutor;
+
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Façade asynchrone de {@link UserService}.
+ *
+ * Les opérations qui lisent ou écrivent les fichiers utilisateur sont exécutées sur le
+ * pool de workers du stockage. La validation des sessions, purement en mémoire, reste
+ * synchrone.
+ *
+ * Lorsque trop de dernières connexions sont en attente, une connexion réussie déclenche
+ * leur enregistrement en arrière-plan, sans l'attendre.
+ */
+public class AsyncUserService {
+
+    private final UserService userService;
+    private final WorkerExecutor executor;
+
+    // Un enregistrement des dernières connexions est déjà demandé
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    public AsyncUserService(UserService userService, WorkerExecutor executor) {
+        this.userService = userService;
+        this.executor = executor;
+    }
+
+    /**
+     * Retourne le service synchrone sous-jacent.
+     */
+    public UserService getDelegate() {
+        return userService;
+    }
+
+    public Future<String> createUser(String username, String password) {
+        return execute(() -> userService.createUser(username, password));
+    }
+
+    public Future<Optional<String>> authenticate(String username, String password, int sessionDurationMinutes) {
+        return execute(() -> userService.authenticate(username, password, sessionDurationMinutes))
+            .onSuccess(token -> {
+                if (token.isPresent() && userService.isLastLoginFlushNeeded() && flushRequested.compareAndSet(false, true)) {
+                    flushLastLogins()
+                        .onComplete(ar -> flushRequested.set(false))
+                        .onFailure(err -> System.err.println("Erreur lors de l'enregistrement des dernières connexions : " + err.getMessage()));
+                }
+            });
+    }
+
+    /**
+     * Enregistre les dernières connexions en attente.
+     * @return Le nombre de fiches enregistrées
+     */
+    public Future<Integer> flushLastLogins() {
+        return execute(userService::flushLastLogins);
+    }
+
+    public Future<Void> changePassword(String username, String oldPassword, String newPassword) {
+        return execute(() -> {
+            userService.changePassword(username, oldPassword, newPassword);
+            return null;
+        });
+    }
+
+    public Future<Void> resetPasswordWithRecoveryCode(String username, String recoveryCode, String newPassword) {
+        return execute(() -> {
+            userService.resetPasswordWithRecoveryCode(username, recoveryCode, newPassword);
+            return null;
+        });
+    }
+
+    public Optional<String> validateSession(String token) {
+        return userService.validateSession(token);
+    }
+
+    public void logout(String token) {
+        userService.logout(token);
+    }
+
+    private <T> Future<T> execute(Callable<T> operation) {
+        return executor.executeBlocking(operation, false);
+    }
+}
@@ -0,0 +1,24 @@
+package fr.uge.webmail.service;
+
+import java.util.List;
+
+/**
+ * Résultat d'une vérification des références aux pièces jointes.
+ *
+ * @param emails Nombre d'emails lus
+ * @param blobs Nombre de fichiers de pièces jointes stockés
+ * @param unreferencedBlobs Fichiers stockés qu'aucun email ne référence (récupérables par le ramasse-miettes)
+ * @param mismatchedCounts Pièces jointes dont le compteur enregistré était faux
+ * @param missingBlobs Pièces jointes référencées dont le fichier est absent
+ * @param repaired Indique si les compteurs ont été corrigés
+ */
+public record AttachmentReport(int emails, int blobs, int unreferencedBlobs,
+                               List<String> mismatchedCounts, List<String> missingBlobs, boolean repaired) {
+
+    /**
+     * Indique si la table des références correspondait aux emails.
+     */
+    public boolean isConsistent() {
+        return mismatchedCounts.isEmpty() && missingBlobs.isEmpty();
+    }
+}
@@ -0,0 +1,352 @@
+package fr.uge.webmail.service;
+
+import fr.uge.webmail.util.AtomicFileWriter;
+import fr.uge.webmail.util.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Stockage des pièces jointes, adressées par leur hash SHA-256, avec comptage des références.
+ * Le même stockage conserve, dans un autre répertoire, les contenus des emails partagés par
+ * les copies d'un message.
+ *
+ * Chaque email enregistré ajoute une référence à chacune de ses pièces jointes distinctes,
+ * chaque suppression la retire. La table des références est persistée sous forme de journal
+ * ({@code <sha256> <delta>} par ligne), compacté lorsqu'il devient trop long.
+ *
+ * Les références sont ajoutées avant l'écriture de l'email et retirées après sa suppression.
+ * Chaque ajout au journal est synchronisé selon la politique d'écriture avant de rendre la main,
+ * donc avant que l'email qui porte la référence ne soit visible : après un arrêt brutal, un
+ * compteur peut être trop élevé (fichier conservé inutilement), jamais trop bas. La vérification hors ligne ({@link MailboxService#verifyAttachments(boolean)})
+ * recalcule les compteurs exacts. La table et le journal sont modifiés sous le verrou du
+ * stockage, mais la synchronisation est attendue après l'avoir relâché : les ajouts concurrents
+ * au journal sont synchronisés ensemble.
+ *
+ * Le ramasse-miettes supprime les fichiers sans référence dont la dernière modification est
+ * plus ancienne que le délai de grâce. Ce délai protège les pièces jointes uploadées mais pas
+ * encore rattachées à un email : un upload d'un contenu déjà présent rafraîchit la date du fichier.
+ */
+class AttachmentStore {
+
+    private static final String REFS_FILE = ".refs";
+    private static final String UPLOAD_DIRECTORY = ".uploads";
+
+    // Taille minimale du journal avant d'envisager une compaction
+    private static final int MIN_COMPACTION_THRESHOLD = 1024;
+
+    private static final Pattern SHA256_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+    private final Path directory;
+    private final Path refsFile;
+    private final AtomicFileWriter fileWriter;
+    private final ReferenceCounter counter;
+
+    // Nombre de références par hash (absent = aucune), valide uniquement si loaded
+    private final Map<String, Integer> refs = new HashMap<>();
+    private boolean loaded;
+    private int journalLength;
+
+    /**
+     * @param counter Recompte les références à partir des emails si la table est absente
+     */
+    AttachmentStore(Path directory, AtomicFileWriter fileWriter, ReferenceCounter counter) throws IOException {
+        this.directory = directory;
+        this.refsFile = directory.resolve(REFS_FILE);
+        this.fileWriter = fileWriter;
+        this.counter = counter;
+
+        FileUtils.ensureDirectoryExists(directory);
+        FileUtils.ensureDirectoryExists(getUploadDirectory());
+
+        // Uploads interrompus par un arrêt précédent
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(getUploadDirectory())) {
+            for (Path file : stream) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Vérifie qu'un nom est un hash SHA-256 valide (protège des chemins arbitraires).
+     */
+    static boolean isValidHash(String sha256) {
+        return sha256 != null && SHA256_PATTERN.matcher(sha256).matches();
+    }
+
+    /**
+     * Répertoire des uploads en cours, sur le même système de fichiers que le stockage
+     * pour que le déplacement final soit atomique.
+     */
+    Path getUploadDirectory() {
+        return directory.resolve(UPLOAD_DIRECTORY);
+    }
+
+    /**
+     * Retourne le fichier d'une pièce jointe s'il existe.
+     */
+    Optional<Path> getFile(String sha256) {
+        if (!isValidHash(sha256)) {
+            return Optional.empty();
+        }
+        Path file = directory.resolve(sha256);
+        return Files.isRegularFile(file) ? Optional.of(file) : Optional.empty();
+    }
+
+    /**
+     * Enregistre un contenu en mémoire sous son hash.
+     */
+    void store(byte[] data, String sha256) throws IOException {
+        Path tempFile = getUploadDirectory().resolve(UUID.randomUUID().toString());
+        Files.write(tempFile, data);
+        store(tempFile, sha256);
+    }
+
+    /**
+     * Déplace un fichier temporaire sous son hash, ou le supprime si ce contenu est déjà stocké.
+     * Dans ce cas, la date du fichier existant est rafraîchie pour le protéger du ramasse-miettes.
+     */
+    void store(Path tempFile, String sha256) throws IOException {
+        Path file = directory.resolve(sha256);
+        synchronized (this) {
+            if (Files.exists(file)) {
+                Files.deleteIfExists(tempFile);
+                Files.setLastModifiedTime(file, FileTime.from(Instant.now()));
+                return;
+            }
+        }
+        // Contenu synchronisé avant d'être visible sous son hash, selon la politique d'écriture.
+        // Hors du verrou : le fichier temporaire est récent, le ramasse-miettes ne le supprime pas,
+        // et deux enregistrements simultanés du même hash écrivent le même contenu
+        fileWriter.move(tempFile, file);
+    }
+
+    /**
+     * Ajoute une référence à chacune des pièces jointes (hash distincts).
+     */
+    void addReferences(Collection<String> hashes) throws IOException {
+        if (hashes.isEmpty()) {
+            return;
+        }
+        AtomicFileWriter.PendingSync journaled;
+        synchronized (this) {
+            ensureLoaded();
+            for (String sha256 : hashes) {
+                refs.merge(sha256, 1, Integer::sum);
+            }
+            journaled = append(hashes, 1);
+        }
+        journaled.await();
+    }
+
+    /**
+     * Retire une référence à chacune des pièces jointes (hash distincts).
+     */
+    void removeReferences(Collection<String> hashes) throws IOException {
+        if (hashes.isEmpty()) {
+            return;
+        }
+        AtomicFileWriter.PendingSync journaled;
+        synchronized (this) {
+            ensureLoaded();
+            for (String sha256 : hashes) {
+                decrement(sha256, 1);
+            }
+            journaled = append(hashes, -1);
+        }
+        journaled.await();
+    }
+
+    /**
+     * Retourne le nombre de références d'une pièce jointe.
+     */
+    synchronized int references(String sha256) throws IOException {
+        ensureLoaded();
+        return refs.getOrDefault(sha256, 0);
+    }
+
+    /**
+     * Supprime les pièces jointes sans référence plus anciennes que le délai de grâce.
+     *
+     * Les fichiers sont parcourus sans verrou ; la décision de supprimer un fichier est prise
+     * sous le verrou du stockage, d'après la table des références à jour, si bien qu'un email
+     * enregistré pendant le passage protège ses pièces jointes.
+     * @return Le nombre de fichiers supprimés
+     */
+    int collectGarbage(Duration gracePeriod) throws IOException {
+        synchronized (this) {
+            ensureLoaded();
+        }
+        FileTime limit = FileTime.from(Instant.now().minus(gracePeriod));
+
+        int deleted = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, Files::isRegularFile)) {
+            for (Path file : stream) {
+                String sha256 = file.getFileName().toString();
+                if (!isValidHash(sha256)) {
+                    continue;
+                }
+                synchronized (this) {
+                    if (!refs.containsKey(sha256)
+                            && Files.getLastModifiedTime(file).compareTo(limit) < 0
+                            && Files.deleteIfExists(file)) {
+                        deleted++;
+                    }
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Compare la table des références aux comptes exacts et, si demandé, la remplace.
+     * @param actual Nombre d'emails référençant chaque pièce jointe
+     */
+    synchronized AttachmentReport verify(Map<String, Integer> actual, int emailCount, boolean repair) throws IOException {
+        ensureLoaded();
+
+        List<String> mismatched = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : actual.entrySet()) {
+            if (!refs.getOrDefault(entry.getKey(), 0).equals(entry.getValue())) {
+                mismatched.add(entry.getKey());
+            }
+            if (!Files.isRegularFile(directory.resolve(entry.getKey()))) {
+                missing.add(entry.getKey());
+            }
+        }
+        for (String sha256 : refs.keySet()) {
+            if (!actual.containsKey(sha256)) {
+                mismatched.add(sha256);
+            }
+        }
+
+        int blobs = 0;
+        int unreferenced = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, Files::isRegularFile)) {
+            for (Path file : stream) {
+                String sha256 = file.getFileName().toString();
+                if (isValidHash(sha256)) {
+                    blobs++;
+                    if (!actual.containsKey(sha256)) {
+                        unreferenced++;
+                    }
+                }
+            }
+        }
+
+        if (repair) {
+            refs.clear();
+            refs.putAll(actual);
+            compact();
+        }
+        return new AttachmentReport(emailCount, blobs, unreferenced, mismatched, missing, repair);
+    }
+
+    private void decrement(String sha256, int count) {
+        Integer current = refs.get(sha256);
+        if (current == null || current <= count) {
+            if (current == null || current < count) {
+                System.err.println("Compteur de références négatif pour " + sha256);
+            }
+            refs.remove(sha256);
+        } else {
+            refs.put(sha256, current - count);
+        }
+    }
+
+    // ==================== Persistance ====================
+
+    private void ensureLoaded() throws IOException {
+        if (loaded) {
+            return;
+        }
+        refs.clear();
+        journalLength = 0;
+        if (Files.exists(refsFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(refsFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int separator = line.indexOf(' ');
+                    if (separator < 0) {
+                        // Ligne tronquée par un arrêt brutal
+                        continue;
+                    }
+                    String sha256 = line.substring(0, separator);
+                    int delta = Integer.parseInt(line.substring(separator + 1).trim());
+                    if (delta > 0) {
+                        refs.merge(sha256, delta, Integer::sum);
+                    } else {
+                        decrement(sha256, -delta);
+                    }
+                    journalLength++;
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Table des références illisible : " + refsFile, e);
+            }
+            loaded = true;
+            if (journalLength > Math.max(MIN_COMPACTION_THRESHOLD, 2 * refs.size())) {
+                compact();
+            }
+            return;
+        }
+
+        // Pas de table : on recompte à partir des emails
+        refs.putAll(counter.countReferences());
+        loaded = true;
+        compact();
+    }
+
+    /**
+     * Ajoute des lignes au journal, sans attendre leur synchronisation.
+     * @return La synchronisation à attendre, une fois le verrou relâché
+     */
+    private AtomicFileWriter.PendingSync append(Collection<String> hashes, int delta) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (String sha256 : hashes) {
+            lines.append(sha256).append(' ').append(delta).append('\n');
+        }
+        AtomicFileWriter.PendingSync journaled = fileWriter.appendPending(refsFile, lines.toString().getBytes(StandardCharsets.UTF_8));
+        journalLength += hashes.size();
+        if (journalLength > Math.max(MIN_COMPACTION_THRESHOLD, 2 * refs.size())) {
+            // Le journal compacté contient ces lignes et est écrit durablement
+            compact();
+        }
+        return journaled;
+    }
+
+    /**
+     * Réécrit le journal avec une ligne par pièce jointe référencée.
+     */
+    private void compact() throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : refs.entrySet()) {
+            lines.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        fileWriter.write(refsFile, lines.toString().getBytes(StandardCharsets.UTF_8));
+        journalLength = refs.size();
+    }
+
+    /**
+     * Recompte les références à partir de tous les emails.
+     */
+    @FunctionalInterface
+    interface ReferenceCounter {
+        Map<String, Integer> countReferences() throws IOException;
+    }
+}
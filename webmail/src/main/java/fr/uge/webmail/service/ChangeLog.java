@@ -0,0 +1,336 @@
+package fr.uge.webmail.service;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Numéros de modification (modseq) des messages d'une boîte mail, pour la synchronisation
+ * incrémentale des clients.
+ *
+ * Le modseq de la boîte augmente à chaque enregistrement, déplacement, suppression ou
+ * changement de tags d'un message ; chaque message retient le modseq de sa dernière
+ * modification, ainsi que le modseq et l'heure de son arrivée dans le dossier (point de
+ * départ des règles de rétention). Un message supprimé laisse une
+ * trace (tombe) pour que les clients apprennent sa suppression. Les changements sont triés
+ * par modseq : retrouver ceux postérieurs à un modseq donné ne parcourt que ces changements.
+ *
+ * Le journal est persisté sous forme d'une ligne JSON par changement et compacté lorsqu'il
+ * devient nettement plus long que le nombre de messages suivis. La compaction oublie les
+ * tombes les plus anciennes au-delà de {@link #MAX_TOMBSTONES} : un client dont le modseq est
+ * antérieur au plancher ({@link #floor()}) doit refaire une synchronisation complète, de même
+ * qu'un client dont la validité ({@link #validity()}) ne correspond plus (journal recréé).
+ */
+class ChangeLog {
+
+    private static final String OP_START = "start";
+    private static final String OP_PUT = "put";
+    private static final String OP_DELETE = "del";
+
+    // Nombre de tombes conservées à la compaction
+    static final int MAX_TOMBSTONES = 4096;
+
+    // Taille minimale du journal avant d'envisager une compaction
+    private static final int MIN_COMPACTION_THRESHOLD = 64;
+
+    private final Path journalFile;
+    private final ObjectMapper objectMapper;
+
+    // Dernier changement de chaque message : dossier/identifiant -> changement, et par modseq
+    private final Map<String, Change> changes = new HashMap<>();
+    private final TreeMap<Long, Change> byModseq = new TreeMap<>();
+    private String validity;
+    private long modseq;
+    private long floor;
+    private int tombstones;
+    private int journalLength;
+
+    private ChangeLog(Path journalFile, ObjectMapper objectMapper) {
+        this.journalFile = journalFile;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Charge le journal d'une boîte mail, ou en commence un nouveau (avec une nouvelle
+     * validité) s'il est absent ou illisible.
+     */
+    static ChangeLog load(Path journalFile, ObjectMapper objectMapper) throws IOException {
+        ChangeLog log = new ChangeLog(journalFile, objectMapper);
+        if (Files.exists(journalFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isBlank()) {
+                        continue;
+                    }
+                    JournalEntry entry = objectMapper.readValue(line, JournalEntry.class);
+                    if (OP_START.equals(entry.op())) {
+                        log.validity = entry.validity();
+                        log.floor = entry.floor() != null ? entry.floor() : 0;
+                    } else {
+                        log.apply(new Change(entry.folder(), entry.id(), entry.modseq(),
+                                entry.added() != null ? entry.added() : 0,
+                                entry.at() != null ? entry.at() : 0, OP_DELETE.equals(entry.op())));
+                    }
+                    log.modseq = Math.max(log.modseq, entry.modseq());
+                    log.journalLength++;
+                }
+            } catch (IOException e) {
+                // Ligne tronquée ou corrompue : les clients se resynchroniseront entièrement
+                System.err.println("Journal des modifications illisible " + journalFile + ": " + e.getMessage());
+                log.clear();
+            }
+        }
+        if (log.validity == null) {
+            log.clear();
+            log.validity = UUID.randomUUID().toString();
+            log.compact();
+        }
+        return log;
+    }
+
+    /**
+     * Enregistre l'ajout ou la modification d'un message.
+     * @param created true si le message vient d'arriver dans le dossier (enregistrement
+     *                d'un nouvel email ou déplacement)
+     * @return Le nouveau modseq de la boîte
+     */
+    synchronized long put(String folder, String emailId, boolean created) throws IOException {
+        Change previous = changes.get(key(folder, emailId));
+        long next = modseq + 1;
+        long added;
+        long arrivedAt;
+        if (created || previous == null || previous.removed()) {
+            // Un message inconnu du journal est antérieur à celui-ci : il n'est pas nouveau
+            added = created || previous != null ? next : 0;
+            arrivedAt = added != 0 ? System.currentTimeMillis() : 0;
+        } else {
+            added = previous.added();
+            arrivedAt = previous.arrivedAt();
+        }
+        record(new Change(folder, emailId, next, added, arrivedAt, false));
+        return next;
+    }
+
+    /**
+     * Enregistre la suppression d'un message (ou son départ du dossier).
+     */
+    synchronized void remove(String folder, String emailId) throws IOException {
+        Change previous = changes.get(key(folder, emailId));
+        if (previous != null && previous.removed()) {
+            return;
+        }
+        record(new Change(folder, emailId, modseq + 1, previous != null ? previous.added() : 0,
+                previous != null ? previous.arrivedAt() : 0, true));
+    }
+
+    /**
+     * Aligne le journal sur le contenu réel d'un dossier, après une modification faite
+     * hors de l'application : les messages apparus sont ajoutés, les disparus supprimés.
+     */
+    synchronized void reconcile(String folder, Collection<String> emailIds) throws IOException {
+        Set<String> present = new HashSet<>(emailIds);
+        for (Change change : new ArrayList<>(changes.values())) {
+            if (change.folder().equals(folder) && !change.removed() && !present.contains(change.id())) {
+                remove(folder, change.id());
+            }
+        }
+        for (String emailId : present) {
+            Change change = changes.get(key(folder, emailId));
+            if (change == null || change.removed()) {
+                put(folder, emailId, change != null);
+            }
+        }
+    }
+
+    /**
+     * Retourne au plus {@code limit} changements postérieurs à un modseq, du plus ancien au
+     * plus récent (un seul par message : le dernier).
+     * @param folder Dossier des changements, ou null pour tous les dossiers
+     */
+    synchronized List<Change> since(long since, String folder, int limit) {
+        List<Change> result = new ArrayList<>();
+        for (Change change : byModseq.tailMap(since, false).values()) {
+            if (result.size() >= limit) {
+                break;
+            }
+            if (folder == null || folder.equals(change.folder())) {
+                result.add(change);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Retourne le modseq de la dernière modification d'un message, ou 0 si elle précède le journal.
+     */
+    synchronized long modseq(String folder, String emailId) {
+        Change change = changes.get(key(folder, emailId));
+        return change != null && !change.removed() ? change.modseq() : 0;
+    }
+
+    /**
+     * Retourne l'heure d'arrivée d'un message dans son dossier (en millisecondes depuis
+     * l'epoch). Un message arrivé avant que le journal n'enregistre cette heure reçoit
+     * {@code now}, enregistré sans changer le modseq (les clients n'en voient rien).
+     * @return L'heure d'arrivée, ou 0 si le message n'est pas dans le dossier
+     */
+    synchronized long arrivedAt(String folder, String emailId, long now) throws IOException {
+        Change change = changes.get(key(folder, emailId));
+        if (change == null || change.removed()) {
+            return 0;
+        }
+        if (change.arrivedAt() == 0) {
+            change = new Change(folder, emailId, change.modseq(), change.added(), now, false);
+            apply(change);
+            append(entry(change));
+        }
+        return change.arrivedAt();
+    }
+
+    /**
+     * Retourne le modseq de la boîte (celui de la dernière modification).
+     */
+    synchronized long modseq() {
+        return modseq;
+    }
+
+    /**
+     * Retourne le plus petit modseq à partir duquel les suppressions sont toutes connues.
+     */
+    synchronized long floor() {
+        return floor;
+    }
+
+    /**
+     * Retourne l'identifiant de ce journal : il change si le journal est recréé, et les
+     * modseq d'un autre journal n'ont alors plus de sens.
+     */
+    synchronized String validity() {
+        return validity;
+    }
+
+    /**
+     * Retourne la validité et le modseq ensemble : la version change à chaque modification.
+     */
+    synchronized String version() {
+        return validity + "-" + modseq;
+    }
+
+    private void record(Change change) throws IOException {
+        apply(change);
+        modseq = change.modseq();
+        append(entry(change));
+    }
+
+    private void apply(Change change) {
+        Change previous = changes.put(key(change.folder(), change.id()), change);
+        if (previous != null) {
+            byModseq.remove(previous.modseq());
+            if (previous.removed()) {
+                tombstones--;
+            }
+        }
+        byModseq.put(change.modseq(), change);
+        if (change.removed()) {
+            tombstones++;
+        }
+    }
+
+    private void clear() {
+        changes.clear();
+        byModseq.clear();
+        validity = null;
+        floor = modseq;
+        tombstones = 0;
+        journalLength = 0;
+    }
+
+    private void append(JournalEntry entry) throws IOException {
+        if (journalLength >= Math.max(MIN_COMPACTION_THRESHOLD, 2 * changes.size())) {
+            compact();
+            return;
+        }
+        Files.createDirectories(journalFile.getParent());
+        Files.writeString(journalFile, objectMapper.writeValueAsString(entry) + "\n", StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        journalLength++;
+    }
+
+    /**
+     * Réécrit le journal avec une seule ligne par message, en oubliant les tombes les plus anciennes.
+     */
+    private void compact() throws IOException {
+        if (tombstones > MAX_TOMBSTONES) {
+            for (Change change : new ArrayList<>(byModseq.values())) {
+                if (tombstones <= MAX_TOMBSTONES) {
+                    break;
+                }
+                if (change.removed()) {
+                    changes.remove(key(change.folder(), change.id()));
+                    byModseq.remove(change.modseq());
+                    tombstones--;
+                    floor = change.modseq();
+                }
+            }
+        }
+
+        Files.createDirectories(journalFile.getParent());
+        Path tempFile = journalFile.resolveSibling(journalFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            // Première ligne : validité, plancher et modseq, conservés même sans aucun message
+            writer.write(objectMapper.writeValueAsString(new JournalEntry(OP_START, modseq, null, null, null, null, validity, floor)));
+            writer.newLine();
+            for (Change change : byModseq.values()) {
+                writer.write(objectMapper.writeValueAsString(entry(change)));
+                writer.newLine();
+            }
+        }
+        Files.move(tempFile, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journalLength = changes.size() + 1;
+    }
+
+    private static JournalEntry entry(Change change) {
+        return new JournalEntry(change.removed() ? OP_DELETE : OP_PUT, change.modseq(), change.folder(), change.id(),
+                change.added() != 0 ? change.added() : null, change.arrivedAt() != 0 ? change.arrivedAt() : null,
+                null, null);
+    }
+
+    private static String key(String folder, String emailId) {
+        return folder + "/" + emailId;
+    }
+
+    /**
+     * Dernier changement d'un message.
+     * @param modseq Modseq du changement
+     * @param added Modseq de l'arrivée du message dans le dossier, ou 0 si elle précède le journal
+     * @param arrivedAt Heure de cette arrivée (millisecondes depuis l'epoch), ou 0 si elle n'est pas encore connue
+     * @param removed true si le message a été supprimé ou a quitté le dossier
+     */
+    record Change(String folder, String id, long modseq, long added, long arrivedAt, boolean removed) {
+    }
+
+    /**
+     * Une ligne du journal des modifications.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    record JournalEntry(String op, long modseq, String folder, String id, Long added, Long at, String validity, Long floor) {
+    }
+}
@@ -0,0 +1,110 @@
+package fr.uge.webmail.service;
+
+import fr.uge.webmail.model.Email;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Distribution des emails envoyés, découplée de leur envoi.
+ *
+ * Un envoi enregistre la copie de l'expéditeur et une entrée dans la file de distribution
+ * ({@link MailboxService#queueEmail(Email)}), puis rend la main : la réponse à l'utilisateur
+ * ne dépend pas du nombre de destinataires. Un pool de workers dédié distribue ensuite les
+ * envois en parallèle ; un envoi en erreur est retenté avec un délai croissant, et les envois
+ * restés dans la file après un arrêt sont repris au démarrage.
+ *
+ * Les envois sont enregistrés par le service de stockage ({@link AsyncMailboxService}), comme
+ * toute requête des serveurs HTTP et UDP ; seule la distribution, en arrière-plan, accède
+ * directement à {@link MailboxService} sur son propre pool. Les messages anonymes reçus par
+ * UDP passent par la même file.
+ */
+public class DeliveryService {
+
+    private final Vertx vertx;
+    private final AsyncMailboxService mailboxService;
+    private final WorkerExecutor deliveryExecutor;
+    private final int maxAttempts;
+    private final long retryDelayMs;
+
+    // Envois en cours de distribution ou en attente d'une nouvelle tentative
+    private final Set<String> scheduled = ConcurrentHashMap.newKeySet();
+
+    // Nombre de tentatives échouées par envoi
+    private final Map<String, Integer> failures = new ConcurrentHashMap<>();
+
+    /**
+     * @param mailboxService Service de stockage, pour l'enregistrement et la reprise des envois
+     * @param deliveryExecutor Pool dédié à la distribution
+     * @param maxAttempts Nombre de tentatives avant de marquer en échec les destinataires en erreur
+     * @param retryDelayMs Délai avant la première nouvelle tentative (doublé à chaque échec)
+     */
+    public DeliveryService(Vertx vertx, AsyncMailboxService mailboxService, WorkerExecutor deliveryExecutor,
+                           int maxAttempts, long retryDelayMs) {
+        this.vertx = vertx;
+        this.mailboxService = mailboxService;
+        this.deliveryExecutor = deliveryExecutor;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelayMs = Math.max(1, retryDelayMs);
+    }
+
+    /**
+     * Reprend les envois restés dans la file (arrêt pendant une distribution).
+     * Le service de stockage doit être déployé.
+     */
+    public void start() {
+        mailboxService.listQueuedEmails()
+            .onSuccess(ids -> {
+                if (!ids.isEmpty()) {
+                    System.out.println("📬 " + ids.size() + " envoi(s) en attente repris");
+                }
+                ids.forEach(this::schedule);
+            })
+            .onFailure(err -> System.err.println("Erreur lors de la lecture de la file de distribution : " + err.getMessage()));
+    }
+
+    /**
+     * Enregistre un email à envoyer et planifie sa distribution.
+     * Le futur est complété dès que l'envoi est enregistré, sans attendre la distribution.
+     */
+    public Future<Void> submit(Email email) {
+        return mailboxService.queueEmail(email)
+            .onSuccess(this::schedule)
+            .mapEmpty();
+    }
+
+    /**
+     * Lance la distribution d'un envoi, sauf s'il est déjà planifié.
+     */
+    private void schedule(String emailId) {
+        if (scheduled.add(emailId)) {
+            run(emailId);
+        }
+    }
+
+    private void run(String emailId) {
+        int attempt = failures.getOrDefault(emailId, 0) + 1;
+        deliveryExecutor.executeBlocking(() -> mailboxService.getDelegate().deliver(emailId, attempt >= maxAttempts), false)
+            .onComplete(ar -> {
+                if (ar.succeeded()) {
+                    failures.remove(emailId);
+                    scheduled.remove(emailId);
+                    return;
+                }
+                System.err.println("Erreur lors de la distribution de " + emailId
+                    + " (tentative " + attempt + ") : " + ar.cause().getMessage());
+                if (attempt >= maxAttempts) {
+                    // L'envoi reste dans la file : il sera repris au prochain démarrage
+                    failures.remove(emailId);
+                    scheduled.remove(emailId);
+                    return;
+                }
+                failures.put(emailId, attempt);
+                vertx.setTimer(retryDelayMs << (attempt - 1), id -> run(emailId));
+            });
+    }
+}
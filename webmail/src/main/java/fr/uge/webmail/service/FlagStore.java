@@ -0,0 +1,241 @@
+package fr.uge.webmail.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Tags des messages d'un dossier (non lu, important, anonyme, tags personnalisés),
+ * stockés à part des en-têtes pour qu'un changement de tag ne réécrive pas l'email.
+ *
+ * Le fichier des tags est une suite d'enregistrements de taille fixe : l'identifiant du
+ * message (complété par des octets nuls) suivi d'un masque de 64 bits. Chaque bit désigne
+ * un tag du dictionnaire du dossier ({@code <dossier>.tags}, un tag par ligne). Un changement
+ * de tags réécrit les 8 octets du masque ; un enregistrement dont l'identifiant est nul est
+ * libre et sera réutilisé.
+ *
+ * Les tags enregistrés ici remplacent ceux de l'en-tête de l'email. Un message absent du
+ * fichier (ancien email, identifiant trop long, plus de 64 tags distincts dans le dossier)
+ * garde les tags de son en-tête.
+ */
+class FlagStore {
+
+    // Tags standards, aux premières positions du dictionnaire
+    private static final List<String> STANDARD_TAGS = List.of("unread", "important", "anonymous");
+
+    private static final int ID_SIZE = 64;
+    private static final int RECORD_SIZE = ID_SIZE + Long.BYTES;
+    private static final int MAX_TAGS = Long.SIZE;
+
+    private final Path flagsFile;
+    private final Path tagsFile;
+
+    // Dictionnaire : position du bit -> tag, et inversement
+    private final List<String> tagNames = new ArrayList<>();
+    private final Map<String, Integer> tagBits = new HashMap<>();
+
+    // Enregistrements chargés : identifiant -> position, et masque de chaque position
+    private final Map<String, Integer> slots = new LinkedHashMap<>();
+    private final Map<Integer, Long> masks = new HashMap<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private int slotCount;
+
+    private FlagStore(Path flagsFile, Path tagsFile) {
+        this.flagsFile = flagsFile;
+        this.tagsFile = tagsFile;
+    }
+
+    /**
+     * Charge les tags d'un dossier (fichiers créés à la première écriture).
+     */
+    static FlagStore load(Path flagsFile, Path tagsFile) throws IOException {
+        FlagStore store = new FlagStore(flagsFile, tagsFile);
+        if (Files.exists(tagsFile)) {
+            for (String tag : Files.readAllLines(tagsFile, StandardCharsets.UTF_8)) {
+                if (!tag.isEmpty() && store.tagNames.size() < MAX_TAGS) {
+                    store.tagBits.putIfAbsent(tag, store.tagNames.size());
+                    store.tagNames.add(tag);
+                }
+            }
+        }
+        if (!Files.exists(flagsFile)) {
+            return store;
+        }
+
+        byte[] data = Files.readAllBytes(flagsFile);
+        // Un enregistrement incomplet (arrêt brutal pendant un ajout) est ignoré
+        store.slotCount = data.length / RECORD_SIZE;
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        for (int slot = 0; slot < store.slotCount; slot++) {
+            int offset = slot * RECORD_SIZE;
+            int length = 0;
+            while (length < ID_SIZE && data[offset + length] != 0) {
+                length++;
+            }
+            if (length == 0) {
+                store.freeSlots.add(slot);
+                continue;
+            }
+            String id = new String(data, offset, length, StandardCharsets.UTF_8);
+            store.slots.put(id, slot);
+            store.masks.put(slot, buffer.getLong(offset + ID_SIZE));
+        }
+        return store;
+    }
+
+    /**
+     * Retourne les tags enregistrés d'un message, ou vide s'il garde ceux de son en-tête.
+     */
+    synchronized Optional<Set<String>> get(String emailId) {
+        Integer slot = slots.get(emailId);
+        return slot == null ? Optional.empty() : Optional.of(toTags(masks.get(slot)));
+    }
+
+    /**
+     * Retourne les tags de tous les messages enregistrés.
+     */
+    synchronized Map<String, Set<String>> all() {
+        Map<String, Set<String>> tags = new HashMap<>();
+        for (Map.Entry<String, Integer> entry : slots.entrySet()) {
+            tags.put(entry.getKey(), toTags(masks.get(entry.getValue())));
+        }
+        return tags;
+    }
+
+    /**
+     * Enregistre les tags d'un message.
+     * @return false si le message ne peut pas être enregistré ici (identifiant trop long ou
+     *         dictionnaire plein) : il est alors retiré et ses tags doivent rester dans l'en-tête
+     */
+    synchronized boolean set(String emailId, Set<String> tags) throws IOException {
+        byte[] id = emailId.getBytes(StandardCharsets.UTF_8);
+        Long mask = id.length == 0 || id.length > ID_SIZE ? null : toMask(tags);
+        if (mask == null) {
+            remove(emailId);
+            return false;
+        }
+
+        Integer slot = slots.get(emailId);
+        if (slot != null) {
+            if (masks.get(slot) != mask.longValue()) {
+                ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(0, mask);
+                write(buffer, (long) slot * RECORD_SIZE + ID_SIZE);
+                masks.put(slot, mask);
+            }
+            return true;
+        }
+
+        slot = freeSlots.isEmpty() ? slotCount : freeSlots.poll();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.put(id).putLong(ID_SIZE, mask);
+        write(record.clear(), (long) slot * RECORD_SIZE);
+        if (slot == slotCount) {
+            slotCount++;
+        }
+        slots.put(emailId, slot);
+        masks.put(slot, mask);
+        return true;
+    }
+
+    /**
+     * Libère l'enregistrement d'un message.
+     */
+    synchronized void remove(String emailId) throws IOException {
+        Integer slot = slots.remove(emailId);
+        if (slot == null) {
+            return;
+        }
+        write(ByteBuffer.allocate(RECORD_SIZE), (long) slot * RECORD_SIZE);
+        masks.remove(slot);
+        freeSlots.add(slot);
+    }
+
+    /**
+     * Libère les enregistrements des messages qui ne sont plus dans le dossier
+     * (arrêt brutal entre la suppression d'un email et celle de ses tags).
+     */
+    synchronized void retainAll(Collection<String> emailIds) throws IOException {
+        Set<String> kept = new HashSet<>(emailIds);
+        for (String emailId : new ArrayList<>(slots.keySet())) {
+            if (!kept.contains(emailId)) {
+                remove(emailId);
+            }
+        }
+    }
+
+    private Set<String> toTags(long mask) {
+        Set<String> tags = new HashSet<>();
+        for (int bit = 0; bit < tagNames.size(); bit++) {
+            if ((mask & (1L << bit)) != 0) {
+                tags.add(tagNames.get(bit));
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * Convertit des tags en masque, en complétant le dictionnaire si nécessaire.
+     * @return Le masque, ou null si le dictionnaire est plein ou qu'un tag ne peut pas y figurer
+     */
+    private Long toMask(Set<String> tags) throws IOException {
+        List<String> added = new ArrayList<>();
+        if (tagNames.isEmpty()) {
+            added.addAll(STANDARD_TAGS);
+        }
+        for (String tag : tags) {
+            if (tag.indexOf('\n') >= 0 || tag.indexOf('\r') >= 0) {
+                return null;
+            }
+            if (!tagBits.containsKey(tag) && !added.contains(tag)) {
+                added.add(tag);
+            }
+        }
+        if (tagNames.size() + added.size() > MAX_TAGS) {
+            return null;
+        }
+        if (!added.isEmpty()) {
+            // Le dictionnaire est complété avant d'écrire un masque qui l'utilise
+            Files.createDirectories(tagsFile.getParent());
+            try (BufferedWriter writer = Files.newBufferedWriter(tagsFile, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                for (String tag : added) {
+                    writer.write(tag);
+                    writer.newLine();
+                    tagBits.put(tag, tagNames.size());
+                    tagNames.add(tag);
+                }
+            }
+        }
+
+        long mask = 0;
+        for (String tag : tags) {
+            mask |= 1L << tagBits.get(tag);
+        }
+        return mask;
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        Files.createDirectories(flagsFile.getParent());
+        try (FileChannel channel = FileChannel.open(flagsFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package fr.uge.webmail.service;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.uge.webmail.model.EmailHeader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Index des en-têtes d'un dossier de boîte mail.
+ *
+ * L'index est conservé en mémoire et persisté sous forme de journal : une ligne JSON
+ * par opération (ajout/mise à jour ou suppression). Le journal est compacté lorsqu'il
+ * devient nettement plus long que le nombre de messages indexés.
+ *
+ * Chaque opération enregistre la date de modification du répertoire du dossier. Si le
+ * répertoire a été modifié sans passer par l'index (crash entre deux écritures, ajout
+ * manuel de fichiers...), l'index est considéré comme périmé et doit être reconstruit.
+ *
+ * Les en-têtes sont également maintenus triés du plus récent au plus ancien, ce qui
+ * permet de servir une page de la liste sans trier tout le dossier.
+ */
+class FolderIndex {
+
+    private static final String OP_PUT = "put";
+    private static final String OP_DELETE = "del";
+    private static final String OP_STAMP = "stamp";
+
+    // Version du format des en-têtes : un journal d'une autre version est reconstruit
+    private static final int FORMAT_VERSION = 2;
+
+    // Taille minimale du journal avant d'envisager une compaction
+    private static final int MIN_COMPACTION_THRESHOLD = 64;
+
+    private final Path folderPath;
+    private final Path journalFile;
+    private final ObjectMapper objectMapper;
+
+    private final Map<String, EmailHeader> headers = new HashMap<>();
+    private final TreeMap<SortKey, EmailHeader> ordered = new TreeMap<>();
+    private int unreadCount;
+    private int journalLength;
+    private long stamp;
+
+    private FolderIndex(Path folderPath, Path journalFile, ObjectMapper objectMapper) {
+        this.folderPath = folderPath;
+        this.journalFile = journalFile;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Charge l'index depuis son journal.
+     * @return L'index, ou vide si le journal est absent, illisible ou périmé
+     */
+    static Optional<FolderIndex> load(Path folderPath, Path journalFile, ObjectMapper objectMapper) throws IOException {
+        if (!Files.exists(journalFile)) {
+            return Optional.empty();
+        }
+
+        FolderIndex index = new FolderIndex(folderPath, journalFile, objectMapper);
+        int version = 0;
+        try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                JournalEntry entry = objectMapper.readValue(line, JournalEntry.class);
+                if (OP_PUT.equals(entry.op()) && entry.header() != null) {
+                    index.apply(entry.header());
+                } else if (OP_DELETE.equals(entry.op())) {
+                    index.unapply(entry.id());
+                } else if (OP_STAMP.equals(entry.op()) && entry.version() != null) {
+                    version = entry.version();
+                }
+                index.stamp = entry.stamp();
+                index.journalLength++;
+            }
+        } catch (IOException e) {
+            // Ligne tronquée ou corrompue : on reconstruira depuis le disque
+            System.err.println("Index illisible " + journalFile + ": " + e.getMessage());
+            return Optional.empty();
+        }
+
+        if (version != FORMAT_VERSION || index.isStale()) {
+            return Optional.empty();
+        }
+        return Optional.of(index);
+    }
+
+    /**
+     * Retourne un index vide, non persisté, pour un dossier qui n'existe pas.
+     */
+    static FolderIndex empty(Path folderPath, Path journalFile, ObjectMapper objectMapper) {
+        FolderIndex index = new FolderIndex(folderPath, journalFile, objectMapper);
+        index.stamp = -1;
+        return index;
+    }
+
+    /**
+     * Reconstruit l'index à partir des en-têtes fournis et réécrit le journal.
+     */
+    static FolderIndex rebuild(Path folderPath, Path journalFile, ObjectMapper objectMapper,
+                               Collection<EmailHeader> headers) throws IOException {
+        FolderIndex index = new FolderIndex(folderPath, journalFile, objectMapper);
+        for (EmailHeader header : headers) {
+            index.apply(header);
+        }
+        index.compact();
+        return index;
+    }
+
+    /**
+     * Ajoute ou met à jour l'en-tête d'un message.
+     */
+    synchronized void put(EmailHeader header) throws IOException {
+        apply(header);
+        append(new JournalEntry(OP_PUT, currentStamp(), header.getId(), header, null));
+    }
+
+    /**
+     * Met à jour l'en-tête d'un message sans l'enregistrer dans le journal : utilisé pour
+     * les tags, persistés à part (voir {@link FlagStore}) et réappliqués au chargement.
+     */
+    synchronized void update(EmailHeader header) {
+        if (headers.containsKey(header.getId())) {
+            apply(header);
+        }
+    }
+
+    /**
+     * Retire un message de l'index.
+     */
+    synchronized void remove(String emailId) throws IOException {
+        if (unapply(emailId)) {
+            append(new JournalEntry(OP_DELETE, currentStamp(), emailId, null, null));
+        }
+    }
+
+    /**
+     * Retourne l'en-tête d'un message.
+     */
+    synchronized Optional<EmailHeader> get(String emailId) {
+        return Optional.ofNullable(headers.get(emailId));
+    }
+
+    /**
+     * Retourne une copie des en-têtes indexés, du plus récent au plus ancien.
+     */
+    synchronized List<EmailHeader> headers() {
+        return new ArrayList<>(ordered.values());
+    }
+
+    /**
+     * Retourne au plus {@code limit} en-têtes acceptés par le filtre, du plus récent au plus
+     * ancien, en commençant juste après la position {@code after} (ou au début si null).
+     * Seuls les en-têtes nécessaires à la page sont parcourus.
+     */
+    synchronized List<EmailHeader> page(SortKey after, int limit, Predicate<EmailHeader> filter) {
+        List<EmailHeader> page = new ArrayList<>(Math.min(limit, ordered.size()));
+        Collection<EmailHeader> candidates = after == null ? ordered.values() : ordered.tailMap(after, false).values();
+        for (EmailHeader header : candidates) {
+            if (page.size() >= limit) {
+                break;
+            }
+            if (filter.test(header)) {
+                page.add(header);
+            }
+        }
+        return page;
+    }
+
+    synchronized int size() {
+        return headers.size();
+    }
+
+    synchronized int unreadCount() {
+        return unreadCount;
+    }
+
+    /**
+     * Vérifie si le dossier a été modifié depuis la dernière opération enregistrée.
+     */
+    synchronized boolean isStale() throws IOException {
+        return stamp != currentStamp();
+    }
+
+    private void apply(EmailHeader header) {
+        EmailHeader previous = headers.put(header.getId(), header);
+        if (previous != null) {
+            ordered.remove(SortKey.of(previous));
+        }
+        ordered.put(SortKey.of(header), header);
+        if (previous != null && previous.isUnread()) {
+            unreadCount--;
+        }
+        if (header.isUnread()) {
+            unreadCount++;
+        }
+    }
+
+    private boolean unapply(String emailId) {
+        EmailHeader previous = headers.remove(emailId);
+        if (previous == null) {
+            return false;
+        }
+        ordered.remove(SortKey.of(previous));
+        if (previous.isUnread()) {
+            unreadCount--;
+        }
+        return true;
+    }
+
+    private void append(JournalEntry entry) throws IOException {
+        stamp = entry.stamp();
+        if (journalLength >= Math.max(MIN_COMPACTION_THRESHOLD, 2 * headers.size())) {
+            compact();
+            return;
+        }
+        Files.createDirectories(journalFile.getParent());
+        Files.writeString(journalFile, objectMapper.writeValueAsString(entry) + "\n", StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        journalLength++;
+    }
+
+    /**
+     * Réécrit le journal avec une seule ligne par message indexé.
+     */
+    private void compact() throws IOException {
+        stamp = currentStamp();
+        Files.createDirectories(journalFile.getParent());
+        Path tempFile = journalFile.resolveSibling(journalFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            // Première ligne : horodatage et version, pour qu'un dossier vide ne paraisse pas périmé
+            writer.write(objectMapper.writeValueAsString(new JournalEntry(OP_STAMP, stamp, null, null, FORMAT_VERSION)));
+            writer.newLine();
+            for (EmailHeader header : headers.values()) {
+                writer.write(objectMapper.writeValueAsString(new JournalEntry(OP_PUT, stamp, header.getId(), header, null)));
+                writer.newLine();
+            }
+        }
+        Files.move(tempFile, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journalLength = headers.size() + 1;
+    }
+
+    private long currentStamp() throws IOException {
+        if (!Files.exists(folderPath)) {
+            return -1;
+        }
+        return Files.getLastModifiedTime(folderPath).toMillis();
+    }
+
+    /**
+     * Position d'un message dans la liste triée d'un dossier : date décroissante, puis identifiant.
+     * La date est tronquée à la seconde, comme dans le journal, pour qu'un curseur reste valide
+     * après un rechargement de l'index.
+     */
+    record SortKey(LocalDateTime date, String id) implements Comparable<SortKey> {
+
+        private static final Comparator<SortKey> ORDER = Comparator
+                .comparing(SortKey::date, Comparator.nullsLast(Comparator.<LocalDateTime>reverseOrder()))
+                .thenComparing(SortKey::id);
+
+        static SortKey of(EmailHeader header) {
+            LocalDateTime date = header.getDate() != null ? header.getDate().truncatedTo(ChronoUnit.SECONDS) : null;
+            return new SortKey(date, header.getId());
+        }
+
+        /**
+         * Encode la position sous forme de curseur opaque, utilisable dans une URL.
+         */
+        String toCursor() {
+            String raw = (date != null ? date.toString() : "") + "|" + id;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Décode un curseur produit par {@link #toCursor()}.
+         * @return La position, ou vide si le curseur est invalide
+         */
+        static Optional<SortKey> fromCursor(String cursor) {
+            try {
+                String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+                int separator = raw.indexOf('|');
+                if (separator < 0) {
+                    return Optional.empty();
+                }
+                String date = raw.substring(0, separator);
+                return Optional.of(new SortKey(date.isEmpty() ? null : LocalDateTime.parse(date), raw.substring(separator + 1)));
+            } catch (IllegalArgumentException | DateTimeParseException e) {
+                return Optional.empty();
+            }
+        }
+
+        @Override
+        public int compareTo(SortKey other) {
+            return ORDER.compare(this, other);
+        }
+    }
+
+    /**
+     * Une ligne du journal de l'index.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    record JournalEntry(String op, long stamp, String id, EmailHeader header, Integer version) {
+    }
+}
@@ -0,0 +1,74 @@
+package fr.uge.webmail.service;
+
+import fr.uge.webmail.model.EmailHeader;
+import fr.uge.webmail.util.LocalCodec;
+import io.vertx.core.eventbus.EventBus;
+
+import java.io.IOException;
+
+/**
+ * Publie sur le bus d'événements les changements de la boîte de réception de chaque
+ * utilisateur : nouveau message (avec son en-tête) et nombre de messages non lus.
+ *
+ * Chaque utilisateur a son adresse ({@link #address(String)}) ; les connexions ouvertes par ses
+ * pages ou ses clients s'y abonnent. Les événements sont publiés depuis le thread qui a modifié
+ * la boîte, sans accès au disque : le compteur de non lus est celui de l'index en mémoire.
+ */
+public class InboxEvents implements MailboxListener {
+
+    private static final String ADDRESS_PREFIX = "webmail.inbox.";
+
+    private final EventBus eventBus;
+    private final MailboxService mailboxService;
+
+    public InboxEvents(EventBus eventBus, MailboxService mailboxService) {
+        this.eventBus = eventBus;
+        this.mailboxService = mailboxService;
+        LocalCodec.register(eventBus, InboxEvent.class);
+    }
+
+    /**
+     * Retourne l'adresse des événements de la boîte de réception d'un utilisateur.
+     */
+    public static String address(String username) {
+        return ADDRESS_PREFIX + username;
+    }
+
+    @Override
+    public void emailSaved(String username, String folder, EmailHeader header) {
+        if (MailboxService.INBOX.equals(folder)) {
+            publish(username, header);
+        }
+    }
+
+    @Override
+    public void emailUpdated(String username, String folder, EmailHeader header) {
+        if (MailboxService.INBOX.equals(folder)) {
+            publish(username, null);
+        }
+    }
+
+    @Override
+    public void emailDeleted(String username, String folder, String emailId) {
+        if (MailboxService.INBOX.equals(folder)) {
+            publish(username, null);
+        }
+    }
+
+    private void publish(String username, EmailHeader header) {
+        try {
+            int unread = mailboxService.countUnreadEmails(username, MailboxService.INBOX);
+            eventBus.publish(address(username), new InboxEvent(header, unread));
+        } catch (IOException e) {
+            System.err.println("Erreur lors de la notification de " + username + " : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Changement de la boîte de réception.
+     * @param header En-tête du nouveau message, ou null si seul le nombre de non lus a changé
+     * @param unread Nombre de messages non lus après le changement
+     */
+    public record InboxEvent(EmailHeader header, int unread) {
+    }
+}
@@ -0,0 +1,104 @@
+package fr.uge.webmail.service;
+
+import fr.uge.webmail.util.PasswordUtils;
+import fr.uge.webmail.util.TimingWheel;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sessions conservées en mémoire : un token aléatoire par session.
+ * Les sessions sont perdues au redémarrage et propres à chaque instance de l'application.
+ *
+ * Les expirations sont mesurées sur l'horloge monotone ({@link System#nanoTime()}) : valider
+ * une session ne crée aucun objet date et n'est pas affecté par un changement de l'heure
+ * système. Les sessions expirées sont retirées par une roue temporelle : le nettoyage ne
+ * parcourt que les sessions arrivées à échéance, jamais toutes les sessions.
+ */
+public class LocalSessionManager implements SessionManager {
+
+    // Précision du nettoyage des sessions expirées
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // Trois niveaux de 64 cases d'une seconde : environ 72 heures
+    private static final int WHEEL_LEVELS = 3;
+
+    // Sessions actives : token -> session
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    // Échéances des sessions (les sessions fermées entre-temps sont ignorées à l'échéance)
+    private final TimingWheel<String> expiries = new TimingWheel<>(TICK_NANOS, WHEEL_LEVELS, System.nanoTime());
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder invalidated = new LongAdder();
+
+    @Override
+    public String create(String username, int durationMinutes) {
+        String token = PasswordUtils.generateSessionToken();
+        long expiresAt = System.nanoTime() + TimeUnit.MINUTES.toNanos(durationMinutes);
+        sessions.put(token, new Session(username, expiresAt));
+        expiries.schedule(token, expiresAt);
+        created.increment();
+        return token;
+    }
+
+    @Override
+    public Optional<String> validate(String token) {
+        if (token == null || token.isEmpty()) {
+            return Optional.empty();
+        }
+
+        Session session = sessions.get(token);
+        if (session == null) {
+            return Optional.empty();
+        }
+
+        if (session.isExpired(System.nanoTime())) {
+            if (sessions.remove(token, session)) {
+                expired.increment();
+            }
+            return Optional.empty();
+        }
+
+        return Optional.of(session.username());
+    }
+
+    @Override
+    public void invalidate(String token) {
+        if (token != null && sessions.remove(token) != null) {
+            invalidated.increment();
+        }
+    }
+
+    @Override
+    public int cleanup() {
+        long now = System.nanoTime();
+        int[] count = {0};
+        expiries.advance(now, token -> {
+            Session session = sessions.get(token);
+            if (session != null && session.isExpired(now) && sessions.remove(token, session)) {
+                expired.increment();
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    @Override
+    public Stats stats() {
+        return new Stats(sessions.size(), created.sum(), expired.sum(), invalidated.sum());
+    }
+
+    /**
+     * Représente une session utilisateur : son expiration sur l'horloge monotone.
+     */
+    private record Session(String username, long expiresAt) {
+        boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+    }
+}
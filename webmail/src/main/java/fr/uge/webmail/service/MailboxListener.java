@@ -0,0 +1,38 @@
+package fr.uge.webmail.service;
+
+import fr.uge.webmail.model.EmailHeader;
+
+/**
+ * Observateur des modifications d'une boîte mail.
+ *
+ * Les notifications sont émises par {@link MailboxService} après l'écriture sur disque,
+ * depuis le thread qui a effectué l'opération (en général un worker de stockage).
+ */
+public interface MailboxListener {
+
+    /**
+     * Un email a été enregistré (nouveau message ou réécriture) dans un dossier.
+     */
+    default void emailSaved(String username, String folder, EmailHeader header) {
+    }
+
+    /**
+     * Les métadonnées d'un email déjà enregistré ont changé (tags, état de distribution), sans
+     * que ce soit un nouveau message. Par défaut, traité comme un enregistrement.
+     */
+    default void emailUpdated(String username, String folder, EmailHeader header) {
+        emailSaved(username, folder, header);
+    }
+
+    /**
+     * Un email a été retiré d'un dossier (suppression ou déplacement).
+     */
+    default void emailDeleted(String username, String folder, String emailId) {
+    }
+
+    /**
+     * La boîte mail d'un utilisateur a été recopiée sur une autre racine de stockage.
+     */
+    default void mailboxMoved(String username) {
+    }
+}
@@ -0,0 +1,83 @@
+package fr.uge.webmail.service;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Répartition des boîtes mail entre plusieurs racines de stockage (un disque par racine,
+ * par exemple).
+ *
+ * Chaque boîte est placée par hachage de rendez-vous : pour un utilisateur, chaque racine
+ * reçoit un score calculé à partir du nom de l'utilisateur et du chemin de la racine, et la
+ * racine de plus haut score possède la boîte. Le placement ne dépend ni de l'ordre des racines
+ * ni du contenu du disque. Une racine ajoutée reçoit environ une boîte sur n, prise
+ * équitablement aux autres racines ; aucune autre boîte ne change de racine.
+ */
+public final class MailboxPlacement {
+
+    private final List<Path> roots;
+    private final long[] rootHashes;
+
+    /**
+     * @param roots Racines de stockage, désignées par un chemin qui ne doit plus changer
+     *              (il détermine le placement)
+     * @throws IllegalArgumentException si la liste est vide ou contient deux fois la même racine
+     */
+    public MailboxPlacement(List<Path> roots) {
+        if (roots.isEmpty()) {
+            throw new IllegalArgumentException("Aucune racine de stockage");
+        }
+        this.roots = roots.stream().map(Path::normalize).toList();
+        if (new HashSet<>(this.roots).size() != this.roots.size()) {
+            throw new IllegalArgumentException("Racine de stockage en double : " + roots);
+        }
+        this.rootHashes = this.roots.stream().mapToLong(root -> hash(root.toString())).toArray();
+    }
+
+    /**
+     * Retourne les racines de stockage, dans l'ordre de la configuration.
+     */
+    public List<Path> roots() {
+        return roots;
+    }
+
+    /**
+     * Retourne la racine qui possède la boîte mail d'un utilisateur.
+     */
+    public Path owner(String username) {
+        long userHash = hash(username);
+        int best = 0;
+        long bestScore = Long.MIN_VALUE;
+        for (int i = 0; i < roots.size(); i++) {
+            long score = mix(userHash ^ rootHashes[i]);
+            if (score > bestScore) {
+                bestScore = score;
+                best = i;
+            }
+        }
+        return roots.get(best);
+    }
+
+    /**
+     * Hash FNV-1a 64 bits, stable d'une exécution à l'autre.
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Mélange final de SplitMix64 : deux hashes proches donnent des scores indépendants.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -1,31 +1,140 @@
 package fr.uge.webmail.service;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import fr.uge.webmail.model.Attachment;
+import fr.uge.webmail.model.DeliveryStatus;
 import fr.uge.webmail.model.Email;
+import fr.uge.webmail.model.EmailHeader;
+import fr.uge.webmail.model.EmailPage;
+import fr.uge.webmail.model.MailboxChanges;
+import fr.uge.webmail.util.AtomicFileWriter;
 import fr.uge.webmail.util.FileUtils;
+import fr.uge.webmail.util.LruCache;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Service pour gérer les boîtes mail et les emails.
+ *
+ * Chaque email est stocké sous la forme d'un en-tête JSON compact ({@code <id>.json} :
+ * expéditeur, destinataires, sujet, date, pièces jointes, tags, aperçu) qui désigne son
+ * contenu par son hash SHA-256. Comme les pièces jointes, les contenus sont stockés une seule
+ * fois ({@code bodies/<sha256>}) et comptent leurs références : un message envoyé à cent
+ * destinataires n'écrit que cent en-têtes. Les opérations sur les métadonnées (tags, liste,
+ * rétention) ne lisent que l'en-tête ; le contenu est chargé à la première lecture de
+ * {@link Email#getContent()}.
+ * Les tags modifiés après l'enregistrement (lu, important...) sont conservés à part, dans
+ * le {@link FlagStore} du dossier, et remplacent ceux de l'en-tête à la lecture.
+ * Les emails des anciens formats (contenu dans le fichier JSON ou dans {@code <id>.body})
+ * restent lisibles et sont convertis par {@link #migrateStorage(String)}.
+ *
+ * Les boîtes mail peuvent être réparties entre plusieurs racines de stockage
+ * ({@link MailboxPlacement}) ; la file d'envoi, les pièces jointes et les contenus partagés
+ * restent dans le répertoire de données. Une boîte qui n'est pas sur sa racine (après l'ajout
+ * d'une racine) y est recopiée par {@link #rebalanceMailboxes()}, sans interrompre le service.
+ *
+ * Le service est partagé par tous les threads de l'application. Les modifications d'une même
+ * boîte mail sont sérialisées par un verrou propre à la boîte (réparti sur 64 verrous) ; les
+ * lectures ne prennent pas de verrou, sauf pour charger ou reconstruire l'index d'un dossier.
  */
 public class MailboxService {
     
-    private final Path dataDirectory;
-    private final Path attachmentsDirectory;
+    private final MailboxPlacement placement;
+    private final Path spoolDirectory;
+    private final AttachmentStore attachmentStore;
+    private final AttachmentStore bodyStore;
+    private final AtomicFileWriter fileWriter;
     private final ObjectMapper objectMapper;
+    private final ObjectMapper headerMapper;
+    private final ObjectMapper indexMapper;
+    
+    // Utilisateurs disposant d'une boîte mail (chargés au démarrage) -> répertoire de la boîte
+    private final Map<String, Path> mailboxes = new ConcurrentHashMap<>();
+    
+    // Index des en-têtes chargés : répertoire du dossier -> index
+    private final Map<Path, FolderIndex> folderIndexes = new ConcurrentHashMap<>();
+    
+    // Tags des messages chargés : répertoire du dossier -> tags
+    private final Map<Path, FlagStore> flagStores = new ConcurrentHashMap<>();
+    
+    // Index de recherche plein texte : utilisateur -> index
+    private final Map<String, SearchIndex> searchIndexes = new ConcurrentHashMap<>();
+    
+    // Journaux des modifications chargés : utilisateur -> journal
+    private final Map<String, ChangeLog> changeLogs = new ConcurrentHashMap<>();
+    
+    // Registres d'espace disque chargés : utilisateur -> registre
+    private final Map<String, StorageLedger> storageLedgers = new ConcurrentHashMap<>();
+    
+    // En-têtes d'emails lus ou écrits récemment : fichier de l'en-tête -> JSON enregistré
+    private final LruCache<Path, byte[]> headerCache;
+    
+    // Contenus d'emails lus récemment : hash -> contenu
+    private final LruCache<String, String> bodyCache;
+    
+    // Verrous des modifications des boîtes mail (répartis par nom d'utilisateur) : les écritures
+    // dans une même boîte s'exécutent l'une après l'autre, quel que soit le thread appelant
+    private final Object[] locks = new Object[64];
+    
+    // Observateurs des modifications des boîtes mail
+    private final List<MailboxListener> listeners = new CopyOnWriteArrayList<>();
+    
+    // Quota d'espace disque par utilisateur (0 = illimité)
+    private final long storageQuotaBytes;
+    
+    // Répertoire (dans la boîte de l'utilisateur) contenant les journaux d'index
+    private static final String INDEX_DIRECTORY = ".index";
+    
+    // Fichiers de l'index de recherche (dans le répertoire d'index)
+    private static final String SEARCH_SNAPSHOT_FILE = "search.bin";
+    private static final String SEARCH_JOURNAL_FILE = "search.log";
+    
+    // Journal des modifications (dans le répertoire d'index)
+    private static final String CHANGES_JOURNAL_FILE = "changes.jsonl";
+    
+    // Extensions des fichiers d'un email : en-tête et contenu (ancien format, avant le partage des contenus)
+    private static final String HEADER_EXTENSION = ".json";
+    private static final String BODY_EXTENSION = ".body";
+    
+    // Extension des envois en attente de distribution (dans le répertoire de la file)
+    private static final String SPOOL_EXTENSION = ".json";
+    
+    // Fichier du registre d'espace disque d'un utilisateur
+    private static final String STORAGE_FILE = "storage.json";
+    
+    // Répertoires (dans chaque racine de stockage) des boîtes mail et des boîtes en cours de copie
+    private static final String MAILBOXES_DIRECTORY = "mailboxes";
+    private static final String STAGING_DIRECTORY = "rebalance";
     
     // Dossiers standards d'une boîte mail
     public static final String INBOX = "inbox";
@@ -33,24 +142,111 @@ public class MailboxService {
     public static final String DRAFT = "draft";
     public static final String TRASH = "trash";
     
-    private static final int TRASH_RETENTION_DAYS = 30;
+    public static final List<String> FOLDERS = List.of(INBOX, OUTBOX, DRAFT, TRASH);
+    
+    // Mémoire allouée par défaut aux caches des emails (un quart pour les en-têtes)
+    public static final long DEFAULT_CACHE_SIZE_BYTES = 64L * 1024 * 1024;
+    
+    // Surcoût mémoire estimé d'une entrée de cache (clé, objets, table)
+    private static final long CACHE_ENTRY_OVERHEAD = 200;
     
     public MailboxService(Path dataDirectory) {
-        this.dataDirectory = dataDirectory.resolve("mailboxes");
-        this.attachmentsDirectory = dataDirectory.resolve("attachments");
+        this(dataDirectory, 0);
+    }
+    
+    public MailboxService(Path dataDirectory, long storageQuotaBytes) {
+        this(dataDirectory, storageQuotaBytes, new AtomicFileWriter(AtomicFileWriter.SyncPolicy.GROUP));
+    }
+    
+    public MailboxService(Path dataDirectory, long storageQuotaBytes, AtomicFileWriter fileWriter) {
+        this(dataDirectory, storageQuotaBytes, fileWriter, DEFAULT_CACHE_SIZE_BYTES);
+    }
+    
+    /**
+     * @param fileWriter Écritures atomiques des emails, utilisateurs et pièces jointes
+     * @param cacheSizeBytes Mémoire allouée aux caches des en-têtes et contenus d'emails (0 = pas de cache)
+     */
+    public MailboxService(Path dataDirectory, long storageQuotaBytes, AtomicFileWriter fileWriter, long cacheSizeBytes) {
+        this(dataDirectory, List.of(dataDirectory), storageQuotaBytes, fileWriter, cacheSizeBytes);
+    }
+    
+    /**
+     * @param dataDirectory Répertoire de la file d'envoi, des pièces jointes et des contenus partagés
+     * @param storageRoots Racines de stockage des boîtes mail (chacune dans son sous-répertoire
+     *                     {@code mailboxes}), dont le répertoire de données s'il en contient
+     */
+    public MailboxService(Path dataDirectory, List<Path> storageRoots, long storageQuotaBytes,
+                          AtomicFileWriter fileWriter, long cacheSizeBytes) {
+        this.placement = new MailboxPlacement(storageRoots);
+        this.storageQuotaBytes = storageQuotaBytes;
+        this.fileWriter = fileWriter;
+        this.headerCache = new LruCache<>(cacheSizeBytes / 4, header -> header.length + CACHE_ENTRY_OVERHEAD);
+        this.bodyCache = new LruCache<>(cacheSizeBytes - cacheSizeBytes / 4,
+                content -> 2L * content.length() + CACHE_ENTRY_OVERHEAD);
+        this.spoolDirectory = dataDirectory.resolve("spool");
         this.objectMapper = new ObjectMapper();
         this.objectMapper.registerModule(new JavaTimeModule());
         this.objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
         this.objectMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
         
+        // En-têtes : JSON compact, sans le contenu ni les propriétés calculées
+        this.headerMapper = objectMapper.copy();
+        this.headerMapper.disable(SerializationFeature.INDENT_OUTPUT);
+        this.headerMapper.addMixIn(Email.class, EmailHeaderMixIn.class);
+        
+        // Journaux d'index : une ligne JSON compacte par opération
+        this.indexMapper = new ObjectMapper();
+        this.indexMapper.registerModule(new JavaTimeModule());
+        this.indexMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        
         try {
-            FileUtils.ensureDirectoryExists(this.dataDirectory);
-            FileUtils.ensureDirectoryExists(this.attachmentsDirectory);
+            FileUtils.ensureDirectoryExists(this.spoolDirectory);
+            for (Path mailboxDirectory : getMailboxDirectories()) {
+                FileUtils.ensureDirectoryExists(mailboxDirectory);
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(mailboxDirectory, Files::isDirectory)) {
+                    for (Path userDir : stream) {
+                        // Une boîte présente sur deux racines (copie interrompue avant la suppression
+                        // de l'ancienne) : la copie sur sa racine est complète, elle l'emporte
+                        String username = userDir.getFileName().toString();
+                        if (!mailboxes.containsKey(username) || userDir.equals(getOwnerDirectory(username))) {
+                            mailboxes.put(username, userDir);
+                        }
+                    }
+                }
+            }
+            this.attachmentStore = new AttachmentStore(dataDirectory.resolve("attachments"), fileWriter,
+                    () -> countReferences(emailFiles(), email -> attachmentSizes(email).keySet()));
+            this.bodyStore = new AttachmentStore(dataDirectory.resolve("bodies"), fileWriter,
+                    this::countBodyReferences);
         } catch (IOException e) {
             throw new RuntimeException("Impossible de créer les répertoires de données", e);
         }
     }
     
+    /**
+     * Retourne les compteurs du cache des en-têtes d'emails.
+     */
+    public LruCache.Stats getHeaderCacheStats() {
+        return headerCache.stats();
+    }
+    
+    /**
+     * Retourne les compteurs du cache des contenus d'emails.
+     */
+    public LruCache.Stats getBodyCacheStats() {
+        return bodyCache.stats();
+    }
+    
+    /**
+     * Retourne le service d'écritures atomiques, partagé avec les autres services.
+     */
+    public AtomicFileWriter getFileWriter() {
+        return fileWriter;
+    }
+    
     /**
      * Crée une nouvelle boîte mail pour un utilisateur.
      */
@@ -61,106 +257,763 @@ public class MailboxService {
         FileUtils.ensureDirectoryExists(userDir.resolve(OUTBOX));
         FileUtils.ensureDirectoryExists(userDir.resolve(DRAFT));
         FileUtils.ensureDirectoryExists(userDir.resolve(TRASH));
+        mailboxes.putIfAbsent(username, userDir);
+    }
+    
+    /**
+     * Enregistre un observateur des modifications des boîtes mail.
+     */
+    public void addListener(MailboxListener listener) {
+        listeners.add(listener);
     }
     
     /**
-     * Vérifie si une boîte mail existe.
+     * Liste les utilisateurs disposant d'une boîte mail.
+     */
+    public List<String> listMailboxes() throws IOException {
+        return new ArrayList<>(mailboxes.keySet());
+    }
+    
+    /**
+     * Retourne les répertoires des boîtes mail, un par racine de stockage.
+     */
+    public List<Path> getMailboxDirectories() {
+        return placement.roots().stream().map(root -> root.resolve(MAILBOXES_DIRECTORY)).toList();
+    }
+    
+    /**
+     * Vérifie si une boîte mail existe, sans accès au disque.
      */
     public boolean mailboxExists(String username) {
-        return Files.exists(getUserDirectory(username));
+        return username != null && mailboxes.containsKey(username);
+    }
+    
+    /**
+     * Relit sur le disque l'existence d'une boîte mail, après une modification extérieure
+     * du répertoire des boîtes mail.
+     */
+    public void refreshMailbox(String username) {
+        synchronized (lock(username)) {
+            Path current = mailboxes.get(username);
+            if (current != null && Files.isDirectory(current)) {
+                return;
+            }
+            // Boîte créée ou supprimée hors de l'application : cherchée sur sa racine d'abord
+            Optional<Path> found = Stream.concat(Stream.of(getOwnerDirectory(username)),
+                            getMailboxDirectories().stream().map(directory -> directory.resolve(username)))
+                    .filter(Files::isDirectory)
+                    .findFirst();
+            if (found.isPresent()) {
+                mailboxes.put(username, found.get());
+            } else {
+                mailboxes.remove(username);
+            }
+        }
+    }
+    
+    private Object lock(String username) {
+        return locks[Math.floorMod(username.hashCode(), locks.length)];
+    }
+    
+    /**
+     * Retourne le chemin du répertoire d'un utilisateur : là où se trouve sa boîte mail,
+     * ou sur sa racine de stockage si elle n'existe pas encore.
+     */
+    public Path getUserDirectory(String username) {
+        Path userDir = mailboxes.get(username);
+        return userDir != null ? userDir : getOwnerDirectory(username);
+    }
+    
+    /**
+     * Retourne le répertoire d'un utilisateur sur la racine de stockage qui possède sa boîte.
+     */
+    private Path getOwnerDirectory(String username) {
+        return placement.owner(username).resolve(MAILBOXES_DIRECTORY).resolve(username);
+    }
+    
+    /**
+     * Recopie sur leur racine de stockage les boîtes mail qui n'y sont pas, par exemple après
+     * l'ajout d'une racine. Chaque boîte est copiée sous son verrou : ses modifications attendent
+     * la fin de la copie, les autres boîtes ne sont pas concernées. L'ancienne copie reste en place
+     * pour les lectures en cours et n'est supprimée qu'au passage suivant.
+     * @return Le nombre de boîtes déplacées
+     */
+    public int rebalanceMailboxes() throws IOException {
+        removeStaleCopies();
+        int moved = 0;
+        for (String username : listMailboxes()) {
+            try {
+                if (moveToOwner(username)) {
+                    moved++;
+                }
+            } catch (IOException e) {
+                System.err.println("Erreur lors du déplacement de la boîte de " + username + " : " + e.getMessage());
+            }
+        }
+        return moved;
+    }
+    
+    /**
+     * Supprime les anciennes copies des boîtes mail déplacées lors d'un passage précédent,
+     * et les copies interrompues par un arrêt.
+     */
+    private void removeStaleCopies() throws IOException {
+        for (Path root : placement.roots()) {
+            for (Path userDir : listDirectories(root.resolve(MAILBOXES_DIRECTORY))) {
+                String username = userDir.getFileName().toString();
+                synchronized (lock(username)) {
+                    Path current = mailboxes.get(username);
+                    if (current != null && !current.equals(userDir)) {
+                        FileUtils.deleteDirectory(userDir);
+                    }
+                }
+            }
+            for (Path stagingDir : listDirectories(root.resolve(STAGING_DIRECTORY))) {
+                synchronized (lock(stagingDir.getFileName().toString())) {
+                    FileUtils.deleteDirectory(stagingDir);
+                }
+            }
+        }
+    }
+    
+    private static List<Path> listDirectories(Path directory) throws IOException {
+        List<Path> directories = new ArrayList<>();
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, Files::isDirectory)) {
+                stream.forEach(directories::add);
+            }
+        }
+        return directories;
+    }
+    
+    /**
+     * Recopie une boîte mail sur sa racine de stockage si elle n'y est pas.
+     * @return true si la boîte a été déplacée
+     */
+    private boolean moveToOwner(String username) throws IOException {
+        synchronized (lock(username)) {
+            Path source = mailboxes.get(username);
+            Path target = getOwnerDirectory(username);
+            if (source == null || source.equals(target)) {
+                return false;
+            }
+            Path staging = placement.owner(username).resolve(STAGING_DIRECTORY).resolve(username);
+            FileUtils.deleteDirectory(staging);
+            fileWriter.copyDirectory(source, staging, target);
+            mailboxes.put(username, target);
+            
+            // Index, tags et registre chargés depuis l'ancienne copie
+            folderIndexes.keySet().removeIf(path -> path.startsWith(source));
+            flagStores.keySet().removeIf(path -> path.startsWith(source));
+            headerCache.removeIf(path -> path.startsWith(source));
+            searchIndexes.remove(username);
+            changeLogs.remove(username);
+            storageLedgers.remove(username);
+        }
+        
+        for (MailboxListener listener : listeners) {
+            try {
+                listener.mailboxMoved(username);
+            } catch (RuntimeException e) {
+                System.err.println("Erreur d'un observateur de boîte mail : " + e.getMessage());
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Sauvegarde un email dans un dossier.
+     */
+    public void saveEmail(String username, String folder, Email email) throws IOException {
+        saveEmail(username, folder, email, true);
+    }
+    
+    /**
+     * Sauvegarde un email dans un dossier.
+     * @param contentChanged false si seuls les tags ont changé (l'index de recherche est alors inchangé)
+     */
+    private void saveEmail(String username, String folder, Email email, boolean contentChanged) throws IOException {
+        saveEmail(username, folder, email, contentChanged, null);
+    }
+    
+    /**
+     * Sauvegarde un email dans un dossier.
+     * @param terms Mots indexés de l'email s'ils sont déjà connus (copies d'un même message), ou null
+     */
+    private void saveEmail(String username, String folder, Email email, boolean contentChanged, Set<String> terms) throws IOException {
+        EmailHeader header;
+        synchronized (lock(username)) {
+            header = writeEmail(username, folder, email, contentChanged, terms);
+        }
+        
+        for (MailboxListener listener : listeners) {
+            try {
+                if (contentChanged) {
+                    listener.emailSaved(username, folder, header);
+                } else {
+                    listener.emailUpdated(username, folder, header);
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Erreur d'un observateur de boîte mail : " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Écrit un email et met à jour les index et le registre d'espace disque. L'appelant
+     * détient le verrou de la boîte mail.
+     * @return L'en-tête enregistré
+     */
+    private EmailHeader writeEmail(String username, String folder, Email email, boolean contentChanged, Set<String> terms) throws IOException {
+        Path folderPath = getUserDirectory(username).resolve(folder);
+        FileUtils.ensureDirectoryExists(folderPath);
+        
+        email.setFolder(folder);
+        Path emailFile = folderPath.resolve(email.getId() + HEADER_EXTENSION);
+        
+        // Le registre est chargé avant l'écriture pour ne pas compter deux fois le fichier.
+        // En cas de réécriture, l'ancienne version est retirée du registre.
+        StorageLedger ledger = getStorageLedger(username);
+        Optional<EmailHeader> previous = getFolderIndex(username, folder).get(email.getId());
+        long previousSize = storedSize(emailFile);
+        
+        // Le contenu est stocké sous son hash avant l'écriture de l'en-tête, qui rend l'email
+        // visible. Une copie d'un message déjà enregistré (destinataires) réutilise son contenu
+        storeBody(email);
+        String previousBody = previous.map(EmailHeader::getBodySha256).orElse(null);
+        boolean bodyChanged = !email.getBodySha256().equals(previousBody);
+        
+        // Les références sont ajoutées avant l'écriture et retirées après : un arrêt brutal
+        // laisse au pire une pièce jointe inutilement conservée, jamais une pièce jointe manquante
+        boolean attachmentsChanged = contentChanged || previous.isEmpty();
+        if (attachmentsChanged) {
+            attachmentStore.addReferences(attachmentSizes(email).keySet());
+        }
+        if (bodyChanged) {
+            bodyStore.addReferences(List.of(email.getBodySha256()));
+        }
+        
+        // Le changement est journalisé avant l'écriture (voir getChanges)
+        getChangeLog(username).put(folder, email.getId(), previous.isEmpty());
+        byte[] headerBytes = headerMapper.writeValueAsBytes(email);
+        fileWriter.write(emailFile, headerBytes);
+        headerCache.put(emailFile, headerBytes);
+        // Contenu de l'ancien format, remplacé par le contenu partagé
+        Files.deleteIfExists(getBodyFile(emailFile));
+        getFlagStore(username, folder).set(email.getId(), email.getTags());
+        if (attachmentsChanged && previous.isPresent()) {
+            attachmentStore.removeReferences(new LinkedHashSet<>(previous.get().getAttachmentHashes()));
+        }
+        if (bodyChanged && previousBody != null) {
+            bodyStore.removeReferences(List.of(previousBody));
+        }
+        EmailHeader header = EmailHeader.of(email);
+        getFolderIndex(username, folder).put(header);
+        if (attachmentsChanged) {
+            getSearchIndex(username).add(folder, email.getId(), terms != null ? terms : SearchIndex.terms(email));
+        }
+        
+        synchronized (ledger) {
+            if (previous.isPresent()) {
+                ledger.remove(previousSize, blobHashes(previous.get()));
+            }
+            ledger.add(storedSize(emailFile), blobSizes(email));
+            ledger.save();
+        }
+        return header;
+    }
+    
+    /**
+     * Charge un email depuis un fichier. Seul l'en-tête est lu : le contenu est chargé
+     * à la première lecture de {@link Email#getContent()}.
+     *
+     * Les en-têtes et contenus récemment utilisés sont servis depuis le cache, sans accès
+     * au disque. Chaque appel retourne un nouvel objet, que l'appelant peut modifier.
+     */
+    public Optional<Email> loadEmail(String username, String folder, String emailId) throws IOException {
+        Path emailFile = getUserDirectory(username).resolve(folder).resolve(emailId + HEADER_EXTENSION);
+        byte[] headerBytes = headerCache.get(emailFile);
+        Email email;
+        if (headerBytes != null) {
+            email = withContentLoader(objectMapper.readValue(headerBytes, Email.class), emailFile);
+        } else {
+            long stamp = headerCache.stamp();
+            if (!Files.exists(emailFile)) {
+                return Optional.empty();
+            }
+            email = readEmail(emailFile);
+            // Les emails des anciens formats ne sont pas mis en cache : leur contenu ne fait
+            // pas partie de l'en-tête enregistré
+            if (email.getBodySha256() != null) {
+                headerCache.putIfUnchanged(emailFile, headerMapper.writeValueAsBytes(email), stamp);
+            }
+        }
+        email.setFolder(folder);
+        getFlagStore(username, folder).get(emailId).ifPresent(email::setTags);
+        return Optional.of(email);
+    }
+    
+    /**
+     * Lit l'en-tête d'un email et prépare le chargement différé de son contenu.
+     * Un email de l'ancien format (contenu dans l'en-tête) est lu entièrement.
+     */
+    private Email readEmail(Path emailFile) throws IOException {
+        return withContentLoader(objectMapper.readValue(emailFile.toFile(), Email.class), emailFile);
+    }
+    
+    /**
+     * Prépare le chargement différé du contenu d'un email lu depuis son en-tête.
+     */
+    private Email withContentLoader(Email email, Path emailFile) {
+        String sha256 = email.getBodySha256();
+        Path bodyFile = getBodyFile(emailFile);
+        if (sha256 != null) {
+            email.setContentLoader(() -> readBody(sha256));
+        } else if (Files.exists(bodyFile)) {
+            email.setContentLoader(() -> Files.readString(bodyFile, StandardCharsets.UTF_8));
+        }
+        return email;
+    }
+    
+    /**
+     * Lit un contenu partagé, depuis le cache s'il y est.
+     */
+    private String readBody(String sha256) throws IOException {
+        String content = bodyCache.get(sha256);
+        if (content == null) {
+            content = Files.readString(bodyStore.getFile(sha256)
+                    .orElseThrow(() -> new NoSuchFileException("Contenu " + sha256)), StandardCharsets.UTF_8);
+            bodyCache.put(sha256, content);
+        }
+        return content;
+    }
+    
+    /**
+     * Stocke le contenu d'un email sous son hash, s'il ne l'est pas déjà.
+     */
+    private void storeBody(Email email) throws IOException {
+        if (email.getBodySha256() == null) {
+            byte[] body = bodyBytes(email);
+            String sha256 = FileUtils.sha256(body);
+            bodyStore.store(body, sha256);
+            email.setBodySha256(sha256);
+        }
+    }
+    
+    private static byte[] bodyBytes(Email email) {
+        String content = email.getContent();
+        return content == null ? new byte[0] : content.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static Path getBodyFile(Path emailFile) {
+        String name = emailFile.getFileName().toString();
+        return emailFile.resolveSibling(name.substring(0, name.length() - HEADER_EXTENSION.length()) + BODY_EXTENSION);
+    }
+    
+    /**
+     * Retourne la taille sur disque des fichiers propres à un email (en-tête et contenu de
+     * l'ancien format), 0 s'il n'existe pas. Le contenu partagé est compté avec les pièces jointes.
+     */
+    private static long storedSize(Path emailFile) throws IOException {
+        long size = 0;
+        if (Files.exists(emailFile)) {
+            size += Files.size(emailFile);
+        }
+        Path bodyFile = getBodyFile(emailFile);
+        if (Files.exists(bodyFile)) {
+            size += Files.size(bodyFile);
+        }
+        return size;
+    }
+    
+    /**
+     * Liste les en-têtes des emails d'un dossier, triés par date décroissante.
+     */
+    public List<EmailHeader> listEmails(String username, String folder) throws IOException {
+        return getFolderIndex(username, folder).headers();
+    }
+    
+    /**
+     * Retourne une page des en-têtes d'un dossier, triés par date décroissante.
+     * @param cursor Curseur retourné par la page précédente, ou null pour la première page
+     * @param pageSize Nombre maximal d'emails de la page
+     */
+    public EmailPage listEmails(String username, String folder, String cursor, int pageSize) throws IOException {
+        return page(getFolderIndex(username, folder), cursor, pageSize, header -> true);
+    }
+    
+    /**
+     * Filtre les emails selon un critère.
+     * 
+     * Un email correspond s'il contient le critère tel quel dans son expéditeur, son sujet ou
+     * ses destinataires, ou si l'index de recherche le trouve (chaque mot du critère est le
+     * début d'un mot de l'expéditeur, des destinataires, du sujet ou du contenu, sans tenir
+     * compte des accents).
+     */
+    public List<EmailHeader> filterEmails(String username, String folder, String filter) throws IOException {
+        List<EmailHeader> headers = listEmails(username, folder);
+        
+        if (filter == null || filter.isEmpty()) {
+            return headers;
+        }
+        
+        Predicate<EmailHeader> matcher = filterMatcher(username, folder, filter);
+        return headers.stream()
+                .filter(matcher)
+                .collect(Collectors.toList());
+    }
+    
+    /**
+     * Retourne une page des emails d'un dossier correspondant à un critère (voir
+     * {@link #filterEmails(String, String, String)}), triés par date décroissante.
+     */
+    public EmailPage filterEmails(String username, String folder, String filter, String cursor, int pageSize) throws IOException {
+        if (filter == null || filter.isEmpty()) {
+            return listEmails(username, folder, cursor, pageSize);
+        }
+        return page(getFolderIndex(username, folder), cursor, pageSize, filterMatcher(username, folder, filter));
+    }
+    
+    private Predicate<EmailHeader> filterMatcher(String username, String folder, String filter) throws IOException {
+        Set<String> matches = getSearchIndex(username).search(folder, filter);
+        String filterLower = filter.toLowerCase();
+        return header -> 
+            matches.contains(header.getId()) ||
+            (header.getFrom() != null && header.getFrom().toLowerCase().contains(filterLower)) ||
+            (header.getSubject() != null && header.getSubject().toLowerCase().contains(filterLower)) ||
+            header.getTo().stream().anyMatch(to -> to.toLowerCase().contains(filterLower));
+    }
+    
+    /**
+     * Sélectionne une page dans l'index trié d'un dossier. Un curseur invalide ramène à la première page.
+     */
+    private EmailPage page(FolderIndex index, String cursor, int pageSize, Predicate<EmailHeader> filter) {
+        FolderIndex.SortKey after = (cursor == null || cursor.isEmpty())
+                ? null
+                : FolderIndex.SortKey.fromCursor(cursor).orElse(null);
+        
+        // Un élément de plus pour savoir s'il existe une page suivante
+        List<EmailHeader> headers = index.page(after, pageSize + 1, filter);
+        if (headers.size() <= pageSize) {
+            return new EmailPage(headers, null);
+        }
+        List<EmailHeader> page = headers.subList(0, pageSize);
+        return new EmailPage(page, FolderIndex.SortKey.of(page.get(pageSize - 1)).toCursor());
+    }
+    
+    /**
+     * Retourne les changements d'une boîte mail postérieurs à un modseq, pour la synchronisation
+     * incrémentale d'un client : seuls les messages modifiés depuis sont parcourus.
+     *
+     * Si le modseq n'est plus utilisable (validité différente, modseq hors du journal), tous
+     * les messages sont retournés et remplacent l'état du client.
+     * @param folder Dossier à synchroniser, ou null pour toute la boîte
+     * @param validity Validité retournée par la synchronisation précédente, ou null
+     * @param limit Nombre maximal de changements retournés (hors synchronisation complète)
+     * @throws IllegalArgumentException si le dossier est inconnu
+     */
+    public MailboxChanges getChanges(String username, String folder, String validity, long since, int limit) throws IOException {
+        if (folder != null && !FOLDERS.contains(folder)) {
+            throw new IllegalArgumentException("Dossier inconnu : " + folder);
+        }
+        List<String> folders = folder != null ? List.of(folder) : FOLDERS;
+        
+        // Sous le verrou de la boîte : un changement est journalisé puis appliqué par le même
+        // écrivain, le client ne voit donc jamais un modseq sans la modification correspondante.
+        // Les index sont chargés d'abord, leur éventuelle reconstruction met à jour le journal
+        synchronized (lock(username)) {
+            Map<String, FolderIndex> indexes = new LinkedHashMap<>();
+            for (String name : folders) {
+                indexes.put(name, getFolderIndex(username, name));
+            }
+            ChangeLog log = getChangeLog(username);
+            
+            if (!log.validity().equals(validity) || since < log.floor() || since > log.modseq()) {
+                List<MailboxChanges.Entry> all = new ArrayList<>();
+                indexes.forEach((name, index) -> {
+                    for (EmailHeader header : index.headers()) {
+                        all.add(new MailboxChanges.Entry(name, log.modseq(name, header.getId()), header));
+                    }
+                });
+                return new MailboxChanges(log.validity(), log.modseq(), true, false, all, List.of(), List.of());
+            }
+            
+            // Un élément de plus pour savoir s'il reste des changements
+            List<ChangeLog.Change> changes = log.since(since, folder, limit + 1);
+            boolean more = changes.size() > limit;
+            if (more) {
+                changes = changes.subList(0, limit);
+            }
+            
+            // L'index fait foi : le journal indique seulement quels messages ont pu changer
+            List<MailboxChanges.Entry> added = new ArrayList<>();
+            List<MailboxChanges.Entry> changed = new ArrayList<>();
+            List<MailboxChanges.Removal> removed = new ArrayList<>();
+            for (ChangeLog.Change change : changes) {
+                Optional<EmailHeader> header = indexes.get(change.folder()).get(change.id());
+                boolean isNew = change.added() > since;
+                if (header.isPresent()) {
+                    (isNew ? added : changed).add(new MailboxChanges.Entry(change.folder(), change.modseq(), header.get()));
+                } else if (!isNew) {
+                    // Un message arrivé puis reparti depuis n'a jamais été vu par le client
+                    removed.add(new MailboxChanges.Removal(change.folder(), change.id(), change.modseq()));
+                }
+            }
+            long next = more ? changes.get(changes.size() - 1).modseq() : log.modseq();
+            return new MailboxChanges(log.validity(), next, false, more, added, changed, removed);
+        }
+    }
+    
+    /**
+     * Retourne la version de la boîte mail : elle change à chaque modification d'un message
+     * (validité et modseq du journal des modifications), et sert d'ETag aux lectures.
+     */
+    public String getMailboxVersion(String username) throws IOException {
+        return getChangeLog(username).version();
+    }
+    
+    /**
+     * Retourne l'heure à laquelle un email est arrivé dans son dossier (enregistrement ou
+     * déplacement). Pour un email antérieur à l'enregistrement de cette heure, la première
+     * demande fixe l'heure d'arrivée à maintenant.
+     * @return L'heure d'arrivée, ou vide si l'email n'est pas dans le dossier
+     */
+    public Optional<LocalDateTime> getArrivalTime(String username, String folder, String emailId) throws IOException {
+        long arrivedAt;
+        synchronized (lock(username)) {
+            arrivedAt = getChangeLog(username).arrivedAt(folder, emailId, System.currentTimeMillis());
+        }
+        return arrivedAt != 0
+            ? Optional.of(LocalDateTime.ofInstant(Instant.ofEpochMilli(arrivedAt), ZoneId.systemDefault()))
+            : Optional.empty();
+    }
+    
+    /**
+     * Reconstruit l'index de recherche d'un utilisateur en relisant tous ses emails.
+     */
+    public void rebuildSearchIndex(String username) throws IOException {
+        getSearchIndex(username).rebuild();
+    }
+    
+    /**
+     * Retourne l'index de recherche d'un utilisateur (chargé à la première recherche).
+     */
+    private SearchIndex getSearchIndex(String username) {
+        return searchIndexes.computeIfAbsent(username, user -> {
+            Path indexDirectory = getUserDirectory(user).resolve(INDEX_DIRECTORY);
+            return new SearchIndex(indexDirectory.resolve(SEARCH_SNAPSHOT_FILE),
+                    indexDirectory.resolve(SEARCH_JOURNAL_FILE), () -> {
+                Map<String, List<Email>> emailsByFolder = new LinkedHashMap<>();
+                for (String folder : FOLDERS) {
+                    emailsByFolder.put(folder, readAllEmails(getUserDirectory(user).resolve(folder)));
+                }
+                return emailsByFolder;
+            });
+        });
+    }
+    
+    /**
+     * Reconstruit l'index d'un dossier en relisant tous ses emails.
+     */
+    public void rebuildIndex(String username, String folder) throws IOException {
+        Path folderPath = getUserDirectory(username).resolve(folder);
+        synchronized (lock(username)) {
+            folderIndexes.put(folderPath, rebuildFolderIndex(username, folder));
+        }
+    }
+    
+    /**
+     * Retourne l'index d'un dossier, en le chargeant ou le reconstruisant si nécessaire.
+     */
+    private FolderIndex getFolderIndex(String username, String folder) throws IOException {
+        Path folderPath = getUserDirectory(username).resolve(folder);
+        FolderIndex index = folderIndexes.get(folderPath);
+        if (index != null && !index.isStale()) {
+            return index;
+        }
+        
+        // Chargement et reconstruction sous le verrou de la boîte : un écrivain le détient entre
+        // l'écriture d'un fichier et la mise à jour de l'index, un dossier qui paraissait
+        // modifié pendant une écriture est donc revérifié une fois celle-ci terminée
+        synchronized (lock(username)) {
+            if (!Files.isDirectory(folderPath)) {
+                return FolderIndex.empty(folderPath, getIndexFile(username, folder), indexMapper);
+            }
+            
+            index = folderIndexes.get(folderPath);
+            if (index == null) {
+                Optional<FolderIndex> loaded = FolderIndex.load(folderPath, getIndexFile(username, folder), indexMapper);
+                if (loaded.isPresent()) {
+                    index = loaded.get();
+                    // Le journal de l'index contient les tags à l'enregistrement des emails
+                    for (Map.Entry<String, Set<String>> entry : getFlagStore(username, folder).all().entrySet()) {
+                        FolderIndex target = index;
+                        target.get(entry.getKey()).ifPresent(header -> target.update(header.withTags(entry.getValue())));
+                    }
+                    folderIndexes.put(folderPath, index);
+                }
+            }
+            
+            // Index absent, ou dossier modifié en dehors de l'index : on le reconstruit
+            if (index == null || index.isStale()) {
+                index = rebuildFolderIndex(username, folder);
+                folderIndexes.put(folderPath, index);
+            }
+            return index;
+        }
+    }
+    
+    private FolderIndex rebuildFolderIndex(String username, String folder) throws IOException {
+        Path folderPath = getUserDirectory(username).resolve(folder);
+        List<Email> emails = readAllEmails(folderPath);
+        FlagStore flags = getFlagStore(username, folder);
+        List<EmailHeader> headers = new ArrayList<>();
+        for (Email email : emails) {
+            EmailHeader header = EmailHeader.of(email);
+            Optional<Set<String>> tags = flags.get(email.getId());
+            headers.add(tags.isPresent() ? header.withTags(tags.get()) : header);
+        }
+        flags.retainAll(headers.stream().map(EmailHeader::getId).toList());
+        getChangeLog(username).reconcile(folder, headers.stream().map(EmailHeader::getId).toList());
+        
+        // Le dossier a pu être modifié hors de l'application : l'index de recherche suit
+        getSearchIndex(username).replaceFolder(folder, emails);
+        return FolderIndex.rebuild(folderPath, getIndexFile(username, folder), indexMapper, headers);
     }
     
-    /**
-     * Retourne le chemin du répertoire d'un utilisateur.
-     */
-    public Path getUserDirectory(String username) {
-        return dataDirectory.resolve(username);
+    private Path getIndexFile(String username, String folder) {
+        return getUserDirectory(username).resolve(INDEX_DIRECTORY).resolve(folder + ".jsonl");
     }
     
     /**
-     * Sauvegarde un email dans un dossier.
+     * Retourne les tags des messages d'un dossier (chargés au premier accès).
      */
-    public void saveEmail(String username, String folder, Email email) throws IOException {
-        Path folderPath = getUserDirectory(username).resolve(folder);
-        FileUtils.ensureDirectoryExists(folderPath);
-        
-        email.setFolder(folder);
-        Path emailFile = folderPath.resolve(email.getId() + ".json");
-        objectMapper.writeValue(emailFile.toFile(), email);
+    private FlagStore getFlagStore(String username, String folder) throws IOException {
+        Path indexDirectory = getUserDirectory(username).resolve(INDEX_DIRECTORY);
+        try {
+            return flagStores.computeIfAbsent(getUserDirectory(username).resolve(folder), path -> {
+                try {
+                    return FlagStore.load(indexDirectory.resolve(folder + ".flags"), indexDirectory.resolve(folder + ".tags"));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
     
     /**
-     * Charge un email depuis un fichier.
+     * Retourne le journal des modifications d'une boîte mail (chargé au premier accès).
      */
-    public Optional<Email> loadEmail(String username, String folder, String emailId) throws IOException {
-        Path emailFile = getUserDirectory(username).resolve(folder).resolve(emailId + ".json");
-        if (!Files.exists(emailFile)) {
-            return Optional.empty();
+    private ChangeLog getChangeLog(String username) throws IOException {
+        Path journalFile = getUserDirectory(username).resolve(INDEX_DIRECTORY).resolve(CHANGES_JOURNAL_FILE);
+        try {
+            return changeLogs.computeIfAbsent(username, user -> {
+                try {
+                    return ChangeLog.load(journalFile, indexMapper);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        Email email = objectMapper.readValue(emailFile.toFile(), Email.class);
-        return Optional.of(email);
     }
     
     /**
-     * Liste tous les emails d'un dossier.
+     * Lit et désérialise tous les emails d'un dossier.
      */
-    public List<Email> listEmails(String username, String folder) throws IOException {
-        Path folderPath = getUserDirectory(username).resolve(folder);
+    private List<Email> readAllEmails(Path folderPath) throws IOException {
+        List<Email> emails = new ArrayList<>();
         if (!Files.exists(folderPath)) {
-            return new ArrayList<>();
+            return emails;
         }
         
-        List<Email> emails = new ArrayList<>();
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folderPath, "*.json")) {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folderPath, "*" + HEADER_EXTENSION)) {
             for (Path file : stream) {
                 try {
-                    Email email = objectMapper.readValue(file.toFile(), Email.class);
+                    Email email = readEmail(file);
+                    email.setFolder(folderPath.getFileName().toString());
                     emails.add(email);
                 } catch (IOException e) {
                     System.err.println("Erreur lors de la lecture de " + file + ": " + e.getMessage());
                 }
             }
         }
-        
-        // Trier par date décroissante
-        emails.sort(Comparator.comparing(Email::getDate).reversed());
         return emails;
     }
     
     /**
-     * Filtre les emails selon un critère.
+     * Déplace un email vers un autre dossier.
      */
-    public List<Email> filterEmails(String username, String folder, String filter) throws IOException {
-        List<Email> emails = listEmails(username, folder);
-        
-        if (filter == null || filter.isEmpty()) {
-            return emails;
+    public void moveEmail(String username, String fromFolder, String toFolder, String emailId) throws IOException {
+        EmailHeader header;
+        synchronized (lock(username)) {
+            Optional<EmailHeader> moved = renameEmail(username, fromFolder, toFolder, emailId);
+            if (moved.isEmpty()) {
+                return;
+            }
+            header = moved.get();
         }
         
-        String filterLower = filter.toLowerCase();
-        return emails.stream()
-                .filter(email -> 
-                    (email.getFrom() != null && email.getFrom().toLowerCase().contains(filterLower)) ||
-                    (email.getSubject() != null && email.getSubject().toLowerCase().contains(filterLower)) ||
-                    email.getTo().stream().anyMatch(to -> to.toLowerCase().contains(filterLower))
-                )
-                .collect(Collectors.toList());
+        for (MailboxListener listener : listeners) {
+            try {
+                listener.emailDeleted(username, fromFolder, emailId);
+                listener.emailSaved(username, toFolder, header);
+            } catch (RuntimeException e) {
+                System.err.println("Erreur d'un observateur de boîte mail : " + e.getMessage());
+            }
+        }
     }
     
     /**
-     * Déplace un email vers un autre dossier.
+     * Déplace le fichier d'un email et met à jour les index. L'appelant détient le verrou
+     * de la boîte mail.
+     * @return L'en-tête déplacé, ou vide si l'email n'existe pas
      */
-    public void moveEmail(String username, String fromFolder, String toFolder, String emailId) throws IOException {
+    private Optional<EmailHeader> renameEmail(String username, String fromFolder, String toFolder, String emailId) throws IOException {
         Optional<Email> emailOpt = loadEmail(username, fromFolder, emailId);
-        if (emailOpt.isPresent()) {
-            Email email = emailOpt.get();
-            
-            // Supprimer de l'ancien dossier
-            deleteEmailFile(username, fromFolder, emailId);
-            
-            // Sauvegarder dans le nouveau dossier
-            saveEmail(username, toFolder, email);
+        if (emailOpt.isEmpty()) {
+            return Optional.empty();
+        }
+        Email email = emailOpt.get();
+        email.setFolder(toFolder);
+        
+        Path toPath = getUserDirectory(username).resolve(toFolder);
+        FileUtils.ensureDirectoryExists(toPath);
+        Path source = getUserDirectory(username).resolve(fromFolder).resolve(emailId + HEADER_EXTENSION);
+        Path target = toPath.resolve(emailId + HEADER_EXTENSION);
+        
+        // Un email de même identifiant dans le dossier de destination est remplacé
+        // (les observateurs en sont informés par l'enregistrement de l'email déplacé)
+        if (Files.exists(target)) {
+            removeEmailFile(username, toFolder, emailId);
+        }
+        
+        // L'en-tête est renommé, sans être relu ni réécrit ; le contenu partagé ne bouge pas.
+        // Un contenu de l'ancien format est d'abord lié dans le dossier de destination, puis
+        // l'en-tête y est déplacé : à tout instant, l'email se trouve entièrement dans l'un des
+        // deux dossiers (un arrêt brutal peut seulement laisser un fichier de contenu orphelin)
+        ChangeLog changeLog = getChangeLog(username);
+        changeLog.remove(fromFolder, emailId);
+        changeLog.put(toFolder, emailId, true);
+        Path sourceBody = getBodyFile(source);
+        if (Files.exists(sourceBody)) {
+            fileWriter.copy(sourceBody, getBodyFile(target));
         }
+        fileWriter.move(source, target);
+        Files.deleteIfExists(sourceBody);
+        headerCache.remove(source);
+        headerCache.remove(target);
+        
+        EmailHeader header = EmailHeader.of(email);
+        getFlagStore(username, fromFolder).remove(emailId);
+        getFolderIndex(username, fromFolder).remove(emailId);
+        getFlagStore(username, toFolder).set(emailId, email.getTags());
+        getFolderIndex(username, toFolder).put(header);
+        getSearchIndex(username).move(fromFolder, toFolder, emailId);
+        return Optional.of(header);
     }
     
     /**
@@ -180,36 +1033,225 @@ public class MailboxService {
      * Supprime physiquement un fichier email.
      */
     private void deleteEmailFile(String username, String folder, String emailId) throws IOException {
-        Path emailFile = getUserDirectory(username).resolve(folder).resolve(emailId + ".json");
-        Files.deleteIfExists(emailFile);
+        boolean deleted;
+        synchronized (lock(username)) {
+            deleted = removeEmailFile(username, folder, emailId);
+        }
+        
+        if (deleted) {
+            for (MailboxListener listener : listeners) {
+                try {
+                    listener.emailDeleted(username, folder, emailId);
+                } catch (RuntimeException e) {
+                    System.err.println("Erreur d'un observateur de boîte mail : " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Supprime le fichier d'un email et met à jour les index et le registre d'espace disque.
+     * L'appelant détient le verrou de la boîte mail.
+     * @return true si le fichier existait
+     */
+    private boolean removeEmailFile(String username, String folder, String emailId) throws IOException {
+        Path emailFile = getUserDirectory(username).resolve(folder).resolve(emailId + HEADER_EXTENSION);
+        getChangeLog(username).remove(folder, emailId);
+        if (!Files.exists(emailFile)) {
+            headerCache.remove(emailFile);
+            Files.deleteIfExists(getBodyFile(emailFile));
+            getFlagStore(username, folder).remove(emailId);
+            getFolderIndex(username, folder).remove(emailId);
+            getSearchIndex(username).remove(folder, emailId);
+            return false;
+        }
+        
+        StorageLedger ledger = getStorageLedger(username);
+        Optional<EmailHeader> header = getFolderIndex(username, folder).get(emailId);
+        long size = storedSize(emailFile);
+        
+        // L'en-tête d'abord : un contenu orphelin n'est jamais listé
+        boolean deleted = Files.deleteIfExists(emailFile);
+        headerCache.remove(emailFile);
+        Files.deleteIfExists(getBodyFile(emailFile));
+        getFlagStore(username, folder).remove(emailId);
+        getFolderIndex(username, folder).remove(emailId);
+        getSearchIndex(username).remove(folder, emailId);
+        
+        if (deleted) {
+            attachmentStore.removeReferences(new LinkedHashSet<>(
+                    header.map(EmailHeader::getAttachmentHashes).orElse(List.of())));
+            if (header.isPresent() && header.get().getBodySha256() != null) {
+                bodyStore.removeReferences(List.of(header.get().getBodySha256()));
+            }
+            
+            synchronized (ledger) {
+                ledger.remove(size, header.map(MailboxService::blobHashes).orElse(List.of()));
+                ledger.save();
+            }
+        }
+        return deleted;
     }
     
     /**
-     * Envoie un email (copie dans outbox de l'expéditeur et inbox des destinataires).
+     * Envoie un email et le distribue immédiatement à tous ses destinataires.
+     * Le contenu est stocké une seule fois : chaque destinataire ne reçoit qu'un en-tête.
      */
     public void sendEmail(Email email) throws IOException {
-        // Sauvegarder dans l'outbox de l'expéditeur
-        saveEmail(email.getFrom(), OUTBOX, email);
+        deliver(queueEmail(email), true);
+    }
+    
+    /**
+     * Enregistre un email à envoyer : la copie de l'expéditeur (si c'est un utilisateur) est
+     * placée dans son outbox, et l'envoi dans la file de distribution. Les destinataires
+     * reçoivent leur copie plus tard, par {@link #deliver(String, boolean)}.
+     *
+     * L'entrée de la file est écrite avant la copie de l'expéditeur : après un arrêt brutal,
+     * un email peut être distribué sans apparaître dans l'outbox, jamais l'inverse.
+     * @return L'identifiant de l'envoi
+     * @throws IllegalArgumentException si le quota de l'expéditeur serait dépassé
+     */
+    public String queueEmail(Email email) throws IOException {
+        boolean fromUser = mailboxExists(email.getFrom());
+        if (!fromUser) {
+            return spoolEmail(email);
+        }
+        // Le quota est vérifié et la copie enregistrée sans écriture concurrente dans la boîte
+        synchronized (lock(email.getFrom())) {
+            checkQuota(email.getFrom(), OUTBOX, email);
+            spoolEmail(email);
+            saveEmail(email.getFrom(), OUTBOX, email);
+        }
+        return email.getId();
+    }
+    
+    /**
+     * Écrit un envoi dans la file de distribution.
+     * @return L'identifiant de l'envoi
+     */
+    private String spoolEmail(Email email) throws IOException {
+        email.getDelivery().clear();
+        for (String recipient : email.getTo()) {
+            email.getDelivery().put(recipient, DeliveryStatus.PENDING);
+        }
+        
+        // L'entrée de la file référence le contenu jusqu'à la fin de la distribution
+        storeBody(email);
+        bodyStore.addReferences(List.of(email.getBodySha256()));
+        fileWriter.write(getSpoolFile(email.getId()), headerMapper.writeValueAsBytes(email));
+        return email.getId();
+    }
+    
+    /**
+     * Liste les envois en attente de distribution (par exemple après un redémarrage).
+     */
+    public List<String> listQueuedEmails() throws IOException {
+        List<String> ids = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(spoolDirectory, "*" + SPOOL_EXTENSION)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                ids.add(name.substring(0, name.length() - SPOOL_EXTENSION.length()));
+            }
+        }
+        return ids;
+    }
+    
+    /**
+     * Distribue un envoi de la file : une copie dans l'inbox de chaque destinataire, puis l'état
+     * de chacun dans la copie de l'expéditeur, et l'envoi est retiré de la file.
+     *
+     * Chaque copie a un identifiant déduit de l'envoi et du destinataire : une distribution
+     * reprise après une erreur ou un arrêt brutal ne crée pas de doublon, y compris si le
+     * destinataire a entre-temps déplacé sa copie dans un autre dossier. Une copie déjà
+     * supprimée définitivement n'est en revanche pas reconnue et serait distribuée à nouveau.
+     * @param lastAttempt Si vrai, un destinataire en erreur est marqué en échec ; sinon l'erreur
+     *                    est propagée et l'envoi reste dans la file pour une nouvelle tentative
+     * @return false si l'envoi n'est pas (ou plus) dans la file
+     */
+    public boolean deliver(String emailId, boolean lastAttempt) throws IOException {
+        Path spoolFile = getSpoolFile(emailId);
+        if (!Files.exists(spoolFile)) {
+            return false;
+        }
+        Email email = readEmail(spoolFile);
         
-        // Copier dans l'inbox de chaque destinataire
+        // Mots indexés extraits une fois pour toutes les copies
+        Set<String> terms = SearchIndex.terms(email);
+        Map<String, DeliveryStatus> delivery = new LinkedHashMap<>();
         for (String recipient : email.getTo()) {
-            if (mailboxExists(recipient)) {
-                // Créer une copie de l'email pour le destinataire
+            if (delivery.containsKey(recipient)) {
+                continue;
+            }
+            if (!mailboxExists(recipient)) {
+                delivery.put(recipient, DeliveryStatus.FAILED);
+                continue;
+            }
+            try {
                 Email recipientCopy = copyEmail(email);
-                saveEmail(recipient, INBOX, recipientCopy);
+                recipientCopy.setId(UUID.nameUUIDFromBytes((emailId + "/" + recipient).getBytes(StandardCharsets.UTF_8)).toString());
+                synchronized (lock(recipient)) {
+                    if (!containsEmail(recipient, recipientCopy.getId())) {
+                        saveEmail(recipient, INBOX, recipientCopy, true, terms);
+                    }
+                }
+                delivery.put(recipient, DeliveryStatus.DELIVERED);
+            } catch (IOException | RuntimeException e) {
+                if (!lastAttempt) {
+                    throw e;
+                }
+                System.err.println("Échec de la distribution de " + emailId + " à " + recipient + " : " + e.getMessage());
+                delivery.put(recipient, DeliveryStatus.FAILED);
+            }
+        }
+        
+        // Une seule réécriture de la copie de l'expéditeur, quel que soit le nombre de destinataires
+        // (l'expéditeur a pu entre-temps la mettre à la corbeille)
+        if (mailboxExists(email.getFrom())) {
+            synchronized (lock(email.getFrom())) {
+                for (String folder : List.of(OUTBOX, TRASH)) {
+                    Optional<Email> sent = loadEmail(email.getFrom(), folder, emailId);
+                    if (sent.isPresent()) {
+                        sent.get().setDelivery(delivery);
+                        saveEmail(email.getFrom(), folder, sent.get(), false);
+                        break;
+                    }
+                }
+            }
+        }
+        
+        Files.deleteIfExists(spoolFile);
+        bodyStore.removeReferences(List.of(email.getBodySha256()));
+        return true;
+    }
+    
+    /**
+     * Vérifie si un email se trouve dans l'un des dossiers d'une boîte mail (d'après les index).
+     */
+    private boolean containsEmail(String username, String emailId) throws IOException {
+        for (String folder : FOLDERS) {
+            if (getFolderIndex(username, folder).get(emailId).isPresent()) {
+                return true;
             }
         }
+        return false;
+    }
+    
+    private Path getSpoolFile(String emailId) {
+        return spoolDirectory.resolve(emailId + SPOOL_EXTENSION);
     }
     
     /**
      * Sauvegarde un brouillon.
      */
     public void saveDraft(String username, Email email) throws IOException {
-        saveEmail(username, DRAFT, email);
+        synchronized (lock(username)) {
+            checkQuota(username, DRAFT, email);
+            saveEmail(username, DRAFT, email);
+        }
     }
     
     /**
-     * Crée une copie d'un email avec un nouvel ID.
+     * Crée la copie d'un destinataire, avec un nouvel ID, qui partage le contenu déjà stocké.
      */
     private Email copyEmail(Email original) {
         Email copy = new Email();
@@ -217,10 +1259,14 @@ public class MailboxService {
         copy.setTo(new ArrayList<>(original.getTo()));
         copy.setSubject(original.getSubject());
         copy.setContent(original.getContent());
+        copy.setBodySha256(original.getBodySha256());
         copy.setDate(original.getDate());
         copy.setAttachments(new ArrayList<>(original.getAttachments()));
         copy.getTags().clear();
         copy.getTags().add("unread");
+        if (original.hasTag("anonymous")) {
+            copy.getTags().add("anonymous");
+        }
         return copy;
     }
     
@@ -229,51 +1275,137 @@ public class MailboxService {
      */
     public Attachment saveAttachment(String filename, String contentType, byte[] data) throws IOException {
         String sha256 = FileUtils.sha256(data);
-        Path attachmentFile = attachmentsDirectory.resolve(sha256);
-        
-        // Sauvegarder seulement si le fichier n'existe pas déjà (déduplication)
-        if (!Files.exists(attachmentFile)) {
-            Files.write(attachmentFile, data);
-        }
-        
+        attachmentStore.store(data, sha256);
         return new Attachment(filename, sha256, contentType, data.length);
     }
     
+    /**
+     * Enregistre une pièce jointe déjà écrite dans un fichier temporaire et hachée pendant l'upload.
+     * Le fichier est déplacé atomiquement dans le stockage, ou supprimé si le contenu y est déjà.
+     * @param tempFile Fichier situé dans {@link #getAttachmentUploadDirectory()}
+     */
+    public Attachment saveAttachment(String filename, String contentType, Path tempFile, String sha256, long size) throws IOException {
+        attachmentStore.store(tempFile, sha256);
+        return new Attachment(filename, sha256, contentType, size);
+    }
+    
+    /**
+     * Retourne le répertoire des uploads en cours. Il se trouve dans le stockage des pièces
+     * jointes pour que le déplacement final soit atomique (même système de fichiers).
+     */
+    public Path getAttachmentUploadDirectory() {
+        return attachmentStore.getUploadDirectory();
+    }
+    
     /**
      * Récupère une pièce jointe par son hash.
      */
     public Optional<byte[]> getAttachment(String sha256) throws IOException {
-        Path attachmentFile = attachmentsDirectory.resolve(sha256);
-        if (!Files.exists(attachmentFile)) {
+        Optional<Path> attachmentFile = attachmentStore.getFile(sha256);
+        if (attachmentFile.isEmpty()) {
             return Optional.empty();
         }
-        return Optional.of(Files.readAllBytes(attachmentFile));
+        return Optional.of(Files.readAllBytes(attachmentFile.get()));
     }
     
     /**
-     * Purge automatiquement les emails de la corbeille datant de plus de 30 jours.
+     * Retourne le fichier d'une pièce jointe, pour l'envoyer sans le charger en mémoire.
+     * Les pièces jointes étant adressées par leur hash, un fichier n'est jamais modifié.
      */
-    public void purgeOldTrashEmails(String username) throws IOException {
-        Path trashPath = getUserDirectory(username).resolve(TRASH);
-        if (!Files.exists(trashPath)) {
-            return;
-        }
-        
-        LocalDateTime threshold = LocalDateTime.now().minusDays(TRASH_RETENTION_DAYS);
-        
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(trashPath, "*.json")) {
-            for (Path file : stream) {
-                try {
-                    Email email = objectMapper.readValue(file.toFile(), Email.class);
-                    if (email.getDate().isBefore(threshold)) {
-                        Files.delete(file);
-                        System.out.println("Supprimé de la corbeille : " + email.getSubject());
-                    }
-                } catch (IOException e) {
-                    System.err.println("Erreur lors de la purge de " + file + ": " + e.getMessage());
+    public Optional<Path> getAttachmentFile(String sha256) {
+        return attachmentStore.getFile(sha256);
+    }
+    
+    /**
+     * Retourne le nombre d'emails (toutes boîtes confondues) qui référencent une pièce jointe.
+     */
+    public int countAttachmentReferences(String sha256) throws IOException {
+        return attachmentStore.references(sha256);
+    }
+    
+    /**
+     * Supprime les pièces jointes qu'aucun email ne référence depuis au moins le délai de grâce.
+     * @return Le nombre de pièces jointes supprimées
+     */
+    public int collectAttachmentGarbage(Duration gracePeriod) throws IOException {
+        return attachmentStore.collectGarbage(gracePeriod);
+    }
+    
+    /**
+     * Recompte les références aux pièces jointes en relisant tous les emails (en parallèle)
+     * et les compare à la table maintenue au fil de l'eau.
+     * Destiné à être lancé hors ligne, application arrêtée.
+     * @param repair Remplace la table par les comptes exacts
+     */
+    public AttachmentReport verifyAttachments(boolean repair) throws IOException {
+        List<Path> files = emailFiles();
+        return attachmentStore.verify(countReferences(files, email -> attachmentSizes(email).keySet()), files.size(), repair);
+    }
+    
+    /**
+     * Recompte les références aux contenus partagés et les compare à la table maintenue
+     * au fil de l'eau. Destiné à être lancé hors ligne, application arrêtée.
+     * @param repair Remplace la table par les comptes exacts
+     */
+    public AttachmentReport verifyBodies(boolean repair) throws IOException {
+        List<Path> files = emailFiles();
+        return bodyStore.verify(countBodyReferences(), files.size(), repair);
+    }
+    
+    /**
+     * Supprime les contenus qu'aucun email ne référence depuis au moins le délai de grâce.
+     * @return Le nombre de contenus supprimés
+     */
+    public int collectBodyGarbage(Duration gracePeriod) throws IOException {
+        return bodyStore.collectGarbage(gracePeriod);
+    }
+    
+    /**
+     * Liste les fichiers de tous les emails de toutes les boîtes.
+     */
+    private List<Path> emailFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (String username : listMailboxes()) {
+            for (String folder : FOLDERS) {
+                Path folderPath = getUserDirectory(username).resolve(folder);
+                if (!Files.isDirectory(folderPath)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(folderPath, "*" + HEADER_EXTENSION)) {
+                    stream.forEach(files::add);
                 }
             }
         }
+        return files;
+    }
+    
+    /**
+     * Compte les références aux contenus : emails des boîtes et envois en attente de distribution.
+     */
+    private Map<String, Integer> countBodyReferences() throws IOException {
+        List<Path> files = emailFiles();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(spoolDirectory, "*" + SPOOL_EXTENSION)) {
+            stream.forEach(files::add);
+        }
+        return countReferences(files, MailboxService::bodyHashes);
+    }
+    
+    /**
+     * Compte, pour chaque hash, le nombre d'emails qui le référencent (lecture parallèle).
+     * @param hashes Hash distincts référencés par un email
+     */
+    private Map<String, Integer> countReferences(List<Path> files, Function<Email, Collection<String>> hashes) {
+        return files.parallelStream()
+                .flatMap(file -> {
+                    try {
+                        Email email = objectMapper.readValue(file.toFile(), Email.class);
+                        return hashes.apply(email).stream();
+                    } catch (IOException e) {
+                        System.err.println("Erreur lors de la lecture de " + file + ": " + e.getMessage());
+                        return Stream.empty();
+                    }
+                })
+                .collect(Collectors.toConcurrentMap(sha256 -> sha256, sha256 -> 1, Integer::sum));
     }
     
     /**
@@ -286,62 +1418,284 @@ public class MailboxService {
     
     /**
      * Calcule l'espace disque total incluant les pièces jointes liées.
+     * La valeur est lue dans le registre de l'utilisateur, sans parcourir le disque.
      */
     public long calculateTotalUserStorage(String username) throws IOException {
-        long mailboxSize = calculateMailboxSize(username);
-        
-        // Calculer la taille des pièces jointes uniques
-        long attachmentsSize = 0;
-        List<String> seenHashes = new ArrayList<>();
-        
-        for (String folder : List.of(INBOX, OUTBOX, DRAFT, TRASH)) {
-            for (Email email : listEmails(username, folder)) {
-                for (Attachment attachment : email.getAttachments()) {
-                    if (!seenHashes.contains(attachment.getSha256())) {
-                        seenHashes.add(attachment.getSha256());
-                        attachmentsSize += attachment.getSize();
+        return getStorageLedger(username).total();
+    }
+    
+    /**
+     * Retourne le quota d'espace disque par utilisateur (0 = illimité).
+     */
+    public long getStorageQuotaBytes() {
+        return storageQuotaBytes;
+    }
+    
+    /**
+     * Recalcule le registre d'espace disque d'un utilisateur à partir du disque.
+     * @return L'espace total utilisé
+     */
+    public long reconcileStorage(String username) throws IOException {
+        synchronized (lock(username)) {
+            StorageLedger ledger = StorageLedger.create(getUserDirectory(username).resolve(STORAGE_FILE), indexMapper);
+            
+            for (String folder : FOLDERS) {
+                Path folderPath = getUserDirectory(username).resolve(folder);
+                if (!Files.isDirectory(folderPath)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(folderPath, "*" + HEADER_EXTENSION)) {
+                    for (Path file : stream) {
+                        try {
+                            Email email = objectMapper.readValue(file.toFile(), Email.class);
+                            ledger.add(storedSize(file), blobSizes(email));
+                        } catch (IOException e) {
+                            System.err.println("Erreur lors de la lecture de " + file + ": " + e.getMessage());
+                        }
                     }
                 }
             }
+            
+            if (mailboxExists(username)) {
+                ledger.save();
+            }
+            storageLedgers.put(username, ledger);
+            return ledger.total();
+        }
+    }
+    
+    /**
+     * Recalcule les registres d'espace disque de tous les utilisateurs.
+     */
+    public void reconcileAllStorage() throws IOException {
+        for (String username : listMailboxes()) {
+            reconcileStorage(username);
+        }
+    }
+    
+    /**
+     * Vérifie que l'enregistrement d'un email ne fait pas dépasser le quota de l'utilisateur.
+     * @throws IllegalArgumentException si le quota serait dépassé
+     */
+    private void checkQuota(String username, String folder, Email email) throws IOException {
+        if (storageQuotaBytes <= 0) {
+            return;
+        }
+        
+        StorageLedger ledger = getStorageLedger(username);
+        long estimated = headerMapper.writeValueAsBytes(email).length;
+        if (email.getBodySha256() == null || !ledger.references(email.getBodySha256())) {
+            estimated += bodyBytes(email).length;
+        }
+        for (Map.Entry<String, Long> attachment : attachmentSizes(email).entrySet()) {
+            if (!ledger.references(attachment.getKey())) {
+                estimated += attachment.getValue();
+            }
+        }
+        
+        // Un brouillon réécrit remplace l'ancienne version
+        Path existing = getUserDirectory(username).resolve(folder).resolve(email.getId() + HEADER_EXTENSION);
+        estimated -= storedSize(existing);
+        Optional<EmailHeader> previous = getFolderIndex(username, folder).get(email.getId());
+        if (previous.isPresent() && previous.get().getBodySha256() != null) {
+            estimated -= bodySize(previous.get().getBodySha256());
         }
         
-        return mailboxSize + attachmentsSize;
+        if (ledger.total() + estimated > storageQuotaBytes) {
+            throw new IllegalArgumentException("Quota de stockage dépassé ("
+                    + FileUtils.formatSize(storageQuotaBytes) + " maximum).");
+        }
+    }
+    
+    /**
+     * Retourne le registre d'espace disque d'un utilisateur, en le recalculant s'il est absent.
+     */
+    private StorageLedger getStorageLedger(String username) throws IOException {
+        StorageLedger ledger = storageLedgers.get(username);
+        if (ledger != null) {
+            return ledger;
+        }
+        
+        Optional<StorageLedger> loaded = StorageLedger.load(getUserDirectory(username).resolve(STORAGE_FILE), indexMapper);
+        if (loaded.isPresent()) {
+            ledger = storageLedgers.putIfAbsent(username, loaded.get());
+            return ledger != null ? ledger : loaded.get();
+        }
+        reconcileStorage(username);
+        return storageLedgers.get(username);
+    }
+    
+    /**
+     * Retourne les tailles des pièces jointes distinctes d'un email, par hash.
+     */
+    private static Map<String, Long> attachmentSizes(Email email) {
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        for (Attachment attachment : email.getAttachments()) {
+            sizes.putIfAbsent(attachment.getSha256(), attachment.getSize());
+        }
+        return sizes;
+    }
+    
+    /**
+     * Retourne les tailles des fichiers partagés d'un email (pièces jointes et contenu), par hash.
+     * Comme une pièce jointe, un contenu est compté une seule fois par utilisateur.
+     */
+    private Map<String, Long> blobSizes(Email email) throws IOException {
+        Map<String, Long> sizes = attachmentSizes(email);
+        if (email.getBodySha256() != null) {
+            sizes.putIfAbsent(email.getBodySha256(), bodySize(email.getBodySha256()));
+        }
+        return sizes;
+    }
+    
+    private static List<String> blobHashes(EmailHeader header) {
+        List<String> hashes = new ArrayList<>(header.getAttachmentHashes());
+        if (header.getBodySha256() != null) {
+            hashes.add(header.getBodySha256());
+        }
+        return hashes;
+    }
+    
+    private static Set<String> bodyHashes(Email email) {
+        return email.getBodySha256() == null ? Set.of() : Set.of(email.getBodySha256());
+    }
+    
+    private long bodySize(String sha256) throws IOException {
+        Optional<Path> bodyFile = bodyStore.getFile(sha256);
+        return bodyFile.isPresent() ? Files.size(bodyFile.get()) : 0;
     }
     
     /**
      * Compte le nombre d'emails non lus dans un dossier.
      */
     public int countUnreadEmails(String username, String folder) throws IOException {
-        return (int) listEmails(username, folder).stream()
-                .filter(Email::isUnread)
-                .count();
+        return getFolderIndex(username, folder).unreadCount();
     }
     
     /**
      * Marque un email comme lu.
      */
     public void markAsRead(String username, String folder, String emailId) throws IOException {
-        Optional<Email> emailOpt = loadEmail(username, folder, emailId);
-        if (emailOpt.isPresent()) {
-            Email email = emailOpt.get();
-            email.markAsRead();
-            saveEmail(username, folder, email);
-        }
+        updateTags(username, folder, emailId, tags -> tags.remove("unread"));
     }
     
     /**
      * Ajoute ou retire un tag sur un email.
      */
     public void toggleTag(String username, String folder, String emailId, String tag) throws IOException {
-        Optional<Email> emailOpt = loadEmail(username, folder, emailId);
-        if (emailOpt.isPresent()) {
-            Email email = emailOpt.get();
-            if (email.hasTag(tag)) {
-                email.removeTag(tag);
+        updateTags(username, folder, emailId, tags -> {
+            if (!tags.remove(tag)) {
+                tags.add(tag);
+            }
+        });
+    }
+    
+    /**
+     * Ajoute ou retire un tag sur un email, quel que soit son état actuel.
+     */
+    public void setTag(String username, String folder, String emailId, String tag, boolean present) throws IOException {
+        updateTags(username, folder, emailId, tags -> {
+            if (present) {
+                tags.add(tag);
             } else {
-                email.addTag(tag);
+                tags.remove(tag);
+            }
+        });
+    }
+    
+    /**
+     * Modifie les tags d'un email dans le stockage des tags du dossier, sans relire ni
+     * réécrire l'email. Si l'email ne peut pas y figurer, son en-tête est réécrit.
+     */
+    private void updateTags(String username, String folder, String emailId, Consumer<Set<String>> change) throws IOException {
+        EmailHeader header;
+        synchronized (lock(username)) {
+            FolderIndex index = getFolderIndex(username, folder);
+            FlagStore flags = getFlagStore(username, folder);
+            Optional<EmailHeader> current = index.get(emailId);
+            if (current.isEmpty()) {
+                return;
+            }
+            Set<String> tags = new HashSet<>(current.get().getTags());
+            change.accept(tags);
+            if (tags.equals(current.get().getTags())) {
+                return;
+            }
+            
+            getChangeLog(username).put(folder, emailId, false);
+            if (!flags.set(emailId, tags)) {
+                Optional<Email> email = loadEmail(username, folder, emailId);
+                if (email.isPresent()) {
+                    email.get().setTags(tags);
+                    saveEmail(username, folder, email.get(), false);
+                }
+                return;
             }
-            saveEmail(username, folder, email);
+            header = current.get().withTags(tags);
+            index.update(header);
         }
+        
+        for (MailboxListener listener : listeners) {
+            try {
+                listener.emailUpdated(username, folder, header);
+            } catch (RuntimeException e) {
+                System.err.println("Erreur d'un observateur de boîte mail : " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Convertit les emails des anciens formats (contenu dans le fichier JSON ou dans
+     * {@code <id>.body}) en un en-tête désignant un contenu partagé, puis recalcule l'espace
+     * disque de l'utilisateur. L'index du dossier et le cache des en-têtes sont mis à jour sous
+     * le verrou de la boîte mail. Les emails déjà convertis sont ignorés.
+     * @return Le nombre d'emails convertis
+     */
+    public int migrateStorage(String username) throws IOException {
+        synchronized (lock(username)) {
+            int migrated = 0;
+            for (String folder : FOLDERS) {
+                Path folderPath = getUserDirectory(username).resolve(folder);
+                if (!Files.isDirectory(folderPath)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(folderPath, "*" + HEADER_EXTENSION)) {
+                    for (Path file : stream) {
+                        try {
+                            Email email = readEmail(file);
+                            if (email.getBodySha256() == null) {
+                                byte[] body = bodyBytes(email);
+                                String sha256 = FileUtils.sha256(body);
+                                bodyStore.store(body, sha256);
+                                bodyStore.addReferences(List.of(sha256));
+                                email.setBodySha256(sha256);
+                                byte[] headerBytes = headerMapper.writeValueAsBytes(email);
+                                fileWriter.write(file, headerBytes);
+                                headerCache.put(file, headerBytes);
+                                // L'index désigne désormais le contenu partagé (tags conservés)
+                                EmailHeader header = EmailHeader.of(email);
+                                Optional<Set<String>> tags = getFlagStore(username, folder).get(email.getId());
+                                getFolderIndex(username, folder).put(tags.isPresent() ? header.withTags(tags.get()) : header);
+                                migrated++;
+                            }
+                            // Contenu séparé de l'ancien format, ou laissé par un arrêt brutal
+                            Files.deleteIfExists(getBodyFile(file));
+                        } catch (IOException | UncheckedIOException e) {
+                            System.err.println("Erreur lors de la conversion de " + file + ": " + e.getMessage());
+                        }
+                    }
+                }
+            }
+            reconcileStorage(username);
+            return migrated;
+        }
+    }
+    
+    /**
+     * Propriétés exclues de l'en-tête enregistré : le contenu (fichier séparé) et les
+     * valeurs calculées à partir des tags et des destinataires.
+     */
+    @JsonIgnoreProperties(value = {"content", "unread", "important", "toAsString"}, ignoreUnknown = true)
+    private abstract static class EmailHeaderMixIn {
     }
 }
@@ -0,0 +1,78 @@
+package fr.uge.webmail.service;
+
+import fr.uge.webmail.util.LocalCodec;
+import io.vertx.core.Future;
+import io.vertx.core.VerticleBase;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+
+/**
+ * Service de stockage des boîtes mail sur le bus d'événements : les serveurs HTTP et UDP lui
+ * adressent leurs requêtes par {@link AsyncMailboxService}, y compris l'enregistrement des
+ * envois. La distribution des envois ({@link DeliveryService}) et la maintenance
+ * ({@link MaintenanceService}) accèdent directement à {@link MailboxService}, sur leurs
+ * propres pools, pour ne pas occuper celui des requêtes.
+ *
+ * Un seul consommateur reçoit les requêtes sur sa boucle d'événements et confie chacune au
+ * premier worker libre du pool de stockage, sans ordre entre elles : une requête lente
+ * n'immobilise que son worker, jamais les requêtes suivantes. Le nombre de workers se règle
+ * indépendamment de celui des boucles d'événements.
+ */
+public class MailboxStorageVerticle extends VerticleBase {
+
+    /**
+     * Adresse des requêtes de stockage sur le bus d'événements.
+     */
+    public static final String ADDRESS = "webmail.storage";
+
+    private final MailboxService mailboxService;
+    private final int poolSize;
+    private final String workerPoolName;
+    private WorkerExecutor executor;
+    private MessageConsumer<StorageRequest> consumer;
+
+    private MailboxStorageVerticle(MailboxService mailboxService, int poolSize, String workerPoolName) {
+        this.mailboxService = mailboxService;
+        this.poolSize = poolSize;
+        this.workerPoolName = workerPoolName;
+    }
+
+    /**
+     * Déploie le service de stockage.
+     * @param poolSize Nombre de workers, chacun traitant une requête à la fois
+     * @param workerPoolName Pool de workers (partagé avec les exécuteurs du même nom)
+     * @return L'identifiant du déploiement
+     */
+    public static Future<String> deploy(Vertx vertx, MailboxService mailboxService, int poolSize, String workerPoolName) {
+        LocalCodec.register(vertx.eventBus(), StorageRequest.class);
+        return vertx.deployVerticle(new MailboxStorageVerticle(mailboxService, poolSize, workerPoolName));
+    }
+
+    @Override
+    public Future<?> start() {
+        executor = vertx.createSharedWorkerExecutor(workerPoolName, poolSize);
+        consumer = vertx.eventBus().consumer(ADDRESS, this::handle);
+        return consumer.completion();
+    }
+
+    @Override
+    public Future<?> stop() {
+        return consumer.unregister().compose(v -> executor.close());
+    }
+
+    private void handle(Message<StorageRequest> message) {
+        StorageRequest request = message.body();
+        executor.executeBlocking(() -> {
+            request.run(mailboxService);
+            return null;
+        }, false).onComplete(ar -> {
+            // Requête refusée par le pool (arrêt en cours) : ses opérations échouent
+            if (ar.failed()) {
+                request.failRemaining(ar.cause());
+            }
+            message.reply(request);
+        });
+    }
+}
@@ -0,0 +1,144 @@
+package fr.uge.webmail.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Surveille le répertoire des boîtes mail pour détecter les modifications faites en dehors
+ * de l'application : création ou suppression d'une boîte, édition d'une fiche utilisateur.
+ *
+ * Seuls le répertoire des boîtes mail et le répertoire de chaque utilisateur sont surveillés
+ * (pas les dossiers d'emails). Les modifications faites par l'application elle-même sont aussi
+ * signalées ; les relire est sans conséquence.
+ */
+class MailboxWatcher implements Closeable {
+
+    private final Path directory;
+    private final Set<String> watchedFiles;
+    private final Consumer<String> onChange;
+    private final Runnable onOverflow;
+    private final WatchService watchService;
+
+    // Répertoires d'utilisateurs surveillés : clé de surveillance -> nom d'utilisateur
+    private final Map<WatchKey, String> userKeys = new ConcurrentHashMap<>();
+    private WatchKey rootKey;
+
+    /**
+     * @param watchedFiles Fichiers d'un répertoire d'utilisateur dont la modification est signalée
+     * @param onChange Appelé avec le nom de l'utilisateur dont la boîte ou la fiche a changé
+     * @param onOverflow Appelé lorsque des événements ont été perdus : tout est à relire
+     */
+    MailboxWatcher(Path directory, Set<String> watchedFiles, Consumer<String> onChange, Runnable onOverflow) throws IOException {
+        this.directory = directory;
+        this.watchedFiles = Set.copyOf(watchedFiles);
+        this.onChange = onChange;
+        this.onOverflow = onOverflow;
+        this.watchService = directory.getFileSystem().newWatchService();
+    }
+
+    /**
+     * Commence la surveillance dans un thread dédié.
+     */
+    void start() throws IOException {
+        rootKey = directory.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        registerAll();
+
+        Thread thread = new Thread(this::run, "webmail-mailbox-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void registerAll() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path userDir : stream) {
+                register(userDir);
+            }
+        }
+    }
+
+    private void register(Path userDir) throws IOException {
+        WatchKey key = userDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        userKeys.put(key, userDir.getFileName().toString());
+    }
+
+    private void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            try {
+                if (key == rootKey) {
+                    handleRootEvents(key);
+                } else {
+                    handleUserEvents(key);
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Erreur lors de la surveillance des boîtes mail : " + e.getMessage());
+            }
+            if (!key.reset() && key != rootKey) {
+                // Répertoire supprimé
+                String username = userKeys.remove(key);
+                if (username != null) {
+                    onChange.accept(username);
+                }
+            }
+        }
+    }
+
+    private void handleRootEvents(WatchKey key) throws IOException {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                registerAll();
+                onOverflow.run();
+                continue;
+            }
+            Path userDir = directory.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(userDir)) {
+                // Enregistré avant la relecture : une fiche écrite entre-temps n'est pas manquée
+                register(userDir);
+            }
+            onChange.accept(userDir.getFileName().toString());
+        }
+    }
+
+    private void handleUserEvents(WatchKey key) {
+        String username = userKeys.get(key);
+        if (username == null) {
+            key.pollEvents();
+            return;
+        }
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || watchedFiles.contains(event.context().toString());
+        }
+        if (changed) {
+            onChange.accept(username);
+        }
+    }
+
+    /**
+     * Arrête la surveillance.
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,280 @@
+package fr.uge.webmail.service;
+
+import fr.uge.webmail.model.EmailHeader;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Service de maintenance en tâche de fond.
+ *
+ * Applique les règles de rétention par dossier (par défaut : 30 jours dans la corbeille)
+ * sans jamais intervenir dans le traitement des requêtes. La durée de conservation court
+ * à partir de l'arrivée de l'email dans le dossier (enregistrement ou déplacement), pas de
+ * sa date d'envoi. Pour chaque utilisateur, les emails soumis à une règle sont rangés par
+ * date d'expiration ; à chaque passage, seuls les emails expirés sont traités, par lots de
+ * taille bornée.
+ *
+ * Un email expiré est supprimé comme depuis l'interface : déplacé vers la corbeille,
+ * ou supprimé définitivement s'il s'y trouve déjà. Un email dont la suppression échoue
+ * reste dans sa file et sera retenté au passage suivant.
+ *
+ * Périodiquement, les boîtes mail qui ne sont pas sur leur racine de stockage y sont recopiées,
+ * l'espace disque de chaque utilisateur est recalculé et les pièces jointes
+ * et contenus d'emails qui ne sont plus référencés depuis le délai de grâce sont supprimés.
+ * Les compteurs des caches d'emails et des synchronisations sur disque sont affichés à chaque passage.
+ */
+public class MaintenanceService implements MailboxListener {
+
+    public static final Map<String, Integer> DEFAULT_RETENTION_DAYS = Map.of(MailboxService.TRASH, 30);
+
+    private final Vertx vertx;
+    private final MailboxService mailboxService;
+    private final WorkerExecutor executor;
+    private final Map<String, Integer> retentionDays;
+    private final long intervalMs;
+    private final int batchSize;
+    private final long reconcileIntervalMs;
+    private final Duration attachmentGracePeriod;
+
+    // File d'expiration par utilisateur
+    private final Map<String, ExpiryQueue> queues = new ConcurrentHashMap<>();
+
+    // Empêche deux passages de se chevaucher
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private long purgeTimerId = -1;
+    private long reconcileTimerId = -1;
+    private int rotation;
+
+    /**
+     * @param retentionDays Durée de conservation en jours par dossier (dossiers absents : pas de limite)
+     * @param intervalMs Intervalle entre deux passages de purge
+     * @param batchSize Nombre maximal d'emails supprimés par passage
+     * @param reconcileIntervalMs Intervalle entre deux recalculs de l'espace disque (et ramassages des pièces jointes)
+     * @param attachmentGracePeriod Délai avant suppression d'une pièce jointe qui n'est plus référencée
+     */
+    public MaintenanceService(Vertx vertx, MailboxService mailboxService, WorkerExecutor executor,
+                              Map<String, Integer> retentionDays, long intervalMs, int batchSize,
+                              long reconcileIntervalMs, Duration attachmentGracePeriod) {
+        this.vertx = vertx;
+        this.mailboxService = mailboxService;
+        this.executor = executor;
+        this.retentionDays = new HashMap<>(retentionDays);
+        this.intervalMs = intervalMs;
+        this.batchSize = batchSize;
+        this.reconcileIntervalMs = reconcileIntervalMs;
+        this.attachmentGracePeriod = attachmentGracePeriod;
+    }
+
+    /**
+     * Démarre la maintenance : charge les files d'expiration puis planifie les passages.
+     */
+    public void start() {
+        // S'abonner avant le chargement initial pour ne manquer aucune modification
+        mailboxService.addListener(this);
+
+        executor.executeBlocking(() -> {
+            loadExpiryQueues();
+            return null;
+        }, false).onComplete(ar -> {
+            if (ar.failed()) {
+                System.err.println("Erreur lors du chargement des règles de rétention : " + ar.cause().getMessage());
+            }
+            purgeTimerId = vertx.setPeriodic(intervalMs, id -> runPurge());
+        });
+
+        reconcileTimerId = vertx.setPeriodic(reconcileIntervalMs, id -> executor.executeBlocking(() -> {
+            int moved = mailboxService.rebalanceMailboxes();
+            mailboxService.reconcileAllStorage();
+            return new int[] {
+                mailboxService.collectAttachmentGarbage(attachmentGracePeriod),
+                mailboxService.collectBodyGarbage(attachmentGracePeriod),
+                moved
+            };
+        }, false).onComplete(ar -> {
+            if (ar.failed()) {
+                System.err.println("Erreur lors du recalcul de l'espace disque : " + ar.cause().getMessage());
+                return;
+            }
+            if (ar.result()[0] > 0) {
+                System.out.println("🧹 " + ar.result()[0] + " pièce(s) jointe(s) orpheline(s) supprimée(s)");
+            }
+            if (ar.result()[1] > 0) {
+                System.out.println("🧹 " + ar.result()[1] + " contenu(s) d'email orphelin(s) supprimé(s)");
+            }
+            if (ar.result()[2] > 0) {
+                System.out.println("🚚 " + ar.result()[2] + " boîte(s) mail déplacée(s) sur leur racine de stockage");
+            }
+            System.out.println("📊 Cache des en-têtes : " + mailboxService.getHeaderCacheStats());
+            System.out.println("📊 Cache des contenus : " + mailboxService.getBodyCacheStats());
+            System.out.println("📊 Synchronisations : " + mailboxService.getFileWriter().getSyncStats());
+        }));
+    }
+
+    /**
+     * Arrête les passages planifiés.
+     */
+    public void stop() {
+        vertx.cancelTimer(purgeTimerId);
+        vertx.cancelTimer(reconcileTimerId);
+    }
+
+    @Override
+    public void emailSaved(String username, String folder, EmailHeader header) {
+        Integer days = retentionDays.get(folder);
+        if (days != null) {
+            queues.computeIfAbsent(username, u -> new ExpiryQueue())
+                    .add(folder, header.getId(), arrivalTime(username, folder, header.getId()).plusDays(days));
+        }
+    }
+
+    /**
+     * Retourne l'heure d'arrivée d'un email dans son dossier. Un email arrivé avant que cette
+     * heure ne soit enregistrée est conservé pendant toute la durée à partir de sa première
+     * prise en compte : un email n'est jamais supprimé avant la fin de sa durée de conservation.
+     */
+    private LocalDateTime arrivalTime(String username, String folder, String emailId) {
+        try {
+            return mailboxService.getArrivalTime(username, folder, emailId).orElseGet(LocalDateTime::now);
+        } catch (IOException e) {
+            return LocalDateTime.now();
+        }
+    }
+
+    @Override
+    public void emailDeleted(String username, String folder, String emailId) {
+        ExpiryQueue queue = queues.get(username);
+        if (queue != null) {
+            queue.remove(folder, emailId);
+        }
+    }
+
+    /**
+     * Construit les files d'expiration à partir des index de dossiers (sans lire les emails).
+     */
+    void loadExpiryQueues() throws IOException {
+        for (String username : mailboxService.listMailboxes()) {
+            for (String folder : retentionDays.keySet()) {
+                for (EmailHeader header : mailboxService.listEmails(username, folder)) {
+                    emailSaved(username, folder, header);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lance un passage de purge sur le pool de stockage, sauf si le précédent est en cours.
+     */
+    private void runPurge() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        executor.executeBlocking(() -> purgeExpired(LocalDateTime.now()), false)
+            .onComplete(ar -> {
+                running.set(false);
+                if (ar.failed()) {
+                    System.err.println("Erreur lors de la purge : " + ar.cause().getMessage());
+                } else if (ar.result() > 0) {
+                    System.out.println("🧹 " + ar.result() + " email(s) expiré(s) supprimé(s)");
+                }
+            });
+    }
+
+    /**
+     * Supprime au plus {@code batchSize} emails expirés, en répartissant le lot entre utilisateurs.
+     * @return Le nombre d'emails supprimés
+     */
+    int purgeExpired(LocalDateTime now) {
+        List<String> usernames = new ArrayList<>(queues.keySet());
+        if (usernames.isEmpty()) {
+            return 0;
+        }
+        usernames.sort(Comparator.naturalOrder());
+
+        // Chaque passage commence par un utilisateur différent
+        int start = Math.floorMod(rotation++, usernames.size());
+        int purged = 0;
+        int attempts = 0;
+        for (int i = 0; i < usernames.size() && attempts < batchSize; i++) {
+            String username = usernames.get((start + i) % usernames.size());
+            ExpiryQueue queue = queues.get(username);
+            List<Expiry> failed = new ArrayList<>();
+            Expiry expiry;
+            while (attempts < batchSize && (expiry = queue.pollExpired(now)) != null) {
+                attempts++;
+                try {
+                    mailboxService.deleteEmail(username, expiry.folder(), expiry.emailId());
+                    purged++;
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Erreur lors de la purge de " + expiry.emailId() + " : " + e.getMessage());
+                    failed.add(expiry);
+                }
+            }
+            // Remis en file après le passage, pour ne pas être retentés aussitôt
+            failed.forEach(queue::restore);
+        }
+        return purged;
+    }
+
+    /**
+     * Échéance d'un email soumis à une règle de rétention.
+     */
+    private record Expiry(LocalDateTime expiresAt, String folder, String emailId) {
+    }
+
+    /**
+     * Emails d'un utilisateur triés par date d'expiration.
+     */
+    private static class ExpiryQueue {
+        private final TreeSet<Expiry> byDate = new TreeSet<>(Comparator
+                .comparing(Expiry::expiresAt)
+                .thenComparing(Expiry::folder)
+                .thenComparing(Expiry::emailId));
+        private final Map<String, Expiry> byId = new HashMap<>();
+
+        synchronized void add(String folder, String emailId, LocalDateTime expiresAt) {
+            remove(folder, emailId);
+            Expiry expiry = new Expiry(expiresAt, folder, emailId);
+            byDate.add(expiry);
+            byId.put(folder + "/" + emailId, expiry);
+        }
+
+        synchronized void remove(String folder, String emailId) {
+            Expiry previous = byId.remove(folder + "/" + emailId);
+            if (previous != null) {
+                byDate.remove(previous);
+            }
+        }
+
+        /**
+         * Remet en file un email dont la suppression a échoué, sauf s'il a été retiré ou
+         * replanifié depuis.
+         */
+        synchronized void restore(Expiry expiry) {
+            if (byId.putIfAbsent(expiry.folder() + "/" + expiry.emailId(), expiry) == null) {
+                byDate.add(expiry);
+            }
+        }
+
+        synchronized Expiry pollExpired(LocalDateTime now) {
+            if (byDate.isEmpty() || byDate.first().expiresAt().isAfter(now)) {
+                return null;
+            }
+            Expiry expiry = byDate.pollFirst();
+            byId.remove(expiry.folder() + "/" + expiry.emailId());
+            return expiry;
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package fr.uge.webmail.service;
+
+import fr.uge.webmail.model.Email;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Index plein texte des emails d'un utilisateur (expéditeur, destinataires, sujet et contenu).
+ *
+ * Les textes sont découpés en mots, mis en minuscules et débarrassés de leurs accents
+ * ("Élève" et "eleve" sont équivalents). Une recherche retourne les emails contenant,
+ * pour chaque mot de la requête, au moins un mot qui commence par celui-ci.
+ *
+ * Sur disque, l'index est composé d'un instantané binaire compact (listes de documents
+ * encodées en deltas) et d'un journal des ajouts et suppressions effectués depuis. Le
+ * journal est rejoué au chargement puis intégré à un nouvel instantané lorsqu'il devient
+ * trop long. L'index n'est chargé en mémoire qu'à la première recherche.
+ */
+class SearchIndex {
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_DROP_FOLDER = 3;
+    private static final byte OP_MOVE = 4;
+
+    // Nombre minimal d'opérations dans le journal avant de refaire un instantané
+    private static final int MIN_COMPACTION_THRESHOLD = 1000;
+
+    private static final int MIN_TOKEN_LENGTH = 2;
+    private static final int MAX_TOKEN_LENGTH = 64;
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private final Path snapshotFile;
+    private final Path journalFile;
+    private final EmailLoader loader;
+
+    // État en mémoire, valide uniquement si loaded
+    private boolean loaded;
+    private final Map<String, Integer> docNumbers = new HashMap<>();
+    private final List<String> docKeys = new ArrayList<>();
+    private final BitSet deleted = new BitSet();
+    private final TreeMap<String, PostingList> postings = new TreeMap<>();
+    private int journalOps;
+
+    /**
+     * @param loader Relit tous les emails de l'utilisateur lorsque l'index doit être reconstruit
+     */
+    SearchIndex(Path snapshotFile, Path journalFile, EmailLoader loader) {
+        this.snapshotFile = snapshotFile;
+        this.journalFile = journalFile;
+        this.loader = loader;
+    }
+
+    /**
+     * Découpe un texte en mots normalisés (minuscules, sans accents).
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return tokens;
+        }
+        String folded = DIACRITICS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+        for (String token : SEPARATORS.split(folded.toLowerCase(Locale.ROOT))) {
+            if (token.length() >= MIN_TOKEN_LENGTH) {
+                tokens.add(token.length() > MAX_TOKEN_LENGTH ? token.substring(0, MAX_TOKEN_LENGTH) : token);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Retourne les mots indexés d'un email, sans doublons.
+     */
+    static Set<String> terms(Email email) {
+        Set<String> terms = new LinkedHashSet<>();
+        terms.addAll(tokenize(email.getFrom()));
+        for (String recipient : email.getTo()) {
+            terms.addAll(tokenize(recipient));
+        }
+        terms.addAll(tokenize(email.getSubject()));
+        terms.addAll(tokenize(email.getContent()));
+        return terms;
+    }
+
+    /**
+     * Indexe (ou réindexe) un email.
+     */
+    synchronized void add(String folder, Email email) throws IOException {
+        add(folder, email.getId(), terms(email));
+    }
+
+    /**
+     * Indexe (ou réindexe) un email dont les mots sont déjà extraits
+     * (copies d'un même message dans plusieurs dossiers).
+     */
+    synchronized void add(String folder, String emailId, Set<String> terms) throws IOException {
+        String key = key(folder, emailId);
+        if (loaded) {
+            apply(key, terms);
+        }
+        appendToJournal(out -> {
+            out.writeByte(OP_ADD);
+            out.writeUTF(key);
+            writeVarInt(out, terms.size());
+            for (String term : terms) {
+                out.writeUTF(term);
+            }
+        });
+    }
+
+    /**
+     * Retire un email de l'index.
+     */
+    synchronized void remove(String folder, String emailId) throws IOException {
+        String key = key(folder, emailId);
+        if (loaded) {
+            unapply(key);
+        }
+        appendToJournal(out -> {
+            out.writeByte(OP_REMOVE);
+            out.writeUTF(key);
+        });
+    }
+
+    /**
+     * Déplace un email indexé vers un autre dossier, sans relire son contenu.
+     */
+    synchronized void move(String fromFolder, String toFolder, String emailId) throws IOException {
+        String fromKey = key(fromFolder, emailId);
+        String toKey = key(toFolder, emailId);
+        if (loaded) {
+            rename(fromKey, toKey);
+        }
+        appendToJournal(out -> {
+            out.writeByte(OP_MOVE);
+            out.writeUTF(fromKey);
+            out.writeUTF(toKey);
+        });
+    }
+
+    /**
+     * Remplace tout le contenu indexé d'un dossier (après reconstruction de son index d'en-têtes).
+     */
+    synchronized void replaceFolder(String folder, Collection<Email> emails) throws IOException {
+        if (loaded) {
+            dropFolder(folder);
+        }
+        appendToJournal(out -> {
+            out.writeByte(OP_DROP_FOLDER);
+            out.writeUTF(folder);
+        });
+        for (Email email : emails) {
+            add(folder, email);
+        }
+    }
+
+    /**
+     * Reconstruit l'index à partir de tous les emails de l'utilisateur.
+     */
+    synchronized void rebuild() throws IOException {
+        Map<String, List<Email>> emailsByFolder = loader.loadAll();
+        clear();
+        emailsByFolder.forEach((folder, emails) -> {
+            for (Email email : emails) {
+                apply(key(folder, email.getId()), terms(email));
+            }
+        });
+        loaded = true;
+        writeSnapshot();
+    }
+
+    /**
+     * Recherche les emails d'un dossier correspondant à une requête.
+     * @return Les identifiants des emails trouvés
+     */
+    synchronized Set<String> search(String folder, String query) throws IOException {
+        ensureLoaded();
+
+        List<String> queryTokens = tokenize(query);
+        Set<String> results = new HashSet<>();
+        if (queryTokens.isEmpty()) {
+            return results;
+        }
+
+        BitSet matches = null;
+        for (String token : queryTokens) {
+            BitSet tokenMatches = new BitSet(docKeys.size());
+            // Tous les mots commençant par le préfixe recherché
+            for (PostingList list : postings.subMap(token, true, token + Character.MAX_VALUE, false).values()) {
+                list.addTo(tokenMatches);
+            }
+            if (matches == null) {
+                matches = tokenMatches;
+            } else {
+                matches.and(tokenMatches);
+            }
+            if (matches.isEmpty()) {
+                return results;
+            }
+        }
+        matches.andNot(deleted);
+
+        String prefix = folder + "/";
+        for (int doc = matches.nextSetBit(0); doc >= 0; doc = matches.nextSetBit(doc + 1)) {
+            String key = docKeys.get(doc);
+            if (key.startsWith(prefix)) {
+                results.add(key.substring(prefix.length()));
+            }
+        }
+        return results;
+    }
+
+    // ==================== État en mémoire ====================
+
+    private static String key(String folder, String emailId) {
+        return folder + "/" + emailId;
+    }
+
+    private void apply(String key, Collection<String> terms) {
+        unapply(key);
+        int doc = docKeys.size();
+        docKeys.add(key);
+        docNumbers.put(key, doc);
+        for (String term : terms) {
+            postings.computeIfAbsent(term, t -> new PostingList()).add(doc);
+        }
+    }
+
+    private void unapply(String key) {
+        Integer doc = docNumbers.remove(key);
+        if (doc != null) {
+            deleted.set(doc);
+        }
+    }
+
+    private void rename(String fromKey, String toKey) {
+        Integer doc = docNumbers.remove(fromKey);
+        if (doc != null) {
+            unapply(toKey);
+            docKeys.set(doc, toKey);
+            docNumbers.put(toKey, doc);
+        }
+    }
+
+    private void dropFolder(String folder) {
+        String prefix = folder + "/";
+        docNumbers.entrySet().removeIf(entry -> {
+            if (entry.getKey().startsWith(prefix)) {
+                deleted.set(entry.getValue());
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private void clear() {
+        docNumbers.clear();
+        docKeys.clear();
+        deleted.clear();
+        postings.clear();
+        journalOps = 0;
+    }
+
+    // ==================== Persistance ====================
+
+    private void ensureLoaded() throws IOException {
+        if (loaded) {
+            return;
+        }
+        if (!Files.exists(snapshotFile)) {
+            rebuild();
+            return;
+        }
+        clear();
+        try {
+            try (DataInputStream in = open(snapshotFile)) {
+                readSnapshot(in);
+            }
+            if (Files.exists(journalFile)) {
+                try (DataInputStream in = open(journalFile)) {
+                    replayJournal(in);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Index de recherche illisible, reconstruction : " + e.getMessage());
+            rebuild();
+            return;
+        }
+        loaded = true;
+        compactIfNeeded();
+    }
+
+    private void readSnapshot(DataInputStream in) throws IOException {
+        if (in.readInt() != SNAPSHOT_VERSION) {
+            throw new IOException("Version d'index de recherche inconnue : " + snapshotFile);
+        }
+        int docCount = readVarInt(in);
+        for (int doc = 0; doc < docCount; doc++) {
+            String key = in.readUTF();
+            docKeys.add(key);
+            docNumbers.put(key, doc);
+        }
+        int termCount = readVarInt(in);
+        for (int i = 0; i < termCount; i++) {
+            String term = in.readUTF();
+            int size = readVarInt(in);
+            PostingList list = new PostingList(size);
+            int doc = 0;
+            for (int j = 0; j < size; j++) {
+                doc += readVarInt(in);
+                list.add(doc);
+            }
+            postings.put(term, list);
+        }
+    }
+
+    private void replayJournal(DataInputStream in) throws IOException {
+        while (true) {
+            int op;
+            try {
+                op = in.readByte();
+                switch (op) {
+                    case OP_ADD -> {
+                        String key = in.readUTF();
+                        int count = readVarInt(in);
+                        String[] terms = new String[count];
+                        for (int i = 0; i < count; i++) {
+                            terms[i] = in.readUTF();
+                        }
+                        apply(key, Arrays.asList(terms));
+                    }
+                    case OP_REMOVE -> unapply(in.readUTF());
+                    case OP_DROP_FOLDER -> dropFolder(in.readUTF());
+                    case OP_MOVE -> rename(in.readUTF(), in.readUTF());
+                    default -> throw new IOException("Opération inconnue dans " + journalFile);
+                }
+            } catch (EOFException e) {
+                // Fin du journal (éventuellement une dernière opération tronquée par un crash)
+                return;
+            }
+            journalOps++;
+        }
+    }
+
+    private void appendToJournal(JournalWriter writer) throws IOException {
+        // Sans instantané, le journal n'a pas de sens : la prochaine recherche reconstruira tout
+        if (!loaded && !Files.exists(snapshotFile)) {
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(journalFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+            writer.write(out);
+        }
+        journalOps++;
+        if (loaded) {
+            compactIfNeeded();
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (journalOps > Math.max(MIN_COMPACTION_THRESHOLD, docNumbers.size() / 2)) {
+            writeSnapshot();
+        }
+    }
+
+    /**
+     * Écrit un instantané des documents vivants (renumérotés) et vide le journal.
+     */
+    private void writeSnapshot() throws IOException {
+        // Renumérotation dense des documents non supprimés
+        int[] renumber = new int[docKeys.size()];
+        List<String> liveKeys = new ArrayList<>(docNumbers.size());
+        for (int doc = 0; doc < docKeys.size(); doc++) {
+            if (deleted.get(doc)) {
+                renumber[doc] = -1;
+            } else {
+                renumber[doc] = liveKeys.size();
+                liveKeys.add(docKeys.get(doc));
+            }
+        }
+
+        TreeMap<String, PostingList> livePostings = new TreeMap<>();
+        postings.forEach((term, list) -> {
+            PostingList live = list.renumber(renumber);
+            if (live.size > 0) {
+                livePostings.put(term, live);
+            }
+        });
+
+        Files.createDirectories(snapshotFile.getParent());
+        Path tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeInt(SNAPSHOT_VERSION);
+            writeVarInt(out, liveKeys.size());
+            for (String key : liveKeys) {
+                out.writeUTF(key);
+            }
+            writeVarInt(out, livePostings.size());
+            for (Map.Entry<String, PostingList> entry : livePostings.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+        }
+        Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(journalFile);
+
+        // L'état en mémoire reflète désormais l'instantané
+        docKeys.clear();
+        docKeys.addAll(liveKeys);
+        docNumbers.clear();
+        for (int doc = 0; doc < liveKeys.size(); doc++) {
+            docNumbers.put(liveKeys.get(doc), doc);
+        }
+        deleted.clear();
+        postings.clear();
+        postings.putAll(livePostings);
+        journalOps = 0;
+    }
+
+    private static DataInputStream open(Path file) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        return new DataInputStream(new BufferedInputStream(in));
+    }
+
+    private static void writeVarInt(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Entier mal encodé dans l'index de recherche");
+    }
+
+    /**
+     * Source des emails utilisée pour reconstruire l'index.
+     */
+    @FunctionalInterface
+    interface EmailLoader {
+        /**
+         * @return Les emails de l'utilisateur, par dossier
+         */
+        Map<String, List<Email>> loadAll() throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface JournalWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Liste croissante de numéros de documents.
+     */
+    private static class PostingList {
+        private int[] docs;
+        private int size;
+
+        PostingList() {
+            this(4);
+        }
+
+        PostingList(int capacity) {
+            this.docs = new int[Math.max(capacity, 1)];
+        }
+
+        void add(int doc) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            docs[size++] = doc;
+        }
+
+        void addTo(BitSet set) {
+            for (int i = 0; i < size; i++) {
+                set.set(docs[i]);
+            }
+        }
+
+        PostingList renumber(int[] mapping) {
+            PostingList result = new PostingList(size);
+            for (int i = 0; i < size; i++) {
+                int doc = mapping[docs[i]];
+                if (doc >= 0) {
+                    result.add(doc);
+                }
+            }
+            return result;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            writeVarInt(out, size);
+            int previous = 0;
+            for (int i = 0; i < size; i++) {
+                writeVarInt(out, docs[i] - previous);
+                previous = docs[i];
+            }
+        }
+    }
+}
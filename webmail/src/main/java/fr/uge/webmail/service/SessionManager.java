@@ -0,0 +1,50 @@
+package fr.uge.webmail.service;
+
+import java.util.Optional;
+
+/**
+ * Gestion des sessions des utilisateurs connectés.
+ */
+public interface SessionManager {
+
+    /**
+     * Ouvre une session.
+     * @return Le token à transmettre au navigateur
+     */
+    String create(String username, int durationMinutes);
+
+    /**
+     * Retourne l'utilisateur d'une session valide (ni expirée, ni fermée).
+     */
+    Optional<String> validate(String token);
+
+    /**
+     * Ferme une session.
+     */
+    void invalidate(String token);
+
+    /**
+     * Oublie les sessions expirées.
+     * @return Le nombre de sessions (ou révocations) expirées lors de ce passage
+     */
+    int cleanup();
+
+    /**
+     * Retourne les compteurs des sessions depuis le démarrage.
+     */
+    Stats stats();
+
+    /**
+     * Compteurs des sessions.
+     * @param tracked Entrées gardées en mémoire : sessions actives, ou tokens révoqués pour
+     *                les sessions signées
+     * @param expired Entrées retirées à leur expiration
+     */
+    record Stats(int tracked, long created, long expired, long invalidated) {
+        @Override
+        public String toString() {
+            return String.format("%d en mémoire, %d ouvertes, %d expirées, %d fermées",
+                    tracked, created, expired, invalidated);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package fr.uge.webmail.service;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Sessions sans état côté serveur : le token porte l'utilisateur et l'expiration, signés
+ * par HMAC-SHA256.
+ *
+ * Format : {@code <clé>.<utilisateur>.<expiration>.<nonce>.<signature>}, l'utilisateur, le
+ * nonce et la signature en base64url, l'expiration en secondes depuis l'epoch. Valider un
+ * token ne demande qu'un calcul de signature : toute instance de l'application qui partage
+ * les clés accepte les tokens des autres, et les sessions survivent aux redémarrages.
+ *
+ * Plusieurs clés peuvent être connues, désignées par un identifiant : les tokens sont signés
+ * avec la clé courante et acceptés avec n'importe laquelle. Pour changer de clé, on ajoute la
+ * nouvelle clé et on la désigne comme courante ; l'ancienne est retirée une fois les tokens
+ * qu'elle a signés expirés.
+ *
+ * La déconnexion ajoute le nonce du token à une liste de révocation, propre à l'instance et
+ * conservée jusqu'à l'expiration du token.
+ */
+public class SignedSessionManager implements SessionManager {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    // Taille minimale d'une clé (celle d'un bloc de SHA-256)
+    private static final int MIN_KEY_LENGTH = 32;
+
+    private static final int NONCE_LENGTH = 12;
+
+    private static final Pattern KEY_ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]+");
+
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final String currentKeyId;
+
+    // Calcul de signature par clé, un par thread (Mac n'est pas thread-safe)
+    private final Map<String, ThreadLocal<Mac>> macs = new HashMap<>();
+
+    // Tokens révoqués : nonce -> expiration (secondes)
+    private final Map<String, Long> revoked = new ConcurrentHashMap<>();
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder invalidated = new LongAdder();
+
+    /**
+     * @param keys Clés connues, par identifiant
+     * @param currentKeyId Identifiant de la clé qui signe les nouveaux tokens
+     * @throws IllegalArgumentException si une clé est trop courte ou la clé courante inconnue
+     */
+    public SignedSessionManager(Map<String, byte[]> keys, String currentKeyId) {
+        if (!keys.containsKey(currentKeyId)) {
+            throw new IllegalArgumentException("Clé de signature des sessions inconnue : " + currentKeyId);
+        }
+        for (Map.Entry<String, byte[]> entry : keys.entrySet()) {
+            if (!KEY_ID_PATTERN.matcher(entry.getKey()).matches()) {
+                throw new IllegalArgumentException("Identifiant de clé invalide : " + entry.getKey());
+            }
+            if (entry.getValue().length < MIN_KEY_LENGTH) {
+                throw new IllegalArgumentException("Clé de signature trop courte (" + MIN_KEY_LENGTH + " octets minimum) : " + entry.getKey());
+            }
+            SecretKeySpec key = new SecretKeySpec(entry.getValue().clone(), ALGORITHM);
+            macs.put(entry.getKey(), ThreadLocal.withInitial(() -> {
+                try {
+                    Mac mac = Mac.getInstance(ALGORITHM);
+                    mac.init(key);
+                    return mac;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(ALGORITHM + " indisponible", e);
+                }
+            }));
+        }
+        this.currentKeyId = currentKeyId;
+    }
+
+    /**
+     * Crée un gestionnaire avec une clé aléatoire : les tokens ne sont valables que pour
+     * cette instance, jusqu'à son arrêt.
+     */
+    public static SignedSessionManager withRandomKey() {
+        byte[] key = new byte[MIN_KEY_LENGTH];
+        SECURE_RANDOM.nextBytes(key);
+        return new SignedSessionManager(Map.of("local", key), "local");
+    }
+
+    @Override
+    public String create(String username, int durationMinutes) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        SECURE_RANDOM.nextBytes(nonce);
+        long expiry = System.currentTimeMillis() / 1000 + durationMinutes * 60L;
+        created.increment();
+        String payload = currentKeyId
+                + '.' + ENCODER.encodeToString(username.getBytes(StandardCharsets.UTF_8))
+                + '.' + expiry
+                + '.' + ENCODER.encodeToString(nonce);
+        return payload + '.' + ENCODER.encodeToString(sign(currentKeyId, payload));
+    }
+
+    @Override
+    public Optional<String> validate(String token) {
+        if (token == null) {
+            return Optional.empty();
+        }
+        int keyEnd = token.indexOf('.');
+        int userEnd = keyEnd < 0 ? -1 : token.indexOf('.', keyEnd + 1);
+        int expiryEnd = userEnd < 0 ? -1 : token.indexOf('.', userEnd + 1);
+        int nonceEnd = expiryEnd < 0 ? -1 : token.indexOf('.', expiryEnd + 1);
+        if (nonceEnd < 0 || token.indexOf('.', nonceEnd + 1) >= 0) {
+            return Optional.empty();
+        }
+
+        String keyId = token.substring(0, keyEnd);
+        if (!macs.containsKey(keyId)) {
+            return Optional.empty();
+        }
+        try {
+            // Signature vérifiée avant toute interprétation du contenu, en temps constant
+            byte[] signature = DECODER.decode(token.substring(nonceEnd + 1));
+            if (!MessageDigest.isEqual(signature, sign(keyId, token.substring(0, nonceEnd)))) {
+                return Optional.empty();
+            }
+            long expiry = Long.parseLong(token, userEnd + 1, expiryEnd, 10);
+            if (System.currentTimeMillis() / 1000 >= expiry) {
+                return Optional.empty();
+            }
+            if (!revoked.isEmpty() && revoked.containsKey(token.substring(expiryEnd + 1, nonceEnd))) {
+                return Optional.empty();
+            }
+            return Optional.of(new String(DECODER.decode(token.substring(keyEnd + 1, userEnd)), StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            // Base64 ou nombre invalide
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void invalidate(String token) {
+        if (token == null || validate(token).isEmpty()) {
+            return;
+        }
+        int nonceEnd = token.lastIndexOf('.');
+        int expiryEnd = token.lastIndexOf('.', nonceEnd - 1);
+        int userEnd = token.lastIndexOf('.', expiryEnd - 1);
+        long expiry = Long.parseLong(token, userEnd + 1, expiryEnd, 10);
+        if (revoked.put(token.substring(expiryEnd + 1, nonceEnd), expiry) == null) {
+            invalidated.increment();
+        }
+    }
+
+    @Override
+    public int cleanup() {
+        long now = System.currentTimeMillis() / 1000;
+        int before = revoked.size();
+        revoked.values().removeIf(expiry -> expiry <= now);
+        int count = Math.max(0, before - revoked.size());
+        expired.add(count);
+        return count;
+    }
+
+    @Override
+    public Stats stats() {
+        return new Stats(revoked.size(), created.sum(), expired.sum(), invalidated.sum());
+    }
+
+    private byte[] sign(String keyId, String payload) {
+        Mac mac = macs.get(keyId).get();
+        return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,153 @@
+package fr.uge.webmail.service;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Comptabilité de l'espace disque d'un utilisateur.
+ *
+ * Le registre est ajusté à chaque écriture ou suppression d'email, ce qui rend la
+ * lecture de l'espace utilisé immédiate. Les pièces jointes et les contenus partagés sont
+ * comptés une seule fois par utilisateur, quel que soit le nombre d'emails qui les référencent.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+class StorageLedger {
+
+    @JsonProperty("mailboxBytes")
+    private long mailboxBytes;
+
+    @JsonProperty("attachmentsBytes")
+    private long attachmentsBytes;
+
+    // Pièces jointes référencées : sha256 -> taille et nombre de références
+    @JsonProperty("attachments")
+    private Map<String, AttachmentUsage> attachments = new HashMap<>();
+
+    private Path ledgerFile;
+    private ObjectMapper objectMapper;
+
+    /**
+     * Constructeur par défaut pour Jackson.
+     */
+    StorageLedger() {
+    }
+
+    /**
+     * Charge le registre depuis son fichier.
+     * @return Le registre, ou vide si le fichier est absent ou illisible
+     */
+    static Optional<StorageLedger> load(Path ledgerFile, ObjectMapper objectMapper) {
+        if (!Files.exists(ledgerFile)) {
+            return Optional.empty();
+        }
+        try {
+            StorageLedger ledger = objectMapper.readValue(ledgerFile.toFile(), StorageLedger.class);
+            ledger.bind(ledgerFile, objectMapper);
+            return Optional.of(ledger);
+        } catch (IOException e) {
+            System.err.println("Registre de stockage illisible " + ledgerFile + ": " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Crée un registre vide associé à un fichier (utilisé lors d'un recalcul complet).
+     */
+    static StorageLedger create(Path ledgerFile, ObjectMapper objectMapper) {
+        StorageLedger ledger = new StorageLedger();
+        ledger.bind(ledgerFile, objectMapper);
+        return ledger;
+    }
+
+    private void bind(Path ledgerFile, ObjectMapper objectMapper) {
+        this.ledgerFile = ledgerFile;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Retourne l'espace total utilisé (emails et pièces jointes uniques).
+     */
+    synchronized long total() {
+        return mailboxBytes + attachmentsBytes;
+    }
+
+    /**
+     * Vérifie si une pièce jointe est déjà comptée pour cet utilisateur.
+     */
+    synchronized boolean references(String sha256) {
+        return attachments.containsKey(sha256);
+    }
+
+    /**
+     * Comptabilise un fichier email et les pièces jointes qu'il référence.
+     */
+    synchronized void add(long fileSize, Map<String, Long> attachmentSizes) {
+        mailboxBytes += fileSize;
+        attachmentSizes.forEach((sha256, size) -> {
+            AttachmentUsage usage = attachments.computeIfAbsent(sha256, h -> new AttachmentUsage(size, 0));
+            if (usage.refs == 0) {
+                attachmentsBytes += usage.size;
+            }
+            usage.refs++;
+        });
+    }
+
+    /**
+     * Retire un fichier email et libère les références de ses pièces jointes.
+     */
+    synchronized void remove(long fileSize, Collection<String> attachmentHashes) {
+        mailboxBytes = Math.max(0, mailboxBytes - fileSize);
+        // Une pièce jointe présente deux fois dans un même email n'a été comptée qu'une fois
+        for (String sha256 : new HashSet<>(attachmentHashes)) {
+            AttachmentUsage usage = attachments.get(sha256);
+            if (usage == null) {
+                continue;
+            }
+            usage.refs--;
+            if (usage.refs <= 0) {
+                attachments.remove(sha256);
+                attachmentsBytes = Math.max(0, attachmentsBytes - usage.size);
+            }
+        }
+    }
+
+    /**
+     * Écrit le registre sur disque.
+     */
+    synchronized void save() throws IOException {
+        Path tempFile = ledgerFile.resolveSibling(ledgerFile.getFileName() + ".tmp");
+        objectMapper.writeValue(tempFile.toFile(), this);
+        Files.move(tempFile, ledgerFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Utilisation d'une pièce jointe par l'utilisateur.
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static class AttachmentUsage {
+        @JsonProperty("size")
+        long size;
+
+        @JsonProperty("refs")
+        int refs;
+
+        AttachmentUsage() {
+        }
+
+        AttachmentUsage(long size, int refs) {
+            this.size = size;
+            this.refs = refs;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package fr.uge.webmail.service;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Requête adressée au service de stockage par le bus d'événements : une ou plusieurs
+ * opérations, exécutées l'une après l'autre par le même worker.
+ *
+ * La requête circule par référence ({@link fr.uge.webmail.util.LocalCodec}) : le worker y
+ * dépose le résultat ou l'exception de chaque opération, puis la renvoie en réponse.
+ * Une requête abandonnée par l'appelant avant d'être prise par un worker n'est pas exécutée.
+ */
+final class StorageRequest {
+
+    private final List<AsyncMailboxService.Operation<?>> operations;
+    private final Object[] results;
+    private final Throwable[] failures;
+    private final StorageStats stats;
+    private final long sentAt = System.nanoTime();
+
+    // Prise par un worker, ou abandonnée : l'un exclut l'autre
+    private final AtomicBoolean claimed = new AtomicBoolean();
+    private int executed;
+
+    StorageRequest(List<AsyncMailboxService.Operation<?>> operations, StorageStats stats) {
+        this.operations = List.copyOf(operations);
+        this.results = new Object[operations.size()];
+        this.failures = new Throwable[operations.size()];
+        this.stats = stats;
+        stats.sent(operations.size());
+    }
+
+    /**
+     * Exécute les opérations sur le worker auquel la requête est confiée, sauf si l'appelant
+     * l'a abandonnée. Toute erreur, y compris une {@link Error}, ne fait échouer que son opération.
+     */
+    void run(MailboxService mailboxService) {
+        if (!claimed.compareAndSet(false, true)) {
+            return;
+        }
+        long startedAt = System.nanoTime();
+        stats.started(startedAt - sentAt);
+        try {
+            for (int i = 0; i < operations.size(); i++) {
+                try {
+                    results[i] = operations.get(i).run(mailboxService);
+                } catch (Throwable e) {
+                    failures[i] = e;
+                }
+                executed = i + 1;
+            }
+        } finally {
+            stats.finished(System.nanoTime() - startedAt);
+        }
+    }
+
+    /**
+     * Fait échouer les opérations qui n'ont pas été exécutées (worker indisponible ou
+     * exécution interrompue). À n'appeler qu'une fois {@link #run} terminé ou jamais commencé.
+     */
+    void failRemaining(Throwable cause) {
+        abandon();
+        for (int i = executed; i < operations.size(); i++) {
+            failures[i] = cause;
+        }
+    }
+
+    /**
+     * Abandonne la requête si aucun worker ne l'a encore prise : elle ne sera pas exécutée.
+     * @return false si elle est déjà en cours ou terminée
+     */
+    boolean abandon() {
+        if (!claimed.compareAndSet(false, true)) {
+            return false;
+        }
+        stats.abandoned();
+        return true;
+    }
+
+    int size() {
+        return operations.size();
+    }
+
+    Object result(int index) {
+        return results[index];
+    }
+
+    /**
+     * @return L'exception levée par l'opération, ou null si elle a réussi
+     */
+    Throwable failure(int index) {
+        return failures[index];
+    }
+}
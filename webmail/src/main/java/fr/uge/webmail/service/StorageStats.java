@@ -0,0 +1,79 @@
+package fr.uge.webmail.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compteurs des requêtes adressées au service de stockage par le bus d'événements.
+ *
+ * Une requête envoyée attend d'abord un worker libre du pool de stockage, puis s'exécute ;
+ * côté serveur HTTP, elle reste en attente de réponse pendant ces deux étapes.
+ */
+public class StorageStats {
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder operations = new LongAdder();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder runNanos = new LongAdder();
+
+    void sent(int operationCount) {
+        requests.increment();
+        operations.add(operationCount);
+        queued.incrementAndGet();
+    }
+
+    void started(long waitedNanos) {
+        queued.decrementAndGet();
+        running.incrementAndGet();
+        waitNanos.add(waitedNanos);
+    }
+
+    /**
+     * Requête abandonnée avant d'être prise par un worker (service indisponible, délai dépassé).
+     */
+    void abandoned() {
+        queued.decrementAndGet();
+    }
+
+    void finished(long ranNanos) {
+        running.decrementAndGet();
+        runNanos.add(ranNanos);
+    }
+
+    /**
+     * Retourne l'état courant des compteurs.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(requests.sum(), operations.sum(), queued.get(), running.get(),
+                waitNanos.sum(), runNanos.sum());
+    }
+
+    /**
+     * État des compteurs.
+     * @param queued Requêtes en file côté stockage, pas encore prises par un worker
+     * @param running Requêtes en cours d'exécution
+     */
+    public record Snapshot(long requests, long operations, int queued, int running, long waitNanos, long runNanos) {
+
+        /**
+         * Requêtes envoyées par les serveurs HTTP et UDP, en attente de réponse.
+         */
+        public int pending() {
+            return queued + running;
+        }
+
+        @Override
+        public String toString() {
+            long started = Math.max(1, requests - queued);
+            long finished = Math.max(1, requests - pending());
+            return String.format("%d requêtes (%d opérations), %d en attente de réponse dont %d en file, "
+                            + "attente moyenne %.2f ms, exécution moyenne %.2f ms",
+                    requests, operations, pending(), queued,
+                    (double) waitNanos / started / TimeUnit.MILLISECONDS.toNanos(1),
+                    (double) runNanos / finished / TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package fr.uge.webmail.service;
 
 import fr.uge.webmail.model.Email;
+import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import io.vertx.core.datagram.DatagramSocket;
 
@@ -17,7 +18,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class UdpService {
     
     private final Vertx vertx;
-    private final MailboxService mailboxService;
+    private final AsyncMailboxService mailboxService;
+    private final DeliveryService deliveryService;
     private final int port;
     
     // Limite de messages par IP par jour
@@ -28,9 +30,10 @@ public class UdpService {
     
     private DatagramSocket socket;
     
-    public UdpService(Vertx vertx, MailboxService mailboxService, int port) {
+    public UdpService(Vertx vertx, AsyncMailboxService mailboxService, DeliveryService deliveryService, int port) {
         this.vertx = vertx;
         this.mailboxService = mailboxService;
+        this.deliveryService = deliveryService;
         this.port = port;
     }
     
@@ -81,53 +84,53 @@ public class UdpService {
             return;
         }
         
-        try {
-            // Parser le message
-            String[] lines = message.split("\n", 3);
-            
-            if (lines.length < 3) {
-                sendResponse(senderAddress, senderPort, 
-                    "ERREUR: Format invalide. Attendu: destinataire\\nsujet\\ncontenu");
-                return;
-            }
-            
-            String recipient = lines[0].trim();
-            String subject = lines[1].trim();
-            String content = lines[2];
-            
-            // Vérifier que le destinataire existe
-            if (!mailboxService.mailboxExists(recipient)) {
-                sendResponse(senderAddress, senderPort, 
-                    "ERREUR: Destinataire '" + recipient + "' non trouvé.");
-                return;
-            }
-            
-            // Créer l'email anonyme
-            Email email = new Email();
-            email.setFrom("anonymous@" + senderAddress + ":" + senderPort);
-            email.setTo(List.of(recipient));
-            email.setSubject(subject);
-            email.setContent(content);
-            email.setDate(LocalDateTime.now());
-            email.addTag("anonymous");
-            
-            // Sauvegarder dans l'inbox du destinataire
-            mailboxService.saveEmail(recipient, MailboxService.INBOX, email);
-            
-            // Incrémenter le compteur
-            incrementMessageCount(senderAddress);
-            
-            // Envoyer la confirmation
-            sendResponse(senderAddress, senderPort, 
-                "OK: Message envoyé à " + recipient);
-            
-            System.out.println("📨 Message anonyme reçu de " + senderAddress + ":" + senderPort + 
-                " pour " + recipient);
-            
-        } catch (Exception e) {
+        // Parser le message
+        String[] lines = message.split("\n", 3);
+        
+        if (lines.length < 3) {
             sendResponse(senderAddress, senderPort, 
-                "ERREUR: " + e.getMessage());
+                "ERREUR: Format invalide. Attendu: destinataire\\nsujet\\ncontenu");
+            return;
         }
+        
+        String recipient = lines[0].trim();
+        String subject = lines[1].trim();
+        String content = lines[2];
+        
+        // Vérifier que le destinataire existe
+        mailboxService.mailboxExists(recipient)
+            .compose(exists -> {
+                if (!exists) {
+                    sendResponse(senderAddress, senderPort, 
+                        "ERREUR: Destinataire '" + recipient + "' non trouvé.");
+                    return Future.succeededFuture();
+                }
+                
+                // Créer l'email anonyme
+                Email email = new Email();
+                email.setFrom("anonymous@" + senderAddress + ":" + senderPort);
+                email.setTo(List.of(recipient));
+                email.setSubject(subject);
+                email.setContent(content);
+                email.setDate(LocalDateTime.now());
+                email.addTag("anonymous");
+                
+                // Distribuer dans l'inbox du destinataire, par la file d'envoi
+                return deliveryService.submit(email)
+                    .onSuccess(v -> {
+                        // Incrémenter le compteur
+                        incrementMessageCount(senderAddress);
+                        
+                        // Envoyer la confirmation
+                        sendResponse(senderAddress, senderPort, 
+                            "OK: Message envoyé à " + recipient);
+                        
+                        System.out.println("📨 Message anonyme reçu de " + senderAddress + ":" + senderPort + 
+                            " pour " + recipient);
+                    });
+            })
+            .onFailure(err -> sendResponse(senderAddress, senderPort, 
+                "ERREUR: " + err.getMessage()));
     }
     
     /**
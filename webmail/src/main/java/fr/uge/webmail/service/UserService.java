@@ -4,44 +4,199 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import fr.uge.webmail.model.User;
+import fr.uge.webmail.util.AtomicFileWriter;
+import fr.uge.webmail.util.AtomicFileWriter.FileWrite;
 import fr.uge.webmail.util.FileUtils;
 import fr.uge.webmail.util.PasswordUtils;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Service pour gérer les utilisateurs et l'authentification.
+ *
+ * Les fiches utilisateur sont chargées en mémoire au démarrage, sel compris : vérifier
+ * l'existence d'un utilisateur ou un mot de passe ne lit pas le disque. Les modifications
+ * (inscription, changement de mot de passe, récupération) mettent à jour la fiche en mémoire
+ * après son écriture. Les modifications extérieures sont détectées par {@link #startWatching()}.
+ *
+ * La date de dernière connexion change à chaque connexion : elle est conservée en mémoire et
+ * enregistrée par lots ({@link #flushLastLogins()}), périodiquement, à l'arrêt et dès que trop
+ * de fiches sont en attente. Une connexion n'écrit donc rien sur le disque.
  */
-public class UserService {
+public class UserService implements MailboxListener {
     
-    private final Path dataDirectory;
     private final MailboxService mailboxService;
     private final ObjectMapper objectMapper;
+    private final AtomicFileWriter fileWriter;
     
-    // Sessions actives : token -> username
-    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    // Sessions des utilisateurs connectés
+    private final SessionManager sessions;
+    
+    // Fiches utilisateur : username -> contenu de user.json (avec le sel)
+    private final Map<String, byte[]> users = new ConcurrentHashMap<>();
+    
+    // Verrous des modifications de fiches (répartis par nom d'utilisateur)
+    private final Object[] locks = new Object[64];
+    
+    // Dernières connexions pas encore enregistrées : username -> date
+    private final Map<String, LocalDateTime> pendingLastLogins = new ConcurrentHashMap<>();
+    
+    // Nombre de fiches en attente au-delà duquel un enregistrement est demandé
+    private final int maxPendingLastLogins;
+    
+    // Un seul enregistrement des dernières connexions à la fois
+    private final Object flushLock = new Object();
+    
+    // Surveillance des boîtes mail, une par racine de stockage
+    private final List<MailboxWatcher> watchers = new ArrayList<>();
     
     // Fichiers de configuration utilisateur
     private static final String USER_FILE = "user.json";
     private static final String SALT_FILE = "salt.txt";
     
+    // Nombre de fiches écrites ensemble lors de l'enregistrement des dernières connexions
+    private static final int LAST_LOGIN_BATCH_SIZE = 256;
+    
+    public static final int DEFAULT_MAX_PENDING_LAST_LOGINS = 1000;
+    
     // Durées de session par défaut
     public static final int DEFAULT_SESSION_DURATION_MINUTES = 60;
     public static final int EXTENDED_SESSION_DURATION_MINUTES = 24 * 60; // 24 heures
     
-    public UserService(Path dataDirectory, MailboxService mailboxService) {
-        this.dataDirectory = dataDirectory.resolve("mailboxes");
+    public UserService(MailboxService mailboxService) {
+        this(mailboxService, DEFAULT_MAX_PENDING_LAST_LOGINS, new LocalSessionManager());
+    }
+    
+    /**
+     * @param maxPendingLastLogins Nombre de dernières connexions en attente au-delà duquel
+     *                             {@link #isLastLoginFlushNeeded()} demande un enregistrement
+     * @param sessions Gestion des sessions (en mémoire ou par tokens signés)
+     */
+    public UserService(MailboxService mailboxService, int maxPendingLastLogins, SessionManager sessions) {
+        this.sessions = sessions;
+        this.maxPendingLastLogins = Math.max(1, maxPendingLastLogins);
         this.mailboxService = mailboxService;
+        this.fileWriter = mailboxService.getFileWriter();
         this.objectMapper = new ObjectMapper();
         this.objectMapper.registerModule(new JavaTimeModule());
         this.objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
         this.objectMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        
+        try {
+            for (String username : mailboxService.listMailboxes()) {
+                refreshUser(username);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Impossible de charger les utilisateurs", e);
+        }
+        mailboxService.addListener(this);
+    }
+    
+    /**
+     * Surveille les boîtes mail pour prendre en compte les fiches et boîtes modifiées
+     * en dehors de l'application.
+     */
+    public void startWatching() throws IOException {
+        for (Path mailboxDirectory : mailboxService.getMailboxDirectories()) {
+            MailboxWatcher watcher = new MailboxWatcher(mailboxDirectory, Set.of(USER_FILE, SALT_FILE), this::refreshUser, () -> {
+                try {
+                    for (String username : mailboxService.listMailboxes()) {
+                        refreshUser(username);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Erreur lors du rechargement des utilisateurs : " + e.getMessage());
+                }
+            });
+            watchers.add(watcher);
+            watcher.start();
+        }
+    }
+    
+    /**
+     * Arrête la surveillance des boîtes mail.
+     */
+    public void stopWatching() throws IOException {
+        for (MailboxWatcher watcher : watchers) {
+            watcher.close();
+        }
+        watchers.clear();
+    }
+    
+    /**
+     * Relit sur le disque la boîte mail et la fiche d'un utilisateur.
+     */
+    public void refreshUser(String username) {
+        mailboxService.refreshMailbox(username);
+        synchronized (lock(username)) {
+            try {
+                Optional<byte[]> user = readUserFile(username);
+                if (user.isPresent()) {
+                    users.put(username, user.get());
+                } else {
+                    users.remove(username);
+                }
+            } catch (IOException e) {
+                System.err.println("Erreur lors de la lecture de l'utilisateur " + username + " : " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Réécrit la fiche d'un utilisateur dont la boîte mail a changé de racine de stockage :
+     * une fiche enregistrée pendant la copie de la boîte l'a été dans l'ancienne copie.
+     */
+    @Override
+    public void mailboxMoved(String username) {
+        synchronized (lock(username)) {
+            byte[] userBytes = users.get(username);
+            if (userBytes == null) {
+                return;
+            }
+            try {
+                fileWriter.write(mailboxService.getUserDirectory(username).resolve(USER_FILE), userBytes);
+            } catch (IOException e) {
+                System.err.println("Erreur lors de l'enregistrement de l'utilisateur " + username + " : " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Lit la fiche d'un utilisateur sur le disque. Le sel des comptes créés avant son
+     * ajout à user.json est lu dans salt.txt et intégré à la fiche.
+     */
+    private Optional<byte[]> readUserFile(String username) throws IOException {
+        Path userFile = mailboxService.getUserDirectory(username).resolve(USER_FILE);
+        if (!Files.exists(userFile)) {
+            return Optional.empty();
+        }
+        User user = objectMapper.readValue(userFile.toFile(), User.class);
+        Path saltFile = mailboxService.getUserDirectory(username).resolve(SALT_FILE);
+        if (user.getSalt() == null && Files.exists(saltFile)) {
+            user.setSalt(Files.readString(saltFile).trim());
+        }
+        return Optional.of(objectMapper.writeValueAsBytes(user));
+    }
+    
+    private Object lock(String username) {
+        return locks[stripe(username)];
+    }
+    
+    private int stripe(String username) {
+        return Math.floorMod(username.hashCode(), locks.length);
     }
     
     /**
@@ -54,20 +209,12 @@ public class UserService {
             throw new IllegalArgumentException("Nom d'utilisateur invalide. Utilisez uniquement des lettres, chiffres, tirets et underscores (3-32 caractères).");
         }
         
-        // Vérifier si l'utilisateur existe déjà
-        if (userExists(username)) {
-            throw new IllegalArgumentException("Ce nom d'utilisateur est déjà pris.");
-        }
-        
         // Valider le mot de passe
         var validation = PasswordUtils.validatePassword(password);
         if (!validation.isValid()) {
             throw new IllegalArgumentException("Mot de passe non valide : " + validation.getErrorsAsString());
         }
         
-        // Créer la boîte mail
-        mailboxService.createMailbox(username);
-        
         // Générer le sel et le code de récupération
         String salt = PasswordUtils.generateSalt();
         String passwordHash = PasswordUtils.hashPassword(password, salt);
@@ -76,10 +223,16 @@ public class UserService {
         // Créer l'utilisateur
         User user = new User(username, passwordHash, recoveryCode);
         
-        // Sauvegarder les fichiers
-        Path userDir = dataDirectory.resolve(username);
-        Files.writeString(userDir.resolve(SALT_FILE), salt);
-        objectMapper.writeValue(userDir.resolve(USER_FILE).toFile(), user);
+        synchronized (lock(username)) {
+            // Vérifier si l'utilisateur existe déjà
+            if (userExists(username)) {
+                throw new IllegalArgumentException("Ce nom d'utilisateur est déjà pris.");
+            }
+            
+            // Créer la boîte mail et sauvegarder les fichiers
+            mailboxService.createMailbox(username);
+            saveUser(user, salt);
+        }
         
         return recoveryCode;
     }
@@ -88,31 +241,59 @@ public class UserService {
      * Vérifie si un utilisateur existe.
      */
     public boolean userExists(String username) {
-        Path userFile = dataDirectory.resolve(username).resolve(USER_FILE);
-        return Files.exists(userFile);
+        return username != null && users.containsKey(username);
     }
     
     /**
-     * Charge un utilisateur depuis le système de fichiers.
+     * Charge un utilisateur depuis sa fiche en mémoire, avec sa dernière connexion même si
+     * elle n'est pas encore enregistrée.
+     * Chaque appel retourne un nouvel objet, que l'appelant peut modifier.
      */
     public Optional<User> loadUser(String username) throws IOException {
-        Path userFile = dataDirectory.resolve(username).resolve(USER_FILE);
-        if (!Files.exists(userFile)) {
+        byte[] userBytes = username != null ? users.get(username) : null;
+        if (userBytes == null) {
             return Optional.empty();
         }
-        User user = objectMapper.readValue(userFile.toFile(), User.class);
+        User user = objectMapper.readValue(userBytes, User.class);
+        LocalDateTime lastLogin = pendingLastLogins.get(username);
+        if (lastLogin != null) {
+            user.setLastLogin(lastLogin);
+        }
         return Optional.of(user);
     }
     
+    /**
+     * Enregistre atomiquement un utilisateur et son sel, puis met à jour sa fiche en mémoire.
+     * Le sel est enregistré dans user.json avec le hash ; salt.txt est conservé pour les
+     * outils qui le lisent, mais n'est plus consulté pour les comptes qui ont un sel enregistré.
+     * Appelé sous le verrou de l'utilisateur.
+     */
+    private void saveUser(User user, String salt) throws IOException {
+        boolean saltChanged = !salt.equals(user.getSalt());
+        user.setSalt(salt);
+        Path userDir = mailboxService.getUserDirectory(user.getUsername());
+        byte[] userBytes = objectMapper.writeValueAsBytes(user);
+        List<FileWrite> writes = new ArrayList<>(2);
+        writes.add(new FileWrite(userDir.resolve(USER_FILE), userBytes));
+        if (saltChanged) {
+            writes.add(new FileWrite(userDir.resolve(SALT_FILE), salt.getBytes(StandardCharsets.UTF_8)));
+        }
+        fileWriter.writeAll(writes);
+        users.put(user.getUsername(), userBytes);
+        // La dernière connexion en attente a été enregistrée avec la fiche
+        if (user.getLastLogin() != null) {
+            pendingLastLogins.remove(user.getUsername(), user.getLastLogin());
+        }
+    }
+    
     /**
      * Charge le sel d'un utilisateur.
      */
-    private String loadSalt(String username) throws IOException {
-        Path saltFile = dataDirectory.resolve(username).resolve(SALT_FILE);
-        if (!Files.exists(saltFile)) {
-            throw new IOException("Fichier de sel non trouvé pour " + username);
+    private String loadSalt(User user) throws IOException {
+        if (user.getSalt() == null) {
+            throw new IOException("Fichier de sel non trouvé pour " + user.getUsername());
         }
-        return Files.readString(saltFile).trim();
+        return user.getSalt();
     }
     
     /**
@@ -127,19 +308,14 @@ public class UserService {
             }
             
             User user = userOpt.get();
-            String salt = loadSalt(username);
+            String salt = loadSalt(user);
             
             if (PasswordUtils.verifyPassword(password, salt, user.getPasswordHash())) {
-                // Mettre à jour la dernière connexion
-                user.updateLastLogin();
-                objectMapper.writeValue(dataDirectory.resolve(username).resolve(USER_FILE).toFile(), user);
+                // Dernière connexion enregistrée plus tard, avec celles des autres utilisateurs
+                pendingLastLogins.put(username, LocalDateTime.now());
                 
                 // Créer une session
-                String token = PasswordUtils.generateSessionToken();
-                LocalDateTime expiry = LocalDateTime.now().plusMinutes(sessionDurationMinutes);
-                sessions.put(token, new Session(username, expiry));
-                
-                return Optional.of(token);
+                return Optional.of(sessions.create(username, sessionDurationMinutes));
             }
         } catch (IOException e) {
             System.err.println("Erreur d'authentification : " + e.getMessage());
@@ -149,37 +325,100 @@ public class UserService {
     }
     
     /**
-     * Vérifie si une session est valide et retourne le nom d'utilisateur.
+     * Indique si trop de dernières connexions sont en attente d'enregistrement.
      */
-    public Optional<String> validateSession(String token) {
-        if (token == null || token.isEmpty()) {
-            return Optional.empty();
+    public boolean isLastLoginFlushNeeded() {
+        return pendingLastLogins.size() >= maxPendingLastLogins;
+    }
+    
+    /**
+     * Enregistre les dernières connexions en attente, par lots de fiches écrites ensemble
+     * (une seule synchronisation sur disque par lot). Un appel pendant un enregistrement en
+     * cours attend sa fin puis enregistre les connexions arrivées entre-temps.
+     * @return Le nombre de fiches enregistrées
+     */
+    public int flushLastLogins() throws IOException {
+        synchronized (flushLock) {
+            List<String> usernames = new ArrayList<>(pendingLastLogins.keySet());
+            int flushed = 0;
+            for (int i = 0; i < usernames.size(); i += LAST_LOGIN_BATCH_SIZE) {
+                flushed += flushLastLogins(usernames.subList(i, Math.min(usernames.size(), i + LAST_LOGIN_BATCH_SIZE)));
+            }
+            return flushed;
         }
-        
-        Session session = sessions.get(token);
-        if (session == null) {
-            return Optional.empty();
+    }
+    
+    /**
+     * Enregistre les dernières connexions d'un lot d'utilisateurs. Les verrous de tous les
+     * utilisateurs du lot sont pris (dans l'ordre, pour éviter tout interblocage) : aucune
+     * autre modification de ces fiches ne peut s'intercaler entre leur lecture et leur écriture.
+     */
+    private int flushLastLogins(List<String> usernames) throws IOException {
+        int[] stripes = usernames.stream().mapToInt(this::stripe).distinct().sorted().toArray();
+        return withLocks(stripes, 0, () -> {
+            List<FileWrite> writes = new ArrayList<>(usernames.size());
+            Map<String, byte[]> records = new HashMap<>();
+            Map<String, LocalDateTime> saved = new HashMap<>();
+            for (String username : usernames) {
+                LocalDateTime lastLogin = pendingLastLogins.get(username);
+                Optional<User> user = loadUser(username);
+                if (lastLogin == null || user.isEmpty()) {
+                    // Déjà enregistrée avec la fiche, ou utilisateur supprimé
+                    pendingLastLogins.remove(username, lastLogin);
+                    continue;
+                }
+                byte[] userBytes = objectMapper.writeValueAsBytes(user.get());
+                writes.add(new FileWrite(mailboxService.getUserDirectory(username).resolve(USER_FILE), userBytes));
+                records.put(username, userBytes);
+                saved.put(username, lastLogin);
+            }
+            if (!writes.isEmpty()) {
+                fileWriter.writeAll(writes);
+            }
+            users.putAll(records);
+            saved.forEach(pendingLastLogins::remove);
+            return writes.size();
+        });
+    }
+    
+    private int withLocks(int[] stripes, int index, LockedAction action) throws IOException {
+        if (index == stripes.length) {
+            return action.run();
         }
-        
-        if (session.isExpired()) {
-            sessions.remove(token);
-            return Optional.empty();
+        synchronized (locks[stripes[index]]) {
+            return withLocks(stripes, index + 1, action);
         }
-        
-        return Optional.of(session.username());
+    }
+    
+    @FunctionalInterface
+    private interface LockedAction {
+        int run() throws IOException;
+    }
+    
+    /**
+     * Vérifie si une session est valide et retourne le nom d'utilisateur.
+     */
+    public Optional<String> validateSession(String token) {
+        return sessions.validate(token);
     }
     
     /**
      * Déconnecte un utilisateur (supprime la session).
      */
     public void logout(String token) {
-        sessions.remove(token);
+        sessions.invalidate(token);
     }
     
     /**
      * Change le mot de passe d'un utilisateur.
      */
     public void changePassword(String username, String oldPassword, String newPassword) throws IOException {
+        synchronized (lock(username)) {
+            updatePassword(username, oldPassword, newPassword);
+        }
+    }
+    
+    private void updatePassword(String username, String oldPassword, String newPassword) throws IOException {
         // Vérifier l'ancien mot de passe
         Optional<User> userOpt = loadUser(username);
         if (userOpt.isEmpty()) {
@@ -187,7 +426,7 @@ public class UserService {
         }
         
         User user = userOpt.get();
-        String salt = loadSalt(username);
+        String salt = loadSalt(user);
         
         if (!PasswordUtils.verifyPassword(oldPassword, salt, user.getPasswordHash())) {
             throw new IllegalArgumentException("Ancien mot de passe incorrect");
@@ -207,15 +446,19 @@ public class UserService {
         user.setPasswordHash(newPasswordHash);
         
         // Sauvegarder les modifications
-        Path userDir = dataDirectory.resolve(username);
-        Files.writeString(userDir.resolve(SALT_FILE), newSalt);
-        objectMapper.writeValue(userDir.resolve(USER_FILE).toFile(), user);
+        saveUser(user, newSalt);
     }
     
     /**
      * Réinitialise le mot de passe avec le code de récupération.
      */
     public void resetPasswordWithRecoveryCode(String username, String recoveryCode, String newPassword) throws IOException {
+        synchronized (lock(username)) {
+            resetPassword(username, recoveryCode, newPassword);
+        }
+    }
+    
+    private void resetPassword(String username, String recoveryCode, String newPassword) throws IOException {
         Optional<User> userOpt = loadUser(username);
         if (userOpt.isEmpty()) {
             throw new IllegalArgumentException("Utilisateur non trouvé");
@@ -246,24 +489,21 @@ public class UserService {
         user.setRecoveryCode(newRecoveryCode);
         
         // Sauvegarder les modifications
-        Path userDir = dataDirectory.resolve(username);
-        Files.writeString(userDir.resolve(SALT_FILE), newSalt);
-        objectMapper.writeValue(userDir.resolve(USER_FILE).toFile(), user);
+        saveUser(user, newSalt);
     }
     
     /**
      * Nettoie les sessions expirées.
+     * @return Le nombre de sessions expirées lors de ce passage
      */
-    public void cleanupExpiredSessions() {
-        sessions.entrySet().removeIf(entry -> entry.getValue().isExpired());
+    public int cleanupExpiredSessions() {
+        return sessions.cleanup();
     }
     
     /**
-     * Représente une session utilisateur.
+     * Retourne les compteurs des sessions.
      */
-    private record Session(String username, LocalDateTime expiry) {
-        boolean isExpired() {
-            return LocalDateTime.now().isAfter(expiry);
-        }
+    public SessionManager.Stats getSessionStats() {
+        return sessions.stats();
     }
 }
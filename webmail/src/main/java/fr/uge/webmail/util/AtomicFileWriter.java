@@ -0,0 +1,540 @@
+package fr.uge.webmail.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Écritures atomiques de fichiers : le contenu est écrit dans un fichier temporaire du même
+ * répertoire, puis renommé sur le fichier final. Un arrêt brutal laisse l'ancienne ou la
+ * nouvelle version, jamais un fichier tronqué.
+ *
+ * La politique de synchronisation détermine si les écritures survivent à une coupure de courant :
+ * <ul>
+ *   <li>{@link SyncPolicy#NONE} : pas de fsync, le système d'exploitation écrit quand il veut ;</li>
+ *   <li>{@link SyncPolicy#ALWAYS} : fsync du fichier puis du répertoire à chaque écriture ;</li>
+ *   <li>{@link SyncPolicy#GROUP} : les écritures concurrentes sont regroupées. Un seul écrivain
+ *   à la fois synchronise tout le lot en attente ; les écritures qui arrivent pendant ce temps
+ *   forment le lot suivant. Les fichiers du lot sont synchronisés en parallèle, puis renommés,
+ *   puis chaque répertoire concerné est synchronisé une seule fois. Chacun rend la main une fois
+ *   son écriture durable.</li>
+ * </ul>
+ */
+public final class AtomicFileWriter {
+
+    /**
+     * Politique de synchronisation sur disque.
+     */
+    public enum SyncPolicy {
+        NONE, ALWAYS, GROUP;
+
+        /**
+         * Lit une politique depuis la configuration ("none", "always" ou "group").
+         * @throws IllegalArgumentException si la valeur est inconnue
+         */
+        public static SyncPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    // Par défaut, pas d'attente : les lots se forment pendant les synchronisations précédentes
+    public static final long DEFAULT_GROUP_COMMIT_WINDOW_MICROS = 0;
+
+    // Délai après lequel un écrivain en attente vérifie qu'un lot est bien en cours
+    private static final long FOLLOWER_POLL_MS = 10;
+
+    // Synchronisations d'un même lot exécutées en parallèle (threads libérés après une minute d'inactivité)
+    private static final int SYNC_THREADS = 8;
+    private static final ThreadPoolExecutor SYNC_EXECUTOR = new ThreadPoolExecutor(
+            SYNC_THREADS, SYNC_THREADS, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "webmail-fsync");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    static {
+        SYNC_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final SyncPolicy policy;
+    private final long groupCommitWindowMicros;
+
+    // Lots en attente de synchronisation, et présence d'un écrivain qui les traite
+    private final ConcurrentLinkedQueue<Commit> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean committing = new AtomicBoolean();
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong fileSyncs = new AtomicLong();
+    private final AtomicLong directorySyncs = new AtomicLong();
+
+    public AtomicFileWriter(SyncPolicy policy) {
+        this(policy, DEFAULT_GROUP_COMMIT_WINDOW_MICROS);
+    }
+
+    /**
+     * @param groupCommitWindowMicros Attente avant la synchronisation d'un lot (politique GROUP),
+     *                                pour laisser d'autres écritures le rejoindre
+     */
+    public AtomicFileWriter(SyncPolicy policy, long groupCommitWindowMicros) {
+        this.policy = policy;
+        this.groupCommitWindowMicros = groupCommitWindowMicros;
+    }
+
+    public SyncPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Remplace atomiquement le contenu d'un fichier.
+     */
+    public void write(Path target, byte[] data) throws IOException {
+        writeAll(List.of(new FileWrite(target, data)));
+    }
+
+    /**
+     * Remplace atomiquement plusieurs fichiers, renommés dans l'ordre de la liste : après un
+     * arrêt brutal, si un fichier a sa nouvelle version, tous ceux qui le précèdent aussi.
+     */
+    public void writeAll(List<FileWrite> writes) throws IOException {
+        List<Path> tempFiles = new ArrayList<>(writes.size());
+        try {
+            for (FileWrite write : writes) {
+                Path tempFile = write.target().resolveSibling("." + write.target().getFileName() + "." + UUID.randomUUID() + ".tmp");
+                tempFiles.add(tempFile);
+                try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(write.data());
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    if (policy == SyncPolicy.ALWAYS) {
+                        channel.force(true);
+                    }
+                }
+            }
+
+            List<Rename> renames = new ArrayList<>(writes.size());
+            for (int i = 0; i < writes.size(); i++) {
+                renames.add(new Rename(tempFiles.get(i), writes.get(i).target(), true));
+            }
+            commit(renames);
+        } catch (IOException | RuntimeException e) {
+            for (Path tempFile : tempFiles) {
+                Files.deleteIfExists(tempFile);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Déplace atomiquement un fichier (même système de fichiers), en remplaçant la cible.
+     * Le contenu du fichier est synchronisé avant le renommage selon la politique.
+     */
+    public void move(Path source, Path target) throws IOException {
+        if (policy == SyncPolicy.ALWAYS) {
+            sync(source);
+        }
+        commit(List.of(new Rename(source, target, policy == SyncPolicy.GROUP)));
+    }
+
+    /**
+     * Ajoute des données à la fin d'un fichier (créé s'il n'existe pas), puis les rend durables
+     * selon la politique avant de rendre la main. Avec {@link SyncPolicy#GROUP}, la synchronisation
+     * rejoint le lot en cours.
+     */
+    public void append(Path file, byte[] data) throws IOException {
+        appendPending(file, data).await();
+    }
+
+    /**
+     * Ajoute des données à la fin d'un fichier comme {@link #append(Path, byte[])}, sans attendre
+     * leur synchronisation : l'appelant l'attend par {@link PendingSync#await()}, par exemple
+     * après avoir relâché le verrou qui ordonne les ajouts. Avec {@link SyncPolicy#GROUP}, les
+     * ajouts faits en attendant rejoignent le même lot.
+     */
+    public PendingSync appendPending(Path file, byte[] data) throws IOException {
+        boolean created = !Files.exists(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (policy == SyncPolicy.ALWAYS) {
+                channel.force(true);
+            }
+        }
+        if (policy == SyncPolicy.ALWAYS && created) {
+            syncDirectory(file.getParent());
+        } else if (policy == SyncPolicy.GROUP) {
+            Commit commit = new Commit(List.of(file), List.of(), created ? List.of(file.getParent()) : List.of());
+            pending.add(commit);
+            return () -> await(commit);
+        }
+        return () -> { };
+    }
+
+    /**
+     * Copie atomiquement un fichier (même système de fichiers), en remplaçant la cible.
+     * Un lien physique est créé lorsque c'est possible : le contenu n'est alors pas recopié.
+     */
+    public void copy(Path source, Path target) throws IOException {
+        Path tempFile = target.resolveSibling("." + target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            try {
+                Files.createLink(tempFile, source);
+            } catch (UnsupportedOperationException | IOException e) {
+                Files.copy(source, tempFile);
+            }
+            move(tempFile, target);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Copie une arborescence dans un répertoire de préparation, puis la renomme sur sa place
+     * définitive (même système de fichiers que la préparation). Un arrêt brutal laisse au pire
+     * une copie incomplète dans la préparation, jamais à la place définitive. Les fichiers et
+     * répertoires copiés sont synchronisés avant le renommage, sauf avec {@link SyncPolicy#NONE}.
+     * @param staging Répertoire de préparation, qui ne doit pas exister
+     * @param target Place définitive, qui ne doit pas exister
+     */
+    public void copyDirectory(Path source, Path staging, Path target) throws IOException {
+        boolean durable = policy != SyncPolicy.NONE;
+        List<Path> directories = new ArrayList<>();
+        Files.createDirectories(staging.getParent());
+        Files.walkFileTree(source, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                Path copy = staging.resolve(source.relativize(directory).toString());
+                Files.createDirectory(copy);
+                directories.add(copy);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Path copy = staging.resolve(source.relativize(file).toString());
+                Files.copy(file, copy, StandardCopyOption.COPY_ATTRIBUTES);
+                if (durable) {
+                    sync(copy);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (durable) {
+            for (Path directory : directories) {
+                syncDirectory(directory);
+            }
+        }
+        Files.move(staging, target, StandardCopyOption.ATOMIC_MOVE);
+        if (durable) {
+            syncDirectory(staging.getParent());
+            syncDirectory(target.getParent());
+        }
+    }
+
+    /**
+     * Effectue les renommages et, selon la politique, les rend durables.
+     */
+    private void commit(List<Rename> renames) throws IOException {
+        if (policy != SyncPolicy.GROUP) {
+            Set<Path> directories = new LinkedHashSet<>();
+            for (Rename rename : renames) {
+                Files.move(rename.source(), rename.target(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                directories.add(rename.target().getParent());
+                directories.add(rename.source().getParent());
+            }
+            if (policy == SyncPolicy.ALWAYS) {
+                for (Path directory : directories) {
+                    syncDirectory(directory);
+                }
+            }
+            return;
+        }
+
+        commit(new Commit(List.of(), renames, List.of()));
+    }
+
+    /**
+     * Ajoute un lot à la file et attend qu'il soit synchronisé (politique GROUP).
+     */
+    private void commit(Commit commit) throws IOException {
+        pending.add(commit);
+        await(commit);
+    }
+
+    /**
+     * Attend qu'un lot de la file soit synchronisé, en traitant la file si aucun autre
+     * écrivain ne le fait.
+     */
+    private void await(Commit commit) throws IOException {
+        while (!commit.result.isDone()) {
+            if (!tryProcessPending()) {
+                try {
+                    commit.result.get(FOLLOWER_POLL_MS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // Le lot en cours a pu se terminer avant notre ajout : on revérifie
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Écriture interrompue", e);
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+
+        // Une écriture ajoutée juste avant la fin du dernier lot n'a pas été traitée : on s'en charge
+        if (!pending.isEmpty()) {
+            tryProcessPending();
+        }
+
+        try {
+            commit.result.join();
+        } catch (RuntimeException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Traite les lots en attente si aucun autre écrivain ne le fait déjà.
+     * @return false si un autre écrivain est en train de les traiter
+     */
+    private boolean tryProcessPending() {
+        if (!committing.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            processPending();
+        } finally {
+            committing.set(false);
+        }
+        return true;
+    }
+
+    /**
+     * Synchronise les lots en attente : fsync des fichiers en parallèle, renommages, puis fsync
+     * des répertoires concernés (une seule fois par répertoire pour tout le lot).
+     */
+    private void processPending() {
+        while (!pending.isEmpty()) {
+            if (groupCommitWindowMicros > 0) {
+                try {
+                    TimeUnit.MICROSECONDS.sleep(groupCommitWindowMicros);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            List<Commit> batch = new ArrayList<>();
+            Commit next;
+            while ((next = pending.poll()) != null) {
+                batch.add(next);
+            }
+
+            batches.incrementAndGet();
+
+            // Tous les fichiers du lot sont synchronisés en même temps ; un journal partagé
+            // par plusieurs écrivains n'est synchronisé qu'une fois
+            Set<Path> files = new LinkedHashSet<>();
+            for (Commit commit : batch) {
+                files.addAll(commit.filesToSync());
+            }
+            Map<Path, IOException> fileFailures = syncAll(files, this::sync);
+
+            Set<Path> directories = new LinkedHashSet<>();
+            List<Commit> renamed = new ArrayList<>(batch.size());
+            for (Commit commit : batch) {
+                try {
+                    for (Path file : commit.filesToSync()) {
+                        IOException failure = fileFailures.get(file);
+                        if (failure != null) {
+                            throw failure;
+                        }
+                    }
+                    directories.addAll(commit.directories);
+                    for (Rename rename : commit.renames) {
+                        Files.move(rename.source(), rename.target(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        directories.add(rename.target().getParent());
+                        directories.add(rename.source().getParent());
+                    }
+                    renamed.add(commit);
+                } catch (IOException | RuntimeException e) {
+                    commit.result.completeExceptionally(e);
+                }
+            }
+
+            IOException failure = syncAll(directories, this::syncDirectory).values().stream()
+                    .findFirst().orElse(null);
+            for (Commit commit : renamed) {
+                if (failure == null) {
+                    commit.result.complete(null);
+                } else {
+                    commit.result.completeExceptionally(failure);
+                }
+            }
+        }
+    }
+
+    /**
+     * Synchronise plusieurs fichiers ou répertoires en parallèle : le thread appelant traite
+     * le premier, les autres sont confiés au pool de synchronisation.
+     * @return Les échecs, par chemin
+     */
+    private static Map<Path, IOException> syncAll(Collection<Path> paths, PathSync sync) {
+        Map<Path, IOException> failures = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> tasks = new ArrayList<>(paths.size());
+        Path first = null;
+        for (Path path : paths) {
+            if (first == null) {
+                first = path;
+            } else {
+                tasks.add(CompletableFuture.runAsync(() -> syncOne(path, sync, failures), SYNC_EXECUTOR));
+            }
+        }
+        if (first != null) {
+            syncOne(first, sync, failures);
+        }
+        tasks.forEach(CompletableFuture::join);
+        return failures;
+    }
+
+    private static void syncOne(Path path, PathSync sync, Map<Path, IOException> failures) {
+        try {
+            sync.sync(path);
+        } catch (IOException e) {
+            failures.put(path, e);
+        }
+    }
+
+    /**
+     * Retourne les compteurs de synchronisation depuis la création.
+     */
+    public SyncStats getSyncStats() {
+        return new SyncStats(batches.get(), fileSyncs.get(), directorySyncs.get());
+    }
+
+    private void sync(Path file) throws IOException {
+        fileSyncs.incrementAndGet();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Rend durable la création ou le renommage d'un fichier dans un répertoire.
+     * Sans effet sur les systèmes qui ne permettent pas d'ouvrir un répertoire (Windows).
+     */
+    private void syncDirectory(Path directory) throws IOException {
+        directorySyncs.incrementAndGet();
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Nouveau contenu d'un fichier.
+     */
+    public record FileWrite(Path target, byte[] data) {
+    }
+
+    /**
+     * Compteurs de synchronisation : lots traités (politique GROUP), fsync de fichiers et de répertoires.
+     */
+    public record SyncStats(long batches, long fileSyncs, long directorySyncs) {
+
+        @Override
+        public String toString() {
+            return String.format("%d lots, %d fsync de fichiers, %d fsync de répertoires",
+                    batches, fileSyncs, directorySyncs);
+        }
+    }
+
+    /**
+     * Synchronisation d'une écriture déjà faite, attendue séparément.
+     */
+    @FunctionalInterface
+    public interface PendingSync {
+
+        /**
+         * Attend que l'écriture soit durable selon la politique.
+         */
+        void await() throws IOException;
+    }
+
+    private record Rename(Path source, Path target, boolean syncSource) {
+    }
+
+    @FunctionalInterface
+    private interface PathSync {
+        void sync(Path path) throws IOException;
+    }
+
+    /**
+     * Synchronisations et renommages d'un écrivain, à effectuer ensemble dans un même lot.
+     */
+    private static final class Commit {
+        private final List<Path> syncs;
+        private final List<Rename> renames;
+        private final List<Path> directories;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        /**
+         * @param syncs Fichiers à synchroniser sans les renommer
+         * @param directories Répertoires à synchroniser en plus de ceux des renommages
+         */
+        private Commit(List<Path> syncs, List<Rename> renames, List<Path> directories) {
+            this.syncs = syncs;
+            this.renames = renames;
+            this.directories = directories;
+        }
+
+        /**
+         * Fichiers dont le contenu doit être synchronisé avant les renommages.
+         */
+        private List<Path> filesToSync() {
+            List<Path> files = new ArrayList<>(syncs);
+            for (Rename rename : renames) {
+                if (rename.syncSource()) {
+                    files.add(rename.source());
+                }
+            }
+            return files;
+        }
+    }
+}
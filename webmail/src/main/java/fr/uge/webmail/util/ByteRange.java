@@ -0,0 +1,83 @@
+package fr.uge.webmail.util;
+
+import java.util.Optional;
+
+/**
+ * Plage d'octets demandée par un en-tête HTTP {@code Range} (RFC 9110, une seule plage).
+ *
+ * @param start Premier octet (inclus)
+ * @param end Dernier octet (inclus)
+ */
+public record ByteRange(long start, long end) {
+
+    private static final String UNIT = "bytes=";
+
+    /**
+     * Analyse un en-tête {@code Range} pour une ressource de {@code size} octets.
+     * @return La plage demandée, ou vide si l'en-tête est absent, invalide (dernier octet avant
+     *         le premier...) ou non pris en charge (plusieurs plages, autre unité...) : la
+     *         ressource est alors servie en entier
+     * @throws IllegalArgumentException si la plage, valide, ne peut pas être satisfaite (réponse 416)
+     */
+    public static Optional<ByteRange> parse(String header, long size) {
+        if (header == null || !header.startsWith(UNIT) || header.indexOf(',') >= 0) {
+            return Optional.empty();
+        }
+        String spec = header.substring(UNIT.length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return Optional.empty();
+        }
+
+        long start;
+        long end;
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (!isDigits(first) || !isDigits(last)) {
+                return Optional.empty();
+            }
+            if (first.isEmpty()) {
+                // "bytes=-N" : les N derniers octets
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    throw new IllegalArgumentException("Plage vide : " + header);
+                }
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(first);
+                if (!last.isEmpty() && Long.parseLong(last) < start) {
+                    // Syntaxe invalide (RFC 9110, 14.2) : l'en-tête est ignoré
+                    return Optional.empty();
+                }
+                end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+            }
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+
+        if (start < 0 || start >= size || end < start) {
+            throw new IllegalArgumentException("Plage non satisfiable : " + header);
+        }
+        return Optional.of(new ByteRange(start, end));
+    }
+
+    private static boolean isDigits(String value) {
+        return value.chars().allMatch(c -> c >= '0' && c <= '9');
+    }
+
+    /**
+     * Nombre d'octets de la plage.
+     */
+    public long length() {
+        return end - start + 1;
+    }
+
+    /**
+     * Valeur de l'en-tête {@code Content-Range} correspondante.
+     */
+    public String contentRange(long size) {
+        return "bytes " + start + "-" + end + "/" + size;
+    }
+}
@@ -0,0 +1,110 @@
+package fr.uge.webmail.util;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.WriteStream;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Flux d'écriture qui calcule le hash SHA-256 et la taille des données au fil de l'eau,
+ * avant de les transmettre à un autre flux (typiquement un fichier temporaire).
+ *
+ * Les données sont hachées par morceaux au travers d'un tampon réutilisé : la mémoire
+ * allouée ne dépend pas de la taille totale du flux.
+ */
+public class HashingWriteStream implements WriteStream<Buffer> {
+
+    private static final int SCRATCH_SIZE = 64 * 1024;
+
+    private final WriteStream<Buffer> delegate;
+    private final AtomicLong remaining;
+    private final MessageDigest digest;
+    private final byte[] scratch = new byte[SCRATCH_SIZE];
+    private long size;
+    private String sha256;
+    private boolean overflow;
+
+    /**
+     * @param remaining Nombre d'octets encore acceptés, éventuellement partagé entre plusieurs
+     *                  flux ; une écriture qui le dépasse échoue
+     */
+    public HashingWriteStream(WriteStream<Buffer> delegate, AtomicLong remaining) {
+        this.delegate = delegate;
+        this.remaining = remaining;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 non disponible", e);
+        }
+    }
+
+    @Override
+    public Future<Void> write(Buffer data) {
+        if (overflow) {
+            // Le flux sous-jacent a été fermé : les données restantes sont ignorées
+            return Future.succeededFuture();
+        }
+        size += data.length();
+        if (remaining.addAndGet(-data.length()) < 0) {
+            overflow = true;
+            return Future.failedFuture(new IllegalArgumentException("Pièces jointes trop volumineuses"));
+        }
+        for (int offset = 0; offset < data.length(); offset += SCRATCH_SIZE) {
+            int end = Math.min(offset + SCRATCH_SIZE, data.length());
+            data.getBytes(offset, end, scratch, 0);
+            digest.update(scratch, 0, end - offset);
+        }
+        return delegate.write(data);
+    }
+
+    @Override
+    public Future<Void> end() {
+        if (overflow) {
+            return delegate.end().transform(ar -> Future.failedFuture(
+                    new IllegalArgumentException("Pièces jointes trop volumineuses")));
+        }
+        sha256 = FileUtils.bytesToHex(digest.digest());
+        return delegate.end();
+    }
+
+    /**
+     * Nombre d'octets écrits.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Hash SHA-256 (hexadécimal) des données écrites, disponible une fois le flux terminé.
+     */
+    public String sha256() {
+        return sha256;
+    }
+
+    @Override
+    public HashingWriteStream exceptionHandler(Handler<Throwable> handler) {
+        delegate.exceptionHandler(handler);
+        return this;
+    }
+
+    @Override
+    public HashingWriteStream setWriteQueueMaxSize(int maxSize) {
+        delegate.setWriteQueueMaxSize(maxSize);
+        return this;
+    }
+
+    @Override
+    public boolean writeQueueFull() {
+        return !overflow && delegate.writeQueueFull();
+    }
+
+    @Override
+    public HashingWriteStream drainHandler(Handler<Void> handler) {
+        delegate.drainHandler(handler);
+        return this;
+    }
+}
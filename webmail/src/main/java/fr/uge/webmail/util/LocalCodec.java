@@ -0,0 +1,56 @@
+package fr.uge.webmail.util;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.eventbus.MessageCodec;
+
+/**
+ * Codec du bus d'événements pour les messages échangés à l'intérieur de l'application :
+ * l'objet est transmis par référence, sans copie ni sérialisation.
+ *
+ * Ces messages ne peuvent pas quitter la JVM ; l'encodage pour le réseau est refusé.
+ */
+public final class LocalCodec<T> implements MessageCodec<T, T> {
+
+    private final String name;
+
+    public LocalCodec(Class<T> type) {
+        this.name = "local:" + type.getName();
+    }
+
+    /**
+     * Enregistre le codec par défaut d'un type, s'il ne l'est pas déjà sur ce bus.
+     */
+    public static <T> void register(EventBus eventBus, Class<T> type) {
+        try {
+            eventBus.registerDefaultCodec(type, new LocalCodec<>(type));
+        } catch (IllegalStateException e) {
+            // Déjà enregistré (déploiement précédent sur la même instance Vert.x)
+        }
+    }
+
+    @Override
+    public void encodeToWire(Buffer buffer, T value) {
+        throw new UnsupportedOperationException("Message local, non transmissible sur le réseau : " + name);
+    }
+
+    @Override
+    public T decodeFromWire(int pos, Buffer buffer) {
+        throw new UnsupportedOperationException("Message local, non transmissible sur le réseau : " + name);
+    }
+
+    @Override
+    public T transform(T value) {
+        return value;
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public byte systemCodecID() {
+        return -1;
+    }
+}
@@ -0,0 +1,153 @@
+package fr.uge.webmail.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Cache en mémoire borné par la taille de ses entrées, avec éviction des entrées les moins
+ * récemment utilisées.
+ *
+ * La taille d'une entrée est estimée par une fonction fournie (en octets, par exemple). Une
+ * entrée plus grosse que le cache entier n'est pas conservée. Les accès sont comptés (succès,
+ * échecs, évictions) pour juger de l'efficacité du cache.
+ *
+ * Une valeur lue depuis le disque peut être périmée avant d'être ajoutée si le fichier est
+ * modifié entre-temps. Pour l'éviter, le lecteur relève {@link #stamp()} avant sa lecture et
+ * ajoute la valeur avec {@link #putIfUnchanged}, tandis que l'écrivain met à jour le cache
+ * ({@link #put} ou {@link #remove}) après avoir modifié le fichier.
+ */
+public final class LruCache<K, V> {
+
+    private final long maxWeight;
+    private final ToLongFunction<? super V> weigher;
+
+    // Ordre d'accès : la première entrée est la moins récemment utilisée
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+
+    // Incrémenté à chaque mise à jour par un écrivain
+    private long stamp;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxWeight Taille maximale du cache (0 = cache désactivé)
+     * @param weigher Taille estimée d'une valeur
+     */
+    public LruCache(long maxWeight, ToLongFunction<? super V> weigher) {
+        this.maxWeight = Math.max(0, maxWeight);
+        this.weigher = weigher;
+    }
+
+    /**
+     * Retourne la valeur associée à une clé, ou null si elle n'est pas dans le cache.
+     */
+    public synchronized V get(K key) {
+        V value = entries.get(key);
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    /**
+     * Ajoute ou remplace une valeur, puis évince les entrées les moins récemment utilisées
+     * jusqu'à revenir sous la taille maximale.
+     */
+    public synchronized void put(K key, V value) {
+        remove(key);
+        insert(key, value);
+    }
+
+    /**
+     * Retourne l'état courant du cache, à relever avant de lire une valeur à ajouter.
+     */
+    public synchronized long stamp() {
+        return stamp;
+    }
+
+    /**
+     * Ajoute une valeur si aucune mise à jour n'a eu lieu depuis le relevé de {@code stamp}.
+     */
+    public synchronized void putIfUnchanged(K key, V value, long stamp) {
+        if (this.stamp == stamp && !entries.containsKey(key)) {
+            insert(key, value);
+        }
+    }
+
+    private void insert(K key, V value) {
+        long valueWeight = weigher.applyAsLong(value);
+        if (valueWeight > maxWeight) {
+            return;
+        }
+        entries.put(key, value);
+        weight += valueWeight;
+
+        Iterator<Map.Entry<K, V>> iterator = entries.entrySet().iterator();
+        while (weight > maxWeight && iterator.hasNext()) {
+            weight -= weigher.applyAsLong(iterator.next().getValue());
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Retire une clé du cache.
+     */
+    public synchronized void remove(K key) {
+        stamp++;
+        V previous = entries.remove(key);
+        if (previous != null) {
+            weight -= weigher.applyAsLong(previous);
+        }
+    }
+
+    /**
+     * Retire du cache toutes les clés qui vérifient un critère.
+     */
+    public synchronized void removeIf(Predicate<? super K> filter) {
+        stamp++;
+        Iterator<Map.Entry<K, V>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<K, V> entry = iterator.next();
+            if (filter.test(entry.getKey())) {
+                weight -= weigher.applyAsLong(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Retourne les compteurs du cache.
+     */
+    public synchronized Stats stats() {
+        return new Stats(entries.size(), weight, maxWeight, hits, misses, evictions);
+    }
+
+    /**
+     * Compteurs d'un cache depuis sa création.
+     */
+    public record Stats(int size, long weight, long maxWeight, long hits, long misses, long evictions) {
+
+        /**
+         * Proportion des accès trouvés dans le cache (0 si aucun accès).
+         */
+        public double hitRate() {
+            long requests = hits + misses;
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d entrées, %d/%d Ko, %d succès, %d échecs (%.0f %%), %d évictions",
+                    size, weight / 1024, maxWeight / 1024, hits, misses, hitRate() * 100, evictions);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package fr.uge.webmail.util;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * Roue temporelle hiérarchique : planifie l'expiration d'un grand nombre d'éléments en temps
+ * constant par élément, sans jamais parcourir les éléments qui n'ont pas expiré.
+ *
+ * Chaque niveau compte 64 cases ; une case du niveau 0 couvre un tick, une case du niveau
+ * {@code n} couvre 64<sup>n</sup> ticks. Un élément est rangé au niveau le plus bas dont la
+ * portée couvre son échéance. Quand le niveau inférieur a fait un tour complet, la case suivante
+ * du niveau supérieur est redistribuée vers les niveaux inférieurs : un élément est déplacé au
+ * plus une fois par niveau. Les échéances au-delà de la portée de la roue sont rangées au
+ * dernier niveau et redistribuées autant de fois que nécessaire.
+ *
+ * Les temps sont ceux d'une horloge monotone ({@link System#nanoTime()}). Un élément expire au
+ * plus un tick après son échéance. La suppression n'est pas gérée : l'appelant ignore les
+ * éléments qui ne sont plus d'actualité lorsqu'ils expirent.
+ */
+public final class TimingWheel<T> {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int MASK = SLOTS - 1;
+
+    private final long tickNanos;
+    private final long originNanos;
+    private final ArrayDeque<Entry<T>>[][] slots;
+
+    // Dernier tick traité
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickNanos Durée d'un tick (précision de l'expiration)
+     * @param levels Nombre de niveaux : la roue couvre 64<sup>levels</sup> ticks
+     * @param nowNanos Temps courant de l'horloge monotone
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickNanos, int levels, long nowNanos) {
+        this.tickNanos = tickNanos;
+        this.originNanos = nowNanos;
+        this.slots = new ArrayDeque[levels][SLOTS];
+        for (ArrayDeque<Entry<T>>[] level : slots) {
+            for (int i = 0; i < SLOTS; i++) {
+                level[i] = new ArrayDeque<>();
+            }
+        }
+    }
+
+    /**
+     * Planifie l'expiration d'un élément.
+     */
+    public synchronized void schedule(T item, long deadlineNanos) {
+        // Arrondi au tick supérieur : un élément n'expire jamais avant son échéance
+        long tick = Math.max(currentTick + 1, -Math.floorDiv(originNanos - deadlineNanos, tickNanos));
+        place(new Entry<>(item, tick));
+        size++;
+    }
+
+    /**
+     * Avance la roue jusqu'au temps donné et transmet les éléments expirés.
+     * @return Le nombre d'éléments expirés
+     */
+    public synchronized int advance(long nowNanos, Consumer<? super T> expired) {
+        long targetTick = Math.floorDiv(nowNanos - originNanos, tickNanos);
+        int count = 0;
+        while (currentTick < targetTick) {
+            currentTick++;
+            // Redistribution des niveaux supérieurs à chaque tour complet du niveau inférieur
+            for (int level = 1; level < slots.length && (currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0; level++) {
+                ArrayDeque<Entry<T>> slot = slots[level][(int) ((currentTick >>> (SLOT_BITS * level)) & MASK)];
+                int cascaded = slot.size();
+                for (int i = 0; i < cascaded; i++) {
+                    place(slot.poll());
+                }
+            }
+
+            ArrayDeque<Entry<T>> slot = slots[0][(int) (currentTick & MASK)];
+            int pending = slot.size();
+            for (int i = 0; i < pending; i++) {
+                Entry<T> entry = slot.poll();
+                if (entry.tick() <= currentTick) {
+                    size--;
+                    count++;
+                    expired.accept(entry.item());
+                } else {
+                    place(entry);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Retourne le nombre d'éléments planifiés.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private void place(Entry<T> entry) {
+        long delta = entry.tick() - currentTick;
+        int level = 0;
+        while (level < slots.length - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        slots[level][(int) ((entry.tick() >>> (SLOT_BITS * level)) & MASK)].add(entry);
+    }
+
+    private record Entry<T>(T item, long tick) {
+    }
+}
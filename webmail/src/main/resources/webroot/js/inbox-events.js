@@ -0,0 +1,44 @@
+// Nouveaux messages et nombre de non lus poussés par le serveur (Server-Sent Events) :
+// la page n'a pas besoin d'être rechargée pour les voir arriver
+(function () {
+    var badge = document.getElementById('unread-badge');
+    var notice = document.getElementById('new-mail-notice');
+    if (!window.EventSource || !badge || !notice) {
+        return;
+    }
+
+    var received = 0;
+    var events = new EventSource('/mail/events');
+
+    function setUnread(count) {
+        badge.textContent = count;
+        badge.hidden = count === 0;
+    }
+
+    function showNotice(text) {
+        var link = document.createElement('a');
+        link.href = '/mail/inbox';
+        link.textContent = text + ' — Afficher';
+        notice.replaceChildren(link);
+        notice.hidden = false;
+    }
+
+    events.addEventListener('unread', function (event) {
+        setUnread(JSON.parse(event.data).unread);
+    });
+
+    events.addEventListener('mail', function (event) {
+        var data = JSON.parse(event.data);
+        setUnread(data.unread);
+        received++;
+        showNotice(received === 1
+            ? '📬 Nouveau message de ' + data.header.from + ' : ' + (data.header.subject || '(Sans sujet)')
+            : '📬 ' + received + ' nouveaux messages');
+    });
+
+    // Des événements ont été perdus (connexion trop lente) : seul le compteur est à jour
+    events.addEventListener('resync', function (event) {
+        setUnread(JSON.parse(event.data).unread);
+        showNotice('📬 Nouveaux messages');
+    });
+})();
@@ -0,0 +1,245 @@
+package fr.uge.webmail;
+
+import fr.uge.webmail.util.FileUtils;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClientAgent;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.PoolOptions;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Générateur de charge en boucle fermée pour le serveur HTTP : chaque connexion envoie une
+ * requête, attend la réponse complète, puis envoie la suivante.
+ *
+ * Le serveur est démarré dans la même JVM, sur un répertoire de données temporaire, avec une
+ * boîte de réception de {@code bench.emails} messages. Chaque chemin est mesuré l'un après
+ * l'autre, pages HTML (cookie de session) comme API JSON (token Bearer) ; avec
+ * {@code bench.conditional}, les chemins qui renvoient un ETag sont aussi mesurés avec
+ * {@code If-None-Match} (réponses 304).
+ *
+ * Paramètres (propriétés système) :
+ * <ul>
+ *   <li>{@code bench.instances} : instances du serveur HTTP ({@code httpInstances}, 1 par défaut) ;</li>
+ *   <li>{@code bench.connections} : connexions simultanées (64) ;</li>
+ *   <li>{@code bench.warmupSeconds}, {@code bench.seconds} : chauffe puis mesure, par chemin (3 et 8) ;</li>
+ *   <li>{@code bench.emails} : messages dans la boîte de réception (30) ;</li>
+ *   <li>{@code bench.paths} : chemins mesurés, séparés par des virgules
+ *   ({@code /mail/inbox,/api/v1/folders/inbox/emails}) ;</li>
+ *   <li>{@code bench.conditional} : mesure aussi les requêtes conditionnelles (true).</li>
+ * </ul>
+ * Voir doc.md (section « Instances du serveur HTTP ») pour le lancer.
+ */
+public final class HttpBenchmark {
+
+    private static final int HTTP_PORT = 18180;
+    private static final String PASSWORD = "Bench123!";
+    private static final String READER = "bench";
+    private static final String SENDER = "expediteur";
+
+    private final HttpClientAgent client;
+    private final String token;
+    private final int connections;
+    private final int warmupSeconds;
+    private final int seconds;
+
+    private HttpBenchmark(HttpClientAgent client, String token, int connections, int warmupSeconds, int seconds) {
+        this.client = client;
+        this.token = token;
+        this.connections = connections;
+        this.warmupSeconds = warmupSeconds;
+        this.seconds = seconds;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int instances = Integer.getInteger("bench.instances", 1);
+        int connections = Integer.getInteger("bench.connections", 64);
+        int warmupSeconds = Integer.getInteger("bench.warmupSeconds", 3);
+        int seconds = Integer.getInteger("bench.seconds", 8);
+        int emails = Integer.getInteger("bench.emails", 30);
+        List<String> paths = List.of(System.getProperty("bench.paths",
+            "/mail/inbox,/api/v1/folders/inbox/emails").split(","));
+        boolean conditional = Boolean.parseBoolean(System.getProperty("bench.conditional", "true"));
+
+        Path dataDir = Files.createTempDirectory("webmail-bench");
+        // Serveur et générateur de charge sur des instances Vert.x distinctes
+        Vertx server = Vertx.vertx();
+        Vertx load = Vertx.vertx();
+        try {
+            server.deployVerticle(new MainVerticle(), new DeploymentOptions().setConfig(new JsonObject()
+                .put("dataDir", dataDir.toString())
+                .put("httpPort", HTTP_PORT)
+                .put("udpPort", HTTP_PORT + 1)
+                .put("httpInstances", instances))).await();
+
+            String token = seed(load, emails);
+            HttpClientAgent client = load.createHttpClient(
+                new HttpClientOptions().setDefaultPort(HTTP_PORT).setKeepAlive(true),
+                new PoolOptions().setHttp1MaxSize(connections));
+            HttpBenchmark benchmark = new HttpBenchmark(client, token, connections, warmupSeconds, seconds);
+
+            System.out.printf("%d cœur(s), %d instance(s) HTTP, %d connexions, %d messages, %d s par chemin%n",
+                Runtime.getRuntime().availableProcessors(), instances, connections, emails, seconds);
+            for (String path : paths) {
+                String etag = benchmark.run(path.trim(), null);
+                if (conditional && etag != null) {
+                    benchmark.run(path.trim(), etag);
+                }
+            }
+            client.close().await();
+        } finally {
+            load.close().await();
+            server.close().await();
+            FileUtils.deleteDirectory(dataDir);
+        }
+    }
+
+    /**
+     * Crée le lecteur et l'expéditeur, remplit la boîte de réception du lecteur et attend
+     * la distribution des messages.
+     * @return Le token de session du lecteur
+     */
+    private static String seed(Vertx vertx, int emails) throws InterruptedException {
+        WebClient web = WebClient.create(vertx, new WebClientOptions().setDefaultPort(HTTP_PORT).setFollowRedirects(false));
+        String reader = register(web, READER);
+        String sender = register(web, SENDER);
+        for (int i = 0; i < emails; i++) {
+            web.post("/api/v1/emails").bearerTokenAuthentication(sender).sendJsonObject(new JsonObject()
+                .put("to", new JsonArray().add(READER))
+                .put("subject", "Message " + i)
+                .put("content", ("Contenu du message " + i + ". ").repeat(20))).await();
+        }
+        for (int attempt = 0; attempt < 600; attempt++) {
+            JsonArray inbox = web.get("/api/v1/folders/inbox/emails?limit=200").bearerTokenAuthentication(reader)
+                .send().await().bodyAsJsonObject().getJsonArray("emails");
+            if (inbox.size() >= emails) {
+                web.close();
+                return reader;
+            }
+            Thread.sleep(50);
+        }
+        throw new IllegalStateException("Messages non distribués");
+    }
+
+    private static String register(WebClient web, String username) {
+        web.post("/register").sendForm(MultiMap.caseInsensitiveMultiMap()
+            .add("username", username)
+            .add("password", PASSWORD)
+            .add("confirmPassword", PASSWORD)).await();
+        HttpResponse<Buffer> login = web.post("/api/v1/login")
+            .sendJsonObject(new JsonObject().put("username", username).put("password", PASSWORD)).await();
+        if (login.statusCode() != 200) {
+            throw new IllegalStateException("Connexion impossible pour " + username + " : " + login.bodyAsString());
+        }
+        return login.bodyAsJsonObject().getString("token");
+    }
+
+    /**
+     * Mesure un chemin : chauffe, puis mesure, et affiche le débit.
+     * @param ifNoneMatch ETag envoyé dans If-None-Match, ou null
+     * @return L'ETag de la ressource, ou null si elle n'en a pas
+     */
+    private String run(String path, String ifNoneMatch) throws InterruptedException {
+        RequestOptions options = new RequestOptions()
+            .setMethod(HttpMethod.GET)
+            .setURI(path)
+            .putHeader("Authorization", "Bearer " + token)
+            .putHeader("Cookie", MainVerticle.SESSION_COOKIE + "=" + token);
+        if (ifNoneMatch != null) {
+            options.putHeader("If-None-Match", ifNoneMatch);
+        }
+
+        // Réponse de référence : les réponses mesurées doivent avoir le même statut
+        HttpClientResponse probe = client.request(options)
+            .compose(request -> request.send())
+            .compose(response -> response.body().map(body -> response))
+            .await();
+        int expectedStatus = probe.statusCode();
+        String etag = probe.getHeader("ETag");
+
+        Counters counters = new Counters(expectedStatus);
+        AtomicBoolean running = new AtomicBoolean(true);
+        for (int i = 0; i < connections; i++) {
+            loop(options, counters, running);
+        }
+        Thread.sleep(warmupSeconds * 1000L);
+        counters.reset();
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long requests = counters.responses.sum();
+        long bytes = counters.bytes.sum();
+        long errors = counters.errors.sum();
+        running.set(false);
+
+        System.out.printf("GET %-36s %-13s %3d %9.0f req/s %7.1f Ko/réponse%s%n",
+            path, ifNoneMatch == null ? "" : "If-None-Match", expectedStatus, requests / elapsed,
+            requests == 0 ? 0.0 : bytes / 1024.0 / requests,
+            errors == 0 ? "" : "  " + errors + " erreurs ou statuts inattendus");
+        // Laisser les requêtes en cours se terminer avant le chemin suivant
+        Thread.sleep(500);
+        return etag;
+    }
+
+    /**
+     * Boucle d'une connexion : la requête suivante part dès la réponse complète reçue.
+     */
+    private void loop(RequestOptions options, Counters counters, AtomicBoolean running) {
+        if (!running.get()) {
+            return;
+        }
+        client.request(options)
+            .compose(request -> request.send())
+            .compose(response -> response.body().map(body -> {
+                if (response.statusCode() == counters.expectedStatus) {
+                    counters.responses.increment();
+                    counters.bytes.add(body.length());
+                } else {
+                    counters.errors.increment();
+                }
+                return null;
+            }))
+            .onComplete(ar -> {
+                if (ar.failed()) {
+                    counters.errors.increment();
+                }
+                loop(options, counters, running);
+            });
+    }
+
+    /**
+     * Compteurs d'une mesure : seules les réponses du statut attendu sont comptées.
+     */
+    private static final class Counters {
+        final int expectedStatus;
+        final LongAdder responses = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder errors = new LongAdder();
+
+        Counters(int expectedStatus) {
+            this.expectedStatus = expectedStatus;
+        }
+
+        void reset() {
+            responses.reset();
+            bytes.reset();
+            errors.reset();
+        }
+    }
+}
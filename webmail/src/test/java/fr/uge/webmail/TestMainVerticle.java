@@ -1,18 +1,127 @@
 package fr.uge.webmail;
 
+import fr.uge.webmail.util.FileUtils;
+import io.netty.handler.codec.http.cookie.Cookie;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.ext.web.client.WebClientSession;
+import io.vertx.ext.web.multipart.MultipartForm;
 import io.vertx.junit5.VertxExtension;
 import io.vertx.junit5.VertxTestContext;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @ExtendWith(VertxExtension.class)
 public class TestMainVerticle {
 
+    static final int HTTP_PORT = 18080;
+    static final String PASSWORD = "Secret123!";
+
+    @TempDir
+    Path dataDir;
+
+    /**
+     * Configuration d'un serveur isolé : données dans un répertoire temporaire, ports de test.
+     */
+    static JsonObject testConfig(Path dataDir) {
+        return new JsonObject()
+            .put("dataDir", dataDir.toString())
+            .put("httpPort", HTTP_PORT)
+            .put("udpPort", 19999)
+            .put("httpInstances", 1)
+            .put("storageWorkerPoolSize", 4);
+    }
+
+    /**
+     * Crée un compte par le formulaire d'inscription et retourne un client connecté (cookie de session).
+     */
+    static WebClientSession register(Vertx vertx, String username) {
+        WebClientSession client = WebClientSession.create(WebClient.create(vertx,
+            new WebClientOptions().setDefaultPort(HTTP_PORT).setFollowRedirects(false)));
+        HttpResponse<Buffer> registered = client.post("/register").sendForm(MultiMap.caseInsensitiveMultiMap()
+            .add("username", username)
+            .add("password", PASSWORD)
+            .add("confirmPassword", PASSWORD)).await();
+        assertEquals(200, registered.statusCode());
+        HttpResponse<Buffer> login = client.post("/login").sendForm(MultiMap.caseInsensitiveMultiMap()
+            .add("username", username)
+            .add("password", PASSWORD)).await();
+        assertEquals("/mail/inbox", login.getHeader("Location"));
+        return client;
+    }
+
+    /**
+     * Retourne le token de la session d'un client connecté (valeur du cookie de session).
+     */
+    static String sessionToken(WebClientSession client) {
+        for (Cookie cookie : client.cookieStore().get(false, "localhost", "/")) {
+            if (cookie.name().equals(MainVerticle.SESSION_COOKIE)) {
+                return cookie.value();
+            }
+        }
+        throw new AssertionError("Pas de cookie de session");
+    }
+
+    /**
+     * Envoie un email par le formulaire de composition.
+     */
+    static void sendEmail(WebClientSession client, String to, String subject, String content) {
+        HttpResponse<Buffer> response = client.post("/mail/compose").sendMultipartForm(MultipartForm.create()
+            .attribute("to", to)
+            .attribute("subject", subject)
+            .attribute("content", content)
+            .attribute("action", "send")).await();
+        assertEquals("/mail/outbox", response.getHeader("Location"));
+    }
+
+    /**
+     * Enregistre un brouillon avec une pièce jointe par le formulaire de composition.
+     * @return Le hash SHA-256 de la pièce jointe
+     */
+    static String uploadDraft(WebClientSession client, String filename, byte[] content) {
+        HttpResponse<Buffer> response = client.post("/mail/compose").sendMultipartForm(MultipartForm.create()
+            .attribute("to", "")
+            .attribute("subject", "Pièce jointe")
+            .attribute("content", "Voir la pièce jointe")
+            .attribute("action", "draft")
+            .binaryFileUpload("attachments", filename, Buffer.buffer(content), "application/octet-stream")).await();
+        assertEquals("/mail/drafts", response.getHeader("Location"));
+        return FileUtils.sha256(content);
+    }
+
+    private static byte[] sampleContent(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 31 + i / 251);
+        }
+        return content;
+    }
+
     @BeforeEach
     void deploy_verticle(Vertx vertx, VertxTestContext testContext) {
-        vertx.deployVerticle(new MainVerticle())
+        vertx.deployVerticle(new MainVerticle(), new DeploymentOptions().setConfig(testConfig(dataDir)))
             .onComplete(testContext.succeeding(id -> testContext.completeNow()));
     }
 
@@ -20,4 +129,129 @@ public class TestMainVerticle {
     void verticle_deployed(Vertx vertx, VertxTestContext testContext) {
         testContext.completeNow();
     }
+
+    @Test
+    void new_inbox_mail_is_pushed_to_the_event_stream(Vertx vertx) throws Exception {
+        WebClientSession alice = register(vertx, "alice");
+        WebClientSession bob = register(vertx, "bob");
+
+        // Flux de la page d'alice, lu au fil de l'eau
+        StringBuffer stream = new StringBuffer();
+        Promise<Void> opened = Promise.promise();
+        Promise<JsonObject> mail = Promise.promise();
+        Promise<String> contentType = Promise.promise();
+        HttpClient http = vertx.createHttpClient();
+        http.request(HttpMethod.GET, HTTP_PORT, "localhost", "/mail/events")
+            .compose(request -> request.putHeader("Cookie", MainVerticle.SESSION_COOKIE + "=" + sessionToken(alice)).send())
+            .onSuccess(response -> {
+                contentType.complete(response.getHeader("Content-Type"));
+                response.handler(chunk -> {
+                    stream.append(chunk.toString());
+                    if (stream.indexOf("event: unread") >= 0) {
+                        opened.tryComplete();
+                    }
+                    int event = stream.indexOf("event: mail\ndata: ");
+                    int end = event < 0 ? -1 : stream.indexOf("\n\n", event);
+                    if (end >= 0) {
+                        mail.tryComplete(new JsonObject(stream.substring(event + "event: mail\ndata: ".length(), end)));
+                    }
+                });
+            });
+
+        // Nombre de non lus envoyé à l'ouverture
+        opened.future().await(5, TimeUnit.SECONDS);
+        assertTrue(contentType.future().await().startsWith("text/event-stream"));
+        assertTrue(stream.toString().startsWith("event: unread\ndata: {\"unread\":0}\n\n"));
+
+        // Le message de bob est poussé dès sa distribution, sans recharger la page
+        sendEmail(bob, "alice", "Nouvelles", "Bonjour Alice");
+        JsonObject event = mail.future().await(5, TimeUnit.SECONDS);
+        assertEquals(1, event.getInteger("unread"));
+        assertEquals("bob", event.getJsonObject("header").getString("from"));
+        assertEquals("Nouvelles", event.getJsonObject("header").getString("subject"));
+        http.close().await();
+    }
+
+    @Test
+    void uploads_are_streamed_to_the_attachment_store(Vertx vertx) throws Exception {
+        WebClientSession client = register(vertx, "alice");
+        byte[] content = sampleContent(3 * 1024 * 1024);
+        String sha256 = uploadDraft(client, "archive.bin", content);
+
+        // Le fichier est stocké sous son hash, octet pour octet
+        Path attachments = dataDir.resolve("attachments");
+        assertArrayEquals(content, Files.readAllBytes(attachments.resolve(sha256)));
+
+        // Champ fichier laissé vide par le navigateur : ignoré
+        HttpResponse<Buffer> response = client.post("/mail/compose").sendMultipartForm(MultipartForm.create()
+            .attribute("to", "")
+            .attribute("subject", "Sans pièce jointe")
+            .attribute("content", "Rien à joindre")
+            .attribute("action", "draft")
+            .binaryFileUpload("attachments", "", Buffer.buffer(), "application/octet-stream")).await();
+        assertEquals("/mail/drafts", response.getHeader("Location"));
+        assertFalse(Files.exists(attachments.resolve(FileUtils.sha256(new byte[0]))));
+
+        // Aucun fichier temporaire ne reste dans le répertoire des uploads
+        try (Stream<Path> uploads = Files.list(attachments.resolve(".uploads"))) {
+            assertEquals(0, uploads.count());
+        }
+    }
+
+    @Test
+    void attachments_are_downloaded_with_etag_and_ranges(Vertx vertx) {
+        WebClientSession client = register(vertx, "alice");
+        byte[] content = sampleContent(200_000);
+        String sha256 = uploadDraft(client, "rapport.bin", content);
+        String url = "/mail/attachment/" + sha256 + "/rapport.bin";
+        String etag = "\"" + sha256 + "\"";
+
+        HttpResponse<Buffer> full = client.get(url).send().await();
+        assertEquals(200, full.statusCode());
+        assertArrayEquals(content, full.bodyAsBuffer().getBytes());
+        assertEquals(etag, full.getHeader("ETag"));
+        assertEquals("bytes", full.getHeader("Accept-Ranges"));
+        assertTrue(full.getHeader("Cache-Control").contains("immutable"));
+        assertEquals("attachment; filename=\"rapport.bin\"; filename*=UTF-8''rapport.bin", full.getHeader("Content-Disposition"));
+
+        // Nom avec guillemet, point-virgule et accent : échappé, puis encodé en UTF-8
+        HttpResponse<Buffer> quoted = client.get("/mail/attachment/" + sha256 + "/a%22b%3Bc%C3%A9.bin").send().await();
+        assertEquals("attachment; filename=\"a\\\"b;c_.bin\"; filename*=UTF-8''a%22b%3Bc%C3%A9.bin",
+            quoted.getHeader("Content-Disposition"));
+
+        // Version déjà en cache : rien n'est renvoyé
+        HttpResponse<Buffer> notModified = client.get(url).putHeader("If-None-Match", "W/" + etag).send().await();
+        assertEquals(304, notModified.statusCode());
+        assertEquals(0, notModified.bodyAsBuffer() == null ? 0 : notModified.bodyAsBuffer().length());
+
+        // Plage d'octets, puis suffixe
+        HttpResponse<Buffer> range = client.get(url).putHeader("Range", "bytes=1000-1999").send().await();
+        assertEquals(206, range.statusCode());
+        assertEquals("bytes 1000-1999/200000", range.getHeader("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, 2000), range.bodyAsBuffer().getBytes());
+        HttpResponse<Buffer> suffix = client.get(url).putHeader("Range", "bytes=-100").send().await();
+        assertEquals(206, suffix.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(content, 199_900, 200_000), suffix.bodyAsBuffer().getBytes());
+
+        // If-Range d'une autre version : le fichier entier est renvoyé
+        HttpResponse<Buffer> otherVersion = client.get(url)
+            .putHeader("Range", "bytes=0-9")
+            .putHeader("If-Range", "\"autre\"").send().await();
+        assertEquals(200, otherVersion.statusCode());
+        assertEquals(content.length, otherVersion.bodyAsBuffer().length());
+
+        // Plage invalide (fin avant le début) : en-tête ignoré, fichier entier
+        HttpResponse<Buffer> invalid = client.get(url).putHeader("Range", "bytes=10-5").send().await();
+        assertEquals(200, invalid.statusCode());
+        assertEquals(content.length, invalid.bodyAsBuffer().length());
+
+        HttpResponse<Buffer> unsatisfiable = client.get(url).putHeader("Range", "bytes=300000-").send().await();
+        assertEquals(416, unsatisfiable.statusCode());
+        assertEquals("bytes */200000", unsatisfiable.getHeader("Content-Range"));
+
+        assertEquals(404, client.get("/mail/attachment/" + "0".repeat(64) + "/absent.bin").send().await().statusCode());
+        HttpResponse<Buffer> anonymous = WebClient.create(vertx, new WebClientOptions()
+            .setDefaultPort(HTTP_PORT).setFollowRedirects(false)).get(url).send().await();
+        assertEquals("/login", anonymous.getHeader("Location"));
+    }
 }
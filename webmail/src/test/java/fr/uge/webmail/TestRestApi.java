@@ -0,0 +1,238 @@
+package fr.uge.webmail;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpRequest;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.ext.web.client.WebClientSession;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static fr.uge.webmail.TestMainVerticle.HTTP_PORT;
+import static fr.uge.webmail.TestMainVerticle.PASSWORD;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+public class TestRestApi {
+
+    private static final String API = "/api/v1";
+
+    @TempDir
+    Path dataDir;
+
+    private WebClient client;
+
+    @BeforeEach
+    void deploy_verticle(Vertx vertx, VertxTestContext testContext) {
+        client = WebClient.create(vertx, new WebClientOptions().setDefaultPort(HTTP_PORT).setFollowRedirects(false));
+        vertx.deployVerticle(new MainVerticle(), new DeploymentOptions().setConfig(TestMainVerticle.testConfig(dataDir)))
+            .onComplete(testContext.succeeding(id -> testContext.completeNow()));
+    }
+
+    private HttpResponse<Buffer> login(String username, String password) {
+        return client.post(API + "/login")
+            .sendJsonObject(new JsonObject().put("username", username).put("password", password)).await();
+    }
+
+    /**
+     * Crée un compte et retourne un token de session obtenu par l'API.
+     */
+    private String token(Vertx vertx, String username) {
+        TestMainVerticle.register(vertx, username);
+        HttpResponse<Buffer> response = login(username, PASSWORD);
+        assertEquals(200, response.statusCode());
+        return response.bodyAsJsonObject().getString("token");
+    }
+
+    private HttpRequest<Buffer> get(String uri, String token) {
+        return client.get(uri).bearerTokenAuthentication(token);
+    }
+
+    private static String error(HttpResponse<Buffer> response) {
+        assertTrue(response.getHeader("Content-Type").startsWith("application/json"));
+        return response.bodyAsJsonObject().getString("error");
+    }
+
+    /**
+     * Attend que la distribution en arrière-plan ait placé des messages dans l'inbox.
+     */
+    private JsonArray awaitInbox(String token, int count) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            JsonArray emails = get(API + "/folders/inbox/emails", token).send().await()
+                .bodyAsJsonObject().getJsonArray("emails");
+            if (emails.size() >= count) {
+                return emails;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("Message non distribué");
+    }
+
+    @Test
+    void login_returns_a_session_token(Vertx vertx) {
+        TestMainVerticle.register(vertx, "alice");
+
+        HttpResponse<Buffer> response = login("alice", PASSWORD);
+        assertEquals(200, response.statusCode());
+        assertTrue(response.bodyAsJsonObject().getString("token").length() > 0);
+        assertTrue(response.bodyAsJsonObject().getLong("expiresInSeconds") > 0);
+
+        HttpResponse<Buffer> wrongPassword = login("alice", "Mauvais123!");
+        assertEquals(401, wrongPassword.statusCode());
+        assertEquals("Nom d'utilisateur ou mot de passe incorrect", error(wrongPassword));
+
+        HttpResponse<Buffer> invalid = client.post(API + "/login").sendBuffer(Buffer.buffer("{pas du json")).await();
+        assertEquals(400, invalid.statusCode());
+        assertEquals("Requête JSON invalide", error(invalid));
+        HttpResponse<Buffer> incomplete = client.post(API + "/login")
+            .sendJsonObject(new JsonObject().put("username", "alice")).await();
+        assertEquals(400, incomplete.statusCode());
+        assertEquals("Nom d'utilisateur et mot de passe requis", error(incomplete));
+    }
+
+    @Test
+    void bearer_token_and_page_cookie_are_both_accepted(Vertx vertx) {
+        String token = token(vertx, "alice");
+        WebClientSession page = TestMainVerticle.register(vertx, "bob");
+
+        assertEquals(200, get(API + "/folders/inbox/emails", token).send().await().statusCode());
+        // Cookie de session des pages, sans en-tête Authorization
+        assertEquals(200, page.get(API + "/folders/inbox/emails").send().await().statusCode());
+
+        // Sans session ou avec un token inconnu : 401 et corps JSON
+        HttpResponse<Buffer> anonymous = client.get(API + "/folders/inbox/emails").send().await();
+        assertEquals(401, anonymous.statusCode());
+        assertEquals("Bearer", anonymous.getHeader("WWW-Authenticate"));
+        assertEquals("Session absente ou expirée", error(anonymous));
+        assertEquals(401, get(API + "/folders/inbox/emails", "inconnu").send().await().statusCode());
+
+        // Après la déconnexion, le token n'est plus accepté
+        assertEquals(204, client.post(API + "/logout").bearerTokenAuthentication(token).send().await().statusCode());
+        assertEquals(401, get(API + "/folders/inbox/emails", token).send().await().statusCode());
+    }
+
+    @Test
+    void event_stream_accepts_a_bearer_token(Vertx vertx) {
+        String token = token(vertx, "alice");
+
+        HttpClient http = vertx.createHttpClient();
+        HttpClientResponse response = http.request(HttpMethod.GET, HTTP_PORT, "localhost", "/mail/events")
+            .compose(request -> request.putHeader("Authorization", "Bearer " + token).send())
+            .await();
+        assertEquals(200, response.statusCode());
+        assertTrue(response.getHeader("Content-Type").startsWith("text/event-stream"));
+        http.close().await();
+    }
+
+    @Test
+    void reads_are_conditional_on_the_mailbox_version(Vertx vertx) throws Exception {
+        String alice = token(vertx, "alice");
+        String bob = token(vertx, "bob");
+
+        HttpResponse<Buffer> sent = client.post(API + "/emails").bearerTokenAuthentication(bob)
+            .sendJsonObject(new JsonObject()
+                .put("to", new JsonArray(List.of("alice")))
+                .put("subject", "Bonjour")
+                .put("content", "Message de bob")).await();
+        assertEquals(202, sent.statusCode());
+        String emailId = awaitInbox(alice, 1).getJsonObject(0).getString("id");
+
+        // ETag faible : la version de la boîte, pas les octets exacts
+        HttpResponse<Buffer> list = get(API + "/folders/inbox/emails", alice).send().await();
+        assertEquals(200, list.statusCode());
+        String etag = list.getHeader("ETag");
+        assertTrue(etag.startsWith("W/\""));
+        assertEquals("Bonjour", list.bodyAsJsonObject().getJsonArray("emails").getJsonObject(0).getString("subject"));
+        assertNull(list.bodyAsJsonObject().getJsonArray("emails").getJsonObject(0).getString("bodySha256"));
+
+        // Version inchangée : 304 sans corps, pour la liste comme pour le message
+        HttpResponse<Buffer> notModified = get(API + "/folders/inbox/emails", alice)
+            .putHeader("If-None-Match", etag).send().await();
+        assertEquals(304, notModified.statusCode());
+        assertNull(notModified.body());
+        String viewUri = API + "/folders/inbox/emails/" + emailId;
+        assertEquals(304, get(viewUri, alice).putHeader("If-None-Match", etag).send().await().statusCode());
+
+        // Un tag modifie la version : la lecture est de nouveau servie
+        assertEquals(204, client.put(viewUri + "/tags/important").bearerTokenAuthentication(alice)
+            .send().await().statusCode());
+        HttpResponse<Buffer> view = get(viewUri, alice).putHeader("If-None-Match", etag).send().await();
+        assertEquals(200, view.statusCode());
+        assertNotEquals(etag, view.getHeader("ETag"));
+        assertEquals("Message de bob", view.bodyAsJsonObject().getString("content"));
+        assertTrue(view.bodyAsJsonObject().getJsonArray("tags").contains("important"));
+
+        // Erreurs : corps JSON avec un message
+        HttpResponse<Buffer> unknownFolder = get(API + "/folders/archives/emails", alice).send().await();
+        assertEquals(404, unknownFolder.statusCode());
+        assertEquals("Dossier inconnu : archives", error(unknownFolder));
+        HttpResponse<Buffer> unknownEmail = get(API + "/folders/inbox/emails/absent", alice).send().await();
+        assertEquals(404, unknownEmail.statusCode());
+        assertEquals("Message non trouvé", error(unknownEmail));
+        HttpResponse<Buffer> badLimit = get(API + "/folders/inbox/emails?limit=beaucoup", alice).send().await();
+        assertEquals(400, badLimit.statusCode());
+        assertEquals("Paramètre limit invalide", error(badLimit));
+        HttpResponse<Buffer> unknownRecipient = client.post(API + "/emails").bearerTokenAuthentication(bob)
+            .sendJsonObject(new JsonObject().put("to", new JsonArray(List.of("inconnu"))).put("subject", "?")).await();
+        assertEquals(400, unknownRecipient.statusCode());
+        assertEquals("Destinataires non trouvés : inconnu", error(unknownRecipient));
+    }
+
+    @Test
+    void changes_are_listed_since_a_modseq(Vertx vertx) throws Exception {
+        String alice = token(vertx, "alice");
+        String bob = token(vertx, "bob");
+
+        // Première synchronisation : état complet
+        JsonObject initial = get(API + "/changes?folder=inbox", alice).send().await().bodyAsJsonObject();
+        assertTrue(initial.getBoolean("full"));
+        assertEquals(0, initial.getJsonArray("added").size());
+        String validity = initial.getString("validity");
+        long modseq = initial.getLong("modseq");
+
+        client.post(API + "/emails").bearerTokenAuthentication(bob)
+            .sendJsonObject(new JsonObject().put("to", new JsonArray(List.of("alice"))).put("subject", "Nouveau"))
+            .await();
+        String emailId = awaitInbox(alice, 1).getJsonObject(0).getString("id");
+
+        // Seul le nouveau message est renvoyé, aussi sous /mail/changes
+        String uri = "/changes?folder=inbox&validity=" + validity + "&since=" + modseq;
+        JsonObject changes = get(API + uri, alice).send().await().bodyAsJsonObject();
+        assertEquals(false, changes.getBoolean("full"));
+        assertEquals(false, changes.getBoolean("more"));
+        assertEquals(1, changes.getJsonArray("added").size());
+        assertEquals(emailId, changes.getJsonArray("added").getJsonObject(0).getString("id"));
+        assertTrue(changes.getLong("modseq") > modseq);
+        assertEquals(changes, get("/mail" + uri, alice).send().await().bodyAsJsonObject());
+
+        // Rien de nouveau depuis le dernier modseq
+        JsonObject empty = get(API + "/changes?folder=inbox&validity=" + validity + "&since=" + changes.getLong("modseq"),
+            alice).send().await().bodyAsJsonObject();
+        assertEquals(0, empty.getJsonArray("added").size());
+
+        HttpResponse<Buffer> badSince = get(API + "/changes?since=hier", alice).send().await();
+        assertEquals(400, badSince.statusCode());
+        assertEquals("Paramètre since ou limit invalide", error(badSince));
+        HttpResponse<Buffer> unknownFolder = get("/mail/changes?folder=archives", alice).send().await();
+        assertEquals(400, unknownFolder.statusCode());
+        assertTrue(error(unknownFolder).length() > 0);
+    }
+}
@@ -0,0 +1,215 @@
+package fr.uge.webmail.service;
+
+import fr.uge.webmail.model.Email;
+import fr.uge.webmail.model.EmailHeader;
+import fr.uge.webmail.model.MailboxChanges;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+public class TestAsyncMailboxService {
+
+    @TempDir
+    Path dataDir;
+
+    private MailboxService syncMailboxService;
+    private AsyncMailboxService mailboxService;
+    private String deploymentId;
+
+    @BeforeEach
+    void setUp(Vertx vertx, VertxTestContext testContext) throws Exception {
+        syncMailboxService = new MailboxService(dataDir, 2048);
+        syncMailboxService.createMailbox("alice");
+        mailboxService = new AsyncMailboxService(syncMailboxService, vertx.eventBus());
+        MailboxStorageVerticle.deploy(vertx, syncMailboxService, 4, "test-storage")
+            .onComplete(testContext.succeeding(id -> {
+                deploymentId = id;
+                testContext.completeNow();
+            }));
+    }
+
+    private Email newEmail(String subject, String content) {
+        return new Email("alice", List.of("bob"), subject, content);
+    }
+
+    @Test
+    void failures_are_propagated_to_the_caller() {
+        // Exception métier du service : même type et même message que l'appel synchrone
+        Email large = newEmail("Gros", "x".repeat(4096));
+        IllegalArgumentException quota = assertThrows(IllegalArgumentException.class,
+                () -> mailboxService.saveDraft("alice", large).await());
+        assertTrue(quota.getMessage().startsWith("Quota de stockage dépassé"));
+        assertThrows(IllegalArgumentException.class,
+                () -> mailboxService.getChanges("alice", "inconnu", null, 0, 10).await());
+
+        // Un échec ne laisse rien derrière lui : les opérations suivantes réussissent
+        Email small = newEmail("Petit", "Contenu");
+        mailboxService.saveDraft("alice", small).await();
+        assertEquals(List.of(small.getId()), mailboxService.listEmails("alice", MailboxService.DRAFT).await()
+                .stream().map(EmailHeader::getId).toList());
+        assertTrue(mailboxService.loadEmail("alice", MailboxService.DRAFT, "absent").await().isEmpty());
+        assertEquals("Contenu", mailboxService.loadEmail("alice", MailboxService.DRAFT, small.getId())
+                .await().orElseThrow().getContent());
+    }
+
+    @Test
+    void batched_operations_run_in_order_in_one_request() throws Exception {
+        StorageStats.Snapshot before = mailboxService.getStats();
+        Email draft = newEmail("Brouillon", "Contenu");
+        AsyncMailboxService.Batch batch = mailboxService.batch();
+        Future<Object> saved = batch.add(service -> {
+            service.saveDraft("alice", draft);
+            return null;
+        });
+        Future<MailboxChanges> unknown = batch.add(service -> service.getChanges("alice", "inconnu", null, 0, 10));
+        Future<List<EmailHeader>> drafts = batch.add(service -> service.listEmails("alice", MailboxService.DRAFT));
+        batch.send();
+
+        // Chaque opération a son résultat ; l'échec de la deuxième n'empêche pas la troisième,
+        // qui voit l'effet de la première
+        saved.await(5, TimeUnit.SECONDS);
+        assertThrows(IllegalArgumentException.class, () -> unknown.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(draft.getId()), drafts.await(5, TimeUnit.SECONDS).stream().map(EmailHeader::getId).toList());
+
+        StorageStats.Snapshot after = mailboxService.getStats();
+        assertEquals(1, after.requests() - before.requests());
+        assertEquals(3, after.operations() - before.operations());
+        assertEquals(0, after.pending());
+    }
+
+    @Test
+    void slow_requests_do_not_hold_back_the_following_ones() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncMailboxService.Batch slowBatch = mailboxService.batch();
+        Future<Object> slow = slowBatch.add(service -> {
+            release.await();
+            return null;
+        });
+        slowBatch.send();
+
+        // Plus de requêtes que de workers, l'une après l'autre : aucune n'attend la requête lente
+        for (int i = 0; i < 10; i++) {
+            mailboxService.listEmails("alice", MailboxService.INBOX).await(5, TimeUnit.SECONDS);
+        }
+        StorageStats.Snapshot blocked = mailboxService.getStats();
+        assertEquals(1, blocked.running());
+        assertEquals(0, blocked.queued());
+
+        release.countDown();
+        slow.await(5, TimeUnit.SECONDS);
+        StorageStats.Snapshot done = mailboxService.getStats();
+        assertEquals(11, done.requests());
+        assertEquals(0, done.pending());
+        assertTrue(done.runNanos() > 0);
+    }
+
+    @Test
+    void checked_exceptions_fail_the_future(VertxTestContext testContext) {
+        AsyncMailboxService.Batch batch = mailboxService.batch();
+        Future<Object> failed = batch.add(service -> {
+            throw new IOException("Disque indisponible");
+        });
+        batch.send();
+        failed.onComplete(testContext.failing(err -> testContext.verify(() -> {
+            assertInstanceOf(IOException.class, err);
+            assertEquals("Disque indisponible", err.getMessage());
+            testContext.completeNow();
+        })));
+    }
+
+    @Test
+    void errors_fail_only_their_operation() throws Exception {
+        AsyncMailboxService.Batch batch = mailboxService.batch();
+        Future<Object> broken = batch.add(service -> {
+            throw new AssertionError("Invariant rompu");
+        });
+        Future<List<EmailHeader>> inbox = batch.add(service -> service.listEmails("alice", MailboxService.INBOX));
+        batch.send();
+
+        // Une Error n'est pas une réussite, et l'opération suivante s'exécute normalement
+        AssertionError error = assertThrows(AssertionError.class, () -> broken.await(5, TimeUnit.SECONDS));
+        assertEquals("Invariant rompu", error.getMessage());
+        assertEquals(List.of(), inbox.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void requests_fail_when_no_storage_service_listens(Vertx vertx) {
+        vertx.undeploy(deploymentId).await();
+
+        // Démarrage ou arrêt : la requête échoue au lieu d'attendre indéfiniment
+        IOException failure = assertThrows(IOException.class,
+                () -> mailboxService.listEmails("alice", MailboxService.INBOX).await(5, TimeUnit.SECONDS));
+        assertTrue(failure.getMessage().startsWith("Service de stockage indisponible"));
+        assertEquals(0, mailboxService.getStats().pending());
+    }
+
+    @Test
+    void requests_without_a_reply_in_time_fail_and_are_not_run(Vertx vertx) throws Exception {
+        AsyncMailboxService impatient = new AsyncMailboxService(syncMailboxService, vertx.eventBus(), 200);
+        CountDownLatch release = new CountDownLatch(1);
+
+        // Tous les workers occupés au-delà du délai, puis une requête qui attend un worker
+        List<Future<Object>> blocked = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            AsyncMailboxService.Batch batch = impatient.batch();
+            blocked.add(batch.add(service -> {
+                release.await();
+                return null;
+            }));
+            batch.send();
+        }
+        AtomicBoolean ran = new AtomicBoolean();
+        AsyncMailboxService.Batch waiting = impatient.batch();
+        Future<Object> queued = waiting.add(service -> {
+            ran.set(true);
+            return null;
+        });
+        waiting.send();
+
+        for (Future<Object> future : blocked) {
+            assertThrows(IOException.class, () -> future.await(5, TimeUnit.SECONDS));
+        }
+        assertThrows(IOException.class, () -> queued.await(5, TimeUnit.SECONDS));
+
+        // Les workers libérés ne reprennent pas la requête abandonnée
+        release.countDown();
+        mailboxService.listEmails("alice", MailboxService.INBOX).await(5, TimeUnit.SECONDS);
+        assertFalse(ran.get());
+        assertEquals(0, impatient.getStats().queued());
+    }
+
+    @Test
+    void results_are_completed_on_the_caller_context(Vertx vertx, VertxTestContext testContext) {
+        Context caller = vertx.getOrCreateContext();
+        caller.runOnContext(v -> mailboxService.getChanges("alice", "inconnu", null, 0, 10)
+            .onComplete(ar -> testContext.verify(() -> {
+                // Le résultat revient sur la boucle d'événements de l'appelant, pas sur un worker
+                assertSame(caller, Vertx.currentContext());
+                assertTrue(Context.isOnEventLoopThread());
+                assertInstanceOf(IllegalArgumentException.class, ar.cause());
+                testContext.completeNow();
+            })));
+    }
+}
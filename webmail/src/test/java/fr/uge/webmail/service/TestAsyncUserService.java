@@ -0,0 +1,57 @@
+package fr.uge.webmail.service;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.junit5.VertxExtension;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+public class TestAsyncUserService {
+
+    private static final String PASSWORD = "Secret123!";
+
+    @TempDir
+    Path dataDir;
+
+    private WorkerExecutor executor;
+    private AsyncUserService userService;
+
+    @BeforeEach
+    void setUp(Vertx vertx) {
+        executor = vertx.createSharedWorkerExecutor("test-users", 2);
+        userService = new AsyncUserService(new UserService(new MailboxService(dataDir)), executor);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.close().await();
+    }
+
+    @Test
+    void failures_are_propagated_to_the_caller() {
+        userService.createUser("alice", PASSWORD).await();
+
+        IllegalArgumentException taken = assertThrows(IllegalArgumentException.class,
+                () -> userService.createUser("alice", PASSWORD).await());
+        assertEquals("Ce nom d'utilisateur est déjà pris.", taken.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> userService.createUser("a!", PASSWORD).await());
+        IllegalArgumentException wrongPassword = assertThrows(IllegalArgumentException.class,
+                () -> userService.changePassword("alice", "Mauvais123!", "Nouveau123!").await());
+        assertEquals("Ancien mot de passe incorrect", wrongPassword.getMessage());
+
+        // Un mot de passe incorrect n'est pas une erreur : pas de session
+        assertTrue(userService.authenticate("alice", "Mauvais123!", 60).await().isEmpty());
+        String token = userService.authenticate("alice", PASSWORD, 60).await().orElseThrow();
+        assertEquals("alice", userService.validateSession(token).orElseThrow());
+    }
+}
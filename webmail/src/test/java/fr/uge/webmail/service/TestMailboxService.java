@@ -0,0 +1,643 @@
+package fr.uge.webmail.service;
+
+import fr.uge.webmail.model.Attachment;
+import fr.uge.webmail.model.DeliveryStatus;
+import fr.uge.webmail.model.Email;
+import fr.uge.webmail.model.EmailHeader;
+import fr.uge.webmail.model.EmailPage;
+import fr.uge.webmail.model.MailboxChanges;
+import fr.uge.webmail.util.AtomicFileWriter;
+import fr.uge.webmail.util.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestMailboxService {
+
+    @TempDir
+    Path dataDir;
+
+    private MailboxService mailboxService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        mailboxService = new MailboxService(dataDir);
+        mailboxService.createMailbox("alice");
+        mailboxService.createMailbox("bob");
+    }
+
+    private Email newEmail(String from, String to, String subject, LocalDateTime date) {
+        Email email = new Email(from, List.of(to), subject, "Contenu de " + subject);
+        email.setDate(date);
+        return email;
+    }
+
+    @Test
+    void index_tracks_saves_moves_and_deletes() throws Exception {
+        LocalDateTime now = LocalDateTime.now().withNano(0);
+        Email older = newEmail("bob", "alice", "Ancien", now.minusHours(1));
+        Email newer = newEmail("bob", "alice", "Récent", now);
+        mailboxService.saveEmail("alice", MailboxService.INBOX, older);
+        mailboxService.saveEmail("alice", MailboxService.INBOX, newer);
+
+        List<EmailHeader> inbox = mailboxService.listEmails("alice", MailboxService.INBOX);
+        assertEquals(List.of(newer.getId(), older.getId()), inbox.stream().map(EmailHeader::getId).toList());
+        assertEquals(2, mailboxService.countUnreadEmails("alice", MailboxService.INBOX));
+
+        mailboxService.markAsRead("alice", MailboxService.INBOX, older.getId());
+        assertEquals(1, mailboxService.countUnreadEmails("alice", MailboxService.INBOX));
+
+        mailboxService.deleteEmail("alice", MailboxService.INBOX, newer.getId());
+        assertEquals(1, mailboxService.listEmails("alice", MailboxService.INBOX).size());
+        assertEquals(1, mailboxService.listEmails("alice", MailboxService.TRASH).size());
+        assertEquals(1, mailboxService.filterEmails("alice", MailboxService.TRASH, "réc").size());
+    }
+
+    @Test
+    void index_is_reloaded_from_journal_and_rebuilt_when_stale() throws Exception {
+        Email email = newEmail("bob", "alice", "Bonjour", LocalDateTime.now().withNano(0));
+        mailboxService.saveEmail("alice", MailboxService.INBOX, email);
+
+        // Nouvelle instance : l'index est relu depuis le journal
+        MailboxService reloaded = new MailboxService(dataDir);
+        assertEquals(1, reloaded.listEmails("alice", MailboxService.INBOX).size());
+
+        // Fichier supprimé hors de l'index : l'index est reconstruit
+        Thread.sleep(10);
+        Files.delete(dataDir.resolve("mailboxes/alice/inbox/" + email.getId() + ".json"));
+        assertTrue(reloaded.listEmails("alice", MailboxService.INBOX).isEmpty());
+    }
+
+    @Test
+    void pages_follow_cursors_in_date_order() throws Exception {
+        LocalDateTime now = LocalDateTime.now().withNano(0);
+        for (int i = 0; i < 5; i++) {
+            mailboxService.saveEmail("alice", MailboxService.INBOX, newEmail("bob", "alice", "Message " + i, now.minusMinutes(i)));
+        }
+        List<EmailHeader> all = mailboxService.listEmails("alice", MailboxService.INBOX);
+
+        EmailPage first = mailboxService.listEmails("alice", MailboxService.INBOX, null, 2);
+        assertEquals(all.subList(0, 2), first.getEmails());
+        EmailPage second = mailboxService.listEmails("alice", MailboxService.INBOX, first.getNextCursor().orElseThrow(), 2);
+        assertEquals(all.subList(2, 4), second.getEmails());
+        EmailPage last = mailboxService.listEmails("alice", MailboxService.INBOX, second.getNextCursor().orElseThrow(), 2);
+        assertEquals(all.subList(4, 5), last.getEmails());
+        assertTrue(last.getNextCursor().isEmpty());
+
+        // Le curseur reste valide après suppression de l'email qui l'a produit
+        mailboxService.deleteEmail("alice", MailboxService.INBOX, all.get(1).getId());
+        assertEquals(all.subList(2, 4),
+                mailboxService.listEmails("alice", MailboxService.INBOX, first.getNextCursor().orElseThrow(), 2).getEmails());
+
+        EmailPage filtered = mailboxService.filterEmails("alice", MailboxService.INBOX, "message", null, 3);
+        assertEquals(3, filtered.getEmails().size());
+        assertTrue(filtered.hasNextPage());
+    }
+
+    @Test
+    void search_covers_bodies_with_accent_folding_and_prefixes() throws Exception {
+        Email email = newEmail("bob", "alice", "Réunion", LocalDateTime.now().withNano(0));
+        email.setContent("Rendez-vous à l'école élémentaire demain");
+        mailboxService.saveEmail("alice", MailboxService.INBOX, email);
+        mailboxService.saveEmail("alice", MailboxService.INBOX, newEmail("carol", "alice", "Autre", LocalDateTime.now().withNano(0)));
+
+        // Première recherche : l'index est construit à partir des emails existants
+        assertEquals(1, mailboxService.filterEmails("alice", MailboxService.INBOX, "ecole elem").size());
+        // Les critères de l'ancien filtre (sous-chaîne de l'expéditeur) restent valables
+        assertEquals(1, mailboxService.filterEmails("alice", MailboxService.INBOX, "aro").size());
+        assertTrue(mailboxService.filterEmails("alice", MailboxService.INBOX, "piscine").isEmpty());
+
+        Email later = newEmail("bob", "alice", "Suite", LocalDateTime.now().withNano(0));
+        later.setContent("Retour à l'ÉCOLE");
+        mailboxService.saveEmail("alice", MailboxService.INBOX, later);
+        mailboxService.deleteEmail("alice", MailboxService.INBOX, email.getId());
+
+        // Nouvelle instance : l'index est relu depuis l'instantané et le journal
+        MailboxService reloaded = new MailboxService(dataDir);
+        assertEquals(List.of(later.getId()), reloaded.filterEmails("alice", MailboxService.INBOX, "école")
+                .stream().map(EmailHeader::getId).toList());
+        assertEquals(1, reloaded.filterEmails("alice", MailboxService.TRASH, "élémentaire").size());
+    }
+
+    @Test
+    void storage_ledger_matches_reconciliation() throws Exception {
+        Attachment attachment = mailboxService.saveAttachment("a.txt", "text/plain", new byte[1000]);
+        Email email = newEmail("alice", "bob", "Avec pièce jointe", LocalDateTime.now().withNano(0));
+        email.addAttachment(attachment);
+        mailboxService.sendEmail(email);
+        mailboxService.saveDraft("alice", newEmail("alice", "bob", "Brouillon", LocalDateTime.now().withNano(0)));
+        mailboxService.deleteEmail("alice", MailboxService.OUTBOX, email.getId());
+
+        long incremental = mailboxService.calculateTotalUserStorage("alice");
+        assertTrue(incremental > 1000);
+        assertEquals(mailboxService.reconcileStorage("alice"), incremental);
+
+        mailboxService.deleteEmail("alice", MailboxService.TRASH, email.getId());
+        long withoutAttachment = mailboxService.calculateTotalUserStorage("alice");
+        assertTrue(withoutAttachment < 1000);
+        assertEquals(mailboxService.reconcileStorage("alice"), withoutAttachment);
+    }
+
+    @Test
+    void attachments_are_reference_counted_and_collected() throws Exception {
+        Attachment shared = mailboxService.saveAttachment("a.txt", "text/plain", "partagé".getBytes());
+        Attachment orphan = mailboxService.saveAttachment("b.txt", "text/plain", "jamais envoyé".getBytes());
+        Email email = newEmail("alice", "bob", "Pièce jointe", LocalDateTime.now().withNano(0));
+        email.addAttachment(shared);
+        mailboxService.sendEmail(email);
+        assertEquals(2, mailboxService.countAttachmentReferences(shared.getSha256()));
+
+        // Le délai de grâce protège les uploads récents
+        assertEquals(0, mailboxService.collectAttachmentGarbage(Duration.ofHours(1)));
+        assertEquals(1, mailboxService.collectAttachmentGarbage(Duration.ZERO));
+        assertTrue(mailboxService.getAttachmentFile(orphan.getSha256()).isEmpty());
+
+        mailboxService.deleteEmail("alice", MailboxService.OUTBOX, email.getId());
+        mailboxService.deleteEmail("alice", MailboxService.TRASH, email.getId());
+        assertEquals(1, mailboxService.countAttachmentReferences(shared.getSha256()));
+        assertEquals(0, mailboxService.collectAttachmentGarbage(Duration.ZERO));
+        assertTrue(new MailboxService(dataDir).verifyAttachments(false).isConsistent());
+
+        String bobCopy = mailboxService.listEmails("bob", MailboxService.INBOX).get(0).getId();
+        mailboxService.deleteEmail("bob", MailboxService.INBOX, bobCopy);
+        mailboxService.deleteEmail("bob", MailboxService.TRASH, bobCopy);
+        assertEquals(1, mailboxService.collectAttachmentGarbage(Duration.ZERO));
+
+        // Table des références perdue : elle est recalculée à partir des emails
+        Files.delete(dataDir.resolve("attachments/.refs"));
+        AttachmentReport report = new MailboxService(dataDir).verifyAttachments(true);
+        assertTrue(report.isConsistent());
+        assertEquals(0, report.blobs());
+    }
+
+    @Test
+    void bodies_are_stored_apart_and_loaded_lazily() throws Exception {
+        Email email = newEmail("bob", "alice", "Séparé", LocalDateTime.now().withNano(0));
+        mailboxService.saveEmail("alice", MailboxService.INBOX, email);
+        Path header = dataDir.resolve("mailboxes/alice/inbox/" + email.getId() + ".json");
+        Path body = dataDir.resolve("bodies/" + email.getBodySha256());
+        assertEquals("Contenu de Séparé", Files.readString(body));
+        assertFalse(Files.readString(header).contains("\"content\""));
+
+        // Les tags sont modifiés sans lire ni réécrire le contenu
+        // (nouvelle instance : le contenu d'origine est dans le cache de la première)
+        Files.writeString(body, "Modifié hors ligne");
+        MailboxService reloaded = new MailboxService(dataDir);
+        reloaded.markAsRead("alice", MailboxService.INBOX, email.getId());
+        Email loaded = reloaded.loadEmail("alice", MailboxService.INBOX, email.getId()).orElseThrow();
+        assertFalse(loaded.isContentLoaded());
+        assertFalse(loaded.isUnread());
+        assertEquals("Modifié hors ligne", loaded.getContent());
+
+        // Le déplacement ne touche pas au contenu
+        reloaded.deleteEmail("alice", MailboxService.INBOX, email.getId());
+        assertTrue(Files.exists(body));
+        assertEquals("Modifié hors ligne", reloaded.loadEmail("alice", MailboxService.TRASH, email.getId())
+                .orElseThrow().getContent());
+    }
+
+    @Test
+    void sent_bodies_are_stored_once_and_reference_counted() throws Exception {
+        mailboxService.createMailbox("carol");
+        Email email = new Email("alice", List.of("bob", "carol"), "Annonce", "Contenu partagé");
+        mailboxService.sendEmail(email);
+
+        AttachmentReport report = mailboxService.verifyBodies(false);
+        assertEquals(1, report.blobs());
+        assertTrue(report.isConsistent());
+
+        // Chaque destinataire supprime sa copie indépendamment
+        String bobCopy = mailboxService.listEmails("bob", MailboxService.INBOX).get(0).getId();
+        mailboxService.deleteEmail("bob", MailboxService.INBOX, bobCopy);
+        mailboxService.deleteEmail("bob", MailboxService.TRASH, bobCopy);
+        assertEquals(0, mailboxService.collectBodyGarbage(Duration.ZERO));
+        String carolCopy = mailboxService.listEmails("carol", MailboxService.INBOX).get(0).getId();
+        assertEquals("Contenu partagé",
+                mailboxService.loadEmail("carol", MailboxService.INBOX, carolCopy).orElseThrow().getContent());
+
+        mailboxService.deleteEmail("carol", MailboxService.INBOX, carolCopy);
+        mailboxService.deleteEmail("carol", MailboxService.TRASH, carolCopy);
+        mailboxService.deleteEmail("alice", MailboxService.OUTBOX, email.getId());
+        mailboxService.deleteEmail("alice", MailboxService.TRASH, email.getId());
+        assertEquals(1, mailboxService.collectBodyGarbage(Duration.ZERO));
+        assertTrue(mailboxService.verifyBodies(false).isConsistent());
+    }
+
+    @Test
+    void queued_emails_are_delivered_after_restart() throws Exception {
+        Email email = new Email("alice", List.of("bob", "inconnu"), "File", "Distribué plus tard");
+        String id = mailboxService.queueEmail(email);
+        assertTrue(mailboxService.listEmails("bob", MailboxService.INBOX).isEmpty());
+        assertTrue(mailboxService.listEmails("alice", MailboxService.OUTBOX).get(0).isDeliveryPending());
+
+        // Après un redémarrage, l'envoi est toujours dans la file
+        MailboxService restarted = new MailboxService(dataDir);
+        assertEquals(List.of(id), restarted.listQueuedEmails());
+        assertTrue(restarted.deliver(id, false));
+        assertFalse(restarted.deliver(id, false));
+        assertTrue(restarted.listQueuedEmails().isEmpty());
+
+        assertEquals("Distribué plus tard", restarted.loadEmail("bob", MailboxService.INBOX,
+                restarted.listEmails("bob", MailboxService.INBOX).get(0).getId()).orElseThrow().getContent());
+        EmailHeader sent = restarted.listEmails("alice", MailboxService.OUTBOX).get(0);
+        assertEquals(DeliveryStatus.DELIVERED, sent.getDelivery().get("bob"));
+        assertEquals(DeliveryStatus.FAILED, sent.getDelivery().get("inconnu"));
+        assertTrue(restarted.verifyBodies(false).isConsistent());
+    }
+
+    @Test
+    void interrupted_deliveries_are_resumed_without_duplicates() throws Exception {
+        mailboxService.createMailbox("carol");
+        Email email = new Email("alice", List.of("bob", "carol"), "Reprise", "Distribué deux fois ?");
+        String id = mailboxService.queueEmail(email);
+
+        // La boîte de carol est inaccessible : la distribution s'interrompt après la copie de bob
+        Path carolInbox = dataDir.resolve("mailboxes/carol/inbox");
+        Files.delete(carolInbox);
+        Files.writeString(carolInbox, "");
+        assertThrows(Exception.class, () -> mailboxService.deliver(id, false));
+        assertEquals(List.of(id), mailboxService.listQueuedEmails());
+
+        // Entre-temps, bob lit sa copie et la met à la corbeille
+        String bobCopy = mailboxService.listEmails("bob", MailboxService.INBOX).get(0).getId();
+        mailboxService.deleteEmail("bob", MailboxService.INBOX, bobCopy);
+
+        // La reprise (ici après redémarrage) complète la distribution sans recréer la copie de bob
+        Files.delete(carolInbox);
+        Files.createDirectory(carolInbox);
+        MailboxService restarted = new MailboxService(dataDir);
+        assertTrue(restarted.deliver(id, false));
+        assertTrue(restarted.listEmails("bob", MailboxService.INBOX).isEmpty());
+        assertEquals(List.of(bobCopy), restarted.listEmails("bob", MailboxService.TRASH).stream()
+                .map(EmailHeader::getId).toList());
+        assertEquals(1, restarted.listEmails("carol", MailboxService.INBOX).size());
+        EmailHeader sent = restarted.listEmails("alice", MailboxService.OUTBOX).get(0);
+        assertEquals(DeliveryStatus.DELIVERED, sent.getDelivery().get("bob"));
+        assertEquals(DeliveryStatus.DELIVERED, sent.getDelivery().get("carol"));
+    }
+
+    @Test
+    void repeated_loads_are_served_from_cache_and_invalidated_on_changes() throws Exception {
+        Email draft = newEmail("alice", "bob", "Brouillon", LocalDateTime.now().withNano(0));
+        mailboxService.saveDraft("alice", draft);
+
+        // L'en-tête est en cache dès l'enregistrement, le contenu dès sa première lecture
+        long headerHits = mailboxService.getHeaderCacheStats().hits();
+        long headerMisses = mailboxService.getHeaderCacheStats().misses();
+        long bodyMisses = mailboxService.getBodyCacheStats().misses();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("Contenu de Brouillon", mailboxService.loadEmail("alice", MailboxService.DRAFT, draft.getId())
+                    .orElseThrow().getContent());
+        }
+        assertEquals(headerHits + 3, mailboxService.getHeaderCacheStats().hits());
+        assertEquals(headerMisses, mailboxService.getHeaderCacheStats().misses());
+        assertTrue(mailboxService.getBodyCacheStats().misses() <= bodyMisses + 1);
+
+        // Chaque chargement retourne un nouvel objet : le modifier ne change pas le cache
+        mailboxService.loadEmail("alice", MailboxService.DRAFT, draft.getId()).orElseThrow().setSubject("Modifié");
+        assertEquals("Brouillon", mailboxService.loadEmail("alice", MailboxService.DRAFT, draft.getId())
+                .orElseThrow().getSubject());
+
+        draft.setSubject("Nouveau sujet");
+        mailboxService.saveDraft("alice", draft);
+        assertEquals("Nouveau sujet", mailboxService.loadEmail("alice", MailboxService.DRAFT, draft.getId())
+                .orElseThrow().getSubject());
+
+        mailboxService.deleteEmail("alice", MailboxService.DRAFT, draft.getId());
+        assertTrue(mailboxService.loadEmail("alice", MailboxService.DRAFT, draft.getId()).isEmpty());
+        assertEquals("Nouveau sujet", mailboxService.loadEmail("alice", MailboxService.TRASH, draft.getId())
+                .orElseThrow().getSubject());
+        mailboxService.deleteEmail("alice", MailboxService.TRASH, draft.getId());
+        assertTrue(mailboxService.loadEmail("alice", MailboxService.TRASH, draft.getId()).isEmpty());
+    }
+
+    @Test
+    void mailbox_existence_is_kept_in_memory() throws Exception {
+        assertTrue(mailboxService.mailboxExists("alice"));
+        assertFalse(mailboxService.mailboxExists("carol"));
+        assertFalse(mailboxService.mailboxExists(".."));
+
+        // Boîte créée hors de l'application : connue après relecture
+        Files.createDirectories(dataDir.resolve("mailboxes/carol"));
+        assertFalse(mailboxService.mailboxExists("carol"));
+        mailboxService.refreshMailbox("carol");
+        assertTrue(mailboxService.mailboxExists("carol"));
+        assertTrue(new MailboxService(dataDir).listMailboxes().contains("carol"));
+    }
+
+    @Test
+    void tag_changes_leave_email_files_untouched() throws Exception {
+        Email email = newEmail("bob", "alice", "Tags", LocalDateTime.now().withNano(0));
+        mailboxService.saveEmail("alice", MailboxService.INBOX, email);
+        Path header = dataDir.resolve("mailboxes/alice/inbox/" + email.getId() + ".json");
+        String stored = Files.readString(header);
+
+        mailboxService.markAsRead("alice", MailboxService.INBOX, email.getId());
+        mailboxService.toggleTag("alice", MailboxService.INBOX, email.getId(), "important");
+        mailboxService.toggleTag("alice", MailboxService.INBOX, email.getId(), "projet");
+        assertEquals(stored, Files.readString(header));
+        assertEquals(0, mailboxService.countUnreadEmails("alice", MailboxService.INBOX));
+
+        // Les tags sont réappliqués au rechargement de l'index, puis à sa reconstruction
+        MailboxService reloaded = new MailboxService(dataDir);
+        assertEquals(Set.of("important", "projet"),
+                reloaded.listEmails("alice", MailboxService.INBOX).get(0).getTags());
+        reloaded.rebuildIndex("alice", MailboxService.INBOX);
+        assertEquals(0, reloaded.countUnreadEmails("alice", MailboxService.INBOX));
+        assertEquals(Set.of("important", "projet"),
+                reloaded.loadEmail("alice", MailboxService.INBOX, email.getId()).orElseThrow().getTags());
+
+        // Les tags suivent l'email dans la corbeille
+        reloaded.deleteEmail("alice", MailboxService.INBOX, email.getId());
+        assertEquals(Set.of("important", "projet"),
+                new MailboxService(dataDir).listEmails("alice", MailboxService.TRASH).get(0).getTags());
+    }
+
+    @Test
+    void legacy_emails_are_readable_and_migrated() throws Exception {
+        Path inbox = dataDir.resolve("mailboxes/alice/inbox");
+        Files.writeString(inbox.resolve("legacy.json"), """
+                {
+                  "id" : "legacy",
+                  "from" : "bob",
+                  "to" : [ "alice" ],
+                  "subject" : "Ancien format",
+                  "content" : "Contenu historique",
+                  "date" : "2025-01-01T10:00:00",
+                  "attachments" : [ ],
+                  "tags" : [ "unread" ],
+                  "folder" : "inbox",
+                  "unread" : true,
+                  "contentPreview" : "Contenu historique"
+                }
+                """);
+        assertEquals("Contenu historique",
+                mailboxService.loadEmail("alice", MailboxService.INBOX, "legacy").orElseThrow().getContent());
+        assertEquals(1, mailboxService.listEmails("alice", MailboxService.INBOX).size());
+
+        // Horodatage grossier : la conversion ne change pas la date du dossier
+        FileTime folderTime = Files.getLastModifiedTime(inbox);
+        assertEquals(1, mailboxService.migrateStorage("alice"));
+        Files.setLastModifiedTime(inbox, folderTime);
+        assertEquals(0, mailboxService.migrateStorage("alice"));
+        assertFalse(Files.readString(inbox.resolve("legacy.json")).contains("\"content\""));
+        assertTrue(new MailboxService(dataDir).verifyBodies(false).isConsistent());
+        assertEquals("Contenu historique",
+                mailboxService.loadEmail("alice", MailboxService.INBOX, "legacy").orElseThrow().getContent());
+        assertEquals(mailboxService.reconcileStorage("alice"), mailboxService.calculateTotalUserStorage("alice"));
+
+        // L'index et le cache des en-têtes suivent la conversion, sans relecture du dossier
+        String sha256 = FileUtils.sha256("Contenu historique".getBytes(StandardCharsets.UTF_8));
+        assertEquals(sha256, mailboxService.listEmails("alice", MailboxService.INBOX).get(0).getBodySha256());
+        assertEquals(sha256, mailboxService.loadEmail("alice", MailboxService.INBOX, "legacy").orElseThrow().getBodySha256());
+        assertTrue(mailboxService.listEmails("alice", MailboxService.INBOX).get(0).getTags().contains("unread"));
+        mailboxService.deleteEmail("alice", MailboxService.INBOX, "legacy");
+        assertTrue(new MailboxService(dataDir).verifyBodies(false).isConsistent());
+    }
+
+    @Test
+    void concurrent_saves_are_group_committed() throws Exception {
+        // Un écrivain par boîte : les fsync des différentes boîtes sont regroupés
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> saves = new ArrayList<>();
+        for (int user = 0; user < 8; user++) {
+            String username = "user" + user;
+            mailboxService.createMailbox(username);
+            saves.add(executor.submit(() -> {
+                for (int i = 0; i < 10; i++) {
+                    mailboxService.saveEmail(username, MailboxService.INBOX,
+                            newEmail("bob", username, "Message " + i, LocalDateTime.now().withNano(0)));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> save : saves) {
+            save.get();
+        }
+        executor.shutdown();
+
+        List<EmailHeader> inbox = mailboxService.listEmails("user0", MailboxService.INBOX);
+        assertEquals(10, inbox.size());
+        mailboxService.deleteEmail("user0", MailboxService.INBOX, inbox.get(0).getId());
+        // Aucun fichier temporaire restant
+        try (Stream<Path> files = Files.list(dataDir.resolve("mailboxes/user0/inbox"))) {
+            assertEquals(9, files.count());
+        }
+        try (Stream<Path> files = Files.list(dataDir.resolve("mailboxes/user0/trash"))) {
+            assertEquals(1, files.count());
+        }
+        assertEquals("Contenu de " + inbox.get(0).getSubject(), mailboxService
+                .loadEmail("user0", MailboxService.TRASH, inbox.get(0).getId()).orElseThrow().getContent());
+    }
+
+    @Test
+    void concurrent_saves_share_the_reference_journal_sync() throws Exception {
+        // Fenêtre large : les écritures simultanées rejoignent le même lot
+        AtomicFileWriter fileWriter = new AtomicFileWriter(AtomicFileWriter.SyncPolicy.GROUP, 50_000);
+        MailboxService service = new MailboxService(dataDir, 0, fileWriter);
+        int writers = 8;
+        for (int user = 0; user < writers; user++) {
+            service.createMailbox("user" + user);
+        }
+
+        // Lots d'un enregistrement seul, pièce jointe et contenu compris
+        Email alone = newEmail("bob", "user0", "Seul", LocalDateTime.now().withNano(0));
+        alone.addAttachment(service.saveAttachment("seul.txt", "text/plain", "seul".getBytes()));
+        long before = fileWriter.getSyncStats().batches();
+        service.saveEmail("user0", MailboxService.INBOX, alone);
+        long batchesPerSave = fileWriter.getSyncStats().batches() - before;
+
+        // Un écrivain par boîte, chacun avec sa pièce jointe : les ajouts au journal des
+        // références ne s'attendent pas les uns les autres
+        List<Email> emails = new ArrayList<>();
+        for (int user = 0; user < writers; user++) {
+            Email email = newEmail("bob", "user" + user, "Message " + user, LocalDateTime.now().withNano(0));
+            email.addAttachment(service.saveAttachment(user + ".txt", "text/plain", ("pièce " + user).getBytes()));
+            emails.add(email);
+        }
+        CyclicBarrier start = new CyclicBarrier(writers);
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        List<Future<?>> saves = new ArrayList<>();
+        before = fileWriter.getSyncStats().batches();
+        for (int user = 0; user < writers; user++) {
+            String username = "user" + user;
+            Email email = emails.get(user);
+            saves.add(executor.submit(() -> {
+                start.await();
+                service.saveEmail(username, MailboxService.INBOX, email);
+                return null;
+            }));
+        }
+        for (Future<?> save : saves) {
+            save.get();
+        }
+        executor.shutdown();
+        long concurrentBatches = fileWriter.getSyncStats().batches() - before;
+
+        // Un journal synchronisé sous le verrou du stockage coûterait au moins un lot par écrivain
+        assertTrue(concurrentBatches < batchesPerSave + writers,
+                concurrentBatches + " lots pour " + writers + " enregistrements, " + batchesPerSave + " pour un seul");
+        for (Email email : emails) {
+            assertEquals(1, service.countAttachmentReferences(email.getAttachments().get(0).getSha256()));
+        }
+        assertTrue(new MailboxService(dataDir).verifyAttachments(false).isConsistent());
+        assertTrue(new MailboxService(dataDir).verifyBodies(false).isConsistent());
+    }
+
+    @Test
+    void concurrent_writes_to_one_mailbox_are_serialized() throws Exception {
+        // Plusieurs écrivains dans le même dossier, avec lectures de l'index pendant les écritures
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int writer = 0; writer < 8; writer++) {
+            int number = writer;
+            writers.add(executor.submit(() -> {
+                for (int i = 0; i < 20; i++) {
+                    Email email = newEmail("bob", "alice", "Message " + number + "-" + i, LocalDateTime.now().withNano(0));
+                    mailboxService.saveEmail("alice", MailboxService.INBOX, email);
+                    mailboxService.markAsRead("alice", MailboxService.INBOX, email.getId());
+                    if (i % 4 == 0) {
+                        mailboxService.deleteEmail("alice", MailboxService.INBOX, email.getId());
+                    }
+                    mailboxService.listEmails("alice", MailboxService.INBOX);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        executor.shutdown();
+
+        assertEquals(120, mailboxService.listEmails("alice", MailboxService.INBOX).size());
+        assertEquals(40, mailboxService.listEmails("alice", MailboxService.TRASH).size());
+        assertEquals(0, mailboxService.countUnreadEmails("alice", MailboxService.INBOX));
+
+        // Index, tags et registre persistés cohérents avec le disque
+        MailboxService reloaded = new MailboxService(dataDir);
+        assertEquals(120, reloaded.listEmails("alice", MailboxService.INBOX).size());
+        assertEquals(0, reloaded.countUnreadEmails("alice", MailboxService.INBOX));
+        long total = reloaded.calculateTotalUserStorage("alice");
+        assertEquals(reloaded.reconcileStorage("alice"), total);
+    }
+
+    @Test
+    void quota_rejects_oversized_drafts() throws Exception {
+        MailboxService limited = new MailboxService(dataDir, 2048);
+        Email small = newEmail("alice", "bob", "Petit", LocalDateTime.now().withNano(0));
+        limited.saveDraft("alice", small);
+
+        Email large = newEmail("alice", "bob", "Gros", LocalDateTime.now().withNano(0));
+        large.setContent("x".repeat(4096));
+        assertThrows(IllegalArgumentException.class, () -> limited.saveDraft("alice", large));
+    }
+
+    @Test
+    void mailboxes_move_to_an_added_storage_root() throws Exception {
+        List<String> users = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            users.add("user" + i);
+            mailboxService.createMailbox("user" + i);
+        }
+        Email email = new Email("alice", users, "Annonce", "Avant l'ajout du disque");
+        mailboxService.sendEmail(email);
+
+        // Nouvelle racine : les boîtes restent lisibles là où elles sont, puis sont recopiées
+        List<Path> roots = List.of(dataDir, dataDir.resolve("disque2"));
+        MailboxService sharded = new MailboxService(dataDir, roots, 0,
+                new AtomicFileWriter(AtomicFileWriter.SyncPolicy.NONE), MailboxService.DEFAULT_CACHE_SIZE_BYTES);
+        MailboxPlacement placement = new MailboxPlacement(roots);
+        List<String> moving = users.stream().filter(user -> !placement.owner(user).equals(dataDir)).toList();
+        assertFalse(moving.isEmpty());
+        assertEquals(1, sharded.listEmails(moving.get(0), MailboxService.INBOX).size());
+
+        long movingMailboxes = sharded.listMailboxes().stream()
+                .filter(user -> !placement.owner(user).equals(dataDir))
+                .count();
+        assertEquals(movingMailboxes, sharded.rebalanceMailboxes());
+        for (String user : moving) {
+            assertTrue(sharded.getUserDirectory(user).startsWith(roots.get(1)));
+            EmailHeader header = sharded.listEmails(user, MailboxService.INBOX).get(0);
+            assertEquals("Avant l'ajout du disque",
+                    sharded.loadEmail(user, MailboxService.INBOX, header.getId()).orElseThrow().getContent());
+        }
+
+        // Passage suivant : rien à déplacer, les anciennes copies sont supprimées
+        assertEquals(0, sharded.rebalanceMailboxes());
+        assertFalse(Files.exists(dataDir.resolve("mailboxes").resolve(moving.get(0))));
+
+        // Chaque copie d'un envoi est écrite sur la racine de son destinataire
+        sharded.sendEmail(new Email("alice", users, "Après", "Après l'ajout du disque"));
+        for (String user : users) {
+            assertEquals(2, sharded.listEmails(user, MailboxService.INBOX).size());
+            assertTrue(Files.isDirectory(placement.owner(user).resolve("mailboxes").resolve(user).resolve(MailboxService.INBOX)));
+        }
+        MailboxService restarted = new MailboxService(dataDir, roots, 0,
+                new AtomicFileWriter(AtomicFileWriter.SyncPolicy.NONE), MailboxService.DEFAULT_CACHE_SIZE_BYTES);
+        assertTrue(restarted.listMailboxes().containsAll(users));
+        assertEquals(2, restarted.listEmails(moving.get(0), MailboxService.INBOX).size());
+        assertTrue(restarted.verifyBodies(false).isConsistent());
+    }
+
+    @Test
+    void changes_since_a_modseq_list_only_what_changed() throws Exception {
+        LocalDateTime now = LocalDateTime.now().withNano(0);
+        Email kept = newEmail("bob", "alice", "Conservé", now.minusHours(2));
+        Email flagged = newEmail("bob", "alice", "Marqué", now.minusHours(1));
+        Email deleted = newEmail("bob", "alice", "Supprimé", now);
+        for (Email email : List.of(kept, flagged, deleted)) {
+            mailboxService.saveEmail("alice", MailboxService.INBOX, email);
+        }
+
+        // Première synchronisation : tout le contenu de la boîte
+        MailboxChanges initial = mailboxService.getChanges("alice", null, null, 0, 100);
+        assertTrue(initial.isFull());
+        assertEquals(3, initial.getAdded().size());
+
+        mailboxService.markAsRead("alice", MailboxService.INBOX, flagged.getId());
+        mailboxService.deleteEmail("alice", MailboxService.INBOX, deleted.getId());
+        Email added = newEmail("bob", "alice", "Nouveau", now);
+        mailboxService.saveEmail("alice", MailboxService.INBOX, added);
+
+        MailboxChanges delta = mailboxService.getChanges("alice", MailboxService.INBOX,
+                initial.getValidity(), initial.getModseq(), 100);
+        assertFalse(delta.isFull());
+        assertEquals(List.of(added.getId()), delta.getAdded().stream().map(entry -> entry.header().getId()).toList());
+        assertEquals(List.of(flagged.getId()), delta.getChanged().stream().map(entry -> entry.header().getId()).toList());
+        assertFalse(delta.getChanged().get(0).header().isUnread());
+        assertEquals(List.of(deleted.getId()), delta.getRemoved().stream().map(MailboxChanges.Removal::id).toList());
+
+        // Changements paginés, puis modseq conservé au redémarrage
+        MailboxChanges first = mailboxService.getChanges("alice", null, initial.getValidity(), initial.getModseq(), 2);
+        assertTrue(first.hasMore());
+        MailboxChanges rest = mailboxService.getChanges("alice", null, first.getValidity(), first.getModseq(), 2);
+        assertFalse(rest.hasMore());
+        MailboxService reloaded = new MailboxService(dataDir);
+        MailboxChanges none = reloaded.getChanges("alice", null, rest.getValidity(), rest.getModseq(), 100);
+        assertFalse(none.isFull());
+        assertTrue(none.getAdded().isEmpty() && none.getChanged().isEmpty() && none.getRemoved().isEmpty());
+
+        // Un autre journal (validité différente) impose une synchronisation complète
+        assertTrue(reloaded.getChanges("alice", null, "autre", rest.getModseq(), 100).isFull());
+    }
+}
@@ -0,0 +1,120 @@
+package fr.uge.webmail.service;
+
+import fr.uge.webmail.model.Email;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestMaintenanceService {
+
+    @TempDir
+    Path dataDir;
+
+    private MailboxService mailboxService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        mailboxService = new MailboxService(dataDir);
+        mailboxService.createMailbox("alice");
+    }
+
+    /**
+     * Maintenance sans Vert.x : seules les files d'expiration et la purge sont utilisées.
+     */
+    private MaintenanceService maintenance(MailboxService service) throws IOException {
+        MaintenanceService maintenance = new MaintenanceService(null, service, null,
+                MaintenanceService.DEFAULT_RETENTION_DAYS, 60_000, 100, 60_000, Duration.ZERO);
+        service.addListener(maintenance);
+        maintenance.loadExpiryQueues();
+        return maintenance;
+    }
+
+    private Email oldEmail(String subject) {
+        Email email = new Email("bob", List.of("alice"), subject, "Contenu de " + subject);
+        email.setDate(LocalDateTime.now().minusYears(2).withNano(0));
+        return email;
+    }
+
+    private boolean inTrash(MailboxService service, String emailId) throws IOException {
+        return service.loadEmail("alice", MailboxService.TRASH, emailId).isPresent();
+    }
+
+    @Test
+    void retention_starts_when_the_email_enters_the_trash() throws Exception {
+        MaintenanceService maintenance = maintenance(mailboxService);
+        Email email = oldEmail("Ancien");
+        mailboxService.saveEmail("alice", MailboxService.INBOX, email);
+        mailboxService.deleteEmail("alice", MailboxService.INBOX, email.getId());
+
+        // Un message ancien mis à la corbeille y reste 30 jours, quelle que soit sa date d'envoi
+        LocalDateTime now = LocalDateTime.now();
+        assertEquals(0, maintenance.purgeExpired(now.plusDays(29)));
+        assertTrue(inTrash(mailboxService, email.getId()));
+
+        // L'heure d'arrivée est conservée au redémarrage
+        MailboxService restarted = new MailboxService(dataDir);
+        MaintenanceService reloaded = maintenance(restarted);
+        assertEquals(0, reloaded.purgeExpired(now.plusDays(29)));
+        assertEquals(1, reloaded.purgeExpired(now.plusDays(31)));
+        assertFalse(inTrash(restarted, email.getId()));
+    }
+
+    @Test
+    void failed_deletions_are_retried() throws Exception {
+        boolean[] locked = {true};
+        MailboxService lockedService = new MailboxService(dataDir) {
+            @Override
+            public void deleteEmail(String username, String folder, String emailId) throws IOException {
+                if (locked[0]) {
+                    throw new IOException("Boîte mail verrouillée");
+                }
+                super.deleteEmail(username, folder, emailId);
+            }
+        };
+        Email email = oldEmail("Verrouillé");
+        lockedService.saveEmail("alice", MailboxService.TRASH, email);
+        MaintenanceService maintenance = maintenance(lockedService);
+
+        LocalDateTime later = LocalDateTime.now().plusDays(31);
+        assertEquals(0, maintenance.purgeExpired(later));
+        assertEquals(0, maintenance.purgeExpired(later));
+        assertTrue(inTrash(lockedService, email.getId()));
+
+        // L'email est resté dans la file : il est supprimé dès que la suppression réussit
+        locked[0] = false;
+        assertEquals(1, maintenance.purgeExpired(later));
+        assertFalse(inTrash(lockedService, email.getId()));
+        assertEquals(0, maintenance.purgeExpired(later));
+    }
+
+    @Test
+    void emails_older_than_the_journal_get_their_arrival_time_once() throws Exception {
+        Email email = oldEmail("Hérité");
+        mailboxService.saveEmail("alice", MailboxService.TRASH, email);
+
+        // Journal d'une version précédente, sans heure d'arrivée
+        Path journal = dataDir.resolve("mailboxes/alice/.index/changes.jsonl");
+        Files.writeString(journal, Files.readString(journal).replaceAll(",\"at\":\\d+", ""));
+        MailboxService upgraded = new MailboxService(dataDir);
+        LocalDateTime before = LocalDateTime.now().withNano(0);
+        LocalDateTime arrival = upgraded.getArrivalTime("alice", MailboxService.TRASH, email.getId()).orElseThrow();
+        assertFalse(arrival.isBefore(before));
+
+        // L'heure fixée est retrouvée après redémarrage, elle n'est pas repoussée
+        Thread.sleep(5);
+        MailboxService restarted = new MailboxService(dataDir);
+        assertEquals(arrival, restarted.getArrivalTime("alice", MailboxService.TRASH, email.getId()).orElseThrow());
+        assertTrue(restarted.getArrivalTime("alice", MailboxService.INBOX, email.getId()).isEmpty());
+    }
+}
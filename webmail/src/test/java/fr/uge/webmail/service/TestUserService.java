@@ -0,0 +1,144 @@
+package fr.uge.webmail.service;
+
+import fr.uge.webmail.model.User;
+import fr.uge.webmail.util.TimingWheel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestUserService {
+
+    private static final String PASSWORD = "Secret123!";
+
+    @TempDir
+    Path dataDir;
+
+    private MailboxService mailboxService;
+    private UserService userService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        mailboxService = new MailboxService(dataDir);
+        userService = new UserService(mailboxService);
+        userService.createUser("alice", PASSWORD);
+    }
+
+    private User readUserFile(String username) throws Exception {
+        return new UserService(new MailboxService(dataDir)).loadUser(username).orElseThrow();
+    }
+
+    @Test
+    void users_are_loaded_at_startup() throws Exception {
+        UserService reloaded = new UserService(new MailboxService(dataDir));
+        assertTrue(reloaded.userExists("alice"));
+        assertFalse(reloaded.userExists("bob"));
+        assertTrue(reloaded.authenticate("alice", PASSWORD, 60).isPresent());
+        assertTrue(reloaded.authenticate("alice", "Mauvais123!", 60).isEmpty());
+        assertTrue(reloaded.authenticate("bob", PASSWORD, 60).isEmpty());
+    }
+
+    @Test
+    void last_logins_are_written_in_batches() throws Exception {
+        userService.createUser("bob", PASSWORD);
+        byte[] before = Files.readAllBytes(dataDir.resolve("mailboxes/alice/user.json"));
+
+        assertTrue(userService.authenticate("alice", PASSWORD, 60).isPresent());
+        assertTrue(userService.authenticate("bob", PASSWORD, 60).isPresent());
+
+        // Connue en mémoire, pas encore écrite
+        assertNotNull(userService.loadUser("alice").orElseThrow().getLastLogin());
+        assertEquals(new String(before), Files.readString(dataDir.resolve("mailboxes/alice/user.json")));
+        assertNull(readUserFile("alice").getLastLogin());
+
+        assertEquals(2, userService.flushLastLogins());
+        assertNotNull(readUserFile("alice").getLastLogin());
+        assertNotNull(readUserFile("bob").getLastLogin());
+        assertEquals(0, userService.flushLastLogins());
+    }
+
+    @Test
+    void password_change_keeps_pending_last_login() throws Exception {
+        assertTrue(userService.authenticate("alice", PASSWORD, 60).isPresent());
+        userService.changePassword("alice", PASSWORD, "Nouveau456!");
+
+        // La dernière connexion a été écrite avec la fiche : plus rien en attente
+        assertNotNull(readUserFile("alice").getLastLogin());
+        assertEquals(0, userService.flushLastLogins());
+        assertTrue(userService.authenticate("alice", "Nouveau456!", 60).isPresent());
+        assertTrue(userService.authenticate("alice", PASSWORD, 60).isEmpty());
+    }
+
+    @Test
+    void signed_sessions_survive_restarts_and_key_rotation() throws Exception {
+        byte[] oldKey = new byte[32];
+        byte[] newKey = new byte[32];
+        Arrays.fill(newKey, (byte) 1);
+        SessionManager before = new SignedSessionManager(Map.of("k1", oldKey), "k1");
+        String token = before.create("alice", 60);
+
+        // Autre instance, nouvelle clé courante : l'ancienne clé est encore acceptée
+        SessionManager after = new SignedSessionManager(Map.of("k1", oldKey, "k2", newKey), "k2");
+        assertEquals(Optional.of("alice"), after.validate(token));
+        assertTrue(after.create("alice", 60).startsWith("k2."));
+
+        // Token modifié, clé retirée, token expiré : refusés
+        assertTrue(after.validate(token.replace(".", "x.")).isEmpty());
+        String[] parts = token.split("\\.");
+        parts[2] = String.valueOf(Long.parseLong(parts[2]) + 3600);
+        assertTrue(after.validate(String.join(".", parts)).isEmpty());
+        assertTrue(new SignedSessionManager(Map.of("k2", newKey), "k2").validate(token).isEmpty());
+        assertTrue(after.validate(after.create("alice", 0)).isEmpty());
+
+        // Déconnexion
+        after.invalidate(token);
+        assertTrue(after.validate(token).isEmpty());
+        assertEquals(Optional.of("alice"), before.validate(token));
+    }
+
+    @Test
+    void session_expiries_are_found_by_the_timing_wheel() {
+        long start = 1_000_000L;
+        TimingWheel<String> wheel = new TimingWheel<>(10, 2, start);
+        wheel.schedule("court", start + 25);
+        wheel.schedule("moyen", start + 10 * 64 * 3 + 5);
+        // Au-delà de la portée de la roue (64 * 64 ticks)
+        wheel.schedule("long", start + 10 * 64 * 64 * 2);
+
+        List<String> expired = new ArrayList<>();
+        assertEquals(0, wheel.advance(start + 24, expired::add));
+        assertEquals(1, wheel.advance(start + 30, expired::add));
+        assertEquals(List.of("court"), expired);
+
+        assertEquals(0, wheel.advance(start + 10 * 64 * 3, expired::add));
+        assertEquals(1, wheel.advance(start + 10 * 64 * 3 + 10, expired::add));
+        assertEquals(0, wheel.advance(start + 10 * 64 * 64 * 2 - 1, expired::add));
+        assertEquals(1, wheel.advance(start + 10 * 64 * 64 * 2, expired::add));
+        assertEquals(List.of("court", "moyen", "long"), expired);
+        assertEquals(0, wheel.size());
+
+        // Sessions locales : nettoyage par la roue, compteurs
+        LocalSessionManager sessions = new LocalSessionManager();
+        String closed = sessions.create("alice", 60);
+        String active = sessions.create("alice", 60);
+        sessions.invalidate(closed);
+        assertEquals(0, sessions.cleanup());
+        assertEquals(Optional.of("alice"), sessions.validate(active));
+        assertTrue(sessions.validate(closed).isEmpty());
+        assertTrue(sessions.validate(sessions.create("bob", 0)).isEmpty());
+        assertEquals(new SessionManager.Stats(1, 3, 1, 1), sessions.stats());
+    }
+}
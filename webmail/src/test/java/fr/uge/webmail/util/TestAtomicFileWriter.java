@@ -0,0 +1,98 @@
+package fr.uge.webmail.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestAtomicFileWriter {
+
+    private static final int WRITERS = 8;
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Lance une tâche par écrivain en même temps et attend qu'elles soient toutes terminées.
+     */
+    private static void concurrently(ThrowingTask task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < WRITERS; i++) {
+                int writer = i;
+                futures.add(executor.submit(() -> {
+                    task.run(writer);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void appends_are_kept_under_every_policy() throws Exception {
+        for (AtomicFileWriter.SyncPolicy policy : AtomicFileWriter.SyncPolicy.values()) {
+            AtomicFileWriter writer = new AtomicFileWriter(policy);
+            Path journal = directory.resolve(policy + ".log");
+            concurrently(i -> writer.append(journal, ("ligne " + i + "\n").getBytes(StandardCharsets.UTF_8)));
+
+            List<String> lines = Files.readAllLines(journal);
+            assertEquals(WRITERS, lines.size());
+            for (int i = 0; i < WRITERS; i++) {
+                assertEquals(1, lines.stream().filter(("ligne " + i)::equals).count());
+            }
+        }
+    }
+
+    @Test
+    void a_group_batch_syncs_each_file_once_and_each_directory_once() throws Exception {
+        // Fenêtre large : les écritures concurrentes rejoignent le même lot
+        AtomicFileWriter writer = new AtomicFileWriter(AtomicFileWriter.SyncPolicy.GROUP, 200_000);
+        concurrently(i -> writer.write(directory.resolve("email-" + i + ".json"),
+                ("{\"id\":" + i + "}").getBytes(StandardCharsets.UTF_8)));
+
+        AtomicFileWriter.SyncStats stats = writer.getSyncStats();
+        assertTrue(stats.batches() < WRITERS, stats.toString());
+        // Un fsync par fichier écrit, un seul fsync du répertoire commun par lot
+        assertEquals(WRITERS, stats.fileSyncs());
+        assertEquals(stats.batches(), stats.directorySyncs());
+        for (int i = 0; i < WRITERS; i++) {
+            assertEquals("{\"id\":" + i + "}", Files.readString(directory.resolve("email-" + i + ".json")));
+        }
+    }
+
+    @Test
+    void a_shared_journal_is_synced_once_per_batch() throws Exception {
+        AtomicFileWriter writer = new AtomicFileWriter(AtomicFileWriter.SyncPolicy.GROUP, 200_000);
+        Path journal = directory.resolve(".refs");
+        Files.createFile(journal);
+        concurrently(i -> writer.append(journal, ("ligne " + i + "\n").getBytes(StandardCharsets.UTF_8)));
+
+        AtomicFileWriter.SyncStats stats = writer.getSyncStats();
+        assertTrue(stats.batches() < WRITERS, stats.toString());
+        assertEquals(stats.batches(), stats.fileSyncs());
+        // Le journal existait déjà : aucun répertoire à synchroniser
+        assertEquals(0, stats.directorySyncs());
+        assertEquals(WRITERS, Files.readAllLines(journal).size());
+    }
+
+    @FunctionalInterface
+    private interface ThrowingTask {
+        void run(int writer) throws Exception;
+    }
+}
@@ -0,0 +1,89 @@
+package fr.uge.webmail.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class TestLruCache {
+
+    private static LruCache<String, String> cache(long maxWeight) {
+        return new LruCache<>(maxWeight, String::length);
+    }
+
+    @Test
+    void least_recently_used_entries_are_evicted_first() {
+        LruCache<String, String> cache = cache(10);
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        // Lire "a" le rend plus récent que "b"
+        assertEquals("aaaa", cache.get("a"));
+
+        cache.put("c", "cccc");
+        assertNull(cache.get("b"));
+        assertEquals("aaaa", cache.get("a"));
+        assertEquals("cccc", cache.get("c"));
+
+        LruCache.Stats stats = cache.stats();
+        assertEquals(2, stats.size());
+        assertEquals(8, stats.weight());
+        assertEquals(1, stats.evictions());
+        assertEquals(3, stats.hits());
+        assertEquals(1, stats.misses());
+    }
+
+    @Test
+    void entries_larger_than_the_cache_are_not_kept() {
+        LruCache<String, String> cache = cache(10);
+        cache.put("a", "aaaa");
+        cache.put("gros", "x".repeat(11));
+        assertNull(cache.get("gros"));
+        assertEquals("aaaa", cache.get("a"));
+
+        // Un cache de taille nulle ne conserve rien
+        LruCache<String, String> disabled = cache(0);
+        disabled.put("a", "aaaa");
+        assertNull(disabled.get("a"));
+    }
+
+    @Test
+    void replaced_and_removed_entries_release_their_weight() {
+        LruCache<String, String> cache = cache(100);
+        cache.put("a", "aaaa");
+        cache.put("a", "aa");
+        assertEquals(2, cache.stats().weight());
+
+        cache.put("alice/inbox/1", "un");
+        cache.put("alice/inbox/2", "deux");
+        cache.put("bob/inbox/1", "trois");
+        cache.removeIf(key -> key.startsWith("alice/"));
+        assertNull(cache.get("alice/inbox/1"));
+        assertNull(cache.get("alice/inbox/2"));
+        assertEquals("trois", cache.get("bob/inbox/1"));
+
+        cache.remove("a");
+        assertEquals(5, cache.stats().weight());
+        assertEquals(1, cache.stats().size());
+    }
+
+    @Test
+    void values_read_before_an_update_are_not_cached() {
+        LruCache<String, String> cache = cache(100);
+
+        // Le lecteur relève l'état, puis un écrivain modifie le fichier avant l'ajout
+        long stamp = cache.stamp();
+        cache.remove("a");
+        cache.putIfUnchanged("a", "périmé", stamp);
+        assertNull(cache.get("a"));
+
+        // Sans écriture concurrente, la valeur lue est ajoutée
+        stamp = cache.stamp();
+        cache.putIfUnchanged("a", "à jour", stamp);
+        assertEquals("à jour", cache.get("a"));
+
+        // Une valeur déjà présente (mise par un écrivain) n'est pas écrasée
+        cache.put("b", "écrite");
+        cache.putIfUnchanged("b", "lue", cache.stamp());
+        assertEquals("écrite", cache.get("b"));
+    }
+}